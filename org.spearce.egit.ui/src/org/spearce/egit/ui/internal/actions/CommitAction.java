@@ -329,9 +329,7 @@ private void buildIndexHeadDiffList() throws IOException {
 			RepositoryMapping repositoryMapping = RepositoryMapping.getMapping(project);
 			assert repositoryMapping != null;
 			Repository repository = repositoryMapping.getRepository();
-			Tree head = repository.mapTree(Constants.HEAD);
-			GitIndex index = repository.getIndex();
-			IndexDiff indexDiff = new IndexDiff(head, index);
+			IndexDiff indexDiff = new IndexDiff(repository);
 			indexDiff.diff();
 
 			includeList(project, indexDiff.getAdded(), indexChanges);
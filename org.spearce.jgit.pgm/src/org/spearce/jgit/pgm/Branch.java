@@ -126,15 +126,14 @@ protected void run() throws Exception {
 	}
 
 	private void list() throws Exception {
-		Map<String, Ref> refs = db.getAllRefs();
-		Ref head = refs.get(Constants.HEAD);
+		Ref head = db.getRefs(Constants.HEAD).get(Constants.HEAD);
 		// This can happen if HEAD is stillborn
 		if (head != null) {
 			String current = head.getName();
 			if (current.equals(Constants.HEAD))
 				addRef("(no branch)", head);
-			addRefs(refs, Constants.R_HEADS, !remote);
-			addRefs(refs, Constants.R_REMOTES, remote);
+			addRefs(Constants.R_HEADS, !remote);
+			addRefs(Constants.R_REMOTES, remote);
 			for (final Entry<String, Ref> e : printRefs.entrySet()) {
 				final Ref ref = e.getValue();
 				printHead(e.getKey(), current.equals(ref.getName()), ref);
@@ -142,13 +141,12 @@ private void list() throws Exception {
 		}
 	}
 
-	private void addRefs(final Map<String, Ref> allRefs, final String prefix,
-			final boolean add) {
+	private void addRefs(final String prefix, final boolean add) {
 		if (all || add) {
-			for (final Ref ref : RefComparator.sort(allRefs.values())) {
+			final Map<String, Ref> refs = db.getRefs(prefix);
+			for (final Ref ref : RefComparator.sort(refs.values())) {
 				final String name = ref.getName();
-				if (name.startsWith(prefix))
-					addRef(name.substring(name.indexOf('/', 5) + 1), ref);
+				addRef(name.substring(name.indexOf('/', 5) + 1), ref);
 			}
 		}
 	}
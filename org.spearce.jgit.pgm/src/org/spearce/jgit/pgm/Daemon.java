@@ -54,6 +54,24 @@ class Daemon extends TextBuiltin {
 	@Option(name = "--listen", metaVar = "HOSTNAME", usage = "hostname (or ip) to listen on")
 	String host;
 
+	@Option(name = "--max-connections", metaVar = "N", usage = "maximum number of clients served at once")
+	int maxConnections = org.spearce.jgit.transport.Daemon.DEFAULT_MAX_CONNECTIONS;
+
+	@Option(name = "--max-queue", metaVar = "N", usage = "maximum number of clients waiting to be served")
+	int maxQueue = org.spearce.jgit.transport.Daemon.DEFAULT_MAX_QUEUE;
+
+	@Option(name = "--init-timeout", metaVar = "SECONDS", usage = "seconds a client may take to send its request")
+	int initTimeout = org.spearce.jgit.transport.Daemon.DEFAULT_HANDSHAKE_TIMEOUT;
+
+	@Option(name = "--timeout", metaVar = "SECONDS", usage = "abort connections idle for this long")
+	int timeout;
+
+	@Option(name = "--max-open-repositories", metaVar = "N", usage = "repositories kept open between clients")
+	int maxOpenRepositories = org.spearce.jgit.transport.Daemon.DEFAULT_MAX_OPEN_REPOSITORIES;
+
+	@Option(name = "--repository-idle-time", metaVar = "SECONDS", usage = "close repositories unused for this long")
+	int repositoryIdleTime = org.spearce.jgit.transport.Daemon.DEFAULT_REPOSITORY_IDLE_TIME;
+
 	@Option(name = "--enable", metaVar = "SERVICE", usage = "enable the service in all repositories", multiValued = true)
 	final List<String> enable = new ArrayList<String>();
 
@@ -85,6 +103,12 @@ protected void run() throws Exception {
 				host != null ? new InetSocketAddress(host, port)
 						: new InetSocketAddress(port));
 		d.setExportAll(exportAll);
+		d.setMaxConnections(maxConnections);
+		d.setMaxQueue(maxQueue);
+		d.setHandshakeTimeout(initTimeout);
+		d.setTimeout(timeout);
+		d.setMaxOpenRepositories(maxOpenRepositories);
+		d.setRepositoryIdleTime(repositoryIdleTime);
 
 		for (final String n : enable)
 			service(d, n).setEnabled(true);
@@ -51,6 +51,9 @@ class IndexPack extends TextBuiltin {
 	@Option(name = "--index-version", usage = "index file format to create")
 	private int indexVersion = -1;
 
+	@Option(name = "--threads", metaVar = "n", usage = "number of threads resolving deltas")
+	private int threads = -1;
+
 	@Argument(index = 0, required = true, metaVar = "base")
 	private File base;
 
@@ -64,6 +67,8 @@ protected void run() throws Exception {
 		ip = new org.spearce.jgit.transport.IndexPack(db, in, base);
 		ip.setFixThin(fixThin);
 		ip.setIndexVersion(indexVersion);
+		if (threads >= 0)
+			ip.setThreads(threads);
 		ip.index(new TextProgressMonitor());
 	}
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.pgm.debug;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.spearce.jgit.lib.CachedPack;
+import org.spearce.jgit.lib.CachedPackWriter;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.TextProgressMonitor;
+import org.spearce.jgit.pgm.Command;
+import org.spearce.jgit.pgm.TextBuiltin;
+
+@Command(usage = "Write the cached pack sent to cloning clients")
+class WriteCachedPack extends TextBuiltin {
+	@Override
+	protected void run() throws Exception {
+		String[] names = db.getConfig().getStringList("uploadpack", null,
+				"cachedpack");
+		if (names.length == 0)
+			names = new String[] { Constants.HEAD };
+
+		final List<ObjectId> tips = new ArrayList<ObjectId>();
+		for (final String name : names) {
+			final Ref r = db.getRef(name);
+			if (r == null || r.getObjectId() == null)
+				throw die("no such ref: " + name);
+			tips.add(r.getObjectId());
+		}
+
+		final CachedPackWriter w = new CachedPackWriter(db);
+		final CachedPack p = w.write(tips, new TextProgressMonitor());
+		if (p == null)
+			throw die("cached pack is being written by another process");
+		out.print(p.getName());
+		out.print(" ");
+		out.print(p.getObjectCount());
+		out.print(" objects");
+		out.println();
+	}
+}
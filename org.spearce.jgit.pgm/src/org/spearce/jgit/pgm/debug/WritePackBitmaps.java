@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.pgm.debug;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.args4j.Option;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.PackBitmapIndexWriter;
+import org.spearce.jgit.lib.PackFile;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.TextProgressMonitor;
+import org.spearce.jgit.pgm.Command;
+import org.spearce.jgit.pgm.TextBuiltin;
+
+@Command(usage = "Write reachability bitmaps for the packs of the repository")
+class WritePackBitmaps extends TextBuiltin {
+	@Option(name = "--spacing", metaVar = "n", usage = "commits between two bitmaps")
+	private int spacing = PackBitmapIndexWriter.DEFAULT_COMMIT_SPACING;
+
+	@Override
+	protected void run() throws Exception {
+		final List<ObjectId> tips = new ArrayList<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			tips.add(r.getObjectId());
+
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		for (final PackFile pack : db.getPacks()) {
+			if (!packDir.equals(pack.getPackFile().getParentFile()))
+				continue; // Don't write into alternate repositories.
+
+			final PackBitmapIndexWriter w = new PackBitmapIndexWriter(db, pack);
+			w.setCommitSpacing(spacing);
+			w.compute(new TextProgressMonitor(), tips);
+			if (w.getBitmapCount() == 0)
+				continue;
+			w.write();
+			out.print(pack.getPackFile().getName());
+			out.print(": ");
+			out.print(w.getBitmapCount());
+			out.print(" bitmaps");
+			out.println();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.textui.TestRunner;
+
+/**
+ * Measures how {@link WindowCache} read throughput scales with the number of
+ * concurrent reader threads.
+ * <p>
+ * Each reader repeatedly copies a few bytes from random positions of the test
+ * packs. Positions are random, so almost every read requires a lookup in the
+ * window cache rather than reusing the window pinned by the cursor. The cache
+ * is sized to hold all windows, so the measurement reflects lookup contention
+ * rather than disk IO.
+ */
+public class T0009_WindowCacheContentionTest extends RepositoryTestCase {
+	private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32 };
+
+	private static final long RUN_MILLIS = 2000;
+
+	private WindowedFile[] files;
+
+	@Override
+	protected void configure() {
+		final WindowCacheConfig c = new WindowCacheConfig();
+		c.setPackedGitLimit(64 * WindowCacheConfig.MB);
+		c.setPackedGitWindowSize(8 * WindowCacheConfig.KB);
+		c.setPackedGitMMAP("true".equals(System.getProperty("jgit.junit.usemmmap")));
+		WindowCache.reconfigure(c);
+	}
+
+	public void setUp() throws Exception {
+		super.setUp();
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final File[] packs = packDir.listFiles();
+		int n = 0;
+		for (final File p : packs)
+			if (p.getName().endsWith(".pack"))
+				n++;
+		files = new WindowedFile[n];
+		n = 0;
+		for (final File p : packs)
+			if (p.getName().endsWith(".pack"))
+				files[n++] = new WindowedFile(p);
+	}
+
+	protected void tearDown() throws Exception {
+		for (final WindowedFile f : files)
+			f.close();
+		super.tearDown();
+	}
+
+	public void testReaderScaling() throws Exception {
+		// Warm the cache and the JIT before taking measurements.
+		run(THREAD_COUNTS[THREAD_COUNTS.length - 1]);
+
+		double base = 0;
+		System.out.println("threads     reads/sec   speedup");
+		for (final int threads : THREAD_COUNTS) {
+			final double rate = run(threads);
+			if (base == 0)
+				base = rate;
+			System.out.println(String.format("%7d  %12.0f  %7.2fx", threads,
+					rate, rate / base));
+		}
+	}
+
+	private double run(final int threadCount) throws Exception {
+		final Reader[] readers = new Reader[threadCount];
+		for (int i = 0; i < threadCount; i++)
+			readers[i] = new Reader(i);
+
+		final long start = System.currentTimeMillis();
+		for (final Reader r : readers)
+			r.start();
+		Thread.sleep(RUN_MILLIS);
+		for (final Reader r : readers)
+			r.running = false;
+
+		long total = 0;
+		for (final Reader r : readers) {
+			r.join();
+			if (r.error != null)
+				throw r.error;
+			total += r.reads;
+		}
+		final long time = System.currentTimeMillis() - start;
+		return total * 1000.0 / time;
+	}
+
+	private class Reader extends Thread {
+		private final Random rng;
+
+		volatile boolean running = true;
+
+		long reads;
+
+		Exception error;
+
+		Reader(final int seed) {
+			rng = new Random(seed);
+		}
+
+		public void run() {
+			final WindowCursor curs = new WindowCursor();
+			final byte[] buf = new byte[20];
+			try {
+				while (running) {
+					final WindowedFile f = files[rng.nextInt(files.length)];
+					final long len = f.length();
+					final long pos = len == Long.MAX_VALUE ? 0 : (long) (rng
+							.nextDouble() * (len - buf.length));
+					f.read(pos, buf, curs);
+					reads++;
+				}
+			} catch (IOException err) {
+				error = err;
+			} finally {
+				curs.release();
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0009_WindowCacheContentionTest.class);
+	}
+}
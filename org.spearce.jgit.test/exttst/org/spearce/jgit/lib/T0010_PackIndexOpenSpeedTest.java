@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.transport.PackedObjectInfo;
+
+/**
+ * Compares opening a large version 2 pack index through the heap loader
+ * ({@link PackIndexV2}) and through a memory mapping ({@link PackIndexV2Mapped}).
+ * <p>
+ * A synthetic index of one million random object names is written to a
+ * temporary file. For each loader the time to open the index, the heap retained
+ * by the open index, and the time for a batch of random lookups are reported.
+ * The object count can be changed with the <code>jgit.test.idxobjects</code>
+ * system property.
+ */
+public class T0010_PackIndexOpenSpeedTest extends TestCase {
+	private static final int LOOKUPS = 100000;
+
+	private File idxFile;
+
+	private ObjectId[] ids;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		final int cnt = Integer.getInteger("jgit.test.idxobjects", 1000000);
+		final Random rng = new Random(42);
+		final List<PackedObjectInfo> list = new ArrayList<PackedObjectInfo>(cnt);
+		final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		long offset = 12;
+		for (int i = 0; i < cnt; i++) {
+			rng.nextBytes(raw);
+			final PackedObjectInfo oe = new PackedObjectInfo(ObjectId
+					.fromRaw(raw));
+			oe.setOffset(offset);
+			oe.setCRC(rng.nextInt());
+			offset += 100 + rng.nextInt(4000);
+			list.add(oe);
+		}
+		Collections.sort(list);
+
+		ids = new ObjectId[LOOKUPS];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = list.get(rng.nextInt(cnt));
+
+		idxFile = File.createTempFile("speedtest", ".idx");
+		final OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(idxFile));
+		try {
+			rng.nextBytes(raw);
+			PackIndexWriter.createVersion(out, 2).write(list, raw);
+		} finally {
+			out.close();
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		ids = null;
+		System.gc();
+		idxFile.delete();
+		super.tearDown();
+	}
+
+	public void testOpenHeap() throws IOException {
+		run(false);
+	}
+
+	public void testOpenMapped() throws IOException {
+		run(true);
+	}
+
+	private void run(final boolean mmap) throws IOException {
+		// Prime the OS page cache so both loaders read from memory.
+		PackIndex.open(idxFile, mmap);
+
+		final long heapBefore = usedHeap();
+		final long start = System.nanoTime();
+		final PackIndex idx = PackIndex.open(idxFile, mmap);
+		final long openTime = System.nanoTime() - start;
+		final long heap = usedHeap() - heapBefore;
+
+		final long lookupStart = System.nanoTime();
+		for (final ObjectId id : ids)
+			assertTrue(idx.findOffset(id) > 0);
+		final long lookupTime = System.nanoTime() - lookupStart;
+
+		System.out.println(String.format("%-8s objects=%d open=%.1f ms"
+				+ " heap=%.1f MB lookups=%.0f ns/op", mmap ? "mapped"
+				: "heap", idx.getObjectCount(), openTime / 1e6, heap
+				/ (1024.0 * 1024.0), (double) lookupTime / ids.length));
+	}
+
+	private static long usedHeap() {
+		final Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0010_PackIndexOpenSpeedTest.class);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.dircache;
+
+import junit.framework.TestCase;
+
+public class DirCacheEntryTest extends TestCase {
+	public void testMightBeRacilyClean() {
+		final DirCacheEntry e = new DirCacheEntry("a");
+		e.setLastModified(1000500L * 1000); // 1000500 seconds, 0 ms
+		assertTrue(e.mightBeRacilyClean(1000500, 0));
+		assertFalse(e.mightBeRacilyClean(1000500, 1));
+		assertFalse(e.mightBeRacilyClean(1000501, 0));
+		assertTrue(e.mightBeRacilyClean(1000499, 999999999));
+	}
+
+	public void testMightBeRacilyCleanWithinSecond() {
+		// The entry stores nanoseconds; an index written 100 ms after the
+		// file was modified must not be compared with milliseconds.
+		final DirCacheEntry e = new DirCacheEntry("a");
+		e.setLastModified(1000500L * 1000 + 250);
+		assertTrue(e.mightBeRacilyClean(1000500, 250 * 1000000));
+		assertTrue(e.mightBeRacilyClean(1000500, 200 * 1000000));
+		assertFalse(e.mightBeRacilyClean(1000500, 350 * 1000000));
+	}
+
+	public void testRacilyCleanInIndex() throws Exception {
+		final DirCache dc = DirCache.newInCore();
+		final DirCacheEntry e = new DirCacheEntry("a");
+		e.setLastModified(1000500L * 1000 + 250);
+		assertTrue(dc.isRacilyClean(e));
+	}
+}
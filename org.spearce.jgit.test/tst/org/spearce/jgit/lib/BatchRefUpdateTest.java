@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import org.spearce.jgit.lib.RefUpdate.Result;
+import org.spearce.jgit.revwalk.RevWalk;
+
+public class BatchRefUpdateTest extends RepositoryTestCase {
+	public void testSmallBatchWritesLooseRefs() throws Exception {
+		final ObjectId a = db.resolve("refs/heads/a");
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		final RefUpdate create = update("refs/heads/new", a);
+		final RefUpdate stale = update("refs/heads/b", a);
+		stale.setExpectedOldObjectId(ObjectId.zeroId());
+		batch.addUpdate(create);
+		batch.addUpdate(stale);
+		batch.execute(new RevWalk(db));
+
+		assertEquals(Result.NEW, create.getResult());
+		assertEquals(Result.LOCK_FAILURE, stale.getResult());
+		assertTrue(new File(db.getDirectory(), "refs/heads/new").isFile());
+		assertEquals(a, db.resolve("refs/heads/new"));
+		assertFalse(a.equals(db.resolve("refs/heads/b")));
+	}
+
+	public void testAtomicBatchAborts() throws Exception {
+		final ObjectId a = db.resolve("refs/heads/a");
+		final ObjectId b = db.resolve("refs/heads/b");
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		batch.setAtomic(true);
+		final RefUpdate create = update("refs/heads/new", a);
+		final RefUpdate stale = update("refs/heads/b", a);
+		stale.setExpectedOldObjectId(ObjectId.zeroId());
+		batch.addUpdate(create);
+		batch.addUpdate(stale);
+		batch.execute(new RevWalk(db));
+
+		assertEquals(Result.ABORTED, create.getResult());
+		assertEquals(Result.LOCK_FAILURE, stale.getResult());
+		assertNull(db.resolve("refs/heads/new"));
+		assertEquals(b, db.resolve("refs/heads/b"));
+		assertFalse(new File(db.getDirectory(), "refs/heads/new.lock")
+				.exists());
+	}
+
+	public void testDeleteCurrentBranchRejected() throws Exception {
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		final RefUpdate d = db.updateRef("refs/heads/master");
+		d.setForceUpdate(true);
+		batch.addDelete(d);
+		batch.execute(new RevWalk(db));
+		assertEquals(Result.REJECTED_CURRENT_BRANCH, d.getResult());
+		assertNotNull(db.resolve("refs/heads/master"));
+	}
+
+	public void testLargeBatchRewritesPackedRefs() throws Exception {
+		final ObjectId a = db.resolve("refs/heads/a");
+		final ObjectId tag = db.resolve("refs/tags/B");
+		writeTrashFile(".git/refs/heads/loose", a.name() + "\n");
+
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		final int cnt = BatchRefUpdate.PACKED_THRESHOLD + 10;
+		for (int i = 0; i < cnt; i++)
+			batch.addUpdate(update("refs/tags/batch/t" + i, tag));
+		final RefUpdate loose = update("refs/heads/loose", db
+				.resolve("refs/heads/b"));
+		loose.setForceUpdate(true);
+		batch.addUpdate(loose);
+		final RefUpdate del = db.updateRef("refs/heads/c");
+		del.setForceUpdate(true);
+		batch.addDelete(del);
+		batch.execute(new RevWalk(db));
+
+		for (final RefUpdate u : batch.getUpdates())
+			assertTrue(u.getName(), RefUpdate.isStorable(u.getResult()));
+		assertNull(db.resolve("refs/heads/c"));
+		assertEquals(db.resolve("refs/heads/b"), db.resolve("refs/heads/loose"));
+		assertFalse(new File(db.getDirectory(), "refs/heads/loose").exists());
+		assertFalse(new File(db.getDirectory(), "refs/tags/batch").exists());
+		assertFalse(new File(db.getDirectory(), "packed-refs.lock").exists());
+
+		final Ref t = db.getRef("refs/tags/batch/t7");
+		assertSame(Ref.Storage.PACKED, t.getStorage());
+		assertEquals(tag, t.getObjectId());
+		assertEquals(db.resolve("refs/tags/B^{}"), t.getPeeledObjectId());
+		assertEquals(cnt, db.getRefs("refs/tags/batch/").size());
+	}
+
+	public void testLargeBatchPeelsExistingPackedTags() throws Exception {
+		final ObjectId a = db.resolve("refs/heads/a");
+		final ObjectId tag = db.resolve("refs/tags/B");
+		final File packedRefs = new File(db.getDirectory(), "packed-refs");
+		final FileWriter w = new FileWriter(packedRefs);
+		try {
+			w.write("# pack-refs with: sorted\n");
+			w.write(a.name() + " refs/heads/a\n");
+			w.write(tag.name() + " refs/tags/B\n");
+		} finally {
+			w.close();
+		}
+
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		final int cnt = BatchRefUpdate.PACKED_THRESHOLD + 1;
+		for (int i = 0; i < cnt; i++)
+			batch.addUpdate(update("refs/tags/batch/t" + i, tag));
+		batch.execute(new RevWalk(db));
+
+		// The file now declares the peeled trait, so the tag it held
+		// before the batch must carry its peeled value.
+		//
+		final PackedRefList list = PackedRefList.read(packedRefs);
+		final Ref b = list.get("refs/tags/B");
+		assertTrue(b.isPeeled());
+		assertEquals(db.resolve("refs/tags/B^{}"), b.getPeeledObjectId());
+		assertTrue(list.get("refs/heads/a").isPeeled());
+		assertNull(list.get("refs/heads/a").getPeeledObjectId());
+	}
+
+	private RefUpdate update(final String name, final ObjectId id)
+			throws Exception {
+		final RefUpdate u = db.updateRef(name);
+		u.setNewObjectId(id);
+		u.setRefLogMessage("batch", true);
+		return u;
+	}
+}
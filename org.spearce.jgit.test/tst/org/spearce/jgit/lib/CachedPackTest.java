@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.transport.IndexPack;
+
+public class CachedPackTest extends RepositoryTestCase {
+	private static final ObjectId PARENT = ObjectId
+			.fromString("c59759f143fb1fe21c197981df75a7ee00290799");
+
+	private static final ObjectId CHILD = ObjectId
+			.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7");
+
+	public void testNoCachedPack() throws IOException {
+		assertNull(CachedPack.open(db));
+	}
+
+	public void testWriteOpen() throws IOException {
+		final CachedPack written = write(PARENT);
+		assertNotNull(written);
+		assertFalse(new CachedPackWriter(db).isWriting());
+
+		final CachedPack p = CachedPack.open(db);
+		assertNotNull(p);
+		assertEquals(written.getName(), p.getName());
+		assertEquals(Collections.singleton(PARENT), p.getTips());
+		assertEquals(countReachable(PARENT), p.getObjectCount());
+		assertTrue(p.hasObject(PARENT));
+		assertFalse(p.hasObject(CHILD));
+	}
+
+	public void testSameTipsKeepPack() throws IOException {
+		final CachedPack first = write(PARENT);
+		final long modified = first.getPackFile().lastModified();
+		final CachedPack second = write(PARENT);
+		assertEquals(first.getName(), second.getName());
+		assertEquals(modified, second.getPackFile().lastModified());
+	}
+
+	public void testNewTipsReplacePack() throws IOException {
+		final CachedPack first = write(PARENT);
+		final CachedPack second = write(CHILD);
+		assertFalse(first.getName().equals(second.getName()));
+		assertEquals(second.getName(), CachedPack.open(db).getName());
+		assertTrue(first.getPackFile().exists());
+	}
+
+	public void testLockedWriterSkips() throws IOException {
+		final LockFile lck = new LockFile(new File(new File(db.getDirectory(),
+				"cached-pack"), "tips"));
+		new File(db.getDirectory(), "cached-pack").mkdirs();
+		assertTrue(lck.lock());
+		try {
+			assertTrue(new CachedPackWriter(db).isWriting());
+			assertNull(write(PARENT));
+		} finally {
+			lck.unlock();
+		}
+	}
+
+	public void testPackWithCachedPack() throws IOException {
+		final CachedPack cached = write(PARENT);
+
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setDeltaBaseAsOffset(true);
+		pw.setCachedPack(cached);
+		pw.preparePack(Collections.singleton(CHILD), cached.getTips());
+		assertEquals(3, pw.getObjectsNumber());
+		assertTrue(pw.willInclude(CHILD));
+		assertTrue(pw.willInclude(PARENT));
+
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		pw.writePack(os);
+
+		final File packBase = new File(trash, "tmp_pack");
+		final IndexPack ip = new IndexPack(db, new ByteArrayInputStream(os
+				.toByteArray()), packBase);
+		ip.setIndexVersion(2);
+		ip.index(NullProgressMonitor.INSTANCE);
+
+		final PackFile out = new PackFile(new File(trash, "tmp_pack.idx"),
+				new File(trash, "tmp_pack.pack"));
+		assertEquals(countReachable(CHILD), out.getObjectCount());
+		for (final ObjectId id : reachable(CHILD))
+			assertTrue(id.name(), out.hasObject(id));
+	}
+
+	private CachedPack write(final ObjectId tip) throws IOException {
+		return new CachedPackWriter(db).write(Collections.singleton(tip),
+				NullProgressMonitor.INSTANCE);
+	}
+
+	private long countReachable(final ObjectId tip) throws IOException {
+		return reachable(tip).size();
+	}
+
+	private List<ObjectId> reachable(final ObjectId tip) throws IOException {
+		final List<ObjectId> r = new ArrayList<ObjectId>();
+		final ObjectWalk ow = new ObjectWalk(db);
+		ow.markStart(ow.parseAny(tip));
+		RevObject o;
+		while ((o = ow.next()) != null)
+			r.add(o.copy());
+		while ((o = ow.nextObject()) != null)
+			r.add(o.copy());
+		return r;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+
+public class CommitGraphTest extends RepositoryTestCase {
+	private List<ObjectId> tips;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		tips = new ArrayList<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			tips.add(r.getObjectId());
+	}
+
+	public void testNoCommitGraph() throws IOException {
+		assertNull(db.getCommitGraph());
+	}
+
+	public void testWriteRead() throws IOException {
+		final CommitGraphWriter w = writeGraph();
+		final CommitGraph graph = db.getCommitGraph();
+		assertNotNull(graph);
+		assertEquals(w.getCommitCount(), graph.getCommitCount());
+		assertEquals(db.getPacks().length, graph.getPackNames().length);
+
+		final Map<ObjectId, Integer> generation = new HashMap<ObjectId, Integer>();
+		final RevWalk rw = new RevWalk(db);
+		rw.sort(RevSort.TOPO);
+		rw.sort(RevSort.REVERSE, true);
+		markTips(rw);
+
+		final MutableObjectId tmp = new MutableObjectId();
+		int commits = 0;
+		for (RevCommit c; (c = rw.next()) != null; commits++) {
+			final int idx = graph.findCommit(c);
+			assertTrue(idx >= 0);
+			graph.getObjectId(idx, tmp);
+			assertEquals(c.copy(), tmp);
+			graph.getTree(idx, tmp);
+			assertEquals(c.getTree().copy(), tmp);
+			assertEquals(c.getCommitTime(), graph.getCommitTime(idx));
+			assertEquals(c.getParentCount(), graph.getParentCount(idx));
+
+			int gen = 1;
+			for (int i = 0; i < c.getParentCount(); i++) {
+				final RevCommit p = c.getParent(i);
+				graph.getObjectId(graph.getParent(idx, i), tmp);
+				assertEquals(p.copy(), tmp);
+				gen = Math.max(gen, generation.get(p.copy()).intValue() + 1);
+			}
+			assertEquals(gen, graph.getGeneration(idx));
+			generation.put(c.copy(), Integer.valueOf(gen));
+		}
+		assertEquals(commits, graph.getCommitCount());
+		assertEquals(-1, graph.findCommit(ObjectId.zeroId()));
+	}
+
+	public void testWalkWithoutBody() throws IOException {
+		writeGraph();
+
+		final RevWalk full = new RevWalk(db);
+		final RevWalk headers = new RevWalk(db);
+		headers.setRetainBody(false);
+		markTips(full);
+		markTips(headers);
+
+		for (;;) {
+			final RevCommit a = full.next();
+			final RevCommit b = headers.next();
+			if (a == null) {
+				assertNull(b);
+				break;
+			}
+			assertEquals(a.copy(), b.copy());
+			assertEquals(a.getTree().copy(), b.getTree().copy());
+			assertEquals(a.getCommitTime(), b.getCommitTime());
+			assertEquals(a.getParentCount(), b.getParentCount());
+			for (int i = 0; i < a.getParentCount(); i++)
+				assertEquals(a.getParent(i).copy(), b.getParent(i).copy());
+
+			assertNull(b.getRawBuffer());
+			headers.parseBody(b);
+			assertNotNull(b.getRawBuffer());
+			assertEquals(a.getFullMessage(), b.getFullMessage());
+			assertEquals(a.getAuthorIdent(), b.getAuthorIdent());
+		}
+	}
+
+	public void testIgnoredWhenPackRemoved() throws IOException {
+		writeGraph();
+		assertNotNull(db.getCommitGraph());
+
+		final PackFile victim = db.getPacks()[0];
+		db.closePacks();
+		assertTrue(victim.getPackFile().delete());
+		db.scanForPacks();
+		assertNull(db.getCommitGraph());
+	}
+
+	public void testCorruptChecksum() throws IOException {
+		writeGraph();
+		final File f = new File(db.getObjectsDirectory(), "info/commit-graph");
+		final RandomAccessFile fd = new RandomAccessFile(f, "rw");
+		try {
+			fd.seek(fd.length() - Constants.OBJECT_ID_LENGTH - 1);
+			final int b = fd.read();
+			fd.seek(fd.length() - Constants.OBJECT_ID_LENGTH - 1);
+			fd.write(b ^ 1);
+		} finally {
+			fd.close();
+		}
+
+		try {
+			CommitGraph.open(f);
+			fail("Corrupt commit graph accepted");
+		} catch (IOException e) {
+			assertEquals("Commit graph checksum mismatch", e.getCause()
+					.getMessage());
+		}
+	}
+
+	private CommitGraphWriter writeGraph() throws IOException {
+		final CommitGraphWriter w = new CommitGraphWriter(db);
+		w.compute(new TextProgressMonitor(), tips);
+		w.write();
+		return w;
+	}
+
+	private void markTips(final RevWalk rw) throws IOException {
+		for (final ObjectId id : tips) {
+			RevObject o = rw.parseAny(id);
+			while (o instanceof RevTag) {
+				o = ((RevTag) o).getObject();
+				rw.parse(o);
+			}
+			if (o instanceof RevCommit)
+				rw.markStart((RevCommit) o);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DeltaIndexTest extends TestCase {
+	private final Random rng = new Random(42);
+
+	public void testEmptyBase() {
+		final byte[] res = text(100);
+		assertRoundTrip(new byte[0], res);
+	}
+
+	public void testEmptyResult() {
+		assertRoundTrip(text(100), new byte[0]);
+	}
+
+	public void testShortInputs() {
+		assertRoundTrip(text(5), text(7));
+	}
+
+	public void testIdentical() {
+		final byte[] base = text(10000);
+		final byte[] delta = assertRoundTrip(base, base);
+		assertTrue(delta.length < 20);
+	}
+
+	public void testLargeCopySplit() {
+		final byte[] base = text(3 * 0x10000 + 17);
+		final byte[] res = new byte[base.length + 1];
+		System.arraycopy(base, 0, res, 1, base.length);
+		res[0] = 'x';
+		final byte[] delta = assertRoundTrip(base, res);
+		assertTrue(delta.length < 40);
+	}
+
+	public void testEdits() {
+		final byte[] base = text(20000);
+		final byte[] res = new byte[base.length + 300];
+		System.arraycopy(base, 0, res, 0, 5000);
+		fill(res, 5000, 300);
+		System.arraycopy(base, 5000, res, 5300, 8000);
+		System.arraycopy(base, 14000, res, 13300, 6000);
+		fill(res, 19300, res.length - 19300);
+
+		final byte[] delta = assertRoundTrip(base, res);
+		assertTrue(delta.length < 1500);
+	}
+
+	public void testMovedBlocks() {
+		final byte[] base = text(8192);
+		final byte[] res = new byte[base.length];
+		System.arraycopy(base, 4096, res, 0, 4096);
+		System.arraycopy(base, 0, res, 4096, 4096);
+		final byte[] delta = assertRoundTrip(base, res);
+		assertTrue(delta.length < 100);
+	}
+
+	public void testUnrelated() {
+		final byte[] base = text(4096);
+		final byte[] res = new byte[4096];
+		fill(res, 0, res.length);
+		assertRoundTrip(base, res);
+	}
+
+	public void testLimit() {
+		final byte[] base = text(4096);
+		final byte[] res = new byte[4096];
+		fill(res, 0, res.length);
+
+		final DeltaIndex idx = new DeltaIndex(base);
+		assertNull(idx.encode(res, 1024));
+
+		final byte[] delta = idx.encode(base, 1024);
+		assertNotNull(delta);
+		assertTrue(delta.length <= 1024);
+	}
+
+	public void testEncoderLimit() {
+		final DeltaEncoder enc = new DeltaEncoder(10, 300, 20);
+		assertFalse(enc.insert(new byte[300], 0, 300));
+		assertTrue(enc.copy(0, 10));
+		assertEquals(5, enc.size());
+		assertFalse(enc.copy(0x01020304, 0x40000));
+		assertEquals(5, enc.size());
+	}
+
+	private byte[] assertRoundTrip(final byte[] base, final byte[] res) {
+		final byte[] delta = new DeltaIndex(base).encode(res);
+		assertTrue(Arrays.equals(res, BinaryDelta.apply(base, delta)));
+		return delta;
+	}
+
+	private byte[] text(final int len) {
+		final byte[] r = new byte[len];
+		for (int i = 0; i < len; i++)
+			r[i] = (byte) ('a' + rng.nextInt(26));
+		return r;
+	}
+
+	private void fill(final byte[] r, final int off, final int len) {
+		for (int i = off; i < off + len; i++)
+			r[i] = (byte) rng.nextInt(256);
+	}
+}
@@ -42,6 +42,10 @@
 import java.io.File;
 import java.io.IOException;
 
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.DirCacheBuilder;
+import org.spearce.jgit.dircache.DirCacheEntry;
+
 public class IndexDiffTest extends RepositoryTestCase {
 	public void testAdded() throws IOException {
 		GitIndex index = new GitIndex(db);
@@ -182,4 +186,103 @@ public void testUnchangedComplex() throws IOException {
 		assertEquals(0, diff.getMissing().size());
 		assertEquals(0, diff.getModified().size());
 	}
+
+	public void testDirCacheAddedRemovedChanged() throws IOException {
+		final DirCache dc = DirCache.lock(db);
+		final DirCacheBuilder b = dc.builder();
+		b.add(addFile("a", "a"));
+		b.add(addFile("dir/b", "b"));
+		b.add(addFile("dir/c", "c"));
+		b.commit();
+		final ObjectId treeId = dc.writeTree(new ObjectWriter(db));
+
+		final DirCacheBuilder b2 = DirCache.lock(db).builder();
+		b2.add(addFile("a", "a2"));
+		b2.add(addFile("dir/b", "b"));
+		b2.add(addFile("new", "new"));
+		b2.commit();
+		new File(trash, "dir/b").delete();
+
+		final IndexDiff diff = new IndexDiff(db, treeId);
+		assertTrue(diff.diff());
+		assertEquals(1, diff.getAdded().size());
+		assertTrue(diff.getAdded().contains("new"));
+		assertEquals(1, diff.getChanged().size());
+		assertTrue(diff.getChanged().contains("a"));
+		assertEquals(1, diff.getRemoved().size());
+		assertTrue(diff.getRemoved().contains("dir/c"));
+		assertEquals(1, diff.getMissing().size());
+		assertTrue(diff.getMissing().contains("dir/b"));
+		assertEquals(0, diff.getModified().size());
+	}
+
+	public void testDirCacheModified() throws IOException {
+		final DirCacheBuilder b = DirCache.lock(db).builder();
+		b.add(addFile("a", "a"));
+		b.add(addFile("b", "b"));
+		b.commit();
+
+		final File a = writeTrashFile("a", "changed");
+		a.setLastModified(a.lastModified() - 5000);
+		final File bf = writeTrashFile("b", "B");
+		bf.setLastModified(bf.lastModified() - 5000);
+
+		final IndexDiff diff = new IndexDiff(db, null);
+		assertTrue(diff.diff());
+		assertEquals(2, diff.getModified().size());
+		assertTrue(diff.getModified().contains("a"));
+		assertTrue(diff.getModified().contains("b"));
+	}
+
+	public void testDirCacheTrustsStatData() throws IOException {
+		final File f = writeTrashFile("a", "a");
+		f.setLastModified(f.lastModified() - 5000);
+
+		final DirCacheBuilder b = DirCache.lock(db).builder();
+		final DirCacheEntry e = new DirCacheEntry("a");
+		e.setFileMode(FileMode.REGULAR_FILE);
+		e.setObjectId(new ObjectWriter(db).writeBlob(Constants.encode("b")));
+		e.setLength((int) f.length());
+		e.setLastModified(f.lastModified());
+		b.add(e);
+		b.commit();
+
+		// The stat data matches and the entry is older than the index,
+		// so the file is not read even though its content differs.
+		//
+		final IndexDiff diff = new IndexDiff(db, null);
+		diff.diff();
+		assertEquals(0, diff.getModified().size());
+	}
+
+	public void testDirCacheRefreshesStatData() throws IOException {
+		final DirCacheBuilder b = DirCache.lock(db).builder();
+		final DirCacheEntry e = addFile("a", "a");
+		e.setLength(0);
+		e.setLastModified(0);
+		b.add(e);
+		b.commit();
+
+		final File f = new File(trash, "a");
+		f.setLastModified(f.lastModified() - 5000);
+
+		final IndexDiff diff = new IndexDiff(db, null);
+		diff.diff();
+		assertEquals(0, diff.getModified().size());
+
+		final DirCacheEntry r = DirCache.read(db).getEntry("a");
+		assertEquals(f.length(), r.getLength());
+		assertEquals(f.lastModified(), r.getLastModified());
+	}
+
+	private DirCacheEntry addFile(final String path, final String content)
+			throws IOException {
+		final File f = writeTrashFile(path, content);
+		final DirCacheEntry e = new DirCacheEntry(path);
+		e.setFileMode(FileMode.REGULAR_FILE);
+		e.setObjectId(new ObjectWriter(db).writeBlob(f));
+		e.setLength((int) f.length());
+		e.setLastModified(f.lastModified());
+		return e;
+	}
 }
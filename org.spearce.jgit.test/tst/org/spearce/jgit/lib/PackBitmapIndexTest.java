@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.transport.IndexPack;
+import org.spearce.jgit.util.NB;
+
+public class PackBitmapIndexTest extends RepositoryTestCase {
+	private List<ObjectId> tips;
+
+	private PackFile pack;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		tips = new ArrayList<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			tips.add(r.getObjectId());
+		pack = repack();
+	}
+
+	public void testEncodeDecode() throws IOException {
+		final Random rng = new Random(42);
+		for (int i = 0; i < 50; i++) {
+			final BitSet bits = new BitSet();
+			final int n = rng.nextInt(5000);
+			for (int j = 0; j < n; j++)
+				bits.set(rng.nextInt(1 + i * 1000));
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			PackBitmapIndex.encode(bits, out);
+			final byte[] b = out.toByteArray();
+			assertEquals(b.length - 4, NB.decodeInt32(b, 0));
+			assertEquals(bits, PackBitmapIndex.decode(b, 4, b.length));
+		}
+	}
+
+	public void testWriteRead() throws IOException {
+		final PackBitmapIndexWriter w = new PackBitmapIndexWriter(db, pack);
+		w.setCommitSpacing(1);
+		w.compute(new TextProgressMonitor(), tips);
+		w.write();
+
+		final PackBitmapIndex idx = pack.getBitmapIndex();
+		assertNotNull(idx);
+		assertEquals(pack.getObjectCount(), idx.getObjectCount());
+		assertEquals(w.getBitmapCount(), idx.getBitmapCount());
+
+		final ObjectWalk ow = new ObjectWalk(db);
+		int commits = 0;
+		for (final ObjectId id : tips)
+			ow.markStart(ow.parseAny(id));
+		for (RevCommit c; (c = ow.next()) != null; commits++) {
+			final BitSet bits = idx.getBitmap(c);
+			assertNotNull(bits);
+			assertEquals(reachable(c), bits);
+		}
+		assertEquals(commits, idx.getBitmapCount());
+	}
+
+	public void testNoBitmapFile() throws IOException {
+		assertNull(pack.getBitmapIndex());
+	}
+
+	public void testPreparePack() throws IOException {
+		writeBitmaps(1000);
+		final ObjectId master = db.resolve("master");
+		final ObjectId a = db.resolve("a");
+		final ObjectId b = db.resolve("b");
+		final ObjectId none = ObjectId.zeroId();
+		assertPack(tips, Collections.<ObjectId> emptyList());
+		assertPack(list(master), Collections.<ObjectId> emptyList());
+		assertPack(list(master), list(a));
+		assertPack(list(a, b), list(master, none));
+		assertPack(tips, list(db.resolve("master~1")));
+		assertPack(list(db.resolve("master~2")), list(b));
+	}
+
+	public void testPreparePackLooseObjects() throws IOException {
+		writeBitmaps(PackBitmapIndexWriter.DEFAULT_COMMIT_SPACING);
+		final ObjectId master = db.resolve("master");
+		final ObjectWriter ow = new ObjectWriter(db);
+		final Tree t = new Tree(db);
+		t.addFile("loose").setId(ow.writeBlob("loose\n".getBytes()));
+		final Commit c = new Commit(db);
+		c.setTreeId(ow.writeTree(t));
+		c.setParentIds(new ObjectId[] { master });
+		c.setAuthor(new PersonIdent(jauthor, 1154236443000L, -4 * 60));
+		c.setCommitter(new PersonIdent(jcommitter, 1154236443000L, -4 * 60));
+		c.setMessage("A loose commit\n");
+		c.commit();
+
+		assertPack(list(c.getCommitId()), list(db.resolve("a")));
+		assertPack(list(c.getCommitId()), list(master));
+		assertPack(list(master), list(c.getCommitId()));
+	}
+
+	private void writeBitmaps(final int spacing) throws IOException {
+		final PackBitmapIndexWriter w = new PackBitmapIndexWriter(db, pack);
+		w.setCommitSpacing(spacing);
+		w.compute(new TextProgressMonitor(), tips);
+		assertTrue(w.getBitmapCount() > 0);
+		w.write();
+	}
+
+	private void assertPack(final Collection<ObjectId> want,
+			final Collection<ObjectId> have) throws IOException {
+		final PackWriter walked = new PackWriter(db, new TextProgressMonitor());
+		walked.setUseBitmaps(false);
+		walked.preparePack(want, have);
+
+		final PackWriter fromBitmaps = new PackWriter(db,
+				new TextProgressMonitor());
+		fromBitmaps.setThin(true);
+		fromBitmaps.preparePack(want, have);
+
+		// The walk only excludes objects reachable from the trees of the
+		// boundary commits, bitmaps exclude everything the haves reach.
+		final ObjectIdSubclassMap<ObjectId> known = new ObjectIdSubclassMap<ObjectId>();
+		final ObjectWalk hw = new ObjectWalk(db);
+		for (final ObjectId id : have) {
+			if (db.hasObject(id))
+				hw.markStart(hw.parseAny(id));
+		}
+		for (RevObject o; (o = hw.next()) != null;)
+			known.add(o);
+		for (RevObject o; (o = hw.nextObject()) != null;)
+			known.add(o);
+
+		int count = 0;
+		final ObjectWalk ow = new ObjectWalk(db);
+		for (final ObjectId id : want)
+			ow.markStart(ow.parseAny(id));
+		final List<RevObject> all = new ArrayList<RevObject>();
+		for (RevObject o; (o = ow.next()) != null;)
+			all.add(o);
+		for (RevObject o; (o = ow.nextObject()) != null;)
+			all.add(o);
+		for (final RevObject o : all) {
+			final boolean expect = known.get(o) == null;
+			assertEquals(expect, fromBitmaps.willInclude(o));
+			if (expect) {
+				assertTrue(walked.willInclude(o));
+				count++;
+			}
+		}
+		assertEquals(count, fromBitmaps.getObjectsNumber());
+
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		fromBitmaps.writePack(os);
+		final IndexPack ip = new IndexPack(db, new ByteArrayInputStream(os
+				.toByteArray()), new File(trash, "tmp_pack"));
+		ip.setKeepEmpty(true);
+		ip.setFixThin(true);
+		ip.index(new TextProgressMonitor());
+	}
+
+	private BitSet reachable(final RevCommit c) throws IOException {
+		final BitSet bits = new BitSet();
+		final ObjectWalk ow = new ObjectWalk(db);
+		ow.markStart(ow.parseAny(c));
+		for (RevObject o; (o = ow.next()) != null;)
+			bits.set(pack.findPosition(o));
+		for (RevObject o; (o = ow.nextObject()) != null;)
+			bits.set(pack.findPosition(o));
+		return bits;
+	}
+
+	private PackFile repack() throws IOException {
+		final PackWriter pw = new PackWriter(db, new TextProgressMonitor());
+		pw.setDeltaCompress(false);
+		pw.setUseBitmaps(false);
+		pw.preparePack(tips, Collections.<ObjectId> emptyList());
+
+		final File dir = new File(db.getObjectsDirectory(), "pack");
+		final String name = "pack-" + pw.computeName().name();
+		final File packFile = new File(dir, name + ".pack");
+		final File idxFile = new File(dir, name + ".idx");
+		final FileOutputStream packOut = new FileOutputStream(packFile);
+		try {
+			pw.writePack(packOut);
+		} finally {
+			packOut.close();
+		}
+		final FileOutputStream idxOut = new FileOutputStream(idxFile);
+		try {
+			pw.writeIndex(idxOut);
+		} finally {
+			idxOut.close();
+		}
+		db.openPack(packFile, idxFile);
+		return db.getPacks()[0];
+	}
+
+	private static List<ObjectId> list(final ObjectId... ids) {
+		final List<ObjectId> r = new ArrayList<ObjectId>();
+		for (final ObjectId id : ids)
+			r.add(id);
+		return r;
+	}
+}
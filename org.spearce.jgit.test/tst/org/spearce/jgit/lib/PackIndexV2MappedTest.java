@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.Iterator;
+
+import org.spearce.jgit.lib.PackIndex.MutableEntry;
+
+public class PackIndexV2MappedTest extends PackIndexV2Test {
+	public void setUp() throws Exception {
+		super.setUp();
+		smallIdx = PackIndex.open(getFileForPack34be9032(), true);
+		denseIdx = PackIndex.open(getFileForPackdf2982f28(), true);
+	}
+
+	public void testIsMapped() {
+		assertTrue(smallIdx instanceof PackIndexV2Mapped);
+		assertTrue(denseIdx instanceof PackIndexV2Mapped);
+	}
+
+	public void testMatchesHeapIndex() throws Exception {
+		final PackIndex heap = PackIndex.open(getFileForPackdf2982f28());
+		assertEquals(heap.getObjectCount(), denseIdx.getObjectCount());
+		assertEquals(heap.getOffset64Count(), denseIdx.getOffset64Count());
+		assertEquals(ObjectId.fromRaw(heap.packChecksum), ObjectId
+				.fromRaw(denseIdx.packChecksum));
+
+		final Iterator<MutableEntry> itr = denseIdx.iterator();
+		long nth = 0;
+		for (final MutableEntry e : heap) {
+			final MutableEntry m = itr.next();
+			final ObjectId id = e.toObjectId();
+			assertEquals(id, m.toObjectId());
+			assertEquals(e.getOffset(), m.getOffset());
+			assertEquals(id, denseIdx.getObjectId(nth++));
+			assertEquals(heap.findOffset(id), denseIdx.findOffset(id));
+			assertEquals(heap.findCRC32(id), denseIdx.findCRC32(id));
+		}
+		assertFalse(itr.hasNext());
+	}
+
+	public void testFindMissing() {
+		final ObjectId id = ObjectId
+				.fromString("0000000000000000000000000000000000000001");
+		assertEquals(-1, denseIdx.findOffset(id));
+		assertFalse(denseIdx.hasObject(id));
+		final ObjectId last = ObjectId
+				.fromString("ffffffffffffffffffffffffffffffffffffffff");
+		assertEquals(-1, denseIdx.findOffset(last));
+	}
+}
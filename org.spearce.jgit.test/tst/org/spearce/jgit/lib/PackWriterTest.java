@@ -40,6 +40,7 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -58,6 +59,7 @@
 import org.spearce.jgit.revwalk.RevWalk;
 import org.spearce.jgit.transport.IndexPack;
 import org.spearce.jgit.util.JGitTestUtil;
+import org.spearce.jgit.util.NB;
 
 public class PackWriterTest extends RepositoryTestCase {
 
@@ -98,6 +100,11 @@ public void testContructor() {
 		assertEquals(false, writer.isDeltaBaseAsOffset());
 		assertEquals(true, writer.isReuseDeltas());
 		assertEquals(true, writer.isReuseObjects());
+		assertEquals(true, writer.isDeltaCompress());
+		assertEquals(PackWriter.DEFAULT_DELTA_SEARCH_WINDOW_SIZE, writer
+				.getDeltaSearchWindowSize());
+		assertEquals(PackWriter.DEFAULT_MAX_DELTA_DEPTH, writer
+				.getMaxDeltaDepth());
 		assertEquals(0, writer.getObjectsNumber());
 	}
 
@@ -248,6 +255,59 @@ public void testWritePack2DeltasCRC32Copy() throws IOException {
 		writeVerifyPack2(true);
 	}
 
+	/**
+	 * Pack every object of a pack with a CRC32 index, copying ranges of it.
+	 * Copied objects must come out in the order of the source pack and with
+	 * the same bytes.
+	 *
+	 * @throws IOException
+	 */
+	public void testWritePackReuseRanges() throws IOException {
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final File crc32Pack = new File(packDir,
+				"pack-34be9032ac282b11fa9babdc2b2a93ca996c9c2f.pack");
+		final File crc32Idx = new File(packDir,
+				"pack-34be9032ac282b11fa9babdc2b2a93ca996c9c2f.idx");
+		copyFile(JGitTestUtil.getTestResourceFile(
+				"pack-34be9032ac282b11fa9babdc2b2a93ca996c9c2f.idxV2"),
+				crc32Idx);
+		db.closePacks();
+		db.openPack(crc32Pack, crc32Idx);
+
+		final LinkedList<ObjectId> interestings = new LinkedList<ObjectId>();
+		interestings.add(ObjectId
+				.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"));
+		writer.setReusePackRanges(true);
+		writer.setDeltaBaseAsOffset(true);
+		writer.setDeltaCompress(false);
+		createVerifyOpenPack(interestings, EMPTY_LIST_OBJECT, false, false);
+
+		final byte[] expect = new byte[(int) crc32Pack.length()];
+		final FileInputStream in = new FileInputStream(crc32Pack);
+		try {
+			NB.readFully(in, expect, 0, expect.length);
+		} finally {
+			in.close();
+		}
+		final byte[] actual = os.toByteArray();
+		assertEquals(8, pack.getObjectCount());
+
+		// The blob at 516 is a REF_DELTA against a blob stored after it, so
+		// it splits the source pack into two ranges and is written last.
+		//
+		for (int i = 12; i < 516; i++)
+			assertEquals("byte " + i, expect[i], actual[i]);
+		verifyObjectsOrder(new ObjectId[] {
+				ObjectId.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"),
+				ObjectId.fromString("c59759f143fb1fe21c197981df75a7ee00290799"),
+				ObjectId.fromString("540a36d136cf413e4b064c2b0e0a4db60f77feab"),
+				ObjectId.fromString("aabf2ffaec9b497f0950352b3e582d73035c2035"),
+				ObjectId.fromString("6ff87c4664981e4397625791c8ea3bbb5f2279a3"),
+				ObjectId.fromString("902d5476fa249b7abc9d84c611577a81381f0327"),
+				ObjectId.fromString("4b825dc642cb6eb9a060e54bf8d69288fbee4904"),
+				ObjectId.fromString("5b6e7c66c276e7610d4a73c70ec1a1f7c1003259") });
+	}
+
 	/**
 	 * Create pack basing on fixed objects list, then precisely verify content.
 	 * No delta reuse here.
@@ -354,6 +414,115 @@ public void testWritePack4SizeThinVsNoThin() throws Exception {
 		assertTrue(sizePack4 > sizePack4Thin);
 	}
 
+	/**
+	 * Pack similar loose blobs with delta search enabled. The pack must be
+	 * smaller than one without new deltas, and must read back correctly.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePackDeltaCompress() throws Exception {
+		final ObjectId[] blobs = writeSimilarBlobs(8);
+
+		writer.setDeltaCompress(false);
+		writeBlobs(blobs);
+		final long sizeNoDeltas = cos.length();
+
+		os = new ByteArrayOutputStream();
+		cos = new PackOutputStream(os);
+		writer = new PackWriter(db, new TextProgressMonitor());
+		writer.setDeltaBaseAsOffset(true);
+		writeBlobs(blobs);
+		final long sizeDeltas = cos.length();
+		verifyOpenPack(false);
+
+		assertTrue(sizeDeltas * 2 < sizeNoDeltas);
+		int deltas = 0;
+		final WindowCursor wc = new WindowCursor();
+		for (final ObjectId id : blobs) {
+			final PackedObjectLoader ldr = pack.get(wc, id);
+			if (ldr.getRawType() == Constants.OBJ_OFS_DELTA)
+				deltas++;
+			assertTrue(Arrays.equals(db.openBlob(id).getBytes(), ldr
+					.getBytes()));
+		}
+		wc.release();
+		assertEquals(blobs.length - 1, deltas);
+	}
+
+	/**
+	 * Delta chains created by the delta search must respect the configured
+	 * maximum depth.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePackDeltaCompressDepth() throws Exception {
+		final ObjectId[] blobs = writeSimilarBlobs(8);
+		writer.setMaxDeltaDepth(1);
+		writer.setDeltaSearchWindowSize(1);
+		writeBlobs(blobs);
+		verifyOpenPack(false);
+
+		final WindowCursor wc = new WindowCursor();
+		for (final ObjectId id : blobs) {
+			final PackedObjectLoader ldr = pack.get(wc, id);
+			final ObjectId base = ldr.getDeltaBase();
+			if (base != null)
+				assertNull(pack.get(wc, base).getDeltaBase());
+		}
+		wc.release();
+	}
+
+	/**
+	 * Searching for deltas with several threads must produce exactly the same
+	 * pack as a single thread.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePackDeltaCompressThreads() throws Exception {
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10; i++)
+			text.append("a line shared by every blob in this test\n");
+		final ObjectWriter ow = new ObjectWriter(db);
+		final ObjectId[] blobs = new ObjectId[2500];
+		for (int i = 0; i < blobs.length; i++)
+			blobs[i] = ow.writeBlob(Constants.encode(text + "blob " + i));
+
+		writer.setThreads(1);
+		writeBlobs(blobs);
+		final byte[] singleThreaded = os.toByteArray();
+
+		os = new ByteArrayOutputStream();
+		cos = new PackOutputStream(os);
+		writer = new PackWriter(db, new TextProgressMonitor());
+		writer.setThreads(3);
+		writeBlobs(blobs);
+		verifyOpenPack(false);
+
+		assertTrue(Arrays.equals(singleThreaded, os.toByteArray()));
+		assertTrue(os.size() * 4 < blobs.length * text.length());
+	}
+
+	private ObjectId[] writeSimilarBlobs(final int count) throws IOException {
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			text.append("line " + i + " of a file being slowly edited\n");
+
+		final ObjectWriter ow = new ObjectWriter(db);
+		final ObjectId[] ids = new ObjectId[count];
+		for (int i = 0; i < count; i++) {
+			text.insert(text.length() * i / count, "edit " + i + "\n");
+			ids[i] = ow.writeBlob(Constants.encode(text.toString()));
+		}
+		return ids;
+	}
+
+	private void writeBlobs(final ObjectId[] blobs) throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		for (final ObjectId id : blobs)
+			writer.addObject(rw.lookupBlob(id));
+		writer.writePack(cos);
+	}
+
 	public void testWriteIndex() throws Exception {
 		writer.setIndexVersion(2);
 		writeVerifyPack4(false);
@@ -473,6 +642,8 @@ private void createVerifyOpenPack(final Collection<ObjectId> interestings,
 			final Collection<ObjectId> uninterestings, final boolean thin,
 			final boolean ignoreMissingUninteresting)
 			throws MissingObjectException, IOException {
+		// Expected orders below assume only existing deltas are reused.
+		writer.setDeltaCompress(false);
 		writer.setThin(thin);
 		writer.setIgnoreMissingUninteresting(ignoreMissingUninteresting);
 		writer.preparePack(interestings, uninterestings);
@@ -482,6 +653,7 @@ private void createVerifyOpenPack(final Collection<ObjectId> interestings,
 
 	private void createVerifyOpenPack(final Iterator<RevObject> objectSource)
 			throws MissingObjectException, IOException {
+		writer.setDeltaCompress(false);
 		writer.preparePack(objectSource);
 		writer.writePack(cos);
 		verifyOpenPack(false);
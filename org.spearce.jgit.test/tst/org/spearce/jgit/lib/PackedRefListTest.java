@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.util.RawParseUtils;
+
+public class PackedRefListTest extends TestCase {
+	private static final String ID_A = "6db9c2ebf75590eef973081736730a9ea169a0c4";
+
+	private static final String ID_B = "7f822839a2fe9760f386cbbbcb3f92c5fe81def7";
+
+	private static final String ID_P = "d86a2aada2f5e7ccf6f11880bfb9ab404e8a8864";
+
+	public void testEmpty() throws Exception {
+		final PackedRefList list = parse("# pack-refs with: peeled sorted\n");
+		assertTrue(list.isEmpty());
+		assertNull(list.get("refs/heads/master"));
+		assertTrue(PackedRefList.EMPTY.isEmpty());
+	}
+
+	public void testGetSorted() throws Exception {
+		final PackedRefList list = parse("# pack-refs with: peeled sorted\n" //
+				+ ID_A + " refs/heads/a\n" //
+				+ ID_B + " refs/heads/b\n" //
+				+ ID_A + " refs/tags/v1\n" //
+				+ "^" + ID_P + "\n" //
+				+ ID_B + " refs/tags/v10\n" //
+				+ "^" + ID_P + "\n" //
+				+ ID_B + " refs/tags/v2\n");
+		assertFalse(list.isEmpty());
+
+		final Ref a = list.get("refs/heads/a");
+		assertEquals("refs/heads/a", a.getName());
+		assertEquals(ID_A, a.getObjectId().name());
+		assertSame(Ref.Storage.PACKED, a.getStorage());
+		assertTrue(a.isPeeled());
+		assertNull(a.getPeeledObjectId());
+
+		final Ref v1 = list.get("refs/tags/v1");
+		assertEquals(ID_A, v1.getObjectId().name());
+		assertTrue(v1.isPeeled());
+		assertEquals(ID_P, v1.getPeeledObjectId().name());
+
+		assertEquals(ID_B, list.get("refs/tags/v2").getObjectId().name());
+		assertEquals(ID_B, list.get("refs/tags/v10").getObjectId().name());
+
+		assertNull(list.get("refs/heads"));
+		assertNull(list.get("refs/heads/"));
+		assertNull(list.get("refs/heads/c"));
+		assertNull(list.get("refs/tags/v"));
+		assertNull(list.get("refs/tags/v3"));
+		assertNull(list.get("HEAD"));
+	}
+
+	public void testScanPrefix() throws Exception {
+		final PackedRefList list = parse("# pack-refs with: sorted\n" //
+				+ ID_A + " refs/heads/a\n" //
+				+ ID_B + " refs/heads/b\n" //
+				+ ID_A + " refs/tags/v1\n" //
+				+ "^" + ID_P + "\n" //
+				+ ID_B + " refs/tags/v2\n" //
+				+ ID_B + " refs/tagsx");
+
+		final Map<String, Ref> tags = new HashMap<String, Ref>();
+		list.scan(Constants.R_TAGS, tags);
+		assertEquals(2, tags.size());
+		assertEquals(ID_P, tags.get("refs/tags/v1").getPeeledObjectId().name());
+		assertEquals(ID_B, tags.get("refs/tags/v2").getObjectId().name());
+
+		final Map<String, Ref> all = new HashMap<String, Ref>();
+		list.scan("", all);
+		assertEquals(5, all.size());
+		assertEquals(ID_B, all.get("refs/tagsx").getObjectId().name());
+
+		final Map<String, Ref> none = new HashMap<String, Ref>();
+		list.scan("refs/remotes/", none);
+		assertTrue(none.isEmpty());
+	}
+
+	public void testGetManyRefs() throws Exception {
+		final int cnt = 1000;
+		final StringBuilder b = new StringBuilder();
+		b.append("# pack-refs with: peeled sorted\n");
+		for (int i = 0; i < cnt; i++) {
+			b.append(ID_A).append(" refs/changes/").append(1000 + i);
+			b.append('\n');
+			if (i % 3 == 0)
+				b.append('^').append(ID_P).append('\n');
+		}
+		final PackedRefList list = parse(b.toString());
+
+		for (int i = 0; i < cnt; i++) {
+			final Ref r = list.get("refs/changes/" + (1000 + i));
+			assertNotNull(r);
+			assertTrue(r.isPeeled());
+			assertEquals(i % 3 == 0, r.getPeeledObjectId() != null);
+			assertNull(list.get("refs/changes/" + (1000 + i) + "/1"));
+		}
+		assertNull(list.get("refs/changes/0999"));
+		assertNull(list.get("refs/changes/2000"));
+
+		final Map<String, Ref> some = new HashMap<String, Ref>();
+		list.scan("refs/changes/15", some);
+		assertEquals(100, some.size());
+	}
+
+	public void testUnsortedFileIsSorted() throws Exception {
+		final PackedRefList list = parse("# pack-refs with: peeled\n" //
+				+ ID_B + " refs/tags/v2\n" //
+				+ ID_A + " refs/tags/v1\n" //
+				+ "^" + ID_P + "\n" //
+				+ ID_B + " refs/heads/b\n" //
+				+ ID_A + " refs/heads/a");
+
+		assertEquals(ID_A, list.get("refs/heads/a").getObjectId().name());
+		assertEquals(ID_B, list.get("refs/heads/b").getObjectId().name());
+		assertEquals(ID_P, list.get("refs/tags/v1").getPeeledObjectId().name());
+		assertEquals(ID_B, list.get("refs/tags/v2").getObjectId().name());
+
+		final Map<String, Ref> heads = new HashMap<String, Ref>();
+		list.scan(Constants.R_HEADS, heads);
+		assertEquals(2, heads.size());
+	}
+
+	public void testPeeledLineBeforeRef() {
+		try {
+			parse("^" + ID_P + "\n" + ID_A + " refs/heads/a\n");
+			fail("accepted peeled line before ref");
+		} catch (IOException err) {
+			assertEquals("Peeled line before ref.", err.getMessage());
+		}
+	}
+
+	public void testWriterDeclaresSorted() throws Exception {
+		final Map<String, Ref> refs = new HashMap<String, Ref>();
+		refs.put("b", new Ref(Ref.Storage.PACKED, "refs/heads/b", ObjectId
+				.fromString(ID_B)));
+		refs.put("a", new Ref(Ref.Storage.PACKED, "refs/heads/a", ObjectId
+				.fromString(ID_A)));
+		final String[] out = new String[1];
+		new RefWriter(refs.values()) {
+			@Override
+			protected void writeFile(String file, byte[] content) {
+				out[0] = RawParseUtils.decode(content);
+			}
+		}.writePackedRefs();
+		assertEquals("# pack-refs with: sorted\n" //
+				+ ID_A + " refs/heads/a\n" //
+				+ ID_B + " refs/heads/b\n", out[0]);
+	}
+
+	public void testWriterSortsByEncodedName() throws Exception {
+		// U+1F600 is a surrogate pair in UTF-16, sorting before U+FF21,
+		// but its UTF-8 encoding starts with 0xF0 and sorts after.
+		final String[] names = { "refs/heads/\u00e9", "refs/heads/\uff21",
+				"refs/heads/\ud83d\ude00" };
+		final Map<String, Ref> refs = new HashMap<String, Ref>();
+		for (final String n : names)
+			refs.put(n, new Ref(Ref.Storage.PACKED, n, ObjectId
+					.fromString(ID_A)));
+		final byte[][] out = new byte[1][];
+		new RefWriter(refs.values()) {
+			@Override
+			protected void writeFile(String file, byte[] content) {
+				out[0] = content;
+			}
+		}.writePackedRefs();
+		assertEquals("# pack-refs with: sorted\n" //
+				+ ID_A + " " + names[0] + "\n" //
+				+ ID_A + " " + names[1] + "\n" //
+				+ ID_A + " " + names[2] + "\n", RawParseUtils.decode(out[0]));
+
+		final PackedRefList list = PackedRefList.parse(out[0]);
+		for (final String n : names)
+			assertEquals(n, list.get(n).getName());
+	}
+
+	public void testPeeledTrait() throws Exception {
+		final PackedRefList peeled = parse("# pack-refs with: peeled sorted\n" //
+				+ ID_A + " refs/heads/a\n" //
+				+ ID_B + " refs/tags/v1\n" //
+				+ "^" + ID_P + "\n");
+		assertTrue(peeled.get("refs/heads/a").isPeeled());
+		assertNull(peeled.get("refs/heads/a").getPeeledObjectId());
+		assertEquals(ID_P, peeled.get("refs/tags/v1").getPeeledObjectId()
+				.name());
+
+		final PackedRefList unknown = parse("# pack-refs with: sorted\n" //
+				+ ID_A + " refs/heads/a\n");
+		assertFalse(unknown.get("refs/heads/a").isPeeled());
+	}
+
+	public void testWriterOmitsPeeledUnlessAllPeeled() throws Exception {
+		final Map<String, Ref> refs = new HashMap<String, Ref>();
+		refs.put("a", new Ref(Ref.Storage.PACKED, "refs/tags/a", ObjectId
+				.fromString(ID_A)));
+		refs.put("b", new Ref(Ref.Storage.PACKED, "refs/tags/b", ObjectId
+				.fromString(ID_B), ObjectId.fromString(ID_P), true));
+		assertEquals("# pack-refs with: sorted\n" //
+				+ ID_A + " refs/tags/a\n" //
+				+ ID_B + " refs/tags/b\n" //
+				+ "^" + ID_P + "\n", write(refs));
+
+		refs.put("a", new Ref(Ref.Storage.PACKED, "refs/tags/a", ObjectId
+				.fromString(ID_A), null, true));
+		assertEquals("# pack-refs with: peeled sorted\n" //
+				+ ID_A + " refs/tags/a\n" //
+				+ ID_B + " refs/tags/b\n" //
+				+ "^" + ID_P + "\n", write(refs));
+	}
+
+	private static String write(final Map<String, Ref> refs)
+			throws IOException {
+		final String[] out = new String[1];
+		new RefWriter(refs.values()) {
+			@Override
+			protected void writeFile(String file, byte[] content) {
+				out[0] = RawParseUtils.decode(content);
+			}
+		}.writePackedRefs();
+		return out[0];
+	}
+
+	private static PackedRefList parse(final String content)
+			throws IOException {
+		return PackedRefList.parse(Constants.encode(content));
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Map;
+
+public class RefDatabaseTest extends RepositoryTestCase {
+	public void testGetRefsHeads() throws Exception {
+		final ObjectId id = db.resolve("refs/heads/b");
+		writeTrashFile(".git/refs/heads/loose", id.name() + "\n");
+		writeTrashFile(".git/refs/heads/a", id.name() + "\n");
+		writeTrashFile(".git/refs/tags/loose-tag", id.name() + "\n");
+
+		final Map<String, Ref> heads = db.getRefs(Constants.R_HEADS);
+		assertEquals(10, heads.size());
+		for (final String name : heads.keySet())
+			assertTrue(name, name.startsWith(Constants.R_HEADS));
+		assertEquals(id, heads.get("refs/heads/loose").getObjectId());
+		assertSame(Ref.Storage.LOOSE, heads.get("refs/heads/a").getStorage());
+		assertEquals(id, heads.get("refs/heads/a").getObjectId());
+		assertSame(Ref.Storage.PACKED, heads.get("refs/heads/master")
+				.getStorage());
+		assertFalse(heads.containsKey(Constants.HEAD));
+	}
+
+	public void testGetRefsPartialName() throws Exception {
+		final ObjectId id = db.resolve("refs/heads/b");
+		writeTrashFile(".git/refs/tags/B-loose", id.name() + "\n");
+		writeTrashFile(".git/refs/tags/other", id.name() + "\n");
+
+		final Map<String, Ref> tags = db.getRefs("refs/tags/B");
+		assertEquals(11, tags.size());
+		assertTrue(tags.containsKey("refs/tags/B"));
+		assertTrue(tags.containsKey("refs/tags/B10th"));
+		assertTrue(tags.containsKey("refs/tags/B-loose"));
+		assertFalse(tags.containsKey("refs/tags/other"));
+		assertFalse(tags.containsKey("refs/tags/spearce-gpg-pub"));
+	}
+
+	public void testGetRefsAll() throws Exception {
+		final Map<String, Ref> all = db.getRefs("");
+		assertTrue(all.containsKey(Constants.HEAD));
+		assertEquals(db.getAllRefs().keySet(), all.keySet());
+		assertEquals(all.size() - 1, db.getRefs("refs/").size());
+		assertEquals(1, db.getRefs(Constants.HEAD).size());
+		assertTrue(db.getRefs("refs/nothing/").isEmpty());
+	}
+
+	public void testJournalReplacesScan() throws Exception {
+		enableJournal();
+		final ObjectId id = db.resolve("refs/heads/b");
+		final RefUpdate u = db.updateRef("refs/heads/new");
+		u.setNewObjectId(id);
+		assertEquals(RefUpdate.Result.NEW, u.forceUpdate());
+		assertTrue(new File(db.getDirectory(), "ref-journal").isFile());
+		assertEquals(id, db.getAllRefs().get("refs/heads/new").getObjectId());
+
+		// Not journaled, so a reader tracking the journal cannot see it.
+		writeTrashFile(".git/refs/heads/unseen", id.name() + "\n");
+		assertFalse(db.getAllRefs().containsKey("refs/heads/unseen"));
+
+		final RefUpdate u2 = db.updateRef("refs/heads/new");
+		u2.setNewObjectId(db.resolve("refs/heads/a"));
+		assertEquals(RefUpdate.Result.FORCED, u2.forceUpdate());
+		assertEquals(db.resolve("refs/heads/a"), db.getRefs(
+				Constants.R_HEADS).get("refs/heads/new").getObjectId());
+
+		final RefUpdate d = db.updateRef("refs/heads/new");
+		d.setForceUpdate(true);
+		assertEquals(RefUpdate.Result.FORCED, d.delete());
+		assertFalse(db.getAllRefs().containsKey("refs/heads/new"));
+
+		appendJournal("refs/heads/unseen\n");
+		assertEquals(id, db.getAllRefs().get("refs/heads/unseen")
+				.getObjectId());
+	}
+
+	public void testJournalRemovedFallsBackToScan() throws Exception {
+		enableJournal();
+		final ObjectId id = db.resolve("refs/heads/b");
+		final RefUpdate u = db.updateRef("refs/heads/new");
+		u.setNewObjectId(id);
+		assertEquals(RefUpdate.Result.NEW, u.forceUpdate());
+		assertTrue(db.getAllRefs().containsKey("refs/heads/new"));
+
+		writeTrashFile(".git/refs/heads/unseen", id.name() + "\n");
+		assertTrue(new File(db.getDirectory(), "ref-journal").delete());
+		assertTrue(db.getAllRefs().containsKey("refs/heads/unseen"));
+	}
+
+	public void testJournalPartialLineIsDeferred() throws Exception {
+		enableJournal();
+		final ObjectId id = db.resolve("refs/heads/b");
+		final RefUpdate u = db.updateRef("refs/heads/new");
+		u.setNewObjectId(id);
+		assertEquals(RefUpdate.Result.NEW, u.forceUpdate());
+		assertTrue(db.getAllRefs().containsKey("refs/heads/new"));
+
+		writeTrashFile(".git/refs/heads/unseen", id.name() + "\n");
+		appendJournal("refs/heads/un");
+		assertFalse(db.getAllRefs().containsKey("refs/heads/unseen"));
+		appendJournal("seen\n");
+		assertTrue(db.getAllRefs().containsKey("refs/heads/unseen"));
+	}
+
+	public void testJournalRotatesWhenFull() throws Exception {
+		enableJournal();
+		final File journal = new File(db.getDirectory(), "ref-journal");
+		final ObjectId id = db.resolve("refs/heads/b");
+		final RefUpdate u = db.updateRef("refs/heads/new");
+		u.setNewObjectId(id);
+		assertEquals(RefUpdate.Result.NEW, u.forceUpdate());
+		assertTrue(db.getAllRefs().containsKey("refs/heads/new"));
+		assertTrue(readFirstLine(journal).startsWith("# ref-journal "));
+		assertFalse(new File(db.getDirectory(), "ref-journal.lock").exists());
+		final String token = readFirstLine(journal);
+
+		final char[] pad = new char[(int) RefDatabase.MAX_JOURNAL];
+		Arrays.fill(pad, '#');
+		pad[pad.length - 1] = '\n';
+		appendJournal(new String(pad));
+		writeTrashFile(".git/refs/heads/unseen", id.name() + "\n");
+
+		final RefUpdate u2 = db.updateRef("refs/heads/new");
+		u2.setNewObjectId(db.resolve("refs/heads/a"));
+		assertEquals(RefUpdate.Result.FORCED, u2.forceUpdate());
+		assertTrue(journal.length() < RefDatabase.MAX_JOURNAL);
+		assertFalse(token.equals(readFirstLine(journal)));
+
+		// The new token makes the reader scan again.
+		assertTrue(db.getAllRefs().containsKey("refs/heads/unseen"));
+	}
+
+	private static String readFirstLine(final File f) throws Exception {
+		final BufferedReader r = new BufferedReader(new FileReader(f));
+		try {
+			return r.readLine();
+		} finally {
+			r.close();
+		}
+	}
+
+	private void enableJournal() throws Exception {
+		db.getConfig().setBoolean("core", null, "refjournal", true);
+		db.getConfig().save();
+		db.getConfig().load();
+		assertTrue(db.getConfig().getCore().isRefJournal());
+	}
+
+	private void appendJournal(final String text) throws Exception {
+		final FileWriter w = new FileWriter(new File(db.getDirectory(),
+				"ref-journal"), true);
+		try {
+			w.write(text);
+		} finally {
+			w.close();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class WindowCacheGetTest extends RepositoryTestCase {
+	private WindowedFile[] files;
+
+	private byte[][] contents;
+
+	@Override
+	protected void configure() {
+		final WindowCacheConfig c = new WindowCacheConfig();
+		c.setPackedGitOpenFiles(2);
+		c.setPackedGitLimit(64 * WindowCacheConfig.KB);
+		c.setPackedGitWindowSize(4 * WindowCacheConfig.KB);
+		c.setPackedGitMMAP("true".equals(System.getProperty("jgit.junit.usemmmap")));
+		c.setDeltaBaseCacheLimit(8 * WindowCacheConfig.KB);
+		WindowCache.reconfigure(c);
+	}
+
+	public void setUp() throws Exception {
+		super.setUp();
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final File[] packs = packDir.listFiles();
+		Arrays.sort(packs);
+
+		int n = 0;
+		for (final File p : packs)
+			if (p.getName().endsWith(".pack"))
+				n++;
+		files = new WindowedFile[n];
+		contents = new byte[n][];
+		n = 0;
+		for (final File p : packs) {
+			if (p.getName().endsWith(".pack")) {
+				files[n] = new WindowedFile(p);
+				contents[n] = readFully(p);
+				n++;
+			}
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		for (final WindowedFile f : files)
+			f.close();
+		super.tearDown();
+	}
+
+	public void testReadAndPurge() throws IOException {
+		final WindowedFile f = files[0];
+		final WindowCursor curs = new WindowCursor();
+		final byte[] buf = new byte[contents[0].length];
+		assertEquals(buf.length, f.read(0, buf, curs));
+		curs.release();
+		assertTrue(Arrays.equals(contents[0], buf));
+		assertTrue(f.openCount.get() > 0);
+		assertNotNull(f.fd);
+
+		f.close();
+		assertEquals(0, f.openCount.get());
+		assertNull(f.fd);
+	}
+
+	public void testConcurrentReads() throws Exception {
+		final Thread[] threads = new Thread[8];
+		final Throwable[] errors = new Throwable[threads.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int threadId = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						readRandomly(new Random(threadId), 2000);
+					} catch (Throwable err) {
+						errors[threadId] = err;
+					}
+				}
+			};
+		}
+		for (final Thread t : threads)
+			t.start();
+		for (final Thread t : threads)
+			t.join();
+		for (final Throwable err : errors) {
+			if (err instanceof Error)
+				throw (Error) err;
+			if (err != null)
+				throw (Exception) err;
+		}
+
+		assertTrue(WindowCache.getDefault().getOpenFileCount() <= 2);
+		for (final WindowedFile f : files) {
+			f.close();
+			assertEquals(0, f.openCount.get());
+			assertNull(f.fd);
+		}
+	}
+
+	private void readRandomly(final Random rng, final int count)
+			throws IOException {
+		final WindowCursor curs = new WindowCursor();
+		final byte[] buf = new byte[512];
+		try {
+			for (int i = 0; i < count; i++) {
+				final int fileIdx = rng.nextInt(files.length);
+				final byte[] expect = contents[fileIdx];
+				final int pos = rng.nextInt(expect.length);
+				final int cnt = Math.min(1 + rng.nextInt(buf.length),
+						expect.length - pos);
+				assertEquals(cnt, files[fileIdx].read(pos, buf, 0, cnt, curs));
+				for (int k = 0; k < cnt; k++) {
+					if (buf[k] != expect[pos + k])
+						fail("Mismatch in " + files[fileIdx].getName() + " at "
+								+ (pos + k));
+				}
+			}
+		} finally {
+			curs.release();
+		}
+	}
+
+	private static byte[] readFully(final File path) throws IOException {
+		final byte[] buf = new byte[(int) path.length()];
+		final FileInputStream in = new FileInputStream(path);
+		try {
+			int off = 0;
+			while (off < buf.length) {
+				final int r = in.read(buf, off, buf.length - off);
+				if (r <= 0)
+					throw new IOException("Short read of " + path);
+				off += r;
+			}
+		} finally {
+			in.close();
+		}
+		return buf;
+	}
+}
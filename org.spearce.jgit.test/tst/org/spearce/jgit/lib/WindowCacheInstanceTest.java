@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+
+public class WindowCacheInstanceTest extends RepositoryTestCase {
+	private WindowCache cache;
+
+	private Repository other;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		final WindowCacheConfig c = new WindowCacheConfig();
+		c.setPackedGitLimit(64 * WindowCacheConfig.KB);
+		c.setPackedGitWindowSize(4 * WindowCacheConfig.KB);
+		c.setDeltaBaseCacheLimit(8 * WindowCacheConfig.KB);
+		cache = new WindowCache(c);
+		other = new Repository(trash_git, cache);
+	}
+
+	protected void tearDown() throws Exception {
+		other.close();
+		super.tearDown();
+	}
+
+	public void testRepositoryUsesOwnCache() throws IOException {
+		assertSame(WindowCache.getDefault(), db.getWindowCache());
+		assertSame(cache, other.getWindowCache());
+
+		final WindowCache dflt = WindowCache.getDefault();
+		final long defaultBytes = dflt.getOpenByteCount();
+		final int defaultFiles = dflt.getOpenFileCount();
+
+		readAllObjects(other);
+		assertTrue(cache.getOpenByteCount() > 0);
+		assertTrue(cache.getOpenByteCount() <= 64 * WindowCacheConfig.KB);
+		assertTrue(cache.getOpenFileCount() > 0);
+		assertEquals(defaultBytes, dflt.getOpenByteCount());
+		assertEquals(defaultFiles, dflt.getOpenFileCount());
+
+		other.close();
+		assertEquals(0, cache.getOpenByteCount());
+		assertEquals(0, cache.getOpenFileCount());
+	}
+
+	public void testConfigureShrinksCache() throws IOException {
+		readAllObjects(other);
+		assertTrue(cache.getOpenByteCount() > 16 * WindowCacheConfig.KB);
+
+		final WindowCacheConfig c = new WindowCacheConfig();
+		c.setPackedGitLimit(16 * WindowCacheConfig.KB);
+		c.setPackedGitWindowSize(4 * WindowCacheConfig.KB);
+		cache.configure(c);
+		assertTrue(cache.getOpenByteCount() <= 16 * WindowCacheConfig.KB);
+
+		readAllObjects(other);
+		assertTrue(cache.getOpenByteCount() <= 16 * WindowCacheConfig.KB);
+	}
+
+	private void readAllObjects(final Repository r) throws IOException {
+		final File packDir = new File(r.getObjectsDirectory(), "pack");
+		for (final File f : packDir.listFiles()) {
+			if (!f.getName().endsWith(".idx"))
+				continue;
+			for (final PackIndex.MutableEntry e : PackIndex.open(f)) {
+				final ObjectId id = e.toObjectId();
+				final ObjectLoader ldr = r.openObject(id);
+				assertNotNull(ldr);
+				ldr.getBytes();
+			}
+		}
+	}
+}
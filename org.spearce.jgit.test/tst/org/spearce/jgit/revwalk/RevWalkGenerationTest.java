@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.revwalk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.lib.CommitGraphWriter;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+
+public class RevWalkGenerationTest extends RevWalkTestCase {
+	public void testNoCommitGraph() throws Exception {
+		final RevCommit a = commit();
+		final RevCommit b = commit(a);
+
+		assertEquals(RevCommit.GENERATION_INFINITY, rw.getGeneration(b));
+		assertEquals(RevCommit.GENERATION_INFINITY, b.getGeneration());
+		assertTrue(rw.isMergedInto(a, b));
+		assertFalse(rw.isMergedInto(b, a));
+	}
+
+	public void testFromCommitGraph() throws Exception {
+		final RevCommit a = commit();
+		final RevCommit b = commit(a);
+		final RevCommit c = commit(b);
+		final RevCommit d = commit(a);
+		final RevCommit m = commit(d, c);
+		writeGraph(m);
+
+		final RevWalk w = new RevWalk(db);
+		assertEquals(1, w.getGeneration(w.lookupCommit(a)));
+		assertEquals(2, w.getGeneration(w.lookupCommit(b)));
+		assertEquals(3, w.getGeneration(w.lookupCommit(c)));
+		assertEquals(2, w.getGeneration(w.lookupCommit(d)));
+		assertEquals(4, w.getGeneration(w.lookupCommit(m)));
+		assertEquals(4, w.lookupCommit(m).getGeneration());
+	}
+
+	public void testAboveCommitGraph() throws Exception {
+		final RevCommit a = commit();
+		final RevCommit b = commit(a);
+		writeGraph(b);
+		final RevCommit c = commit(b);
+		final RevCommit d = commit(c, a);
+
+		final RevWalk w = new RevWalk(db);
+		assertEquals(3, w.getGeneration(w.lookupCommit(c)));
+		assertEquals(4, w.getGeneration(w.lookupCommit(d)));
+	}
+
+	public void testIsMergedIntoSkewedClock() throws Exception {
+		final RevCommit base = commit();
+		final RevCommit a1 = commit(base);
+		final RevCommit a2 = commit(-86400, a1);
+		final RevCommit a3 = commit(a2);
+		final RevCommit b1 = commit(86400, base);
+		final RevCommit b2 = commit(b1);
+		writeGraph(a3, b2);
+
+		final RevWalk w = new RevWalk(db);
+		final RevCommit wBase = w.lookupCommit(base);
+		final RevCommit wA2 = w.lookupCommit(a2);
+		final RevCommit wA3 = w.lookupCommit(a3);
+		final RevCommit wB2 = w.lookupCommit(b2);
+		assertTrue(w.isMergedInto(wBase, wA3));
+		assertTrue(w.isMergedInto(wA2, wA3));
+		assertTrue(w.isMergedInto(wBase, wB2));
+		assertFalse(w.isMergedInto(wA2, wB2));
+		assertFalse(w.isMergedInto(wB2, wA3));
+		assertFalse(w.isMergedInto(wA3, wA2));
+		assertEquals(0, w.getMinGeneration());
+	}
+
+	public void testMinGeneration() throws Exception {
+		final RevCommit a = commit();
+		final RevCommit b = commit(a);
+		final RevCommit c = commit(b);
+		final RevCommit d = commit(c);
+		writeGraph(d);
+
+		final RevWalk w = new RevWalk(db);
+		w.setMinGeneration(3);
+		w.markStart(w.lookupCommit(d));
+		assertSame(w.lookupCommit(d), w.next());
+		assertSame(w.lookupCommit(c), w.next());
+		assertNull(w.next());
+
+		w.reset();
+		assertEquals(3, w.getMinGeneration());
+		w.markStart(w.lookupCommit(b));
+		assertSame(w.lookupCommit(b), w.next());
+		assertNull(w.next());
+	}
+
+	public void testPrunedLooseCommit() throws Exception {
+		final RevCommit a = commit();
+		final RevCommit b = commit(a);
+		writeGraph(b);
+		assertTrue(db.toFile(b).delete());
+
+		final RevWalk w = new RevWalk(db);
+		w.setRetainBody(false);
+		try {
+			w.parseAny(b);
+			fail("Pruned commit " + b.name() + " was read from the graph");
+		} catch (MissingObjectException e) {
+			// expected
+		}
+		assertEquals(1, w.getGeneration(w.lookupCommit(a)));
+	}
+
+	private void writeGraph(final RevCommit... tips) throws Exception {
+		final List<ObjectId> list = new ArrayList<ObjectId>();
+		for (final RevCommit c : tips)
+			list.add(c.copy());
+		final CommitGraphWriter w = new CommitGraphWriter(db);
+		w.compute(NullProgressMonitor.INSTANCE, list);
+		w.write();
+	}
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.util.Base64;
+
+public class AmazonS3Test extends TestCase {
+	private static final int PART_SIZE = AmazonS3.MIN_PART_SIZE;
+
+	private FakeS3 server;
+
+	private AmazonS3 s3;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new FakeS3();
+		server.start();
+
+		final Properties props = new Properties();
+		props.setProperty("accesskey", "AKIDEXAMPLE");
+		props.setProperty("secretkey", "secret");
+		props.setProperty("s3service.s3-endpoint", "127.0.0.1");
+		props.setProperty("s3service.s3-endpoint-http-port", String
+				.valueOf(server.getPort()));
+		props.setProperty("s3service.disable-dns-buckets", "true");
+		props.setProperty("upload.max-part-size", String.valueOf(PART_SIZE));
+		props.setProperty("s3service.max-thread-count", "2");
+		s3 = new AmazonS3(props);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+		super.tearDown();
+	}
+
+	public void testPartSizeBelowMinimumRejected() {
+		final Properties props = new Properties();
+		props.setProperty("accesskey", "AKIDEXAMPLE");
+		props.setProperty("secretkey", "secret");
+		props.setProperty("upload.max-part-size", String
+				.valueOf(AmazonS3.MIN_PART_SIZE - 1));
+		try {
+			new AmazonS3(props);
+			fail("part size below the S3 minimum was accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected, S3 would refuse the upload when completing it.
+		}
+	}
+
+	public void testSmallObjectUsesSinglePut() throws Exception {
+		final byte[] data = data(PART_SIZE);
+		final OutputStream out = s3.beginPut("b", "small", null, null);
+		out.write(data);
+		out.close();
+
+		assertEquals(0, server.partCount());
+		assertEquals("PUT /b/small", server.requests().get(0));
+		assertEquals(1, server.requests().size());
+		assertContent(data, server.object("small"));
+	}
+
+	public void testMultipartUpload() throws Exception {
+		final byte[] data = data(5 * PART_SIZE / 2);
+		final OutputStream out = s3.beginPut("b", "large", null, null);
+		for (int i = 0; i < data.length; i += 100)
+			out.write(data, i, Math.min(100, data.length - i));
+		out.close();
+
+		assertEquals(3, server.partCount());
+		final List<String> req = server.requests();
+		assertEquals("POST /b/large?uploads", req.get(0));
+		assertEquals("POST /b/large?uploadId=up-1", req.get(req.size() - 1));
+		assertContent(data, server.object("large"));
+		assertFalse(server.aborted);
+	}
+
+	public void testPartsSentBeforeClose() throws Exception {
+		final byte[] data = data(3 * PART_SIZE);
+		final OutputStream out = s3.beginPut("b", "stream", null, null);
+		out.write(data, 0, 2 * PART_SIZE + 1);
+
+		// Full parts go out while the caller is still writing.
+		//
+		for (int attempt = 0; server.partCount() < 2; attempt++) {
+			assertTrue(attempt < 100);
+			Thread.sleep(50);
+		}
+		assertNull(server.object("stream"));
+
+		out.write(data, 2 * PART_SIZE + 1, PART_SIZE - 1);
+		out.close();
+		assertEquals(3, server.partCount());
+		assertContent(data, server.object("stream"));
+	}
+
+	public void testFailedPartIsRetried() throws Exception {
+		server.failPart = 2;
+		final byte[] data = data(2 * PART_SIZE + 10);
+		final OutputStream out = s3.beginPut("b", "retry", null, null);
+		out.write(data);
+		out.close();
+
+		assertEquals(-1, server.failPart);
+		assertContent(data, server.object("retry"));
+	}
+
+	public void testRejectedPartAbortsUpload() throws Exception {
+		server.rejectParts = true;
+		final OutputStream out = s3.beginPut("b", "bad", null, null);
+		try {
+			out.write(data(3 * PART_SIZE));
+			out.close();
+			fail("upload did not fail");
+		} catch (IOException e) {
+			// Expected, the service refused the parts.
+		}
+		assertTrue(server.aborted);
+		assertNull(server.object("bad"));
+	}
+
+	private static byte[] data(final int len) {
+		final byte[] r = new byte[len];
+		for (int i = 0; i < len; i++)
+			r[i] = (byte) (i * 31 + i / 7);
+		return r;
+	}
+
+	private static void assertContent(final byte[] exp, final byte[] act) {
+		assertNotNull(act);
+		assertEquals(exp.length, act.length);
+		if (Arrays.equals(exp, act))
+			return;
+		for (int i = 0; i < exp.length; i++)
+			assertEquals("byte " + i, exp[i], act[i]);
+	}
+
+	/** Minimal stand-in for the subset of S3 used by uploads. */
+	private static class FakeS3 implements Runnable {
+		private final ServerSocket listen;
+
+		private final List<String> requests = new ArrayList<String>();
+
+		private final Map<Integer, byte[]> parts = new TreeMap<Integer, byte[]>();
+
+		private final Map<String, byte[]> objects = new HashMap<String, byte[]>();
+
+		volatile int failPart = -1;
+
+		volatile boolean rejectParts;
+
+		volatile boolean aborted;
+
+		FakeS3() throws IOException {
+			listen = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		}
+
+		int getPort() {
+			return listen.getLocalPort();
+		}
+
+		void start() {
+			final Thread t = new Thread(this, "FakeS3");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		void stop() throws IOException {
+			listen.close();
+		}
+
+		synchronized List<String> requests() {
+			return new ArrayList<String>(requests);
+		}
+
+		synchronized int partCount() {
+			return parts.size();
+		}
+
+		synchronized byte[] object(final String key) {
+			return objects.get(key);
+		}
+
+		public void run() {
+			for (;;) {
+				final Socket s;
+				try {
+					s = listen.accept();
+				} catch (IOException e) {
+					return;
+				}
+				final Thread t = new Thread("FakeS3-Client") {
+					@Override
+					public void run() {
+						try {
+							try {
+								serve(s);
+							} finally {
+								s.close();
+							}
+						} catch (Exception e) {
+							// The test will notice the missing response.
+						}
+					}
+				};
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+
+		private void serve(final Socket s) throws Exception {
+			final InputStream in = s.getInputStream();
+			final String[] line = readLine(in).split(" ");
+			final String method = line[0];
+			final String uri = line[1];
+			final Map<String, String> hdr = new HashMap<String, String>();
+			String h;
+			while ((h = readLine(in)).length() > 0) {
+				final int c = h.indexOf(':');
+				hdr.put(h.substring(0, c).trim().toLowerCase(), h.substring(
+						c + 1).trim());
+			}
+			final String lenstr = hdr.get("content-length");
+			final byte[] body = new byte[lenstr != null ? Integer
+					.parseInt(lenstr) : 0];
+			for (int p = 0; p < body.length;) {
+				final int n = in.read(body, p, body.length - p);
+				if (n < 0)
+					throw new IOException("short body");
+				p += n;
+			}
+
+			final String path = uri.contains("?") ? uri.substring(0, uri
+					.indexOf('?')) : uri;
+			final String key = path.substring("/b/".length());
+			final OutputStream out = s.getOutputStream();
+			if (!hdr.containsKey("authorization")) {
+				respond(out, 403, null, "");
+				return;
+			}
+
+			if ("PUT".equals(method) && uri.contains("partNumber=")) {
+				synchronized (this) {
+					requests.add(method + " " + path + "?partNumber");
+				}
+				final int n = Integer.parseInt(uri.replaceAll(
+						".*partNumber=(\\d+).*", "$1"));
+				if (rejectParts) {
+					respond(out, 403, null, "<Error/>");
+					return;
+				}
+				if (n == failPart) {
+					failPart = -1;
+					respond(out, 500, null, "");
+					return;
+				}
+				if (!md5(body).equals(hdr.get("content-md5"))) {
+					respond(out, 400, null, "<Error/>");
+					return;
+				}
+				synchronized (this) {
+					parts.put(Integer.valueOf(n), body);
+				}
+				respond(out, 200, "\"etag-" + n + "\"", "");
+
+			} else if ("PUT".equals(method)) {
+				synchronized (this) {
+					requests.add(method + " " + path);
+					objects.put(key, body);
+				}
+				respond(out, 200, null, "");
+
+			} else if ("POST".equals(method) && uri.endsWith("?uploads")) {
+				synchronized (this) {
+					requests.add(method + " " + uri);
+				}
+				respond(out, 200, null, "<InitiateMultipartUploadResult>"
+						+ "<UploadId>up-1</UploadId>"
+						+ "</InitiateMultipartUploadResult>");
+
+			} else if ("POST".equals(method)) {
+				final String xml = new String(body, "UTF-8");
+				final ByteArrayOutputStream obj = new ByteArrayOutputStream();
+				synchronized (this) {
+					requests.add(method + " " + uri);
+					for (final Map.Entry<Integer, byte[]> e : parts.entrySet()) {
+						final int n = e.getKey().intValue();
+						if (!xml.contains("<PartNumber>" + n
+								+ "</PartNumber><ETag>\"etag-" + n
+								+ "\"</ETag>")) {
+							respond(out, 400, null, "<Error/>");
+							return;
+						}
+						obj.write(e.getValue());
+					}
+					objects.put(key, obj.toByteArray());
+				}
+				respond(out, 200, null, "<CompleteMultipartUploadResult/>");
+
+			} else if ("DELETE".equals(method)) {
+				synchronized (this) {
+					requests.add(method + " " + uri);
+				}
+				aborted = true;
+				respond(out, 204, null, "");
+
+			} else {
+				respond(out, 405, null, "");
+			}
+		}
+
+		private static String md5(final byte[] body) throws Exception {
+			return Base64.encodeBytes(MessageDigest.getInstance("MD5").digest(
+					body));
+		}
+
+		private static String readLine(final InputStream in)
+				throws IOException {
+			final StringBuilder r = new StringBuilder();
+			for (;;) {
+				final int c = in.read();
+				if (c < 0 || c == '\n')
+					break;
+				if (c != '\r')
+					r.append((char) c);
+			}
+			return r.toString();
+		}
+
+		private static void respond(final OutputStream out, final int status,
+				final String etag, final String body) throws IOException {
+			final byte[] b = Constants.encode(body);
+			final StringBuilder r = new StringBuilder();
+			r.append("HTTP/1.1 " + status + " Status\r\n");
+			if (etag != null)
+				r.append("ETag: " + etag + "\r\n");
+			if (b.length > 0)
+				r.append("Content-Type: application/xml\r\n");
+			r.append("Content-Length: " + b.length + "\r\n");
+			r.append("Connection: close\r\n");
+			r.append("\r\n");
+			out.write(Constants.encodeASCII(r.toString()));
+			out.write(b);
+			out.flush();
+		}
+	}
+}
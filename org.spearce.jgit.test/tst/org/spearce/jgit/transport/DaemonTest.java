@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.RepositoryTestCase;
+
+public class DaemonTest extends RepositoryTestCase {
+	private Daemon daemon;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		daemon = new Daemon(new InetSocketAddress(InetAddress
+				.getByName("127.0.0.1"), 0));
+		daemon.exportRepository("test", db);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		daemon.stop();
+		super.tearDown();
+	}
+
+	public void testUploadPack() throws Exception {
+		daemon.start();
+		final Socket s = request();
+		try {
+			assertAdvertisement(s);
+		} finally {
+			s.close();
+		}
+	}
+
+	public void testHandshakeTimeout() throws Exception {
+		daemon.setHandshakeTimeout(1);
+		daemon.start();
+		final Socket s = connect();
+		try {
+			assertClosed(s);
+		} finally {
+			s.close();
+		}
+	}
+
+	public void testRejectWhenBusy() throws Exception {
+		daemon.setMaxConnections(1);
+		daemon.setMaxQueue(0);
+		daemon.start();
+
+		final Socket busy = request();
+		try {
+			assertAdvertisement(busy);
+			final Socket rejected = connect();
+			try {
+				try {
+					sendRequest(rejected);
+				} catch (IOException e) {
+					// Closed before we were done writing.
+				}
+				assertClosed(rejected);
+			} finally {
+				rejected.close();
+			}
+		} finally {
+			busy.close();
+		}
+
+		// Once the session completes the next client is served again.
+		//
+		for (int attempt = 0;; attempt++) {
+			assertTrue(attempt < 50);
+			final Socket s = connect();
+			try {
+				sendRequest(s);
+				if (s.getInputStream().read() != -1)
+					break;
+			} catch (IOException e) {
+				// Still busy, the connection was reset.
+			} finally {
+				s.close();
+			}
+			Thread.sleep(100);
+		}
+	}
+
+	private Socket connect() throws IOException {
+		final Socket s = new Socket(daemon.getAddress().getAddress(), daemon
+				.getAddress().getPort());
+		s.setSoTimeout(10000);
+		return s;
+	}
+
+	private Socket request() throws IOException {
+		final Socket s = connect();
+		sendRequest(s);
+		return s;
+	}
+
+	private static void sendRequest(final Socket s) throws IOException {
+		final String cmd = "git-upload-pack /test\0host=localhost\0";
+		final OutputStream out = s.getOutputStream();
+		out.write(Constants.encodeASCII(String.format("%04x", Integer
+				.valueOf(cmd.length() + 4))
+				+ cmd));
+		out.flush();
+	}
+
+	private static void assertAdvertisement(final Socket s) throws IOException {
+		final String line = new PacketLineIn(s.getInputStream())
+				.readStringNoLF();
+		assertTrue(line.length() > Constants.OBJECT_ID_LENGTH * 2);
+	}
+
+	private static void assertClosed(final Socket s) throws IOException {
+		final InputStream in = s.getInputStream();
+		try {
+			assertEquals(-1, in.read());
+		} catch (SocketTimeoutException e) {
+			fail("connection was not closed");
+		} catch (IOException e) {
+			// Connection reset by the daemon.
+		}
+	}
+}
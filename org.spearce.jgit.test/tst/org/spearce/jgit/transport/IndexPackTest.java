@@ -38,16 +38,29 @@
 
 package org.spearce.jgit.transport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
 
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectLoader;
+import org.spearce.jgit.lib.ObjectWriter;
 import org.spearce.jgit.lib.PackFile;
+import org.spearce.jgit.lib.PackWriter;
 import org.spearce.jgit.lib.RepositoryTestCase;
 import org.spearce.jgit.lib.TextProgressMonitor;
+import org.spearce.jgit.lib.WindowCursor;
+import org.spearce.jgit.revwalk.RevWalk;
 import org.spearce.jgit.util.JGitTestUtil;
+import org.spearce.jgit.util.NB;
 
 /**
  * Test indexing of git packs. A pack is read from a stream, copied
@@ -112,4 +125,222 @@ public void test2() throws  IOException {
 			is.close();
 		}
 	}
+
+	/**
+	 * Resolving deltas on several threads must produce the same index as a
+	 * single thread.
+	 *
+	 * @throws IOException
+	 */
+	public void testThreads() throws IOException {
+		final byte[] idx1 = indexWithThreads("tmp_pack3", 1, -1);
+		final byte[] idx4 = indexWithThreads("tmp_pack4", 4, -1);
+		assertTrue(Arrays.equals(idx1, idx4));
+
+		PackFile file = new PackFile(new File(trash, "tmp_pack4.idx"), new File(trash, "tmp_pack4.pack"));
+		assertTrue(file.hasObject(ObjectId.fromString("2675188fd86978d5bc4d7211698b2118ae3bf658")));
+	}
+
+	/**
+	 * Bases dropped to respect the memory limit must be inflated again from
+	 * the pack, producing the same index as an unlimited run.
+	 *
+	 * @throws IOException
+	 */
+	public void testDeltaBaseCacheLimit() throws IOException {
+		final byte[] unlimited = indexWithThreads("tmp_pack5", 1,
+				Integer.MAX_VALUE);
+		final byte[] limited = indexWithThreads("tmp_pack6", 1, 0);
+		assertTrue(Arrays.equals(unlimited, limited));
+	}
+
+	/**
+	 * A delta chain far deeper than any recursion would handle comfortably.
+	 *
+	 * @throws IOException
+	 */
+	public void testDeepDeltaChain() throws IOException {
+		final File packFile = new File(trash, "deep.pack");
+		final ObjectId[] blobs = writeDeltaChain(packFile, 2000);
+
+		final InputStream is = new FileInputStream(packFile);
+		try {
+			IndexPack pack = new IndexPack(db, is, new File(trash, "tmp_pack7"));
+			pack.setDeltaBaseCacheLimit(0);
+			pack.index(new TextProgressMonitor());
+		} finally {
+			is.close();
+		}
+		assertDeltaChain("tmp_pack7", blobs);
+	}
+
+	/**
+	 * Deltas whose base was just read are resolved without a second pass,
+	 * so no pack file is needed to index them.
+	 *
+	 * @throws IOException
+	 */
+	public void testDeltasResolvedWhileReading() throws IOException {
+		final File packFile = new File(trash, "chain.pack");
+		writeDeltaChain(packFile, 100);
+
+		final InputStream is = new FileInputStream(packFile);
+		try {
+			IndexPack pack = new IndexPack(db, is, null);
+			pack.index(NullProgressMonitor.INSTANCE);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * A delta resolved while reading may have to be read again from the pack
+	 * as the base of a later delta, along with its own base.
+	 *
+	 * @throws IOException
+	 */
+	public void testDeltaOnDeltaResolvedWhileReading() throws IOException {
+		final byte[] a = new byte[100];
+		Arrays.fill(a, (byte) 'a');
+		final byte[] d1 = new byte[101];
+		Arrays.fill(d1, (byte) 'a');
+		d1[100] = 'b';
+		final byte[] x = new byte[120];
+		Arrays.fill(x, (byte) 'x');
+		final byte[] d2 = new byte[102];
+		System.arraycopy(d1, 0, d2, 0, 101);
+		d2[101] = 'c';
+
+		final ByteArrayOutputStream pack = new ByteArrayOutputStream();
+		pack.write(Constants.PACK_SIGNATURE);
+		pack.write(new byte[] { 0, 0, 0, 2, 0, 0, 0, 4 });
+		final int posA = pack.size();
+		packObject(pack, Constants.OBJ_BLOB, a);
+		final int posD1 = pack.size();
+		packOfsDelta(pack, posD1 - posA, a.length, 'b');
+		packObject(pack, Constants.OBJ_BLOB, x);
+		final int posD2 = pack.size();
+		packOfsDelta(pack, posD2 - posD1, d1.length, 'c');
+		pack.write(Constants.newMessageDigest().digest(pack.toByteArray()));
+
+		// The limit holds one object at a time, so x pushes d1 out of
+		// memory before the delta against it is read.
+		//
+		IndexPack ip = new IndexPack(db, new ByteArrayInputStream(pack
+				.toByteArray()), new File(trash, "tmp_pack8"));
+		ip.setDeltaBaseCacheLimit(150);
+		ip.index(NullProgressMonitor.INSTANCE);
+
+		PackFile file = new PackFile(new File(trash, "tmp_pack8.idx"), new File(trash, "tmp_pack8.pack"));
+		final WindowCursor wc = new WindowCursor();
+		final ObjectWriter ow = new ObjectWriter(db);
+		ObjectLoader ldr = file.get(wc, ow.computeBlobSha1(d1.length,
+				new ByteArrayInputStream(d1)));
+		assertTrue(Arrays.equals(d1, ldr.getBytes()));
+		ldr = file.get(wc, ow.computeBlobSha1(d2.length,
+				new ByteArrayInputStream(d2)));
+		assertTrue(Arrays.equals(d2, ldr.getBytes()));
+		wc.release();
+	}
+
+	private static void packObject(final ByteArrayOutputStream pack,
+			final int type, final byte[] data) throws IOException {
+		packHeader(pack, type, data.length);
+		final DeflaterOutputStream out = new DeflaterOutputStream(pack);
+		out.write(data);
+		out.finish();
+	}
+
+	// A delta copying the whole base, then appending one byte.
+	private static void packOfsDelta(final ByteArrayOutputStream pack,
+			final int ofs, final int baseLen, final char append)
+			throws IOException {
+		final byte[] delta = { (byte) baseLen, (byte) (baseLen + 1),
+				(byte) 0x90, (byte) baseLen, 1, (byte) append };
+		packHeader(pack, Constants.OBJ_OFS_DELTA, delta.length);
+		assertTrue(ofs < 128);
+		pack.write(ofs);
+		final DeflaterOutputStream out = new DeflaterOutputStream(pack);
+		out.write(delta);
+		out.finish();
+	}
+
+	private static void packHeader(final ByteArrayOutputStream pack,
+			final int type, int sz) {
+		int c = (type << 4) | (sz & 15);
+		sz >>>= 4;
+		while (sz > 0) {
+			pack.write(c | 0x80);
+			c = sz & 0x7f;
+			sz >>>= 7;
+		}
+		pack.write(c);
+	}
+
+	private ObjectId[] writeDeltaChain(final File packFile, final int count)
+			throws IOException {
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10; i++)
+			text.append("the start of a file which keeps growing\n");
+		final ObjectWriter ow = new ObjectWriter(db);
+		final RevWalk rw = new RevWalk(db);
+		final ObjectId[] blobs = new ObjectId[count];
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setDeltaSearchWindowSize(1);
+		pw.setMaxDeltaDepth(2 * blobs.length);
+		for (int i = 0; i < blobs.length; i++) {
+			text.append(i % 10);
+			blobs[i] = ow.writeBlob(Constants.encode(text.toString()));
+			pw.addObject(rw.lookupBlob(blobs[i]));
+		}
+
+		final FileOutputStream os = new FileOutputStream(packFile);
+		try {
+			pw.writePack(os);
+		} finally {
+			os.close();
+		}
+		return blobs;
+	}
+
+	private void assertDeltaChain(final String name, final ObjectId[] blobs)
+			throws IOException {
+		PackFile file = new PackFile(new File(trash, name + ".idx"), new File(trash, name + ".pack"));
+		final WindowCursor wc = new WindowCursor();
+		int deltas = 0;
+		for (final ObjectId id : blobs) {
+			final ObjectLoader ldr = file.get(wc, id);
+			assertTrue(Arrays.equals(db.openBlob(id).getBytes(), ldr
+					.getBytes()));
+			if (ldr.getRawType() != Constants.OBJ_BLOB)
+				deltas++;
+		}
+		wc.release();
+		assertEquals(blobs.length - 1, deltas);
+	}
+
+	private byte[] indexWithThreads(final String name, final int threads,
+			final int limit) throws IOException {
+		File packFile = JGitTestUtil.getTestResourceFile("pack-df2982f284bbabb6bdb59ee3fcc6eb0983e20371.pack");
+		final InputStream is = new FileInputStream(packFile);
+		try {
+			IndexPack pack = new IndexPack(db, is, new File(trash, name));
+			pack.setThreads(threads);
+			if (limit >= 0)
+				pack.setDeltaBaseCacheLimit(limit);
+			pack.index(new TextProgressMonitor());
+		} finally {
+			is.close();
+		}
+
+		final File idx = new File(trash, name + ".idx");
+		final byte[] r = new byte[(int) idx.length()];
+		final FileInputStream in = new FileInputStream(idx);
+		try {
+			NB.readFully(in, r, 0, r.length);
+		} finally {
+			in.close();
+		}
+		return r;
+	}
 }
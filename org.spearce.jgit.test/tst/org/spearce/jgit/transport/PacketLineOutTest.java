@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.Constants;
+
+public class PacketLineOutTest extends TestCase {
+	private CountingStream raw;
+
+	private Counter metrics;
+
+	private PacketLineOut pckOut;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		raw = new CountingStream();
+		metrics = new Counter();
+		pckOut = new PacketLineOut(raw);
+		pckOut.setMetrics(metrics);
+	}
+
+	public void testPacketsCoalesced() throws IOException {
+		pckOut.writeString("a\n");
+		pckOut.writeString("bc\n");
+		pckOut.writeString("def\n");
+		assertEquals(0, raw.writes);
+
+		pckOut.end();
+		assertEquals("0006a\n0007bc\n0008def\n0000", raw.string());
+		assertEquals(1, raw.writes);
+		assertEquals(1, raw.flushes);
+		assertEquals(1, metrics.writes);
+		assertEquals(4, metrics.packets);
+		assertEquals(raw.size(), metrics.bytes);
+		assertEquals(1, metrics.flushes);
+	}
+
+	public void testLargeFramesWrittenWhole() throws IOException {
+		final SideBandOutputStream out = new SideBandOutputStream(
+				SideBandOutputStream.CH_DATA, SideBandOutputStream.MAX_BUF,
+				pckOut);
+		final byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		for (int i = 0; i < data.length; i += 1000)
+			out.write(data, i, 1000);
+		assertEquals(1, raw.writes);
+
+		out.flush();
+		assertEquals(0, raw.flushes);
+		pckOut.end();
+
+		// Two frames of data written as they are, then the end packet.
+		final byte[] r = raw.toByteArray();
+		assertEquals(3, raw.writes);
+		assertEquals(3, metrics.packets);
+		assertEquals(r.length, metrics.bytes);
+
+		final int first = SideBandOutputStream.MAX_BUF;
+		assertEquals("fff0", new String(r, 0, 4, "ISO-8859-1"));
+		assertEquals(SideBandOutputStream.CH_DATA, r[4]);
+		final int second = data.length - (first - 5) + 5;
+		assertEquals(String.format("%04x", Integer.valueOf(second)),
+				new String(r, first, 4, "ISO-8859-1"));
+		assertEquals(first + second + 4, r.length);
+		for (int i = 0; i < first - 5; i++)
+			assertEquals(data[i], r[5 + i]);
+		for (int i = first - 5; i < data.length; i++)
+			assertEquals(data[i], r[first + 5 + i - (first - 5)]);
+	}
+
+	public void testProgressFlushed() throws IOException {
+		final SideBandOutputStream out = new SideBandOutputStream(
+				SideBandOutputStream.CH_PROGRESS,
+				SideBandOutputStream.SMALL_BUF, pckOut);
+		out.write(Constants.encode("Counting objects: 1\r"));
+		assertEquals(0, raw.writes);
+		out.flush();
+		assertEquals("0019\2Counting objects: 1\r", raw.string());
+		assertEquals(1, raw.flushes);
+	}
+
+	private static class CountingStream extends ByteArrayOutputStream {
+		int writes;
+
+		int flushes;
+
+		@Override
+		public synchronized void write(final byte[] b, final int off,
+				final int len) {
+			writes++;
+			super.write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+			flushes++;
+		}
+
+		String string() throws IOException {
+			return toString("ISO-8859-1");
+		}
+	}
+
+	private static class Counter implements PacketMetrics {
+		int writes;
+
+		int packets;
+
+		int bytes;
+
+		int flushes;
+
+		public void onWrite(final int n, final int len) {
+			writes++;
+			packets += n;
+			bytes += len;
+		}
+
+		public void onFlush() {
+			flushes++;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.spearce.jgit.lib.PackFile;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.lib.WindowCache;
+
+public class RepositoryCacheTest extends RepositoryTestCase {
+	private RepositoryCache cache;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		cache = new RepositoryCache(4, 60 * 1000L);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		cache.clear();
+		super.tearDown();
+	}
+
+	public void testReuse() throws IOException {
+		final Repository a = open(trash_git);
+		cache.release(a);
+		final Repository b = open(new File(trash, "./.git"));
+		assertSame(a, b);
+		cache.release(b);
+	}
+
+	public void testIdleTime() throws IOException {
+		cache.setIdleTime(0);
+		final Repository a = open(trash_git);
+		cache.release(a);
+		final Repository b = open(trash_git);
+		assertNotSame(a, b);
+		cache.release(b);
+	}
+
+	public void testInUseNotClosed() throws IOException {
+		cache.setIdleTime(0);
+		final Repository a = open(trash_git);
+		final Repository b = open(trash_git);
+		assertSame(a, b);
+		cache.release(b);
+		final Repository c = open(trash_git);
+		assertSame(a, c);
+		cache.release(c);
+		cache.release(a);
+	}
+
+	public void testMaxOpen() throws IOException {
+		cache.setMaxOpen(1);
+		final File other = createNewEmptyRepo().getDirectory();
+		final Repository a = open(trash_git);
+		final Repository b = open(other);
+		cache.release(a);
+		cache.release(b);
+
+		assertSame(b, open(other));
+		final Repository a2 = open(trash_git);
+		assertNotSame(a, a2);
+		cache.release(a2);
+	}
+
+	public void testReopenWhenPackRemoved() throws IOException {
+		final Repository a = open(trash_git);
+		cache.release(a);
+
+		final PackFile p = a.getPacks()[0];
+		final File moved = new File(trash, "moved.pack");
+		assertTrue(p.getPackFile().renameTo(moved));
+		final Repository b = open(trash_git);
+		assertNotSame(a, b);
+		cache.release(b);
+	}
+
+	public void testReleaseUnknown() throws IOException {
+		cache.release(db);
+		final Repository a = open(trash_git);
+		assertNotSame(db, a);
+		cache.release(db);
+		assertSame(a, open(trash_git));
+	}
+
+	private Repository open(final File gitDir) throws IOException {
+		return cache.open(gitDir, WindowCache.getDefault());
+	}
+}
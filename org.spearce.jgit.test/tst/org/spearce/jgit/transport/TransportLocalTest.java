@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.spearce.jgit.errors.TransportException;
+import org.spearce.jgit.lib.CachedPack;
+import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectWriter;
+import org.spearce.jgit.lib.PackFile;
+import org.spearce.jgit.lib.PackWriter;
+import org.spearce.jgit.lib.RefUpdate;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.lib.Tree;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevWalk;
+
+public class TransportLocalTest extends RepositoryTestCase {
+	private Repository dst;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		dst = createNewEmptyRepo();
+	}
+
+	public void testCloneCopiesObjects() throws Exception {
+		final ObjectId blob = createBranch("refs/heads/loose", "loose");
+		fetch();
+
+		assertEquals(db.resolve("refs/heads/master"), dst
+				.resolve("refs/remotes/origin/master"));
+		assertEquals(blob, dst.resolve("refs/remotes/origin/loose"));
+		for (final PackFile p : db.getPacks()) {
+			final File copy = new File(dst.getObjectsDirectory(), "pack/"
+					+ p.getPackFile().getName());
+			assertTrue(copy.isFile());
+			assertEquals(p.getPackFile().length(), copy.length());
+		}
+		assertTrue(dst.toFile(blob).isFile());
+	}
+
+	public void testFetchIntoNonEmptyRepositoryUsesPackProtocol()
+			throws Exception {
+		fetch();
+		final int packs = dst.getPacks().length;
+
+		final ObjectId blob = createBranch("refs/heads/new", "new");
+		fetch();
+
+		assertEquals(blob, dst.resolve("refs/remotes/origin/new"));
+		assertTrue(dst.hasObject(blob));
+		assertFalse(dst.toFile(blob).exists());
+		assertEquals(packs + 1, dst.getPacks().length);
+	}
+
+	public void testFailedIndexCopyRemovesPack() throws Exception {
+		// A second copy of a pack, whose index cannot be read.
+		//
+		final String base = "pack-" + ObjectId.zeroId().name();
+		final File srcDir = new File(db.getObjectsDirectory(), "pack");
+		copyFile(db.getPacks()[0].getPackFile(), new File(srcDir, base
+				+ ".pack"));
+		assertTrue(new File(srcDir, base + ".idx").mkdir());
+
+		try {
+			fetch();
+		} catch (TransportException e) {
+			// The source may fail to read objects through the broken pack.
+		}
+
+		final File dstDir = new File(dst.getObjectsDirectory(), "pack");
+		assertFalse(new File(dstDir, base + ".pack").exists());
+		assertFalse(new File(dstDir, base + ".idx").exists());
+	}
+
+	public void testPushChecksConnectivityOfNewObjects() throws Exception {
+		fetch();
+		db.getConfig().setBoolean("receive", null, "fsckobjects", true);
+		db.getConfig().save();
+
+		final ObjectId parent = dst.resolve("refs/remotes/origin/master");
+		final ObjectWriter ow = new ObjectWriter(dst);
+		final Tree t = new Tree(dst);
+		t.addFile("pushed").setId(ow.writeBlob(Constants.encode("pushed")));
+		final Commit c = new Commit(dst);
+		c.setTreeId(ow.writeTree(t));
+		c.setParentIds(new ObjectId[] { parent });
+		c.setAuthor(jauthor);
+		c.setCommitter(jcommitter);
+		c.setMessage("pushed\n");
+		c.commit();
+
+		final RemoteRefUpdate u = new RemoteRefUpdate(dst, c.getCommitId()
+				.name(), "refs/heads/pushed", false, null, null);
+		final Transport tn = Transport.open(dst, db.getDirectory()
+				.getAbsolutePath());
+		try {
+			tn.push(NullProgressMonitor.INSTANCE, Collections.singleton(u));
+		} finally {
+			tn.close();
+		}
+
+		assertEquals(RemoteRefUpdate.Status.OK, u.getStatus());
+		assertEquals(c.getCommitId(), db.resolve("refs/heads/pushed"));
+	}
+
+	public void testPushRejectsUnconnectedObjects() throws Exception {
+		// A commit left in the repository by an earlier push, whose parent
+		// never arrived. No ref reaches it, so it must not be trusted.
+		final ObjectId missing = ObjectId
+				.fromString("0123456789012345678901234567890123456789");
+		final ObjectId emptyTree = new ObjectWriter(db).writeTree(new Tree(db));
+		final ObjectId rogue = writeCommit(db, emptyTree, missing, "rogue\n");
+
+		final ObjectWriter ow = new ObjectWriter(dst);
+		final Tree t = new Tree(dst);
+		t.addFile("pushed").setId(ow.writeBlob(Constants.encode("pushed")));
+		final ObjectId tree = ow.writeTree(t);
+		final ObjectId child = writeCommit(dst, tree, rogue, "child\n");
+
+		final RevWalk rw = new RevWalk(dst);
+		final List<RevObject> objects = new ArrayList<RevObject>();
+		objects.add(rw.lookupCommit(child));
+		objects.add(rw.lookupTree(tree));
+		objects.add(rw.lookupBlob(t.findBlobMember("pushed").getId()));
+		final ReceivePack rp = new ReceivePack(db);
+		rp.setCheckReceivedObjects(true);
+		final String status = receive(rp, objects, ObjectId.zeroId().name()
+				+ " " + child.name() + " refs/heads/rogue");
+
+		assertTrue(status, status.indexOf("ng refs/heads/rogue") >= 0);
+		assertNull(db.resolve("refs/heads/rogue"));
+	}
+
+	public void testPushAppliesCommandsIndependently() throws Exception {
+		final ObjectId a = db.resolve("refs/heads/a");
+		final ObjectId b = db.resolve("refs/heads/b");
+		final ReceivePack rp = new ReceivePack(db);
+		final String status = receive(rp, new ArrayList<RevObject>(), //
+				ObjectId.zeroId().name() + " " + b.name() + " refs/heads/new", //
+				b.name() + " " + b.name() + " refs/heads/a");
+
+		assertTrue(status, status.indexOf("ok refs/heads/new") >= 0);
+		assertTrue(status, status.indexOf("ng refs/heads/a") >= 0);
+		assertEquals(b, db.resolve("refs/heads/new"));
+		assertEquals(a, db.resolve("refs/heads/a"));
+		assertTrue(new File(db.getDirectory(), "logs/refs/heads/new")
+				.isFile());
+	}
+
+	public void testPushRejectsOnlyConflictingRef() throws Exception {
+		final ObjectId b = db.resolve("refs/heads/b");
+		final RefUpdate zz = db.updateRef("refs/heads/zz");
+		zz.setNewObjectId(b);
+		assertEquals(RefUpdate.Result.NEW, zz.forceUpdate());
+
+		// refs/heads/zz is a loose file, so refs/heads/zz/c cannot be
+		// locked; the update of refs/heads/a must still be applied.
+		//
+		final ObjectId a = db.resolve("refs/heads/a");
+		final ReceivePack rp = new ReceivePack(db);
+		final String status = receive(rp, new ArrayList<RevObject>(), //
+				a.name() + " " + b.name() + " refs/heads/a", //
+				ObjectId.zeroId().name() + " " + b.name() + " refs/heads/zz/c");
+
+		assertTrue(status, status.indexOf("ok refs/heads/a") >= 0);
+		assertTrue(status, status.indexOf("ng refs/heads/zz/c") >= 0);
+		assertEquals(b, db.resolve("refs/heads/a"));
+		assertEquals(b, db.resolve("refs/heads/zz"));
+	}
+
+	public void testAtomicPushRejectsAllCommands() throws Exception {
+		final ObjectId a = db.resolve("refs/heads/a");
+		final ObjectId b = db.resolve("refs/heads/b");
+		final ReceivePack rp = new ReceivePack(db);
+		rp.setAtomic(true);
+		final String status = receive(rp, new ArrayList<RevObject>(), //
+				ObjectId.zeroId().name() + " " + b.name() + " refs/heads/new", //
+				b.name() + " " + b.name() + " refs/heads/a");
+
+		assertTrue(status, status.indexOf("ng refs/heads/new") >= 0);
+		assertTrue(status, status.indexOf("ng refs/heads/a") >= 0);
+		assertNull(db.resolve("refs/heads/new"));
+		assertEquals(a, db.resolve("refs/heads/a"));
+		assertFalse(new File(db.getDirectory(), "logs/refs/heads/new")
+				.exists());
+	}
+
+	private String receive(final ReceivePack rp,
+			final List<RevObject> objects, final String... commands)
+			throws Exception {
+		final ByteArrayOutputStream in = new ByteArrayOutputStream();
+		final PacketLineOut pckIn = new PacketLineOut(in);
+		for (int i = 0; i < commands.length; i++) {
+			if (i == 0)
+				pckIn.writeString(commands[i] + "\0"
+						+ ReceivePack.CAPABILITY_REPORT_STATUS);
+			else
+				pckIn.writeString(commands[i]);
+		}
+		pckIn.end();
+		final PackWriter pw = new PackWriter(dst, NullProgressMonitor.INSTANCE);
+		pw.preparePack(objects.iterator());
+		pw.writePack(in);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rp.receive(new ByteArrayInputStream(in.toByteArray()), out, null);
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	public void testCachedPackRebuiltOnceAfterRepositoryClosed()
+			throws Exception {
+		db.getConfig().setString("uploadpack", null, "cachedpack",
+				"refs/heads/master");
+		db.getConfig().save();
+		final ObjectId master = db.resolve("refs/heads/master");
+
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		final Executor executor = new Executor() {
+			public void execute(final Runnable task) {
+				queued.add(task);
+			}
+		};
+		for (int i = 0; i < 2; i++) {
+			final UploadPack up = new UploadPack(db);
+			up.setCachedPackExecutor(executor);
+			upload(up, master);
+		}
+		assertEquals(1, queued.size());
+
+		// The session's repository may be closed before the task runs.
+		db.close();
+		queued.get(0).run();
+		assertEquals(Collections.singleton(master), CachedPack.open(db)
+				.getTips());
+	}
+
+	private void upload(final UploadPack up, final ObjectId want)
+			throws Exception {
+		final ByteArrayOutputStream in = new ByteArrayOutputStream();
+		final PacketLineOut pckIn = new PacketLineOut(in);
+		pckIn.writeString("want " + want.name() + " "
+				+ UploadPack.OPTION_OFS_DELTA + "\n");
+		pckIn.end();
+		pckIn.writeString("done\n");
+		pckIn.flush();
+		up.upload(new ByteArrayInputStream(in.toByteArray()),
+				new ByteArrayOutputStream(), null);
+	}
+
+	private ObjectId writeCommit(final Repository r, final ObjectId tree,
+			final ObjectId parent, final String message) throws Exception {
+		final Commit c = new Commit(r);
+		c.setTreeId(tree);
+		c.setParentIds(new ObjectId[] { parent });
+		c.setAuthor(jauthor);
+		c.setCommitter(jcommitter);
+		c.setMessage(message);
+		c.commit();
+		return c.getCommitId();
+	}
+
+	private ObjectId createBranch(final String name, final String content)
+			throws Exception {
+		final ObjectId id = new ObjectWriter(db).writeBlob(Constants
+				.encode(content));
+		final RefUpdate u = db.updateRef(name);
+		u.setNewObjectId(id);
+		u.forceUpdate();
+		return id;
+	}
+
+	private void fetch() throws Exception {
+		final Transport t = Transport.open(dst, db.getDirectory()
+				.getAbsolutePath());
+		try {
+			t.fetch(NullProgressMonitor.INSTANCE, Collections
+					.singleton(new RefSpec("+refs/heads/*:refs/remotes/origin/*")));
+		} finally {
+			t.close();
+		}
+	}
+}
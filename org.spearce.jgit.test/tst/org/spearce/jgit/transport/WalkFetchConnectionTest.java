@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.spearce.jgit.errors.CompoundException;
+import org.spearce.jgit.errors.NotSupportedException;
+import org.spearce.jgit.errors.TransportException;
+import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectWriter;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.RefUpdate;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.lib.Tree;
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevObject;
+
+public class WalkFetchConnectionTest extends RepositoryTestCase {
+	private Repository dst;
+
+	private FakeObjectDatabase remote;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		dst = createNewEmptyRepo();
+		remote = new FakeObjectDatabase(db.getObjectsDirectory());
+	}
+
+	public void testParallelFetch() throws Exception {
+		final ObjectId loose = createLooseHistory("refs/heads/loose", 8);
+		final Collection<Ref> want = branches();
+
+		fetch(4, want);
+
+		for (final Ref r : want)
+			assertTrue(dst.hasObject(r.getObjectId()));
+		assertTrue(dst.toFile(loose).isFile());
+		assertConnected(want);
+		assertTrue(remote.opened(".idx"));
+		assertTrue(remote.opened(".pack"));
+		assertTrue(remote.opened(2 * Constants.OBJECT_ID_LENGTH - 2));
+		assertTrue(dst.getPacks().length > 1);
+	}
+
+	public void testFailedBackgroundDownloadIsRetried() throws Exception {
+		final Collection<Ref> want = branches();
+		remote.failBackground = true;
+
+		fetch(4, want);
+
+		assertTrue(remote.backgroundFailures > 0);
+		assertConnected(want);
+	}
+
+	public void testFailedPackDownload() throws Exception {
+		final Collection<Ref> want = branches();
+		for (final String name : remote.getPackNames())
+			remote.failing.add("pack/" + name);
+
+		try {
+			fetch(4, want);
+			fail("Fetch succeeded without any pack");
+		} catch (TransportException e) {
+			assertTrue(hasCause(e, FakeObjectDatabase.FAILURE));
+		}
+	}
+
+	private Collection<Ref> branches() {
+		final List<Ref> want = new ArrayList<Ref>();
+		for (final Ref r : db.getAllRefs().values()) {
+			if (r.getName().startsWith("refs/heads/"))
+				want.add(r);
+		}
+		return want;
+	}
+
+	private ObjectId createLooseHistory(final String name, final int count)
+			throws Exception {
+		final ObjectWriter ow = new ObjectWriter(db);
+		ObjectId parent = db.resolve("refs/heads/master");
+		for (int i = 0; i < count; i++) {
+			final Tree t = new Tree(db);
+			t.addFile("file").setId(ow.writeBlob(("content " + i).getBytes()));
+			final Commit c = new Commit(db);
+			c.setTreeId(ow.writeTree(t));
+			c.setParentIds(new ObjectId[] { parent });
+			c.setAuthor(jauthor);
+			c.setCommitter(jcommitter);
+			c.setMessage("loose " + i + "\n");
+			c.commit();
+			parent = c.getCommitId();
+		}
+		final RefUpdate u = db.updateRef(name);
+		u.setNewObjectId(parent);
+		u.forceUpdate();
+		return parent;
+	}
+
+	private void fetch(final int concurrency, final Collection<Ref> want)
+			throws Exception {
+		final FakeTransport t = new FakeTransport(dst, remote);
+		t.setFetchConcurrency(concurrency);
+		final FetchConnection c = t.openFetch();
+		try {
+			c.fetch(NullProgressMonitor.INSTANCE, want, Collections
+					.<ObjectId> emptySet());
+		} finally {
+			c.close();
+		}
+	}
+
+	private void assertConnected(final Collection<Ref> want) throws Exception {
+		final ObjectWalk ow = new ObjectWalk(dst);
+		for (final Ref r : want)
+			ow.markStart(ow.parseAny(r.getObjectId()));
+		while (ow.next() != null) {
+			// Parsing each commit checks that it exists.
+		}
+		RevObject o;
+		while ((o = ow.nextObject()) != null)
+			assertTrue(dst.hasObject(o));
+	}
+
+	private static boolean hasCause(Throwable e, final String message) {
+		for (; e != null; e = e.getCause()) {
+			if (message.equals(e.getMessage()))
+				return true;
+			if (e instanceof CompoundException) {
+				for (final Throwable c : ((CompoundException) e)
+						.getAllCauses()) {
+					if (hasCause(c, message))
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static class FakeTransport extends Transport implements
+			WalkTransport {
+		private final WalkRemoteObjectDatabase remote;
+
+		FakeTransport(final Repository local, final FakeObjectDatabase remote)
+				throws Exception {
+			super(local, remote.getURI());
+			this.remote = remote;
+		}
+
+		@Override
+		public FetchConnection openFetch() {
+			return new WalkFetchConnection(this, remote);
+		}
+
+		@Override
+		public PushConnection openPush() throws NotSupportedException {
+			throw new NotSupportedException("Push not supported");
+		}
+
+		@Override
+		public void close() {
+			// Nothing to close.
+		}
+	}
+
+	/** Serves a local objects directory, optionally failing some reads. */
+	private static class FakeObjectDatabase extends WalkRemoteObjectDatabase {
+		static final String FAILURE = "Injected failure";
+
+		private final File objects;
+
+		final Set<String> failing = new HashSet<String>();
+
+		volatile boolean failBackground;
+
+		private final List<String> backgroundPaths = new ArrayList<String>();
+
+		int backgroundFailures;
+
+		FakeObjectDatabase(final File objects) {
+			this.objects = objects;
+		}
+
+		@Override
+		URIish getURI() {
+			return new URIish().setPath(objects.getAbsolutePath());
+		}
+
+		@Override
+		Collection<String> getPackNames() {
+			final List<String> r = new ArrayList<String>();
+			final String[] names = new File(objects, "pack").list();
+			if (names != null) {
+				for (final String n : names) {
+					if (n.endsWith(".pack"))
+						r.add(n);
+				}
+			}
+			return r;
+		}
+
+		@Override
+		Collection<WalkRemoteObjectDatabase> getAlternates() {
+			return null;
+		}
+
+		@Override
+		synchronized FileStream open(final String path) throws IOException {
+			final boolean background = Thread.currentThread().getName()
+					.startsWith("JGit-WalkFetch-");
+			if (background)
+				backgroundPaths.add(path);
+			if (failing.contains(path)
+					|| (background && failBackground && path.endsWith(".pack"))) {
+				if (background)
+					backgroundFailures++;
+				throw new IOException(FAILURE);
+			}
+
+			final File f = new File(objects, path);
+			if (!f.isFile())
+				throw new FileNotFoundException(f.getPath());
+			return new FileStream(new FileInputStream(f), f.length());
+		}
+
+		/**
+		 * @param suffix
+		 *            end of the path.
+		 * @return true if a background thread opened a matching path.
+		 */
+		synchronized boolean opened(final String suffix) {
+			for (final String path : backgroundPaths) {
+				if (path.endsWith(suffix))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @param length
+		 *            length of the file name, after the last '/'.
+		 * @return true if a background thread opened a matching path.
+		 */
+		synchronized boolean opened(final int length) {
+			for (final String path : backgroundPaths) {
+				if (path.length() - path.lastIndexOf('/') - 1 == length)
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		WalkRemoteObjectDatabase openAlternate(final String location) {
+			return null;
+		}
+
+		@Override
+		boolean isConcurrentOpenSupported() {
+			return true;
+		}
+
+		@Override
+		void close() {
+			// Nothing to close.
+		}
+	}
+}
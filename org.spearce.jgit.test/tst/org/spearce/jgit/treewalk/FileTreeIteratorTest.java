@@ -37,12 +37,15 @@
 
 package org.spearce.jgit.treewalk;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.security.MessageDigest;
 
+import org.spearce.jgit.dircache.DirCacheEntry;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileMode;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectWriter;
 import org.spearce.jgit.lib.RepositoryTestCase;
 import org.spearce.jgit.util.RawParseUtils;
 
@@ -161,6 +164,26 @@ public void testComputeFileObjectId() throws Exception {
 		assertEquals(expect, top.getEntryObjectId());
 	}
 
+	public void testIsModifiedSmudgedEntry() throws Exception {
+		final FileTreeIterator top = new FileTreeIterator(trash);
+		assertTrue(top.first());
+		assertEquals(paths[0], nameOf(top));
+
+		// C Git smudges a racily clean entry by zeroing its length; the
+		// modification time still matches, so the file must be hashed.
+		//
+		final DirCacheEntry e = new DirCacheEntry(paths[0]);
+		e.setFileMode(FileMode.REGULAR_FILE);
+		e.setLastModified(mtime[0]);
+		e.setLength(0);
+		e.setObjectId(new ObjectWriter(db).computeBlobSha1(paths[0].length(),
+				new ByteArrayInputStream(Constants.encode(paths[0]))));
+		assertFalse(top.isModified(e, false));
+
+		e.setObjectId(ObjectId.zeroId());
+		assertTrue(top.isModified(e, false));
+	}
+
 	private static String nameOf(final AbstractTreeIterator i) {
 		return RawParseUtils.decode(Constants.CHARSET, i.path, 0, i.pathLen);
 	}
@@ -566,6 +566,29 @@ public void unlock() {
 		}
 	}
 
+	/**
+	 * Is the cached stat data of an entry too recent to be trusted?
+	 * <p>
+	 * An entry whose modification time is not older than the index file
+	 * itself may have been edited again after it was added to the index,
+	 * within the timestamp resolution of the filesystem. Such entries must
+	 * have their content compared, even if the working file's size and
+	 * modification time still match the cached values.
+	 *
+	 * @param e
+	 *            an entry of this index.
+	 * @return true if the entry's stat data cannot be used to prove the
+	 *         working file is unmodified. Always true if this index was not
+	 *         read from or written to disk.
+	 */
+	public boolean isRacilyClean(final DirCacheEntry e) {
+		if (lastModified <= 0)
+			return true;
+		final int smudge_s = (int) (lastModified / 1000);
+		final int smudge_ns = ((int) (lastModified % 1000)) * 1000000;
+		return e.mightBeRacilyClean(smudge_s, smudge_ns);
+	}
+
 	/**
 	 * Locate the position a path's entry is at in the index.
 	 * <p>
@@ -257,7 +257,7 @@ final boolean mightBeRacilyClean(final int smudge_s, final int smudge_ns) {
 		if (smudge_s < mtime)
 			return true;
 		if (smudge_s == mtime)
-			return smudge_ns <= NB.decodeInt32(info, base + 4) / 1000000;
+			return smudge_ns <= NB.decodeInt32(info, base + 4);
 		return false;
 	}
 
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.lib.RefUpdate.Result;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+
+/**
+ * Updates several refs of a repository as one operation.
+ * <p>
+ * Every ref of the batch is locked, and every change is checked the way
+ * {@link RefUpdate} checks it, before any ref is modified. Large batches are
+ * then stored by a single rewrite of the packed-refs file, which also replaces
+ * the loose files of the refs involved; small batches are written to the
+ * loose ref files.
+ * <p>
+ * By default each ref succeeds or fails on its own, just like a sequence of
+ * {@link RefUpdate}s would. An atomic batch does not modify any ref if one of
+ * them cannot be updated.
+ * <p>
+ * The outcome of each ref is reported by {@link RefUpdate#getResult()}.
+ */
+public class BatchRefUpdate {
+	/** Batches larger than this are stored through packed-refs. */
+	static final int PACKED_THRESHOLD = 100;
+
+	private final RefDatabase refdb;
+
+	private final List<RefUpdate> commands = new ArrayList<RefUpdate>();
+
+	private final Set<RefUpdate> deletes = new HashSet<RefUpdate>();
+
+	private boolean atomic;
+
+	BatchRefUpdate(final RefDatabase r) {
+		refdb = r;
+	}
+
+	/** @return true if no ref is modified unless all of them can be. */
+	public boolean isAtomic() {
+		return atomic;
+	}
+
+	/**
+	 * Request all or nothing behavior.
+	 *
+	 * @param a
+	 *            true to leave every ref unmodified if any ref of the batch
+	 *            cannot be updated. Those refs then report
+	 *            {@link RefUpdate.Result#ABORTED}.
+	 */
+	public void setAtomic(final boolean a) {
+		atomic = a;
+	}
+
+	/**
+	 * Add a ref update to the batch.
+	 *
+	 * @param u
+	 *            the update, with its new value, expected old value, force
+	 *            flag and reflog message already configured. It must have been
+	 *            obtained from the same repository as this batch.
+	 */
+	public void addUpdate(final RefUpdate u) {
+		if (u.getNewObjectId() == null)
+			throw new IllegalStateException("A NewObjectId is required.");
+		commands.add(u);
+	}
+
+	/**
+	 * Add a ref deletion to the batch.
+	 *
+	 * @param u
+	 *            the ref to delete. Its expected old value is checked if set.
+	 */
+	public void addDelete(final RefUpdate u) {
+		commands.add(u);
+		deletes.add(u);
+	}
+
+	/** @return the updates and deletions of the batch, in order added. */
+	public List<RefUpdate> getUpdates() {
+		return Collections.unmodifiableList(commands);
+	}
+
+	/**
+	 * Perform the batch.
+	 *
+	 * @param walk
+	 *            a RevWalk instance this batch can borrow to perform the merge
+	 *            tests, and to peel new tags. The walk will be reset.
+	 * @throws IOException
+	 *             an unexpected IO error occurred while writing changes. Refs
+	 *             that may not have been stored report
+	 *             {@link RefUpdate.Result#IO_FAILURE}. A ref that cannot be
+	 *             locked or checked reports that result without throwing.
+	 */
+	public void execute(final RevWalk walk) throws IOException {
+		final List<RefUpdate> sorted = new ArrayList<RefUpdate>(commands);
+		Collections.sort(sorted, new Comparator<RefUpdate>() {
+			public int compare(final RefUpdate a, final RefUpdate b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+
+		final boolean packed = sorted.size() > PACKED_THRESHOLD;
+		final Map<RefUpdate, LockFile> locks = new HashMap<RefUpdate, LockFile>();
+		final List<RefUpdate> toStore = new ArrayList<RefUpdate>();
+		final Set<RefUpdate> committed = new HashSet<RefUpdate>();
+		try {
+			try {
+				boolean failed = false;
+				for (final RefUpdate u : sorted) {
+					Result status;
+					try {
+						status = lockAndCheck(u, walk, locks, packed);
+					} catch (IOException err) {
+						// Only this ref is broken (e.g. a file is in the way
+						// of its directory); the others can still proceed.
+						//
+						status = Result.IO_FAILURE;
+					}
+					u.setResult(status);
+					if (!RefUpdate.isStorable(status))
+						failed = true;
+					else if (isChange(u))
+						toStore.add(u);
+				}
+				if (failed && atomic) {
+					for (final RefUpdate u : sorted) {
+						if (RefUpdate.isStorable(u.getResult()))
+							u.setResult(Result.ABORTED);
+					}
+					return;
+				}
+
+				store(walk, toStore, locks, packed, committed);
+			} finally {
+				for (final LockFile lck : locks.values())
+					lck.unlock();
+			}
+		} catch (IOException err) {
+			failUncommitted(sorted, committed);
+			throw err;
+		} catch (RuntimeException err) {
+			failUncommitted(sorted, committed);
+			throw err;
+		} catch (Error err) {
+			failUncommitted(sorted, committed);
+			throw err;
+		} finally {
+			removeEmptyDirs(committed, packed);
+		}
+	}
+
+	private static void failUncommitted(final List<RefUpdate> sorted,
+			final Set<RefUpdate> committed) {
+		for (final RefUpdate u : sorted) {
+			if (committed.contains(u))
+				continue;
+			if (RefUpdate.isStorable(u.getResult())
+					|| u.getResult() == Result.NOT_ATTEMPTED)
+				u.setResult(Result.IO_FAILURE);
+		}
+	}
+
+	private void removeEmptyDirs(final Set<RefUpdate> committed,
+			final boolean packed) {
+		// Now that the locks are gone, clean up directories which only
+		// held the loose files (or lock files) of these refs. This also
+		// runs if storing failed part way, so the refs whose loose files
+		// were already removed reach the journal.
+		//
+		final File logs = new File(refdb.getRepository().getDirectory(),
+				Constants.LOGS);
+		final List<String> removed = new ArrayList<String>();
+		for (final RefUpdate u : committed) {
+			final boolean delete = deletes.contains(u);
+			if (!delete && !(packed && isPackable(u)))
+				continue;
+
+			final int levels = levels(u.getName());
+			deleteEmptyDirs(u.getLooseFile().getParentFile(), levels);
+			if (delete)
+				deleteEmptyDirs(new File(logs, u.getName()).getParentFile(),
+						levels);
+			removed.add(u.getName());
+		}
+		if (!removed.isEmpty())
+			refdb.batchStored(removed);
+	}
+
+	private Result lockAndCheck(final RefUpdate u, final RevWalk walk,
+			final Map<RefUpdate, LockFile> locks, final boolean packed)
+			throws IOException {
+		if (deletes.contains(u) && u.isCurrentBranch())
+			return Result.REJECTED_CURRENT_BRANCH;
+
+		final LockFile lck = new LockFile(u.getLooseFile());
+		if (!lck.lock())
+			return Result.LOCK_FAILURE;
+		locks.put(u, lck);
+		if (packed && (deletes.contains(u) || isPackable(u))) {
+			// The loose file will only be removed; don't keep thousands
+			// of descriptors open while we hold the locks.
+			//
+			lck.closeForUnlock();
+		}
+		return u.checkLocked(walk);
+	}
+
+	private boolean isChange(final RefUpdate u) {
+		if (u.getResult() == Result.NO_CHANGE)
+			return false;
+		if (deletes.contains(u) && u.getResult() == Result.NEW)
+			return false; // Deleting a ref that does not exist.
+		return true;
+	}
+
+	private static boolean isPackable(final RefUpdate u) {
+		return u.getName().startsWith(Constants.R_REFS);
+	}
+
+	/**
+	 * Write the changes of the locked refs.
+	 * <p>
+	 * Each ref is added to <code>committed</code> once its new value is what
+	 * readers see, and only then is its reflog appended. If an exception is
+	 * thrown, refs not in the set may still have their old value.
+	 */
+	private void store(final RevWalk walk, final List<RefUpdate> toStore,
+			final Map<RefUpdate, LockFile> locks, final boolean packed,
+			final Set<RefUpdate> committed) throws IOException {
+		final Map<String, Ref> pack = new HashMap<String, Ref>();
+		final List<String> unpack = new ArrayList<String>();
+		final List<RefUpdate> loose = new ArrayList<RefUpdate>();
+		for (final RefUpdate u : toStore) {
+			if (deletes.contains(u)) {
+				if (packed || u.getRef().getStorage().isPacked())
+					unpack.add(u.getName());
+			} else if (packed && isPackable(u))
+				pack.put(u.getName(), peel(walk, u));
+			else
+				loose.add(u);
+		}
+
+		LockFile packLock = null;
+		if (!pack.isEmpty() || !unpack.isEmpty()) {
+			packLock = refdb.lockPackedRefs();
+			if (packLock == null) {
+				for (final RefUpdate u : toStore)
+					u.setResult(Result.LOCK_FAILURE);
+				return;
+			}
+		}
+		try {
+			if (packLock != null)
+				refdb.writePackedRefs(packLock, pack, unpack);
+		} finally {
+			if (packLock != null)
+				packLock.unlock();
+		}
+
+		// A stale loose file would hide the packed value, so a ref is
+		// only committed once its loose file is gone.
+		//
+		final File logs = new File(refdb.getRepository().getDirectory(),
+				Constants.LOGS);
+		for (final RefUpdate u : toStore) {
+			if (deletes.contains(u)) {
+				delete(new File(logs, u.getName()));
+				delete(u.getLooseFile());
+				committed.add(u);
+			} else if (pack.containsKey(u.getName())) {
+				delete(u.getLooseFile());
+				committed.add(u);
+				RefLogWriter.append(u, u.getRefLogMessage(u.getResult()));
+			}
+		}
+
+		for (final RefUpdate u : loose) {
+			final LockFile lck = locks.get(u);
+			lck.setNeedStatInformation(true);
+			lck.write(u.getNewObjectId());
+			if (!lck.commit()) {
+				u.setResult(Result.LOCK_FAILURE);
+				continue;
+			}
+			committed.add(u);
+			refdb.stored(u.getRef().getOrigName(), u.getName(), u
+					.getNewObjectId(), lck.getCommitLastModified());
+			RefLogWriter.append(u, u.getRefLogMessage(u.getResult()));
+		}
+	}
+
+	private static Ref peel(final RevWalk walk, final RefUpdate u)
+			throws IOException {
+		final String name = u.getName();
+		final ObjectId id = u.getNewObjectId();
+		try {
+			RevObject o = walk.parseAny(id);
+			if (!(o instanceof RevTag))
+				return new Ref(Ref.Storage.PACKED, name, id, null, true);
+			do {
+				o = walk.parseAny(((RevTag) o).getObject());
+			} while (o instanceof RevTag);
+			return new Ref(Ref.Storage.PACKED, name, id, o.copy(), true);
+		} catch (MissingObjectException notFound) {
+			return new Ref(Ref.Storage.PACKED, name, id);
+		}
+	}
+
+	private static void delete(final File file) throws IOException {
+		if (file.exists() && !file.delete())
+			throw new IOException("File cannot be deleted: " + file);
+	}
+
+	private static int levels(final String name) {
+		int count = 0;
+		for (int p = name.indexOf('/'); p >= 0; p = name.indexOf('/', p + 1))
+			count++;
+		return count - 2;
+	}
+
+	private static void deleteEmptyDirs(File dir, int depth) {
+		for (; depth > 0 && dir != null; depth--) {
+			if (!dir.delete())
+				break;
+			dir = dir.getParentFile();
+		}
+	}
+}
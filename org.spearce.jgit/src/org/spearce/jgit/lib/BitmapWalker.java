@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.spearce.jgit.errors.IncorrectObjectTypeException;
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.treewalk.CanonicalTreeParser;
+
+/**
+ * Collects the objects reachable from a set of starting points into a bitmap.
+ * <p>
+ * Each bit of the bitmap is the position of an object within a single pack
+ * file. A commit which already has a bitmap (as reported by
+ * {@link #findBitmap(RevCommit)}) ends the walk, its bitmap is merged into the
+ * result instead of walking its history. A tree whose bit is already set is
+ * not parsed again, as everything it references must also be set.
+ * <p>
+ * Reachable objects which are not in the pack cannot be represented by a bit.
+ * If the walker allows them they are collected into {@link #outside}, else
+ * {@link #include(RevObject)} gives up and returns false.
+ */
+abstract class BitmapWalker {
+	private final Repository db;
+
+	private final PackFile pack;
+
+	private final RevWalk rw;
+
+	private final boolean allowOutside;
+
+	private final WindowCursor curs = new WindowCursor();
+
+	private final CanonicalTreeParser treeParser = new CanonicalTreeParser();
+
+	private final MutableObjectId idBuf = new MutableObjectId();
+
+	private final ObjectIdSubclassMap<RevObject> outsideMap = new ObjectIdSubclassMap<RevObject>();
+
+	private boolean failed;
+
+	/** Objects included so far, as positions in the pack. */
+	BitSet bits = new BitSet();
+
+	/** Reachable objects not in the pack, in the order they were found. */
+	final List<RevObject> outside = new ArrayList<RevObject>();
+
+	/** Objects set in {@link #bits} by this walker, by object type. */
+	final BitSet[] types = new BitSet[Constants.OBJ_TAG + 1];
+
+	/**
+	 * Create a new walker.
+	 *
+	 * @param pack
+	 *            the pack file defining the bit positions.
+	 * @param rw
+	 *            walker used to parse commits and tags.
+	 * @param allowOutside
+	 *            true to collect objects not contained in the pack; false to
+	 *            fail the walk if one is reached.
+	 */
+	BitmapWalker(final PackFile pack, final RevWalk rw,
+			final boolean allowOutside) {
+		this.db = rw.getRepository();
+		this.pack = pack;
+		this.rw = rw;
+		this.allowOutside = allowOutside;
+		for (int type = Constants.OBJ_COMMIT; type <= Constants.OBJ_TAG; type++)
+			types[type] = new BitSet();
+	}
+
+	/**
+	 * Find the bitmap previously computed for a commit.
+	 *
+	 * @param c
+	 *            the commit.
+	 * @return the objects reachable from <code>c</code>; null if the commit
+	 *         does not have a bitmap. The walker does not modify the result.
+	 * @throws IOException
+	 *             the bitmap cannot be read.
+	 */
+	abstract BitSet findBitmap(RevCommit c) throws IOException;
+
+	/**
+	 * Include everything reachable from an object.
+	 *
+	 * @param start
+	 *            the starting point of the walk.
+	 * @return true if all reachable objects were included; false if an object
+	 *         outside of the pack was reached and the walker does not allow
+	 *         them. When false is returned the state of the walker is
+	 *         undefined.
+	 * @throws MissingObjectException
+	 *             a reachable object does not exist.
+	 * @throws IncorrectObjectTypeException
+	 *             a reachable object is not of the type its referrer claims.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	boolean include(RevObject start) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		failed = false;
+		while (start instanceof RevTag) {
+			if (!mark(start, Constants.OBJ_TAG))
+				return !failed;
+			rw.parse(start);
+			start = ((RevTag) start).getObject();
+		}
+		rw.parse(start);
+
+		switch (start.getType()) {
+		case Constants.OBJ_COMMIT:
+			includeCommits((RevCommit) start);
+			break;
+		case Constants.OBJ_TREE:
+			includeTree(start);
+			break;
+		case Constants.OBJ_BLOB:
+			mark(start, Constants.OBJ_BLOB);
+			break;
+		default:
+			throw new IncorrectObjectTypeException(start.copy(),
+					"COMMIT nor TREE nor BLOB nor TAG");
+		}
+		return !failed;
+	}
+
+	private void includeCommits(final RevCommit start)
+			throws MissingObjectException, IncorrectObjectTypeException,
+			IOException {
+		// Walk the commits first, so the trees of commits with a bitmap are
+		// already set by the time we get to the trees of those without.
+		final List<RevCommit> walked = new ArrayList<RevCommit>();
+		final ArrayList<RevCommit> pending = new ArrayList<RevCommit>();
+		pending.add(start);
+		while (!pending.isEmpty()) {
+			final RevCommit c = pending.remove(pending.size() - 1);
+			final int pos = pack.findPosition(c);
+			if (pos >= 0 && !bits.get(pos)) {
+				final BitSet b = findBitmap(c);
+				if (b != null) {
+					bits.or(b);
+					continue;
+				}
+			}
+			if (!mark(c, pos, Constants.OBJ_COMMIT)) {
+				if (failed)
+					return;
+				continue;
+			}
+
+			rw.parse(c);
+			walked.add(c);
+			for (final RevCommit p : c.getParents())
+				pending.add(p);
+		}
+
+		for (final RevCommit c : walked) {
+			includeTree(c.getTree());
+			if (failed)
+				return;
+		}
+	}
+
+	private void includeTree(final RevObject root)
+			throws MissingObjectException, IncorrectObjectTypeException,
+			IOException {
+		if (!mark(root, Constants.OBJ_TREE))
+			return;
+
+		final ArrayList<ObjectId> pending = new ArrayList<ObjectId>();
+		pending.add(root.copy());
+		while (!pending.isEmpty()) {
+			treeParser.reset(db, pending.remove(pending.size() - 1), curs);
+			for (; !treeParser.eof(); treeParser.next(1)) {
+				final FileMode mode = treeParser.getEntryFileMode();
+				if (mode == FileMode.GITLINK)
+					continue;
+
+				treeParser.getEntryObjectId(idBuf);
+				if (mode == FileMode.TREE) {
+					if (mark(idBuf, Constants.OBJ_TREE))
+						pending.add(idBuf.toObjectId());
+				} else
+					mark(idBuf, Constants.OBJ_BLOB);
+				if (failed)
+					return;
+			}
+		}
+	}
+
+	private boolean mark(final AnyObjectId id, final int type)
+			throws IOException {
+		return mark(id, pack.findPosition(id), type);
+	}
+
+	/**
+	 * Mark an object as included.
+	 *
+	 * @return true if the object was newly included; false if it was already
+	 *         included, or is outside of the pack and the walker does not
+	 *         allow such objects (in which case {@link #failed} is set).
+	 */
+	private boolean mark(final AnyObjectId id, final int pos, final int type) {
+		if (pos >= 0) {
+			if (bits.get(pos))
+				return false;
+			bits.set(pos);
+			types[type].set(pos);
+			return true;
+		}
+
+		if (!allowOutside) {
+			failed = true;
+			return false;
+		}
+		if (outsideMap.get(id) != null)
+			return false;
+		final RevObject o = rw.lookupAny(id, type);
+		outsideMap.add(o);
+		outside.add(o);
+		return true;
+	}
+}
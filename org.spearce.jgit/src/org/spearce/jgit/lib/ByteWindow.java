@@ -92,7 +92,7 @@
 	@SuppressWarnings("unchecked")
 	ByteWindow(final WindowedFile o, final long pos, final int d, final T ref,
 			final int sz) {
-		super(ref, (ReferenceQueue<T>) WindowCache.clearedWindowQueue);
+		super(ref, (ReferenceQueue<T>) o.cache.clearedWindowQueue);
 		provider = o;
 		size = sz;
 		id = d;
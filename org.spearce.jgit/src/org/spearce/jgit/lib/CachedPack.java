@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.util.NB;
+
+/**
+ * A pack file kept ready to be sent as it is to clients.
+ * <p>
+ * The pack holds every object reachable from a set of tips, usually the
+ * branches most clients clone. It lives outside of the object database, in
+ * the <code>cached-pack</code> directory of the repository, and is written by
+ * {@link CachedPackWriter}. The directory holds the pack, its index and a
+ * <code>tips</code> file naming the current pack followed by the tips it was
+ * built from, one per line.
+ */
+public class CachedPack {
+	static final String DIR_NAME = "cached-pack";
+
+	static final String TIPS_NAME = "tips";
+
+	/**
+	 * Open the current cached pack of a repository.
+	 *
+	 * @param db
+	 *            the repository.
+	 * @return the cached pack; null if the repository has none.
+	 * @throws IOException
+	 *             the tips file or the pack index could not be read.
+	 */
+	public static CachedPack open(final Repository db) throws IOException {
+		return open(getDirectory(db));
+	}
+
+	static CachedPack open(final File dir) throws IOException {
+		final BufferedReader br;
+		try {
+			br = new BufferedReader(new FileReader(new File(dir, TIPS_NAME)));
+		} catch (FileNotFoundException noPack) {
+			return null;
+		}
+		try {
+			final String name = br.readLine();
+			if (name == null || !name.startsWith("pack-"))
+				throw new IOException("Invalid cached pack in " + dir);
+			final Set<ObjectId> tips = new HashSet<ObjectId>();
+			String line;
+			while ((line = br.readLine()) != null)
+				tips.add(ObjectId.fromString(line));
+			return new CachedPack(dir, name, tips);
+		} finally {
+			br.close();
+		}
+	}
+
+	static File getDirectory(final Repository db) {
+		return new File(db.getDirectory(), DIR_NAME);
+	}
+
+	private final String name;
+
+	private final File packFile;
+
+	private final PackIndex index;
+
+	private final Set<ObjectId> tips;
+
+	CachedPack(final File dir, final String name, final Set<ObjectId> tips)
+			throws IOException {
+		this.name = name;
+		this.packFile = new File(dir, name + ".pack");
+		this.index = PackIndex.open(new File(dir, name + ".idx"));
+		this.tips = Collections.unmodifiableSet(tips);
+	}
+
+	/** @return name of the pack, as in <code>pack-XXX</code>. */
+	public String getName() {
+		return name;
+	}
+
+	/** @return the pack file on disk. */
+	public File getPackFile() {
+		return packFile;
+	}
+
+	/** @return the objects the pack was built from. */
+	public Set<ObjectId> getTips() {
+		return tips;
+	}
+
+	/** @return number of objects in the pack. */
+	public long getObjectCount() {
+		return index.getObjectCount();
+	}
+
+	/**
+	 * Determine if an object is in the pack.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return true if the pack holds the object.
+	 */
+	public boolean hasObject(final AnyObjectId id) {
+		return index.hasObject(id);
+	}
+
+	/**
+	 * Copy the objects of the pack, without its header and trailer.
+	 * <p>
+	 * The header and the trailing checksum are left to the caller, which is
+	 * expected to write a header counting these objects along with its own.
+	 *
+	 * @param out
+	 *            stream to copy the objects to.
+	 * @param buf
+	 *            temporary buffer for the copy.
+	 * @throws IOException
+	 *             the pack could not be read, does not match its index, or
+	 *             the stream could not be written.
+	 */
+	public void copyBodyTo(final OutputStream out, final byte[] buf)
+			throws IOException {
+		final FileInputStream in = new FileInputStream(packFile);
+		try {
+			final long length = in.getChannel().size();
+			NB.readFully(in, buf, 0, 12);
+			if (NB.decodeUInt32(buf, 8) != getObjectCount())
+				throw new CorruptObjectException("Cached pack " + packFile
+						+ " does not match its index");
+
+			long remaining = length - 12 - Constants.OBJECT_ID_LENGTH;
+			while (remaining > 0) {
+				final int n = in.read(buf, 0, (int) Math.min(buf.length,
+						remaining));
+				if (n < 0)
+					throw new CorruptObjectException("Cached pack " + packFile
+							+ " is truncated");
+				out.write(buf, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
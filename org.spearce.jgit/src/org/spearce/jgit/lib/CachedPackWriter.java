@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Builds the cached pack of a repository.
+ *
+ * @see CachedPack
+ */
+public class CachedPackWriter {
+	private final Repository db;
+
+	private final File dir;
+
+	/**
+	 * Create a writer for the cached pack of a repository.
+	 *
+	 * @param repo
+	 *            the repository.
+	 */
+	public CachedPackWriter(final Repository repo) {
+		db = repo;
+		dir = CachedPack.getDirectory(repo);
+	}
+
+	/**
+	 * @return true if a writer, in this or another process, is building the
+	 *         cached pack right now.
+	 */
+	public boolean isWriting() {
+		return new File(dir, CachedPack.TIPS_NAME + ".lock").exists();
+	}
+
+	/**
+	 * Build a new cached pack holding everything reachable from the tips.
+	 * <p>
+	 * Only one writer builds at a time; the <code>tips</code> file is locked
+	 * for the whole build. If the current cached pack was already built from
+	 * the same tips it is returned instead.
+	 * <p>
+	 * The pack is written with offset deltas and a version 2 index. The pack
+	 * it replaces is kept, as clients may still be reading it; older ones
+	 * are deleted.
+	 *
+	 * @param tips
+	 *            objects the pack must hold, along with their history.
+	 * @param monitor
+	 *            progress of the pack generation.
+	 * @return the cached pack; null if another writer is building one.
+	 * @throws IOException
+	 *             the pack could not be written.
+	 */
+	public CachedPack write(final Collection<? extends ObjectId> tips,
+			final ProgressMonitor monitor) throws IOException {
+		final Set<ObjectId> tipSet = new HashSet<ObjectId>();
+		for (final ObjectId id : tips)
+			tipSet.add(id.copy());
+
+		dir.mkdirs();
+		final LockFile lck = new LockFile(new File(dir, CachedPack.TIPS_NAME));
+		if (!lck.lock())
+			return null;
+		try {
+			final CachedPack old = CachedPack.open(dir);
+			if (old != null && old.getTips().equals(tipSet)) {
+				lck.unlock();
+				return old;
+			}
+
+			final String name = writePack(tipSet, monitor);
+			final StringBuilder content = new StringBuilder();
+			content.append(name);
+			content.append('\n');
+			for (final ObjectId id : tipSet) {
+				content.append(id.name());
+				content.append('\n');
+			}
+			lck.write(Constants.encode(content.toString()));
+			if (!lck.commit())
+				throw new IOException("Cannot commit cached pack in " + dir);
+
+			deleteOldPacks(name, old != null ? old.getName() : null);
+			return new CachedPack(dir, name, tipSet);
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		} catch (RuntimeException err) {
+			lck.unlock();
+			throw err;
+		} catch (Error err) {
+			lck.unlock();
+			throw err;
+		}
+	}
+
+	private String writePack(final Set<ObjectId> tips,
+			final ProgressMonitor monitor) throws IOException {
+		final PackWriter pw = new PackWriter(db, monitor);
+		pw.setDeltaBaseAsOffset(true);
+		pw.setReusePackRanges(true);
+		pw.setIndexVersion(2);
+		pw.preparePack(tips, Collections.<ObjectId> emptySet());
+
+		final String name = "pack-" + pw.computeName().name();
+		final File tmpPack = File.createTempFile("incoming_", ".pack", dir);
+		final File tmpIdx = new File(dir, tmpPack.getName().replace(".pack",
+				".idx"));
+		try {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(
+					tmpPack));
+			try {
+				pw.writePack(os);
+			} finally {
+				os.close();
+			}
+
+			os = new BufferedOutputStream(new FileOutputStream(tmpIdx));
+			try {
+				pw.writeIndex(os);
+			} finally {
+				os.close();
+			}
+
+			final File finalPack = new File(dir, name + ".pack");
+			final File finalIdx = new File(dir, name + ".idx");
+			if (finalPack.exists() && finalIdx.exists())
+				return name; // Same objects as a pack we already have.
+			if (!tmpPack.renameTo(finalPack))
+				throw new IOException("Cannot rename " + tmpPack + " to "
+						+ finalPack);
+			if (!tmpIdx.renameTo(finalIdx))
+				throw new IOException("Cannot rename " + tmpIdx + " to "
+						+ finalIdx);
+			return name;
+		} finally {
+			tmpPack.delete();
+			tmpIdx.delete();
+		}
+	}
+
+	private void deleteOldPacks(final String keep, final String previous) {
+		final File[] list = dir.listFiles();
+		if (list == null)
+			return;
+		for (final File f : list) {
+			final String n = f.getName();
+			if (!n.startsWith("pack-"))
+				continue;
+			final int dot = n.lastIndexOf('.');
+			final String base = dot < 0 ? n : n.substring(0, dot);
+			if (!base.equals(keep) && !base.equals(previous))
+				f.delete();
+		}
+	}
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Parsed metadata of the commits of a repository, read from a mapped file.
+ * <p>
+ * The commit graph lists, for each commit, its tree, its parents, its commit
+ * time and its generation number, so a revision walk can learn the shape of
+ * history without inflating and parsing the commits themselves. Commits are
+ * identified by their index in the sorted table of object names; parents
+ * refer to each other by index.
+ * <p>
+ * The file is <code>objects/info/commit-graph</code>. After a 4 byte
+ * signature and 4 byte version it holds the number and names of the packs
+ * present when it was written, the number of commits, a 256 entry fan-out
+ * table, the sorted commit names, one fixed size record per commit (tree, first
+ * parent, second parent, commit time, generation), the table of additional
+ * parents of octopus merges and a SHA-1 checksum of all preceding bytes.
+ * <p>
+ * Commits never change, so the file stays correct as new commits are added to
+ * the repository; they are simply not listed. It can however describe commits
+ * which were removed, so {@link Repository#getCommitGraph()} ignores a graph
+ * once a pack it was written for is gone. Commits which were loose when the
+ * graph was written can be pruned without removing a pack; they are flagged
+ * (see {@link #isPacked(int)}) so readers can confirm they still exist.
+ *
+ * @see CommitGraphWriter
+ */
+public class CommitGraph {
+	static final byte[] SIGNATURE = { 'C', 'G', 'P', 'H' };
+
+	static final int VERSION = 1;
+
+	/** Parent index indicating the commit does not have that parent. */
+	static final int NO_PARENT = 0x7fffffff;
+
+	/** Flag on the second parent indicating an index into extra parents. */
+	static final int EXTRA_PARENTS = 0x80000000;
+
+	/** Flag marking the last entry of a commit in the extra parents. */
+	static final int LAST_PARENT = 0x80000000;
+
+	/** Flag on the generation of a commit not in one of the listed packs. */
+	static final int LOOSE = 0x80000000;
+
+	static final int FANOUT = 256;
+
+	static final int RECORD_SIZE = Constants.OBJECT_ID_LENGTH + 4 * 4;
+
+	/**
+	 * Open an existing commit graph file for reading.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return the commit graph.
+	 * @throws IOException
+	 *             the file could not be read, or is not a valid commit graph.
+	 */
+	public static CommitGraph open(final File file) throws IOException {
+		final RandomAccessFile fd = new RandomAccessFile(file, "r");
+		try {
+			final long len = fd.length();
+			if (len > Integer.MAX_VALUE)
+				throw new IOException("Commit graph too large");
+			return new CommitGraph(fd.getChannel().map(MapMode.READ_ONLY, 0,
+					len));
+		} catch (IOException ioe) {
+			final String path = file.getAbsolutePath();
+			final IOException err;
+			err = new IOException("Unreadable commit graph: " + path);
+			err.initCause(ioe);
+			throw err;
+		} finally {
+			try {
+				fd.close();
+			} catch (IOException err2) {
+				// ignore
+			}
+		}
+	}
+
+	/** The entire file; only absolute get methods are used. */
+	private final ByteBuffer buf;
+
+	private final ObjectId[] packNames;
+
+	private final int commitCnt;
+
+	private final int fanoutPos;
+
+	private final int namesPos;
+
+	private final int recordsPos;
+
+	private final int extraPos;
+
+	CommitGraph(final ByteBuffer map) throws IOException {
+		buf = map;
+
+		final int trailer = buf.limit() - Constants.OBJECT_ID_LENGTH;
+		if (trailer < 12)
+			throw new IOException("Truncated commit graph");
+		for (int i = 0; i < SIGNATURE.length; i++)
+			if (buf.get(i) != SIGNATURE[i])
+				throw new IOException("Not a commit graph");
+		final int version = buf.getInt(4);
+		if (version != VERSION)
+			throw new IOException("Unsupported commit graph version "
+					+ version);
+
+		final MessageDigest md = Constants.newMessageDigest();
+		final ByteBuffer content = buf.duplicate();
+		content.position(0);
+		content.limit(trailer);
+		md.update(content);
+		final byte[] csum = new byte[Constants.OBJECT_ID_LENGTH];
+		for (int i = 0; i < csum.length; i++)
+			csum[i] = buf.get(trailer + i);
+		if (!Arrays.equals(md.digest(), csum))
+			throw new IOException("Commit graph checksum mismatch");
+
+		int ptr = 8;
+		final int packCnt = buf.getInt(ptr);
+		ptr += 4;
+		packNames = new ObjectId[packCnt];
+		for (int i = 0; i < packCnt; i++) {
+			packNames[i] = readObjectId(ptr);
+			ptr += Constants.OBJECT_ID_LENGTH;
+		}
+
+		commitCnt = buf.getInt(ptr);
+		ptr += 4;
+		fanoutPos = ptr;
+		namesPos = fanoutPos + 4 * FANOUT;
+		recordsPos = namesPos + commitCnt * Constants.OBJECT_ID_LENGTH;
+		extraPos = recordsPos + commitCnt * RECORD_SIZE + 4;
+		if (commitCnt < 0 || extraPos > trailer
+				|| buf.getInt(fanoutPos + 4 * (FANOUT - 1)) != commitCnt)
+			throw new IOException("Corrupt commit graph");
+		final int extraCnt = buf.getInt(extraPos - 4);
+		if (extraPos + 4 * (long) extraCnt != trailer)
+			throw new IOException("Corrupt commit graph");
+	}
+
+	/**
+	 * @return names (the SHA-1 in <code>pack-*.pack</code>) of the packs that
+	 *         existed when the graph was written.
+	 */
+	public ObjectId[] getPackNames() {
+		return packNames.clone();
+	}
+
+	/**
+	 * Determine if all packs the graph was written for still exist.
+	 *
+	 * @param packs
+	 *            the current packs of the repository.
+	 * @return true if every pack listed in the graph is among
+	 *         <code>packs</code>.
+	 */
+	boolean isCoveredBy(final PackFile[] packs) {
+		final ObjectIdSubclassMap<ObjectId> present = new ObjectIdSubclassMap<ObjectId>();
+		for (final PackFile p : packs) {
+			final ObjectId name = packName(p);
+			if (name != null)
+				present.add(name);
+		}
+		for (final ObjectId name : packNames) {
+			if (present.get(name) == null)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the name of a pack, from its <code>pack-*.pack</code> file name.
+	 *
+	 * @param pack
+	 *            the pack.
+	 * @return the SHA-1 in the file name; null if the pack is not named like
+	 *         a pack of a repository.
+	 */
+	static ObjectId packName(final PackFile pack) {
+		final String n = pack.getPackFile().getName();
+		if (n.length() != 50 || !n.startsWith("pack-") || !n.endsWith(".pack"))
+			return null;
+		final String id = n.substring(5, 45);
+		return ObjectId.isId(id) ? ObjectId.fromString(id) : null;
+	}
+
+	/** @return number of commits in the graph. */
+	public int getCommitCount() {
+		return commitCnt;
+	}
+
+	/**
+	 * Find a commit in the graph.
+	 *
+	 * @param id
+	 *            name of the commit.
+	 * @return index of the commit; -1 if it is not in the graph.
+	 */
+	public int findCommit(final AnyObjectId id) {
+		final int levelOne = id.getFirstByte();
+		int low = levelOne == 0 ? 0 : buf.getInt(fanoutPos + (levelOne - 1)
+				* 4);
+		int high = buf.getInt(fanoutPos + levelOne * 4);
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = compare(id, namesPos + mid
+					* Constants.OBJECT_ID_LENGTH);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the name of a commit.
+	 *
+	 * @param idx
+	 *            index of the commit.
+	 * @param out
+	 *            receives the name of the commit.
+	 */
+	public void getObjectId(final int idx, final MutableObjectId out) {
+		readObjectId(namesPos + idx * Constants.OBJECT_ID_LENGTH, out);
+	}
+
+	/**
+	 * Get the tree of a commit.
+	 *
+	 * @param idx
+	 *            index of the commit.
+	 * @param out
+	 *            receives the name of the tree.
+	 */
+	public void getTree(final int idx, final MutableObjectId out) {
+		readObjectId(record(idx), out);
+	}
+
+	/**
+	 * Get the number of parents of a commit.
+	 *
+	 * @param idx
+	 *            index of the commit.
+	 * @return number of parents.
+	 */
+	public int getParentCount(final int idx) {
+		final int r = record(idx) + Constants.OBJECT_ID_LENGTH;
+		if (buf.getInt(r) == NO_PARENT)
+			return 0;
+		final int p2 = buf.getInt(r + 4);
+		if (p2 == NO_PARENT)
+			return 1;
+		if ((p2 & EXTRA_PARENTS) == 0)
+			return 2;
+		int n = 2;
+		for (int e = extraPos + 4 * (p2 & ~EXTRA_PARENTS);; e += 4) {
+			if ((buf.getInt(e) & LAST_PARENT) != 0)
+				return n;
+			n++;
+		}
+	}
+
+	/**
+	 * Get a parent of a commit.
+	 *
+	 * @param idx
+	 *            index of the commit.
+	 * @param nth
+	 *            which parent, from 0 through {@link #getParentCount(int)} -
+	 *            1.
+	 * @return index of the parent commit.
+	 */
+	public int getParent(final int idx, final int nth) {
+		final int r = record(idx) + Constants.OBJECT_ID_LENGTH;
+		if (nth == 0)
+			return buf.getInt(r);
+		final int p2 = buf.getInt(r + 4);
+		if ((p2 & EXTRA_PARENTS) == 0)
+			return p2;
+		return buf.getInt(extraPos + 4 * ((p2 & ~EXTRA_PARENTS) + nth - 1))
+				& ~LAST_PARENT;
+	}
+
+	/**
+	 * Get the commit time of a commit.
+	 *
+	 * @param idx
+	 *            index of the commit.
+	 * @return time from the committer line, in seconds since the epoch.
+	 */
+	public int getCommitTime(final int idx) {
+		return buf.getInt(record(idx) + Constants.OBJECT_ID_LENGTH + 8);
+	}
+
+	/**
+	 * Get the generation number of a commit.
+	 * <p>
+	 * A root commit has generation 1; any other commit has a generation one
+	 * larger than the largest generation of its parents. A commit can only
+	 * reach commits with a smaller generation.
+	 *
+	 * @param idx
+	 *            index of the commit.
+	 * @return the generation number.
+	 */
+	public int getGeneration(final int idx) {
+		return buf.getInt(record(idx) + Constants.OBJECT_ID_LENGTH + 12)
+				& ~LOOSE;
+	}
+
+	/**
+	 * Determine if a commit was stored in one of the graph's packs.
+	 * <p>
+	 * A packed commit exists as long as the graph is covered by the
+	 * repository's packs. A commit that was loose may since have been pruned,
+	 * and must be checked for before its record is trusted.
+	 *
+	 * @param idx
+	 *            index of the commit.
+	 * @return true if the commit was in one of {@link #getPackNames()}.
+	 */
+	public boolean isPacked(final int idx) {
+		final int r = record(idx) + Constants.OBJECT_ID_LENGTH + 12;
+		return (buf.getInt(r) & LOOSE) == 0;
+	}
+
+	private int record(final int idx) {
+		return recordsPos + idx * RECORD_SIZE;
+	}
+
+	private ObjectId readObjectId(final int p) {
+		return new ObjectId(buf.getInt(p), buf.getInt(p + 4), buf
+				.getInt(p + 8), buf.getInt(p + 12), buf.getInt(p + 16));
+	}
+
+	private void readObjectId(final int p, final MutableObjectId out) {
+		out.w1 = buf.getInt(p);
+		out.w2 = buf.getInt(p + 4);
+		out.w3 = buf.getInt(p + 8);
+		out.w4 = buf.getInt(p + 12);
+		out.w5 = buf.getInt(p + 16);
+	}
+
+	private int compare(final AnyObjectId objId, final int p) {
+		int cmp;
+
+		cmp = NB.compareUInt32(objId.w1, buf.getInt(p));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w2, buf.getInt(p + 4));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w3, buf.getInt(p + 8));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w4, buf.getInt(p + 12));
+		if (cmp != 0)
+			return cmp;
+
+		return NB.compareUInt32(objId.w5, buf.getInt(p + 16));
+	}
+}
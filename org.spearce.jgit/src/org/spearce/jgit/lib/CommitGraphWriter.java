@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Computes and writes the commit graph of a repository.
+ *
+ * @see CommitGraph
+ */
+public class CommitGraphWriter {
+	/** Progress message used while commits are collected. */
+	public static final String FINDING_COMMITS_PROGRESS = "Finding commits";
+
+	private final Repository db;
+
+	private final List<GraphCommit> commits = new ArrayList<GraphCommit>();
+
+	private final List<ObjectId> packNames = new ArrayList<ObjectId>();
+
+	/**
+	 * Create a writer for the commit graph of a repository.
+	 *
+	 * @param repo
+	 *            the repository.
+	 */
+	public CommitGraphWriter(final Repository repo) {
+		db = repo;
+	}
+
+	/** @return number of commits in the graph. */
+	public int getCommitCount() {
+		return commits.size();
+	}
+
+	/**
+	 * Collect the history of a set of refs.
+	 *
+	 * @param pm
+	 *            progress monitor to report to.
+	 * @param tips
+	 *            objects the refs point to. Annotated tags are peeled; tips
+	 *            which do not lead to a commit are ignored.
+	 * @throws MissingObjectException
+	 *             a reachable commit does not exist.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public void compute(final ProgressMonitor pm,
+			final Collection<? extends ObjectId> tips)
+			throws MissingObjectException, IOException {
+		// Remember the packs first, so a pack created while we walk cannot
+		// be listed without its commits.
+		packNames.clear();
+		final List<PackFile> packs = new ArrayList<PackFile>();
+		for (final PackFile p : db.getPacks()) {
+			final ObjectId name = CommitGraph.packName(p);
+			if (name != null) {
+				packNames.add(name);
+				packs.add(p);
+			}
+		}
+
+		final RevWalk rw = new RevWalk(db) {
+			@Override
+			protected RevCommit createCommit(final AnyObjectId id) {
+				return new GraphCommit(id);
+			}
+		};
+		rw.setRetainBody(false);
+		for (final ObjectId id : tips) {
+			RevObject o = rw.parseAny(id);
+			while (o instanceof RevTag) {
+				o = ((RevTag) o).getObject();
+				rw.parse(o);
+			}
+			if (o instanceof RevCommit)
+				rw.markStart((RevCommit) o);
+		}
+		rw.sort(RevSort.TOPO);
+		rw.sort(RevSort.REVERSE, true);
+
+		pm.beginTask(FINDING_COMMITS_PROGRESS, ProgressMonitor.UNKNOWN);
+		commits.clear();
+		RevCommit c;
+		while ((c = rw.next()) != null) {
+			// Parents come out before their children.
+			final GraphCommit g = (GraphCommit) c;
+			int generation = 0;
+			for (final RevCommit p : g.getParents())
+				generation = Math.max(generation, ((GraphCommit) p).generation);
+			g.generation = generation + 1;
+			g.packed = isPacked(packs, g);
+			commits.add(g);
+			pm.update(1);
+		}
+		pm.endTask();
+	}
+
+	private static boolean isPacked(final List<PackFile> packs,
+			final AnyObjectId id) throws IOException {
+		for (final PackFile p : packs) {
+			if (p.hasObject(id))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Write the graph to <code>objects/info/commit-graph</code>.
+	 * <p>
+	 * An existing graph is replaced.
+	 *
+	 * @throws IOException
+	 *             the file could not be written.
+	 */
+	public void write() throws IOException {
+		final File f = new File(db.getObjectsDirectory(), "info/commit-graph");
+		final LockFile lck = new LockFile(f);
+		if (!lck.lock())
+			throw new IOException("Cannot lock " + f);
+		try {
+			final OutputStream os = new BufferedOutputStream(lck
+					.getOutputStream());
+			try {
+				write(os);
+			} finally {
+				os.close();
+			}
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		} catch (RuntimeException err) {
+			lck.unlock();
+			throw err;
+		} catch (Error err) {
+			lck.unlock();
+			throw err;
+		}
+		if (!lck.commit())
+			throw new IOException("Cannot commit " + f);
+	}
+
+	/**
+	 * Write the graph to a stream.
+	 *
+	 * @param os
+	 *            stream to write the graph to. The caller is responsible for
+	 *            closing the stream.
+	 * @throws IOException
+	 *             the stream could not be written.
+	 */
+	public void write(final OutputStream os) throws IOException {
+		final List<GraphCommit> sorted = new ArrayList<GraphCommit>(commits);
+		Collections.sort(sorted, new Comparator<GraphCommit>() {
+			public int compare(final GraphCommit a, final GraphCommit b) {
+				return a.compareTo(b);
+			}
+		});
+		for (int i = 0; i < sorted.size(); i++)
+			sorted.get(i).index = i;
+
+		final DigestOutputStream out = new DigestOutputStream(os, Constants
+				.newMessageDigest());
+		final byte[] tmp = new byte[CommitGraph.RECORD_SIZE];
+
+		out.write(CommitGraph.SIGNATURE);
+		writeInt(out, tmp, CommitGraph.VERSION);
+		writeInt(out, tmp, packNames.size());
+		for (final ObjectId name : packNames) {
+			name.copyRawTo(tmp, 0);
+			out.write(tmp, 0, Constants.OBJECT_ID_LENGTH);
+		}
+
+		writeInt(out, tmp, sorted.size());
+		final int[] fanout = new int[CommitGraph.FANOUT];
+		for (final GraphCommit c : sorted)
+			fanout[c.getFirstByte()]++;
+		int total = 0;
+		for (int i = 0; i < fanout.length; i++) {
+			total += fanout[i];
+			writeInt(out, tmp, total);
+		}
+		for (final GraphCommit c : sorted) {
+			c.copyRawTo(tmp, 0);
+			out.write(tmp, 0, Constants.OBJECT_ID_LENGTH);
+		}
+
+		final List<Integer> extra = new ArrayList<Integer>();
+		for (final GraphCommit c : sorted) {
+			final RevCommit[] parents = c.getParents();
+			c.getTree().copyRawTo(tmp, 0);
+			int ptr = Constants.OBJECT_ID_LENGTH;
+			NB.encodeInt32(tmp, ptr, parentIndex(parents, 0));
+			ptr += 4;
+			if (parents.length > 2) {
+				NB.encodeInt32(tmp, ptr, CommitGraph.EXTRA_PARENTS
+						| extra.size());
+				for (int i = 1; i < parents.length; i++) {
+					int p = parentIndex(parents, i);
+					if (i == parents.length - 1)
+						p |= CommitGraph.LAST_PARENT;
+					extra.add(Integer.valueOf(p));
+				}
+			} else
+				NB.encodeInt32(tmp, ptr, parentIndex(parents, 1));
+			ptr += 4;
+			NB.encodeInt32(tmp, ptr, c.getCommitTime());
+			ptr += 4;
+			NB.encodeInt32(tmp, ptr, c.packed ? c.generation : c.generation
+					| CommitGraph.LOOSE);
+			out.write(tmp, 0, CommitGraph.RECORD_SIZE);
+		}
+
+		writeInt(out, tmp, extra.size());
+		for (final Integer p : extra)
+			writeInt(out, tmp, p.intValue());
+
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+	}
+
+	private static int parentIndex(final RevCommit[] parents, final int nth) {
+		if (nth < parents.length)
+			return ((GraphCommit) parents[nth]).index;
+		return CommitGraph.NO_PARENT;
+	}
+
+	private static void writeInt(final OutputStream out, final byte[] tmp,
+			final int v) throws IOException {
+		NB.encodeInt32(tmp, 0, v);
+		out.write(tmp, 0, 4);
+	}
+
+	private static class GraphCommit extends RevCommit {
+		int generation;
+
+		int index;
+
+		boolean packed;
+
+		GraphCommit(final AnyObjectId id) {
+			super(id);
+		}
+	}
+}
@@ -51,9 +51,12 @@ public class CoreConfig {
 
 	private final int packIndexVersion;
 
+	private final boolean refJournal;
+
 	CoreConfig(final RepositoryConfig rc) {
 		compression = rc.getInt("core", "compression", DEFAULT_COMPRESSION);
 		packIndexVersion = rc.getInt("pack", "indexversion", DEFAULT_INDEXVERSION);
+		refJournal = rc.getBoolean("core", "refjournal", false);
 	}
 
 	/**
@@ -71,4 +74,17 @@ public int getCompression() {
 	public int getPackIndexVersion() {
 		return packIndexVersion;
 	}
+
+	/**
+	 * Should ref updates be recorded in the ref journal?
+	 * <p>
+	 * The journal lets readers learn which loose refs changed without
+	 * checking the modification time of every loose ref file. It may only be
+	 * enabled if every process updating the repository's refs writes to it.
+	 *
+	 * @return true if the ref journal is written and trusted by readers.
+	 */
+	public boolean isRefJournal() {
+		return refJournal;
+	}
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+/**
+ * Encodes an instruction stream for {@link BinaryDelta}.
+ * <p>
+ * The encoder writes the base and result length header when it is created,
+ * and then accepts a sequence of copy and insert instructions. Instructions
+ * too large to be represented by a single command are split as necessary.
+ */
+public class DeltaEncoder {
+	/** Maximum number of bytes a single copy instruction may reference. */
+	private static final int MAX_COPY = 0x10000;
+
+	/** Maximum number of bytes a single insert instruction may carry. */
+	private static final int MAX_INSERT = 0x7f;
+
+	private final int limit;
+
+	private byte[] buf;
+
+	private int size;
+
+	/**
+	 * Create an encoder with no upper bound on the delta size.
+	 *
+	 * @param baseSize
+	 *            size of the base object, in bytes.
+	 * @param resultSize
+	 *            size of the resulting object, in bytes.
+	 */
+	public DeltaEncoder(final long baseSize, final long resultSize) {
+		this(baseSize, resultSize, 0);
+	}
+
+	/**
+	 * Create an encoder with an upper bound on the delta size.
+	 *
+	 * @param baseSize
+	 *            size of the base object, in bytes.
+	 * @param resultSize
+	 *            size of the resulting object, in bytes.
+	 * @param limit
+	 *            maximum number of bytes the encoded delta may occupy. If 0
+	 *            the delta may be of any size.
+	 */
+	public DeltaEncoder(final long baseSize, final long resultSize,
+			final int limit) {
+		this.limit = limit;
+		buf = new byte[64];
+		writeVarint(baseSize);
+		writeVarint(resultSize);
+	}
+
+	private void writeVarint(long sz) {
+		while (sz >= 0x80) {
+			buf[size++] = (byte) (0x80 | (sz & 0x7f));
+			sz >>>= 7;
+		}
+		buf[size++] = (byte) sz;
+	}
+
+	/** @return current number of bytes of encoded delta. */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Insert a literal string of text into the result.
+	 *
+	 * @param text
+	 *            source of the text to insert.
+	 * @param off
+	 *            first position within {@code text} to insert.
+	 * @param cnt
+	 *            number of bytes to insert.
+	 * @return true if the insert fits within the limit; false if the delta
+	 *         would exceed the limit and the instruction was not encoded.
+	 */
+	public boolean insert(final byte[] text, int off, int cnt) {
+		if (cnt <= 0)
+			return true;
+		final int need = cnt + (cnt + MAX_INSERT - 1) / MAX_INSERT;
+		if (limit > 0 && size + need > limit)
+			return false;
+		ensure(need);
+		while (cnt > 0) {
+			final int n = Math.min(cnt, MAX_INSERT);
+			buf[size++] = (byte) n;
+			System.arraycopy(text, off, buf, size, n);
+			size += n;
+			off += n;
+			cnt -= n;
+		}
+		return true;
+	}
+
+	/**
+	 * Copy a region of the base object into the result.
+	 *
+	 * @param offset
+	 *            position within the base object to start copying from.
+	 * @param cnt
+	 *            number of bytes to copy.
+	 * @return true if the copy fits within the limit; false if the delta would
+	 *         exceed the limit and the instruction was not encoded.
+	 */
+	public boolean copy(long offset, int cnt) {
+		if (cnt <= 0)
+			return true;
+		final int start = size;
+		ensure(8 * ((cnt + MAX_COPY - 1) / MAX_COPY));
+		while (cnt > 0) {
+			final int n = Math.min(cnt, MAX_COPY);
+			final int cmdPtr = size++;
+			int cmd = 0x80;
+
+			if ((offset & 0xff) != 0) {
+				cmd |= 0x01;
+				buf[size++] = (byte) offset;
+			}
+			if ((offset & (0xff << 8)) != 0) {
+				cmd |= 0x02;
+				buf[size++] = (byte) (offset >>> 8);
+			}
+			if ((offset & (0xff << 16)) != 0) {
+				cmd |= 0x04;
+				buf[size++] = (byte) (offset >>> 16);
+			}
+			if ((offset & (0xffL << 24)) != 0) {
+				cmd |= 0x08;
+				buf[size++] = (byte) (offset >>> 24);
+			}
+
+			if (n != MAX_COPY) {
+				if ((n & 0xff) != 0) {
+					cmd |= 0x10;
+					buf[size++] = (byte) n;
+				}
+				if ((n & (0xff << 8)) != 0) {
+					cmd |= 0x20;
+					buf[size++] = (byte) (n >>> 8);
+				}
+				if ((n & (0xff << 16)) != 0) {
+					cmd |= 0x40;
+					buf[size++] = (byte) (n >>> 16);
+				}
+			}
+
+			buf[cmdPtr] = (byte) cmd;
+			offset += n;
+			cnt -= n;
+		}
+		if (limit > 0 && size > limit) {
+			size = start;
+			return false;
+		}
+		return true;
+	}
+
+	private void ensure(final int need) {
+		final int want = size + need;
+		if (want > buf.length) {
+			final byte[] n = new byte[Math.max(want, buf.length * 2)];
+			System.arraycopy(buf, 0, n, 0, size);
+			buf = n;
+		}
+	}
+
+	/** @return a copy of the encoded delta. */
+	public byte[] toByteArray() {
+		final byte[] r = new byte[size];
+		System.arraycopy(buf, 0, r, 0, size);
+		return r;
+	}
+}
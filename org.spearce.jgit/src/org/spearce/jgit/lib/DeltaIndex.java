@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+/**
+ * Index of blocks in a base object, used to construct deltas against it.
+ * <p>
+ * The base is split into non-overlapping blocks of {@link #BLKSZ} bytes and
+ * each block's hash is recorded in a chained hash table. Encoding a result
+ * slides a rolling hash of the same width over it, one byte at a time; when
+ * the hash matches an indexed block the match is extended as far as possible
+ * in both directions and emitted as a copy instruction. Bytes between
+ * matches are emitted as inserts.
+ * <p>
+ * An index can be reused to encode any number of results against the same
+ * base, which is how {@link PackWriter} compares one base against every
+ * object in its delta search window.
+ */
+public class DeltaIndex {
+	/** Number of bytes hashed into a single block. */
+	static final int BLKSZ = 16;
+
+	/** Limit on candidates examined per hash bucket. */
+	private static final int MAX_CHAIN = 64;
+
+	private static final int P = 0x01000193;
+
+	/** P to the power of BLKSZ - 1, to remove a byte from the rolling hash. */
+	private static final int P_OUT;
+
+	static {
+		int p = 1;
+		for (int i = 1; i < BLKSZ; i++)
+			p *= P;
+		P_OUT = p;
+	}
+
+	private final byte[] src;
+
+	private final int tableShift;
+
+	/** Head of the chain for each bucket, as entry index + 1; 0 is empty. */
+	private final int[] table;
+
+	/** Next entry in the same bucket, as entry index + 1; 0 ends a chain. */
+	private final int[] next;
+
+	private final int[] entryHash;
+
+	private final int[] entryPos;
+
+	/**
+	 * Construct an index of a base object.
+	 *
+	 * @param base
+	 *            the base object's content. The array is not copied and must
+	 *            not be modified while the index is in use.
+	 */
+	public DeltaIndex(final byte[] base) {
+		src = base;
+
+		final int blocks = src.length / BLKSZ;
+		int bits = 1;
+		while ((1 << bits) < blocks && bits < 30)
+			bits++;
+		tableShift = 32 - bits;
+		table = new int[1 << bits];
+		next = new int[blocks + 1];
+		entryHash = new int[blocks + 1];
+		entryPos = new int[blocks + 1];
+
+		final int[] chainLength = new int[table.length];
+		int entries = 0;
+
+		// Walk backwards so each chain lists earlier blocks first,
+		// favoring copies from the front of the base.
+		//
+		for (int ptr = (blocks - 1) * BLKSZ; ptr >= 0; ptr -= BLKSZ) {
+			final int h = hashBlock(src, ptr);
+			final int b = bucket(h);
+			if (chainLength[b] == MAX_CHAIN)
+				continue;
+			chainLength[b]++;
+
+			final int e = ++entries;
+			entryHash[e] = h;
+			entryPos[e] = ptr;
+			next[e] = table[b];
+			table[b] = e;
+		}
+	}
+
+	/** @return size of the base object this index was built from. */
+	public int getBaseSize() {
+		return src.length;
+	}
+
+	/**
+	 * Create a delta which converts the base object into {@code res}.
+	 *
+	 * @param res
+	 *            the desired result of applying the delta to the base.
+	 * @return the delta, suitable for {@link BinaryDelta#apply(byte[], byte[])}.
+	 */
+	public byte[] encode(final byte[] res) {
+		return encode(res, 0);
+	}
+
+	/**
+	 * Create a delta which converts the base object into {@code res}.
+	 *
+	 * @param res
+	 *            the desired result of applying the delta to the base.
+	 * @param limit
+	 *            maximum size of the delta, in bytes. If 0 there is no limit.
+	 * @return the delta, suitable for {@link BinaryDelta#apply(byte[], byte[])};
+	 *         null if the delta would be larger than {@code limit}.
+	 */
+	public byte[] encode(final byte[] res, final int limit) {
+		final DeltaEncoder enc = new DeltaEncoder(src.length, res.length, limit);
+		final int end = res.length - BLKSZ;
+		int anchor = 0;
+
+		if (0 <= end && src.length >= BLKSZ) {
+			int ptr = 0;
+			int h = hashBlock(res, 0);
+			for (;;) {
+				int bestPos = 0;
+				int bestLen = 0;
+				for (int e = table[bucket(h)]; e != 0; e = next[e]) {
+					if (entryHash[e] != h)
+						continue;
+					final int len = matchLength(entryPos[e], res, ptr);
+					if (len > bestLen) {
+						bestPos = entryPos[e];
+						bestLen = len;
+					}
+				}
+
+				if (bestLen >= BLKSZ) {
+					// Pull any identical bytes still waiting to be
+					// inserted into the copy instead.
+					//
+					while (anchor < ptr && 0 < bestPos
+							&& src[bestPos - 1] == res[ptr - 1]) {
+						bestPos--;
+						bestLen++;
+						ptr--;
+					}
+
+					if (!enc.insert(res, anchor, ptr - anchor))
+						return null;
+					if (!enc.copy(bestPos, bestLen))
+						return null;
+					ptr += bestLen;
+					anchor = ptr;
+					if (ptr > end)
+						break;
+					h = hashBlock(res, ptr);
+
+				} else {
+					if (ptr == end)
+						break;
+					if (limit > 0 && enc.size() + (ptr - anchor) > limit)
+						return null;
+					h = roll(h, res[ptr], res[ptr + BLKSZ]);
+					ptr++;
+				}
+			}
+		}
+
+		if (!enc.insert(res, anchor, res.length - anchor))
+			return null;
+		return enc.toByteArray();
+	}
+
+	private int matchLength(final int srcPtr, final byte[] res, final int resPtr) {
+		final int max = Math.min(src.length - srcPtr, res.length - resPtr);
+		int n = 0;
+		while (n < max && src[srcPtr + n] == res[resPtr + n])
+			n++;
+		return n;
+	}
+
+	private int bucket(final int h) {
+		return (h * 0x9e3779b1) >>> tableShift;
+	}
+
+	private static int hashBlock(final byte[] raw, final int ptr) {
+		int h = 0;
+		for (int i = 0; i < BLKSZ; i++)
+			h = h * P + (raw[ptr + i] & 0xff);
+		return h;
+	}
+
+	private static int roll(final int h, final byte out, final byte in) {
+		return (h - (out & 0xff) * P_OUT) * P + (in & 0xff);
+	}
+}
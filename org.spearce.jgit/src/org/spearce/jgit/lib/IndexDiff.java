@@ -42,12 +42,60 @@
 import java.io.IOException;
 import java.util.HashSet;
 
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.DirCacheEntry;
+import org.spearce.jgit.dircache.DirCacheIterator;
 import org.spearce.jgit.lib.GitIndex.Entry;
+import org.spearce.jgit.treewalk.EmptyTreeIterator;
+import org.spearce.jgit.treewalk.FileTreeIterator;
+import org.spearce.jgit.treewalk.TreeWalk;
+import org.spearce.jgit.treewalk.WorkingTreeIterator;
+import org.spearce.jgit.treewalk.filter.TreeFilter;
 
 /**
  * Compares the Index, a Tree, and the working directory
+ * <p>
+ * When created for a repository the comparison runs over the repository's
+ * index file with a {@link TreeWalk}. The stat data cached in the index is
+ * trusted, so only files whose stat data differs from the index (or which
+ * are racily clean) are read and hashed. Files found to be unmodified have
+ * their stat data refreshed in the index, if the index can be locked.
  */
 public class IndexDiff {
+	private static final int T_BASE = 0;
+
+	private static final int T_INDEX = 1;
+
+	private static final int T_FILE = 2;
+
+	/** Skips paths only the working directory knows about. */
+	private static final TreeFilter TRACKED = new TreeFilter() {
+		@Override
+		public boolean include(final TreeWalk walker) {
+			return walker.getRawMode(T_BASE) != 0
+					|| walker.getRawMode(T_INDEX) != 0;
+		}
+
+		@Override
+		public boolean shouldBeRecursive() {
+			return false;
+		}
+
+		@Override
+		public TreeFilter clone() {
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return "TRACKED";
+		}
+	};
+
+	private Repository db;
+
+	private ObjectId treeId;
+
 	private GitIndex index;
 	private Tree tree;
 	
@@ -59,8 +107,22 @@ public class IndexDiff {
 	 * @throws IOException
 	 */
 	public IndexDiff(Repository repository) throws IOException {
-		this.tree = repository.mapTree(Constants.HEAD);
-		this.index = repository.getIndex();
+		this(repository, repository.resolve(Constants.HEAD + "^{tree}"));
+	}
+
+	/**
+	 * Construct an indexdiff for diffing the workdir against both the
+	 * repository's index and a tree.
+	 *
+	 * @param repository
+	 *            repository whose index and working directory are compared.
+	 * @param treeId
+	 *            the tree to compare the index to; null to treat every path
+	 *            in the index as added.
+	 */
+	public IndexDiff(Repository repository, AnyObjectId treeId) {
+		this.db = repository;
+		this.treeId = treeId != null ? treeId.copy() : null;
 	}
 
 	/**
@@ -83,6 +145,97 @@ public IndexDiff(Tree tree, GitIndex index) {
 	 * @throws IOException
 	 */
 	public boolean diff() throws IOException {
+		if (db == null)
+			return diffGitIndex();
+
+		final DirCache dc = new DirCache(new File(db.getDirectory(), "index"));
+		boolean locked;
+		try {
+			locked = dc.lock();
+		} catch (IOException err) {
+			// We can still compare a read-only repository, we
+			// just cannot store the refreshed stat data for it.
+			//
+			locked = false;
+		}
+		try {
+			dc.read();
+			if (diff(dc) && locked) {
+				dc.write();
+				dc.commit();
+			}
+		} finally {
+			dc.unlock();
+		}
+		return anyChanges;
+	}
+
+	private boolean diff(final DirCache dc) throws IOException {
+		final TreeWalk tw = new TreeWalk(db);
+		tw.reset();
+		if (treeId != null)
+			tw.addTree(treeId);
+		else
+			tw.addTree(new EmptyTreeIterator());
+		tw.addTree(new DirCacheIterator(dc));
+		tw.addTree(new FileTreeIterator(db.getWorkDir()));
+		tw.setRecursive(true);
+		tw.setFilter(TRACKED);
+
+		boolean refreshed = false;
+		while (tw.next()) {
+			final DirCacheIterator i = tw.getTree(T_INDEX,
+					DirCacheIterator.class);
+			if (i == null) {
+				removed.add(tw.getPathString());
+				anyChanges = true;
+				continue;
+			}
+
+			if (tw.getRawMode(T_BASE) == 0) {
+				added.add(tw.getPathString());
+				anyChanges = true;
+			} else if (!tw.idEqual(T_BASE, T_INDEX)) {
+				changed.add(tw.getPathString());
+				anyChanges = true;
+			}
+
+			final WorkingTreeIterator f = tw.getTree(T_FILE,
+					WorkingTreeIterator.class);
+			if (f == null) {
+				missing.add(tw.getPathString());
+				anyChanges = true;
+				continue;
+			}
+
+			final DirCacheEntry e = i.getDirCacheEntry();
+			if (f.isModified(e, dc.isRacilyClean(e))) {
+				modified.add(tw.getPathString());
+				anyChanges = true;
+			} else if (refresh(e, f))
+				refreshed = true;
+		}
+		return refreshed;
+	}
+
+	private static boolean refresh(final DirCacheEntry e,
+			final WorkingTreeIterator f) {
+		if (e.isAssumeValid())
+			return false;
+		if (!FileMode.REGULAR_FILE.equals(e.getRawMode())
+				&& !FileMode.EXECUTABLE_FILE.equals(e.getRawMode()))
+			return false;
+
+		final int length = (int) f.getEntryLength();
+		final long lastModified = f.getEntryLastModified();
+		if (e.getLength() == length && e.getLastModified() == lastModified)
+			return false;
+		e.setLength(length);
+		e.setLastModified(lastModified);
+		return true;
+	}
+
+	private boolean diffGitIndex() throws IOException {
 		final File root = index.getRepository().getWorkDir();
 		new IndexTreeWalker(index, tree, root, new AbstractIndexTreeVisitor() {
 			public void visitEntry(TreeEntry treeEntry, Entry indexEntry, File file) {
@@ -71,6 +71,8 @@ public class LockFile {
 
 	private boolean needStatInformation;
 
+	private boolean unlockOnly;
+
 	private long commitLastModified;
 
 	/**
@@ -344,6 +346,11 @@ public boolean commit() {
 			unlock();
 			throw new IllegalStateException("Lock on " + ref + " not closed.");
 		}
+		if (unlockOnly) {
+			unlock();
+			throw new IllegalStateException("Lock on " + ref
+					+ " cannot be committed.");
+		}
 
 		saveStatInformation();
 		if (lck.renameTo(ref))
@@ -369,6 +376,34 @@ public long getCommitLastModified() {
 		return commitLastModified;
 	}
 
+	/**
+	 * Close the output of a lock that will only be released.
+	 * <p>
+	 * The lock file remains in place, so the lock is still held, but no file
+	 * descriptor is kept open for it. Callers holding many locks at once use
+	 * this to avoid running out of descriptors. Only {@link #unlock()} is
+	 * permitted afterwards.
+	 */
+	void closeForUnlock() {
+		unlockOnly = true;
+		if (os != null) {
+			if (fLck != null) {
+				try {
+					fLck.release();
+				} catch (IOException ioe) {
+					// Huh?
+				}
+				fLck = null;
+			}
+			try {
+				os.close();
+			} catch (IOException ioe) {
+				// Ignore this
+			}
+			os = null;
+		}
+	}
+
 	/**
 	 * Unlock this file and abort this change.
 	 * <p>
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Reachability bitmaps for the commits of a pack file.
+ * <p>
+ * Each bitmap has one bit per object of the pack, numbered by the position of
+ * the object in the pack file, and sets the bits of all objects reachable from
+ * its commit. Reachability queries can then be answered by combining bitmaps,
+ * rather than by walking the commit graph and parsing trees.
+ * <p>
+ * The file is stored next to the pack as <code>pack-*.bitmap</code> and
+ * contains, after a 4 byte signature and 4 byte version: the checksum of the
+ * pack, the number of objects in the pack, one bitmap per object type (commit,
+ * tree, blob and tag), the number of commit bitmaps followed by each commit's
+ * id and bitmap, and finally a SHA-1 checksum of all preceding bytes. Bitmaps
+ * are stored as a 4 byte length followed by alternating variable length
+ * counts of clear and set bits.
+ *
+ * @see PackBitmapIndexWriter
+ */
+public class PackBitmapIndex {
+	static final byte[] SIGNATURE = { 'B', 'I', 'T', 'M' };
+
+	static final int VERSION = 1;
+
+	/**
+	 * Open an existing pack <code>.bitmap</code> file for reading.
+	 *
+	 * @param bitmapFile
+	 *            existing bitmap file to read.
+	 * @return the bitmap index.
+	 * @throws IOException
+	 *             the file could not be read, or is not a valid bitmap index.
+	 */
+	public static PackBitmapIndex open(final File bitmapFile)
+			throws IOException {
+		final FileInputStream fd = new FileInputStream(bitmapFile);
+		try {
+			final long len = bitmapFile.length();
+			if (len > Integer.MAX_VALUE)
+				throw new IOException("Bitmap index too large");
+			final byte[] buf = new byte[(int) len];
+			NB.readFully(fd, buf, 0, buf.length);
+			return new PackBitmapIndex(buf);
+		} catch (IOException ioe) {
+			final String path = bitmapFile.getAbsolutePath();
+			final IOException err;
+			err = new IOException("Unreadable pack bitmap index: " + path);
+			err.initCause(ioe);
+			throw err;
+		} finally {
+			try {
+				fd.close();
+			} catch (IOException err2) {
+				// ignore
+			}
+		}
+	}
+
+	/** Checksum of the pack file these bitmaps were computed for. */
+	final byte[] packChecksum;
+
+	private final int objectCount;
+
+	private final BitSet[] types;
+
+	private final byte[] buf;
+
+	private final ObjectIdSubclassMap<Entry> bitmaps;
+
+	private final int bitmapCount;
+
+	PackBitmapIndex(final byte[] buf) throws IOException {
+		final int trailer = buf.length - Constants.OBJECT_ID_LENGTH;
+		if (trailer < 8)
+			throw new IOException("Truncated bitmap index");
+		for (int i = 0; i < SIGNATURE.length; i++)
+			if (buf[i] != SIGNATURE[i])
+				throw new IOException("Not a bitmap index");
+		final int version = NB.decodeInt32(buf, 4);
+		if (version != VERSION)
+			throw new IOException("Unsupported bitmap index version "
+					+ version);
+
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(buf, 0, trailer);
+		final byte[] csum = new byte[Constants.OBJECT_ID_LENGTH];
+		System.arraycopy(buf, trailer, csum, 0, csum.length);
+		if (!Arrays.equals(md.digest(), csum))
+			throw new IOException("Bitmap index checksum mismatch");
+
+		this.buf = buf;
+		int ptr = 8;
+		packChecksum = new byte[Constants.OBJECT_ID_LENGTH];
+		System.arraycopy(buf, ptr, packChecksum, 0, packChecksum.length);
+		ptr += packChecksum.length;
+		objectCount = NB.decodeInt32(buf, ptr);
+		ptr += 4;
+
+		types = new BitSet[Constants.OBJ_TAG + 1];
+		for (int type = Constants.OBJ_COMMIT; type <= Constants.OBJ_TAG; type++) {
+			final int len = NB.decodeInt32(buf, ptr);
+			ptr += 4;
+			types[type] = decode(buf, ptr, ptr + len);
+			ptr += len;
+		}
+
+		bitmapCount = NB.decodeInt32(buf, ptr);
+		ptr += 4;
+		bitmaps = new ObjectIdSubclassMap<Entry>();
+		for (int i = 0; i < bitmapCount; i++) {
+			final ObjectId id = ObjectId.fromRaw(buf, ptr);
+			ptr += Constants.OBJECT_ID_LENGTH;
+			final int len = NB.decodeInt32(buf, ptr);
+			ptr += 4;
+			bitmaps.add(new Entry(id, ptr, len));
+			ptr += len;
+		}
+		if (ptr != trailer)
+			throw new IOException("Corrupt bitmap index");
+	}
+
+	/** @return number of objects in the pack these bitmaps describe. */
+	public int getObjectCount() {
+		return objectCount;
+	}
+
+	/** @return number of commits with a bitmap. */
+	public int getBitmapCount() {
+		return bitmapCount;
+	}
+
+	/**
+	 * Get the objects reachable from a commit.
+	 *
+	 * @param commit
+	 *            the commit to look up.
+	 * @return a new bitmap of the objects reachable from the commit, which the
+	 *         caller may modify; null if the commit has no bitmap.
+	 */
+	public BitSet getBitmap(final AnyObjectId commit) {
+		final Entry e = bitmaps.get(commit);
+		if (e == null)
+			return null;
+		return decode(buf, e.ptr, e.ptr + e.len);
+	}
+
+	/**
+	 * Get the objects of one type.
+	 * <p>
+	 * Only objects reachable from a commit bitmap are guaranteed to be set.
+	 *
+	 * @param type
+	 *            type code of the objects, such as
+	 *            {@link Constants#OBJ_COMMIT}.
+	 * @return bitmap of the objects of this type. Must not be modified.
+	 */
+	BitSet ofObjectType(final int type) {
+		return types[type];
+	}
+
+	/**
+	 * Write a bitmap in the format used by the bitmap index.
+	 *
+	 * @param bits
+	 *            the bitmap.
+	 * @param out
+	 *            stream to write to.
+	 * @throws IOException
+	 *             the stream could not be written.
+	 */
+	static void encode(final BitSet bits, final OutputStream out)
+			throws IOException {
+		final ByteArrayOutputStream b = new ByteArrayOutputStream();
+		int clear = 0;
+		int set;
+		while ((set = bits.nextSetBit(clear)) >= 0) {
+			final int end = bits.nextClearBit(set);
+			writeVarint(b, set - clear);
+			writeVarint(b, end - set);
+			clear = end;
+		}
+
+		final byte[] len = new byte[4];
+		NB.encodeInt32(len, 0, b.size());
+		out.write(len);
+		b.writeTo(out);
+	}
+
+	private static void writeVarint(final ByteArrayOutputStream b, int v) {
+		while ((v & ~0x7f) != 0) {
+			b.write(0x80 | (v & 0x7f));
+			v >>>= 7;
+		}
+		b.write(v);
+	}
+
+	/**
+	 * Read a bitmap written by {@link #encode(BitSet, OutputStream)}.
+	 *
+	 * @param b
+	 *            buffer holding the encoded bitmap, after its length.
+	 * @param ptr
+	 *            position of the first byte of the bitmap.
+	 * @param end
+	 *            position just after the last byte of the bitmap.
+	 * @return the decoded bitmap.
+	 */
+	static BitSet decode(final byte[] b, int ptr, final int end) {
+		final BitSet bits = new BitSet();
+		int pos = 0;
+		while (ptr < end) {
+			int c = b[ptr++];
+			int clear = c & 0x7f;
+			for (int shift = 7; c < 0; shift += 7) {
+				c = b[ptr++];
+				clear |= (c & 0x7f) << shift;
+			}
+			c = b[ptr++];
+			int set = c & 0x7f;
+			for (int shift = 7; c < 0; shift += 7) {
+				c = b[ptr++];
+				set |= (c & 0x7f) << shift;
+			}
+			pos += clear;
+			bits.set(pos, pos + set);
+			pos += set;
+		}
+		return bits;
+	}
+
+	private static class Entry extends ObjectId {
+		final int ptr;
+
+		final int len;
+
+		Entry(final AnyObjectId id, final int ptr, final int len) {
+			super(id);
+			this.ptr = ptr;
+			this.len = len;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Computes and writes the reachability bitmaps of a pack file.
+ * <p>
+ * Bitmaps are computed for the commits at the tips of the supplied refs, and
+ * for every {@link #getCommitSpacing()}th commit of their history, so that a
+ * walk from any commit of the pack reaches a commit with a bitmap quickly.
+ * Commits are processed from oldest to newest and each bitmap starts from the
+ * bitmaps of its nearest ancestors, so trees are only parsed for the commits
+ * between two selected commits.
+ * <p>
+ * A commit only receives a bitmap if every object it can reach is contained
+ * in the pack.
+ *
+ * @see PackBitmapIndex
+ */
+public class PackBitmapIndexWriter {
+	/** Progress message used while bitmaps are computed. */
+	public static final String BUILDING_BITMAPS_PROGRESS = "Building bitmaps";
+
+	/** Default number of commits between two commits with a bitmap. */
+	public static final int DEFAULT_COMMIT_SPACING = 100;
+
+	private final Repository db;
+
+	private final PackFile pack;
+
+	private final ObjectIdSubclassMap<Entry> bitmaps = new ObjectIdSubclassMap<Entry>();
+
+	private final List<Entry> bitmapList = new ArrayList<Entry>();
+
+	private final BitSet[] types = new BitSet[Constants.OBJ_TAG + 1];
+
+	private int commitSpacing = DEFAULT_COMMIT_SPACING;
+
+	/**
+	 * Create a writer for the bitmaps of a pack.
+	 *
+	 * @param repo
+	 *            repository to read objects from.
+	 * @param pack
+	 *            the pack to compute bitmaps for.
+	 */
+	public PackBitmapIndexWriter(final Repository repo, final PackFile pack) {
+		this.db = repo;
+		this.pack = pack;
+		for (int type = Constants.OBJ_COMMIT; type <= Constants.OBJ_TAG; type++)
+			types[type] = new BitSet();
+	}
+
+	/** @return number of commits between two commits with a bitmap. */
+	public int getCommitSpacing() {
+		return commitSpacing;
+	}
+
+	/**
+	 * Set the number of commits between two commits with a bitmap.
+	 * <p>
+	 * Smaller values make queries walk fewer commits, at the cost of a larger
+	 * bitmap file and a longer time to compute it.
+	 *
+	 * @param spacing
+	 *            the number of commits; must be at least 1.
+	 */
+	public void setCommitSpacing(final int spacing) {
+		if (spacing < 1)
+			throw new IllegalArgumentException("Commit spacing must be >= 1");
+		commitSpacing = spacing;
+	}
+
+	/** @return number of commits which have a bitmap. */
+	public int getBitmapCount() {
+		return bitmapList.size();
+	}
+
+	/**
+	 * Compute bitmaps for the history of a set of refs.
+	 *
+	 * @param pm
+	 *            progress monitor to report to.
+	 * @param tips
+	 *            objects the refs point to. Annotated tags are peeled; tips
+	 *            which do not lead to a commit are ignored.
+	 * @throws MissingObjectException
+	 *             a reachable object does not exist.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public void compute(final ProgressMonitor pm,
+			final Collection<? extends ObjectId> tips)
+			throws MissingObjectException, IOException {
+		final RevWalk rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		final BitmapWalker walker = new BitmapWalker(pack, rw, false) {
+			@Override
+			BitSet findBitmap(final RevCommit c) {
+				final Entry e = bitmaps.get(c);
+				return e != null ? e.bits : null;
+			}
+		};
+
+		final ObjectIdSubclassMap<RevCommit> tipCommits = new ObjectIdSubclassMap<RevCommit>();
+		for (final ObjectId id : tips) {
+			RevObject o = rw.parseAny(id);
+			while (o instanceof RevTag) {
+				final int pos = pack.findPosition(o);
+				if (pos >= 0)
+					types[Constants.OBJ_TAG].set(pos);
+				o = ((RevTag) o).getObject();
+				rw.parse(o);
+			}
+			if (o instanceof RevCommit && tipCommits.get(o) == null) {
+				tipCommits.add((RevCommit) o);
+				rw.markStart((RevCommit) o);
+			}
+		}
+
+		rw.sort(RevSort.TOPO);
+		rw.sort(RevSort.REVERSE, true);
+		final List<RevCommit> selected = new ArrayList<RevCommit>();
+		int sinceLast = 0;
+		RevCommit c;
+		while ((c = rw.next()) != null) {
+			if (++sinceLast >= commitSpacing || tipCommits.get(c) != null) {
+				selected.add(c);
+				sinceLast = 0;
+			}
+		}
+
+		pm.beginTask(BUILDING_BITMAPS_PROGRESS, selected.size());
+		for (final RevCommit s : selected) {
+			if (bitmaps.get(s) == null && pack.findPosition(s) >= 0) {
+				walker.bits = new BitSet();
+				if (walker.include(s)) {
+					final Entry e = new Entry(s, walker.bits);
+					bitmaps.add(e);
+					bitmapList.add(e);
+				}
+			}
+			pm.update(1);
+		}
+		pm.endTask();
+
+		for (int type = Constants.OBJ_COMMIT; type <= Constants.OBJ_TAG; type++)
+			types[type].or(walker.types[type]);
+	}
+
+	/**
+	 * Write the bitmaps to the <code>.bitmap</code> file of the pack.
+	 * <p>
+	 * An existing bitmap file is replaced.
+	 *
+	 * @throws IOException
+	 *             the file could not be written.
+	 */
+	public void write() throws IOException {
+		final File f = PackFile.bitmapFile(pack.getPackFile());
+		final LockFile lck = new LockFile(f);
+		if (!lck.lock())
+			throw new IOException("Cannot lock " + f);
+		try {
+			final OutputStream os = new BufferedOutputStream(lck
+					.getOutputStream());
+			try {
+				write(os);
+			} finally {
+				os.close();
+			}
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		} catch (RuntimeException err) {
+			lck.unlock();
+			throw err;
+		} catch (Error err) {
+			lck.unlock();
+			throw err;
+		}
+		if (!lck.commit())
+			throw new IOException("Cannot commit " + f);
+		pack.clearBitmapIndex();
+	}
+
+	/**
+	 * Write the bitmaps to a stream.
+	 *
+	 * @param os
+	 *            stream to write the bitmap index to. The caller is
+	 *            responsible for closing the stream.
+	 * @throws IOException
+	 *             the stream could not be written.
+	 */
+	public void write(final OutputStream os) throws IOException {
+		final DigestOutputStream out = new DigestOutputStream(os, Constants
+				.newMessageDigest());
+		final byte[] tmp = new byte[Constants.OBJECT_ID_LENGTH];
+
+		out.write(PackBitmapIndex.SIGNATURE);
+		NB.encodeInt32(tmp, 0, PackBitmapIndex.VERSION);
+		out.write(tmp, 0, 4);
+		out.write(pack.getPackChecksum());
+		NB.encodeInt32(tmp, 0, (int) pack.getObjectCount());
+		out.write(tmp, 0, 4);
+
+		for (int type = Constants.OBJ_COMMIT; type <= Constants.OBJ_TAG; type++)
+			PackBitmapIndex.encode(types[type], out);
+
+		NB.encodeInt32(tmp, 0, bitmapList.size());
+		out.write(tmp, 0, 4);
+		for (final Entry e : bitmapList) {
+			e.copyRawTo(tmp, 0);
+			out.write(tmp, 0, Constants.OBJECT_ID_LENGTH);
+			PackBitmapIndex.encode(e.bits, out);
+		}
+
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+	}
+
+	private static class Entry extends ObjectId {
+		final BitSet bits;
+
+		Entry(final AnyObjectId id, final BitSet bits) {
+			super(id);
+			this.bits = bits;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+/** The standard "pack" configuration parameters. */
+public class PackConfig {
+	private final int deltaWindow;
+
+	private final int deltaDepth;
+
+	private final int threads;
+
+	PackConfig(final RepositoryConfig rc) {
+		deltaWindow = rc.getInt("pack", "window",
+				PackWriter.DEFAULT_DELTA_SEARCH_WINDOW_SIZE);
+		deltaDepth = rc.getInt("pack", "depth",
+				PackWriter.DEFAULT_MAX_DELTA_DEPTH);
+		threads = rc.getInt("pack", "threads", 0);
+	}
+
+	/**
+	 * @return number of objects considered as delta bases for each object.
+	 * @see PackWriter#setDeltaSearchWindowSize(int)
+	 */
+	public int getDeltaWindow() {
+		return deltaWindow;
+	}
+
+	/**
+	 * @return maximum length of a delta chain created while packing.
+	 * @see PackWriter#setMaxDeltaDepth(int)
+	 */
+	public int getDeltaDepth() {
+		return deltaDepth;
+	}
+
+	/**
+	 * @return number of threads searching for deltas; 0 to use one thread
+	 *         per available processor.
+	 * @see PackWriter#setThreads(int)
+	 */
+	public int getThreads() {
+		return threads;
+	}
+}
@@ -76,6 +76,10 @@ public int compare(final PackFile a, final PackFile b) {
 
 	private PackReverseIndex reverseIdx;
 
+	private PackBitmapIndex bitmapIdx;
+
+	private boolean bitmapIdxLoaded;
+
 	/**
 	 * Construct a reader for an existing, pre-indexed packfile.
 	 * 
@@ -85,9 +89,24 @@ public int compare(final PackFile a, final PackFile b) {
 	 *            path of the <code>.pack</code> file holding the data.
 	 */
 	public PackFile(final File idxFile, final File packFile) {
+		this(idxFile, packFile, WindowCache.getDefault());
+	}
+
+	/**
+	 * Construct a reader for an existing, pre-indexed packfile.
+	 * 
+	 * @param idxFile
+	 *            path of the <code>.idx</code> file listing the contents.
+	 * @param packFile
+	 *            path of the <code>.pack</code> file holding the data.
+	 * @param windowCache
+	 *            the cache to hold this pack's windows and delta bases in.
+	 */
+	public PackFile(final File idxFile, final File packFile,
+			final WindowCache windowCache) {
 		this.idxFile = idxFile;
 		this.packLastModified = (int) (packFile.lastModified() >> 10);
-		pack = new WindowedFile(packFile) {
+		pack = new WindowedFile(packFile, windowCache) {
 			@Override
 			protected void onOpen() throws IOException {
 				onOpenPack();
@@ -97,7 +116,7 @@ protected void onOpen() throws IOException {
 
 	private synchronized PackIndex idx() throws IOException {
 		if (loadedIdx == null) {
-			loadedIdx = PackIndex.open(idxFile);
+			loadedIdx = PackIndex.open(idxFile, pack.cache.mmapIndex);
 		}
 		return loadedIdx;
 	}
@@ -151,10 +170,13 @@ public PackedObjectLoader get(final WindowCursor curs, final AnyObjectId id)
 	 * Close the resources utilized by this repository
 	 */
 	public void close() {
-		UnpackedObjectCache.purge(pack);
+		pack.cache.deltaBaseCache.purge(pack);
 		pack.close();
 		synchronized (this) {
 			loadedIdx = null;
+			reverseIdx = null;
+			bitmapIdx = null;
+			bitmapIdxLoaded = false;
 		}
 	}
 
@@ -204,12 +226,94 @@ ObjectId findObjectForOffset(final long offset) throws IOException {
 		return getReverseIdx().findObject(offset);
 	}
 
+	/**
+	 * Find the position of an object within the pack file.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return position of the object in pack file order, starting from 0; -1
+	 *         if the object is not in this pack.
+	 * @throws IOException
+	 *             the index file cannot be loaded into memory.
+	 */
+	int findPosition(final AnyObjectId id) throws IOException {
+		final long offset = idx().findOffset(id);
+		return offset < 0 ? -1 : getReverseIdx().findPosition(offset);
+	}
+
+	/**
+	 * Get the object at a position within the pack file.
+	 *
+	 * @param position
+	 *            position of the object, as returned by
+	 *            {@link #findPosition(AnyObjectId)}.
+	 * @return the object id.
+	 * @throws IOException
+	 *             the index file cannot be loaded into memory.
+	 */
+	ObjectId findObjectByPosition(final int position) throws IOException {
+		return getReverseIdx().findObjectByPosition(position);
+	}
+
+	/**
+	 * Get the reachability bitmaps stored alongside this pack.
+	 * <p>
+	 * The bitmaps are read from the <code>.bitmap</code> file next to the pack,
+	 * if one exists and was created for this pack.
+	 *
+	 * @return the bitmap index; null if the pack does not have one.
+	 * @throws IOException
+	 *             the bitmap file exists but cannot be read.
+	 */
+	synchronized PackBitmapIndex getBitmapIndex() throws IOException {
+		if (!bitmapIdxLoaded) {
+			final File f = bitmapFile(getPackFile());
+			if (f.isFile()) {
+				final PackBitmapIndex b = PackBitmapIndex.open(f);
+				if (Arrays.equals(b.packChecksum, getPackChecksum())
+						&& b.getObjectCount() == getObjectCount())
+					bitmapIdx = b;
+			}
+			bitmapIdxLoaded = true;
+		}
+		return bitmapIdx;
+	}
+
+	/** Forget the bitmap index, so it is read again on next use. */
+	synchronized void clearBitmapIndex() {
+		bitmapIdx = null;
+		bitmapIdxLoaded = false;
+	}
+
+	/**
+	 * @return the checksum stored at the end of the pack file.
+	 * @throws IOException
+	 *             the index file cannot be loaded into memory.
+	 */
+	byte[] getPackChecksum() throws IOException {
+		return idx().packChecksum;
+	}
+
+	/**
+	 * Compute the name of the bitmap file for a pack.
+	 *
+	 * @param packFile
+	 *            path of the <code>.pack</code> file.
+	 * @return path of the <code>.bitmap</code> file for that pack.
+	 */
+	public static File bitmapFile(final File packFile) {
+		String n = packFile.getName();
+		if (n.endsWith(".pack"))
+			n = n.substring(0, n.length() - 5);
+		return new File(packFile.getParentFile(), n + ".bitmap");
+	}
+
 	final UnpackedObjectCache.Entry readCache(final long position) {
-		return UnpackedObjectCache.get(pack, position);
+		return pack.cache.deltaBaseCache.get(pack, position);
 	}
 
 	final void saveCache(final long position, final byte[] data, final int type) {
-		UnpackedObjectCache.store(pack, position, data, type);
+		pack.cache.deltaBaseCache.store(pack, position, data, type);
 	}
 
 	final byte[] decompress(final long position, final int totalSize,
@@ -265,6 +369,42 @@ boolean supportsFastCopyRawData() throws IOException {
 		return idx().hasCRC32Support();
 	}
 
+	/**
+	 * Copy a range of this pack file as is, without interpreting it.
+	 *
+	 * @param start
+	 *            offset of the first byte to copy.
+	 * @param end
+	 *            offset one past the last byte to copy.
+	 * @param out
+	 *            stream to copy the data to.
+	 * @param buf
+	 *            temporary buffer for the copy.
+	 * @param curs
+	 *            cursor to read the pack through.
+	 * @throws IOException
+	 *             the pack could not be read, or the stream not written.
+	 */
+	final void copyRange(final long start, final long end,
+			final OutputStream out, final byte buf[], final WindowCursor curs)
+			throws IOException {
+		pack.copyToStream(start, buf, end - start, out, curs);
+	}
+
+	/**
+	 * Get the CRC32 of an object's representation, as recorded in the index.
+	 *
+	 * @param id
+	 *            the object, which must be in this pack.
+	 * @return CRC32 of the object's header and compressed data.
+	 * @throws IOException
+	 *             the index does not record CRC32 checksums, or the object is
+	 *             not in this pack.
+	 */
+	final long findCRC32(final AnyObjectId id) throws IOException {
+		return idx().findCRC32(id);
+	}
+
 	private void onOpenPack() throws IOException {
 		final PackIndex idx = idx();
 		final WindowCursor curs = new WindowCursor();
@@ -352,7 +492,7 @@ private PackedObjectLoader reader(final WindowCursor curs,
 		}
 	}
 
-	private long findEndOffset(final long startOffset)
+	long findEndOffset(final long startOffset)
 			throws IOException, CorruptObjectException {
 		final long maxOffset = pack.length() - Constants.OBJECT_ID_LENGTH;
 		return getReverseIdx().findNextOffset(startOffset, maxOffset);
@@ -42,6 +42,9 @@
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.Iterator;
 
 import org.spearce.jgit.errors.MissingObjectException;
@@ -104,6 +107,58 @@ public static PackIndex open(final File idxFile) throws IOException {
 		}
 	}
 
+	/**
+	 * Open an existing pack <code>.idx</code> file for reading.
+	 * <p>
+	 * If <code>mmap</code> is true and the file uses the version 2 format, the
+	 * returned instance reads directly from a read-only memory mapping of the
+	 * file rather than copying the index tables into the Java heap. Other
+	 * formats are read as by {@link #open(File)}.
+	 * </p>
+	 *
+	 * @param idxFile
+	 *            existing pack .idx to read.
+	 * @param mmap
+	 *            true to access a version 2 index through a memory mapping.
+	 * @return access implementation for the requested file.
+	 * @throws FileNotFoundException
+	 *             the file does not exist.
+	 * @throws IOException
+	 *             the file exists but could not be read due to security errors,
+	 *             unrecognized data version, or unexpected data corruption.
+	 */
+	public static PackIndex open(final File idxFile, final boolean mmap)
+			throws IOException {
+		if (!mmap)
+			return open(idxFile);
+
+		final RandomAccessFile fd = new RandomAccessFile(idxFile, "r");
+		try {
+			final long len = fd.length();
+			final byte[] hdr = new byte[8];
+			fd.readFully(hdr);
+			if (isTOC(hdr) && NB.decodeInt32(hdr, 4) == 2
+					&& len <= Integer.MAX_VALUE) {
+				final MappedByteBuffer map;
+				map = fd.getChannel().map(MapMode.READ_ONLY, 0, len);
+				return new PackIndexV2Mapped(map);
+			}
+		} catch (IOException ioe) {
+			final String path = idxFile.getAbsolutePath();
+			final IOException err;
+			err = new IOException("Unreadable pack index: " + path);
+			err.initCause(ioe);
+			throw err;
+		} finally {
+			try {
+				fd.close();
+			} catch (IOException err2) {
+				// ignore
+			}
+		}
+		return open(idxFile);
+	}
+
 	private static boolean isTOC(final byte[] h) {
 		final byte[] toc = PackIndexWriter.TOC;
 		for (int i = 0; i < toc.length; i++)
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Support for the pack index v2 format, reading directly from a mapped file.
+ * <p>
+ * Unlike {@link PackIndexV2} this implementation does not copy the tables of
+ * the index into the Java heap. The fan-out table is consulted and the object
+ * names are binary searched in place, so opening an index costs only the
+ * mapping itself, and the pages of a large index are brought in by the
+ * operating system as lookups touch them.
+ * <p>
+ * A mapping cannot be released explicitly in Java; the file remains mapped
+ * (and on some platforms cannot be deleted) until this object is garbage
+ * collected.
+ */
+class PackIndexV2Mapped extends PackIndex {
+	private static final long IS_O64 = 1L << 31;
+
+	private static final int FANOUT = 256;
+
+	private static final int FANOUT_POS = 8;
+
+	private static final int NAMES_POS = FANOUT_POS + 4 * FANOUT;
+
+	/** The entire index file; only absolute get methods are used. */
+	private final ByteBuffer buf;
+
+	private final int objectCnt;
+
+	private final int crc32Pos;
+
+	private final int offset32Pos;
+
+	private final int offset64Pos;
+
+	private final int offset64Cnt;
+
+	PackIndexV2Mapped(final ByteBuffer map) throws IOException {
+		buf = map;
+
+		final int len = buf.limit();
+		if (len < NAMES_POS + 2 * Constants.OBJECT_ID_LENGTH)
+			throw new IOException("Truncated index file");
+
+		final long n = fanout(FANOUT - 1);
+		final long tablesEnd = NAMES_POS + n
+				* (Constants.OBJECT_ID_LENGTH + 4 + 4);
+		final long o64len = len - 2 * Constants.OBJECT_ID_LENGTH - tablesEnd;
+		if (o64len < 0 || o64len % 8 != 0)
+			throw new IOException("Index file size does not match its"
+					+ " object count of " + n);
+
+		objectCnt = (int) n;
+		crc32Pos = NAMES_POS + objectCnt * Constants.OBJECT_ID_LENGTH;
+		offset32Pos = crc32Pos + objectCnt * 4;
+		offset64Pos = offset32Pos + objectCnt * 4;
+		offset64Cnt = (int) (o64len / 8);
+
+		packChecksum = new byte[Constants.OBJECT_ID_LENGTH];
+		for (int i = 0; i < packChecksum.length; i++)
+			packChecksum[i] = buf.get(offset64Pos + offset64Cnt * 8 + i);
+	}
+
+	@Override
+	long getObjectCount() {
+		return objectCnt;
+	}
+
+	@Override
+	long getOffset64Count() {
+		return offset64Cnt;
+	}
+
+	@Override
+	ObjectId getObjectId(final long nthPosition) {
+		final int p = NAMES_POS + (int) nthPosition
+				* Constants.OBJECT_ID_LENGTH;
+		return new ObjectId(buf.getInt(p), buf.getInt(p + 4), buf
+				.getInt(p + 8), buf.getInt(p + 12), buf.getInt(p + 16));
+	}
+
+	@Override
+	long findOffset(final AnyObjectId objId) {
+		final int nth = find(objId);
+		if (nth == -1)
+			return -1;
+		return offset(nth);
+	}
+
+	@Override
+	long findCRC32(final AnyObjectId objId) throws MissingObjectException {
+		final int nth = find(objId);
+		if (nth == -1)
+			throw new MissingObjectException(objId.copy(), "unknown");
+		return buf.getInt(crc32Pos + nth * 4) & 0xffffffffL;
+	}
+
+	@Override
+	boolean hasCRC32Support() {
+		return true;
+	}
+
+	public Iterator<MutableEntry> iterator() {
+		return new EntriesIteratorV2Mapped();
+	}
+
+	private long fanout(final int levelOne) {
+		return buf.getInt(FANOUT_POS + levelOne * 4) & 0xffffffffL;
+	}
+
+	private long offset(final int nth) {
+		final long p = buf.getInt(offset32Pos + nth * 4) & 0xffffffffL;
+		if ((p & IS_O64) != 0)
+			return buf.getLong(offset64Pos + 8 * (int) (p & ~IS_O64));
+		return p;
+	}
+
+	private int find(final AnyObjectId objId) {
+		final int levelOne = objId.getFirstByte();
+		int low = levelOne == 0 ? 0 : (int) fanout(levelOne - 1);
+		int high = (int) fanout(levelOne);
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = compare(objId, NAMES_POS + mid
+					* Constants.OBJECT_ID_LENGTH);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	private int compare(final AnyObjectId objId, final int p) {
+		int cmp;
+
+		cmp = NB.compareUInt32(objId.w1, buf.getInt(p));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w2, buf.getInt(p + 4));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w3, buf.getInt(p + 8));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w4, buf.getInt(p + 12));
+		if (cmp != 0)
+			return cmp;
+
+		return NB.compareUInt32(objId.w5, buf.getInt(p + 16));
+	}
+
+	private class EntriesIteratorV2Mapped extends EntriesIterator {
+		@Override
+		protected MutableEntry initEntry() {
+			return new MutableEntry() {
+				protected void ensureId() {
+					final int p = NAMES_POS + (int) (returnedNumber - 1)
+							* Constants.OBJECT_ID_LENGTH;
+					idBuffer.w1 = buf.getInt(p);
+					idBuffer.w2 = buf.getInt(p + 4);
+					idBuffer.w3 = buf.getInt(p + 8);
+					idBuffer.w4 = buf.getInt(p + 12);
+					idBuffer.w5 = buf.getInt(p + 16);
+				}
+			};
+		}
+
+		public MutableEntry next() {
+			if (returnedNumber >= objectCnt)
+				throw new NoSuchElementException();
+			entry.offset = offset((int) returnedNumber);
+			returnedNumber++;
+			return entry;
+		}
+	}
+}
@@ -140,6 +140,40 @@ ObjectId findObject(final long offset) {
 		}
 	}
 
+	/**
+	 * Find the position of an object within the pack.
+	 * <p>
+	 * Positions number the objects of the pack in the order they appear in the
+	 * pack file, from 0 through {@link PackIndex#getObjectCount()} - 1.
+	 *
+	 * @param offset
+	 *            start offset of the object.
+	 * @return position of the object; -1 if no object starts at this offset.
+	 */
+	int findPosition(final long offset) {
+		if (offset < Integer.MAX_VALUE) {
+			final int i32 = Arrays.binarySearch(offsets32, (int) offset);
+			return i32 < 0 ? -1 : i32;
+		} else {
+			final int i64 = Arrays.binarySearch(offsets64, offset);
+			return i64 < 0 ? -1 : offsets32.length + i64;
+		}
+	}
+
+	/**
+	 * Get the object at the specified position within the pack.
+	 *
+	 * @param position
+	 *            position of the object, as returned by
+	 *            {@link #findPosition(long)}.
+	 * @return object id of the object at that position.
+	 */
+	ObjectId findObjectByPosition(final int position) {
+		if (position < offsets32.length)
+			return index.getObjectId(nth32[position]);
+		return index.getObjectId(nth64[position - offsets32.length]);
+	}
+
 	/**
 	 * Search for the next offset to the specified offset in this pack (reverse)
 	 * index.
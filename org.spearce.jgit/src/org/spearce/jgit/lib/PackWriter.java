@@ -39,21 +39,32 @@
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
 
+import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevCommit;
 import org.spearce.jgit.revwalk.RevFlag;
 import org.spearce.jgit.revwalk.RevObject;
 import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevWalk;
 import org.spearce.jgit.transport.PackedObjectInfo;
 import org.spearce.jgit.util.NB;
 
@@ -81,8 +92,9 @@
  * <p>
  * Class provide set of configurable options and {@link ProgressMonitor}
  * support, as operations may take a long time for big repositories. Deltas
- * searching algorithm is <b>NOT IMPLEMENTED</b> yet - this implementation
- * relies only on deltas and objects reuse.
+ * already present in the source packs are reused when possible; the remaining
+ * objects are compared against their neighbors in a sliding window to create
+ * new deltas (see {@link #setDeltaCompress(boolean)}).
  * </p>
  * <p>
  * This class is not thread safe, it is intended to be used in one thread, with
@@ -108,6 +120,14 @@ public class PackWriter {
 	 */
 	public static final String SEARCHING_REUSE_PROGRESS = "Compressing objects";
 
+	/**
+	 * Title of {@link ProgressMonitor} task used during searching for new
+	 * deltas between objects.
+	 *
+	 * @see #writePack(OutputStream)
+	 */
+	public static final String DELTA_SEARCH_PROGRESS = "Deltifying objects";
+
 	/**
 	 * Title of {@link ProgressMonitor} task used during writing out pack
 	 * (objects)
@@ -130,6 +150,13 @@ public class PackWriter {
 	 */
 	public static final boolean DEFAULT_REUSE_OBJECTS = true;
 
+	/**
+	 * Default value of the reuse pack ranges option.
+	 *
+	 * @see #setReusePackRanges(boolean)
+	 */
+	public static final boolean DEFAULT_REUSE_PACK_RANGES = false;
+
 	/**
 	 * Default value of delta base as offset option.
 	 *
@@ -144,6 +171,61 @@ public class PackWriter {
 	 */
 	public static final int DEFAULT_MAX_DELTA_DEPTH = 50;
 
+	/**
+	 * Default value of delta compression option.
+	 *
+	 * @see #setDeltaCompress(boolean)
+	 */
+	public static final boolean DEFAULT_DELTA_COMPRESS = true;
+
+	/**
+	 * Default number of objects considered as delta bases for each object.
+	 *
+	 * @see #setDeltaSearchWindowSize(int)
+	 */
+	public static final int DEFAULT_DELTA_SEARCH_WINDOW_SIZE = 10;
+
+	/**
+	 * Default value of the use bitmaps option.
+	 *
+	 * @see #setUseBitmaps(boolean)
+	 */
+	public static final boolean DEFAULT_USE_BITMAPS = true;
+
+	/** Objects smaller than this are never worth a delta. */
+	private static final int MIN_DELTA_SIZE = 50;
+
+	/** Nominal number of objects searched as one unit of work. */
+	private static final int DELTA_SEARCH_CHUNK = 1000;
+
+	/** Objects larger than this are not loaded for delta search. */
+	private static final int BIG_FILE_THRESHOLD = 50 * 1024 * 1024;
+
+	/** Order of reused objects by their position in the pack they come from. */
+	private static final Comparator<ObjectToPack> PACK_ORDER = new Comparator<ObjectToPack>() {
+		public int compare(final ObjectToPack a, final ObjectToPack b) {
+			return Long.signum(a.getReuseLoader().objectOffset
+					- b.getReuseLoader().objectOffset);
+		}
+	};
+
+	/**
+	 * Order in which objects enter the delta search window: grouped by type
+	 * and path, largest first, so that deltas usually remove data.
+	 */
+	private static final Comparator<ObjectToPack> DELTA_ORDER = new Comparator<ObjectToPack>() {
+		public int compare(final ObjectToPack a, final ObjectToPack b) {
+			int cmp = a.getType() - b.getType();
+			if (cmp != 0)
+				return cmp;
+			if (a.getPathHash() != b.getPathHash())
+				return a.getPathHash() < b.getPathHash() ? -1 : 1;
+			if (a.getWeight() != b.getWeight())
+				return a.getWeight() > b.getWeight() ? -1 : 1;
+			return 0;
+		}
+	};
+
 	private static final int PACK_VERSION_GENERATED = 2;
 
 	@SuppressWarnings("unchecked")
@@ -183,9 +265,21 @@ public class PackWriter {
 
 	private boolean reuseObjects = DEFAULT_REUSE_OBJECTS;
 
+	private boolean reusePackRanges = DEFAULT_REUSE_PACK_RANGES;
+
+	private final List<ReuseRange> reuseRanges = new ArrayList<ReuseRange>();
+
+	private CachedPack cachedPack;
+
 	private boolean deltaBaseAsOffset = DEFAULT_DELTA_BASE_AS_OFFSET;
 
-	private int maxDeltaDepth = DEFAULT_MAX_DELTA_DEPTH;
+	private int maxDeltaDepth;
+
+	private boolean deltaCompress = DEFAULT_DELTA_COMPRESS;
+
+	private int deltaSearchWindowSize;
+
+	private int threads;
 
 	private int outputVersion;
 
@@ -193,6 +287,14 @@ public class PackWriter {
 
 	private boolean ignoreMissingUninteresting = true;
 
+	private boolean useBitmaps = DEFAULT_USE_BITMAPS;
+
+	/** Pack whose bitmaps selected the objects; null if they were walked. */
+	private PackFile bitmapPack;
+
+	/** Objects the other side has, as positions in {@link #bitmapPack}. */
+	private BitSet haveBits;
+
 	/**
 	 * Create writer for specified repository.
 	 * <p>
@@ -234,6 +336,11 @@ public PackWriter(final Repository repo, final ProgressMonitor imonitor,
 		writeMonitor = wmonitor;
 		this.deflater = new Deflater(db.getConfig().getCore().getCompression());
 		outputVersion = repo.getConfig().getCore().getPackIndexVersion();
+
+		final PackConfig pc = repo.getConfig().getPack();
+		maxDeltaDepth = pc.getDeltaDepth();
+		deltaSearchWindowSize = pc.getDeltaWindow();
+		threads = pc.getThreads();
 	}
 
 	/**
@@ -304,6 +411,72 @@ public void setReuseObjects(boolean reuseObjects) {
 		this.reuseObjects = reuseObjects;
 	}
 
+	/**
+	 * Check whether the writer copies whole ranges of existing packs.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_REUSE_PACK_RANGES}
+	 * </p>
+	 *
+	 * @return true if ranges of packs are copied as they are; false if each
+	 *         object is copied on its own.
+	 */
+	public boolean isReusePackRanges() {
+		return reusePackRanges;
+	}
+
+	/**
+	 * Set whether the writer copies whole ranges of existing packs.
+	 * <p>
+	 * When objects reused from a pack (see {@link #setReuseObjects(boolean)}
+	 * and {@link #setReuseDeltas(boolean)}) are stored next to each other in
+	 * that pack, the writer copies the byte range holding them to the output
+	 * as it is, checking only the CRC32 recorded in the pack index. Deltas
+	 * within such a range keep their base in the same range, so their offsets
+	 * stay valid. These objects are written first, in the order of the source
+	 * pack, and are not searched for new deltas. This is most useful when a
+	 * large part of an existing pack is sent, as for an initial clone.
+	 * <p>
+	 * Only packs whose index records CRC32 checksums (index version 2) are
+	 * copied this way.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_REUSE_PACK_RANGES}
+	 * </p>
+	 *
+	 * @param reuse
+	 *            true to copy ranges of packs as they are.
+	 */
+	public void setReusePackRanges(final boolean reuse) {
+		reusePackRanges = reuse;
+	}
+
+	/**
+	 * @return the cached pack sent along with the objects of this writer; null
+	 *         if there is none.
+	 */
+	public CachedPack getCachedPack() {
+		return cachedPack;
+	}
+
+	/**
+	 * Send a cached pack along with the objects of this writer.
+	 * <p>
+	 * The objects of the cached pack are copied first, as they are, and the
+	 * header of the output counts them along with the writer's own objects.
+	 * Objects found in the cached pack are not added to the writer, and may
+	 * serve as bases of reused deltas. The cached pack holds offset deltas,
+	 * so it may only be sent to clients that understand them.
+	 * <p>
+	 * This method must be invoked before the pack is prepared. The index
+	 * written by {@link #writeIndex(OutputStream)} and the name computed by
+	 * {@link #computeName()} do not cover the objects of the cached pack.
+	 *
+	 * @param pack
+	 *            the cached pack; null to send only the writer's objects.
+	 */
+	public void setCachedPack(final CachedPack pack) {
+		cachedPack = pack;
+	}
+
 	/**
 	 * Check whether writer can store delta base as an offset (new style
 	 * reducing pack size) or should store it as an object id (legacy style,
@@ -339,7 +512,8 @@ public void setDeltaBaseAsOffset(boolean deltaBaseAsOffset) {
 	 * Get maximum depth of delta chain set up for this writer. Generated chains
 	 * are not longer than this value.
 	 * <p>
-	 * Default setting: {@value #DEFAULT_MAX_DELTA_DEPTH}
+	 * Default setting: {@value #DEFAULT_MAX_DELTA_DEPTH}, or the repository's
+	 * <code>pack.depth</code> setting.
 	 * </p>
 	 *
 	 * @return maximum delta chain depth.
@@ -363,6 +537,96 @@ public void setMaxDeltaDepth(int maxDeltaDepth) {
 		this.maxDeltaDepth = maxDeltaDepth;
 	}
 
+	/**
+	 * Check whether the writer will search for new deltas between the objects
+	 * it packs, in addition to reusing deltas already stored in packs.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_COMPRESS}
+	 * </p>
+	 *
+	 * @return true if new deltas are computed; false otherwise.
+	 */
+	public boolean isDeltaCompress() {
+		return deltaCompress;
+	}
+
+	/**
+	 * Set whether the writer searches for new deltas. When enabled, objects not
+	 * already stored as a reusable delta are sorted by type, path and size and
+	 * compared against the objects preceding them in a window of
+	 * {@link #getDeltaSearchWindowSize()} objects. The smallest delta found is
+	 * written in place of the whole object.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_COMPRESS}
+	 * </p>
+	 *
+	 * @param deltaCompress
+	 *            boolean indicating whether or not to compute new deltas.
+	 */
+	public void setDeltaCompress(boolean deltaCompress) {
+		this.deltaCompress = deltaCompress;
+	}
+
+	/**
+	 * Get the number of objects each object is compared against when
+	 * searching for new deltas.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_SEARCH_WINDOW_SIZE}, or the
+	 * repository's <code>pack.window</code> setting.
+	 * </p>
+	 *
+	 * @return the delta search window size.
+	 */
+	public int getDeltaSearchWindowSize() {
+		return deltaSearchWindowSize;
+	}
+
+	/**
+	 * Set the number of objects each object is compared against when
+	 * searching for new deltas. Larger windows find more deltas, at the cost
+	 * of more memory and CPU time; 0 disables the search.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_SEARCH_WINDOW_SIZE}, or the
+	 * repository's <code>pack.window</code> setting.
+	 * </p>
+	 *
+	 * @param objectCount
+	 *            the delta search window size.
+	 */
+	public void setDeltaSearchWindowSize(int objectCount) {
+		deltaSearchWindowSize = objectCount;
+	}
+
+	/**
+	 * Get the number of threads used to search for new deltas.
+	 * <p>
+	 * Default setting: the repository's <code>pack.threads</code> setting,
+	 * or the number of available processors if that is unset or 0.
+	 * </p>
+	 *
+	 * @return number of delta search threads; always at least 1.
+	 */
+	public int getThreads() {
+		if (threads <= 0)
+			return Runtime.getRuntime().availableProcessors();
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads used to search for new deltas.
+	 * <p>
+	 * The objects are divided into chunks which idle threads take from a
+	 * shared queue. Chunk boundaries do not depend on the thread count, so the
+	 * resulting pack is identical for any number of threads.
+	 * </p>
+	 *
+	 * @param threads
+	 *            number of threads; 0 to use one per available processor.
+	 */
+	public void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
 	/** @return true if this writer is producing a thin pack. */
 	public boolean isThin() {
 		return thin;
@@ -402,6 +666,31 @@ public void setIgnoreMissingUninteresting(final boolean ignore) {
 		ignoreMissingUninteresting = ignore;
 	}
 
+	/**
+	 * @return true if {@link #preparePack(Collection, Collection)} uses the
+	 *         reachability bitmaps of a pack to find the objects to include.
+	 */
+	public boolean isUseBitmaps() {
+		return useBitmaps;
+	}
+
+	/**
+	 * Set whether reachability bitmaps are used to find the objects to pack.
+	 * <p>
+	 * If a pack of the repository has a bitmap index, the objects to include
+	 * are computed by combining the bitmaps of the interesting and
+	 * uninteresting commits. Only the commits made after the bitmaps were
+	 * computed, and the trees they introduce, are walked.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_USE_BITMAPS}
+	 *
+	 * @param useBitmaps
+	 *            true to use bitmaps when available; false to always walk.
+	 */
+	public void setUseBitmaps(final boolean useBitmaps) {
+		this.useBitmaps = useBitmaps;
+	}
+
 	/**
 	 * Set the pack index file format version this instance will create.
 	 *
@@ -475,6 +764,11 @@ public void preparePack(final Iterator<RevObject> objectsSource)
 	 * Order is consistent with general git in-pack rules: sort by object type,
 	 * recency, path and delta-base first.
 	 * </p>
+	 * <p>
+	 * If a pack with reachability bitmaps is available (see
+	 * {@link #setUseBitmaps(boolean)}) the set is instead computed from the
+	 * bitmaps, and objects appear in the order of that pack.
+	 * </p>
 	 *
 	 * @param interestingObjects
 	 *            collection of objects to be marked as interesting (start
@@ -489,6 +783,9 @@ public void preparePack(
 			final Collection<? extends ObjectId> interestingObjects,
 			final Collection<? extends ObjectId> uninterestingObjects)
 			throws IOException {
+		if (useBitmaps
+				&& prepareFromBitmaps(interestingObjects, uninterestingObjects))
+			return;
 		ObjectWalk walker = setUpWalker(interestingObjects,
 				uninterestingObjects);
 		findObjectsToPack(walker);
@@ -502,6 +799,8 @@ public void preparePack(
 	 * @return true if the object will appear in the output pack file.
 	 */
 	public boolean willInclude(final AnyObjectId id) {
+		if (cachedPack != null && cachedPack.hasObject(id))
+			return true;
 		return objectsMap.get(id) != null;
 	}
 
@@ -562,7 +861,8 @@ private List<ObjectToPack> sortByName() {
 	 * At first, this method collects and sorts objects to pack, then deltas
 	 * search is performed if set up accordingly, finally pack stream is
 	 * written. {@link ProgressMonitor} tasks {@value #SEARCHING_REUSE_PROGRESS}
-	 * (only if reuseDeltas or reuseObjects is enabled) and
+	 * (only if reuseDeltas or reuseObjects is enabled),
+	 * {@value #DELTA_SEARCH_PROGRESS} (only if deltaCompress is enabled) and
 	 * {@value #WRITING_OBJECTS_PROGRESS} are updated during packing.
 	 * </p>
 	 * <p>
@@ -580,8 +880,13 @@ private List<ObjectToPack> sortByName() {
 	 *             stream.
 	 */
 	public void writePack(OutputStream packStream) throws IOException {
-		if (reuseDeltas || reuseObjects)
+		if (reuseDeltas || reuseObjects) {
 			searchForReuse();
+			if (reusePackRanges)
+				findReuseRanges();
+		}
+		if (deltaCompress && deltaSearchWindowSize > 0 && maxDeltaDepth > 0)
+			searchForDeltas();
 
 		if (!(packStream instanceof BufferedOutputStream))
 			packStream = new BufferedOutputStream(packStream);
@@ -589,6 +894,9 @@ public void writePack(OutputStream packStream) throws IOException {
 
 		writeMonitor.beginTask(WRITING_OBJECTS_PROGRESS, getObjectsNumber());
 		writeHeader();
+		if (cachedPack != null)
+			cachedPack.copyBodyTo(out, buf);
+		writeReuseRanges();
 		writeObjects();
 		writeChecksum();
 
@@ -632,8 +940,10 @@ private void selectDeltaReuseForObject(final ObjectToPack otp,
 				continue;
 			ObjectToPack otpBase = objectsMap.get(idBase);
 
-			// only if base is in set of objects to write or thin-pack's edge
-			if ((otpBase != null || (thin && edgeObjects.get(idBase) != null))
+			// only if base is in set of objects to write, in the cached
+			// pack or thin-pack's edge
+			if ((otpBase != null || (thin && isEdge(idBase))
+					|| isCached(idBase))
 			// select smallest possible delta if > 1 available
 					&& isBetterDeltaReuseLoader(bestLoader, loader)) {
 				bestLoader = loader;
@@ -647,6 +957,20 @@ && isBetterDeltaReuseLoader(bestLoader, loader)) {
 		}
 	}
 
+	private boolean isCached(final AnyObjectId id) {
+		return cachedPack != null && cachedPack.hasObject(id);
+	}
+
+	private boolean isEdge(final ObjectId id) throws IOException {
+		if (edgeObjects.get(id) != null)
+			return true;
+		if (haveBits != null) {
+			final int pos = bitmapPack.findPosition(id);
+			return pos >= 0 && haveBits.get(pos);
+		}
+		return false;
+	}
+
 	private static boolean isBetterDeltaReuseLoader(
 			PackedObjectLoader currentLoader, PackedObjectLoader loader)
 			throws IOException {
@@ -669,10 +993,434 @@ private void selectObjectReuseForObject(final ObjectToPack otp,
 		}
 	}
 
+	private void findReuseRanges() throws IOException {
+		final Map<PackFile, List<ObjectToPack>> byPack;
+		byPack = new HashMap<PackFile, List<ObjectToPack>>();
+		for (List<ObjectToPack> list : objectsLists) {
+			for (ObjectToPack otp : list) {
+				final PackedObjectLoader ldr = otp.getReuseLoader();
+				if (ldr == null)
+					continue;
+				List<ObjectToPack> inPack = byPack.get(ldr.pack);
+				if (inPack == null) {
+					inPack = new ArrayList<ObjectToPack>();
+					byPack.put(ldr.pack, inPack);
+				}
+				inPack.add(otp);
+			}
+		}
+
+		for (final Map.Entry<PackFile, List<ObjectToPack>> e : byPack
+				.entrySet()) {
+			final PackFile pack = e.getKey();
+			if (!pack.supportsFastCopyRawData())
+				continue;
+			final List<ObjectToPack> list = e.getValue();
+			Collections.sort(list, PACK_ORDER);
+
+			ReuseRange r = null;
+			for (ObjectToPack otp : list) {
+				final PackedObjectLoader ldr = otp.getReuseLoader();
+				if (r != null && r.end != ldr.objectOffset) {
+					// Something we don't send sits in between.
+					reuseRanges.add(r);
+					r = null;
+				}
+				if (!canCopyAsIs(otp, ldr, r)) {
+					if (r != null)
+						reuseRanges.add(r);
+					r = null;
+					continue;
+				}
+				if (r == null)
+					r = new ReuseRange(pack, ldr.objectOffset);
+				r.objects.add(otp);
+				r.end = pack.findEndOffset(ldr.objectOffset);
+				otp.markReuseRange();
+			}
+			if (r != null)
+				reuseRanges.add(r);
+		}
+	}
+
+	private boolean canCopyAsIs(final ObjectToPack otp,
+			final PackedObjectLoader ldr, final ReuseRange r)
+			throws IOException {
+		final ObjectId baseId = ldr.getDeltaBase();
+		if (baseId == null)
+			return !otp.isDeltaRepresentation();
+
+		// A delta can only be copied along with its base, so that the
+		// base is written first and an offset to it stays correct.
+		//
+		if (ldr instanceof DeltaOfsPackedObjectLoader && !deltaBaseAsOffset)
+			return false;
+		final ObjectToPack base = otp.getDeltaBase();
+		return r != null && base != null && base.isReuseRange()
+				&& base.getReuseLoader().pack == r.pack
+				&& base.getReuseLoader().objectOffset >= r.start;
+	}
+
+	private void writeReuseRanges() throws IOException {
+		for (final ReuseRange r : reuseRanges) {
+			final List<ObjectToPack> list = r.objects;
+			for (int i = 0; i < list.size(); i++) {
+				if (writeMonitor.isCancelled())
+					throw new IOException(
+							"Packing cancelled during objects writing");
+				final ObjectToPack otp = list.get(i);
+				final long start = otp.getReuseLoader().objectOffset;
+				final long end;
+				if (i + 1 < list.size())
+					end = list.get(i + 1).getReuseLoader().objectOffset;
+				else
+					end = r.end;
+
+				out.resetCRC32();
+				otp.setOffset(out.length());
+				r.pack.copyRange(start, end, out, buf, windowCursor);
+				final int crc = out.getCRC32();
+				if (crc != (int) r.pack.findCRC32(otp))
+					throw new CorruptObjectException("Object at " + start
+							+ " in " + r.pack.getPackFile()
+							+ " has bad zlib stream");
+				otp.setCRC(crc);
+				otp.disposeLoader();
+				writeMonitor.update(1);
+			}
+		}
+		reuseRanges.clear();
+	}
+
+	private void searchForDeltas() throws IOException {
+		final List<ObjectToPack> list = new ArrayList<ObjectToPack>();
+		for (List<ObjectToPack> objs : objectsLists) {
+			for (ObjectToPack otp : objs) {
+				if (otp.isReuseRange())
+					continue;
+				final long sz = db.openObject(windowCursor, otp).getSize();
+				if (MIN_DELTA_SIZE <= sz && sz <= BIG_FILE_THRESHOLD) {
+					otp.setWeight((int) sz);
+					list.add(otp);
+				}
+			}
+		}
+		windowCursor.release();
+		if (list.size() < 2)
+			return;
+		Collections.sort(list, DELTA_ORDER);
+
+		final int[] chunks = splitDeltaSearch(list);
+		final int chunkCount = chunks.length - 1;
+		final int threadCount = Math.min(getThreads(), chunkCount);
+
+		initMonitor.beginTask(DELTA_SEARCH_PROGRESS, list.size());
+		if (threadCount <= 1) {
+			final DeltaSearcher s = new DeltaSearcher(list, null);
+			for (int c = 0; c < chunkCount; c++)
+				s.search(chunks[c], chunks[c + 1]);
+			s.release();
+		} else
+			searchInParallel(list, chunks, threadCount);
+		initMonitor.endTask();
+
+		// Results were kept aside during the search, so that searches of
+		// different chunks never observe each other. A chain may cross a
+		// chunk boundary through a reused delta, so the depth limit is
+		// checked again on the merged result before applying it.
+		//
+		for (ObjectToPack otp : list) {
+			if (otp.getDeltaSearchBase() != null
+					&& mergedDeltaDepth(otp) > maxDeltaDepth) {
+				otp.setDeltaSearchBase(null);
+				otp.setDelta(null);
+			}
+		}
+		for (ObjectToPack otp : list) {
+			final ObjectToPack base = otp.getDeltaSearchBase();
+			if (base != null) {
+				otp.disposeLoader();
+				otp.setDeltaBase(base);
+				otp.setDeltaSearchBase(null);
+			}
+		}
+	}
+
+	/**
+	 * Divide the sorted list into independently searched chunks.
+	 * <p>
+	 * Boundaries depend only on the list, never on the number of threads, so
+	 * the same objects always produce the same pack. A chunk is extended past
+	 * its nominal size until the type or path changes, keeping objects that
+	 * are likely to delta against each other together.
+	 *
+	 * @param list
+	 *            objects to search, in delta search order.
+	 * @return boundaries of the chunks; chunk i covers the range
+	 *         <code>[r[i], r[i + 1])</code>.
+	 */
+	private static int[] splitDeltaSearch(final List<ObjectToPack> list) {
+		final int sz = list.size();
+		final List<Integer> bounds = new ArrayList<Integer>();
+		bounds.add(0);
+		int end = 0;
+		while (end < sz) {
+			final int limit = Math.min(sz, end + 2 * DELTA_SEARCH_CHUNK);
+			end = Math.min(sz, end + DELTA_SEARCH_CHUNK);
+			while (0 < end && end < limit
+					&& sameGroup(list.get(end - 1), list.get(end)))
+				end++;
+			bounds.add(end);
+		}
+
+		final int[] r = new int[bounds.size()];
+		for (int i = 0; i < r.length; i++)
+			r[i] = bounds.get(i);
+		return r;
+	}
+
+	private static boolean sameGroup(final ObjectToPack a,
+			final ObjectToPack b) {
+		return a.getType() == b.getType() && a.getPathHash() == b.getPathHash();
+	}
+
+	private void searchInParallel(final List<ObjectToPack> list,
+			final int[] chunks, final int threadCount) throws IOException {
+		final AtomicInteger nextChunk = new AtomicInteger();
+		final AtomicBoolean stop = new AtomicBoolean();
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] workers = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			workers[i] = new Thread("PackWriter-DeltaSearch-" + i) {
+				@Override
+				public void run() {
+					final DeltaSearcher s = new DeltaSearcher(list, stop);
+					try {
+						int c;
+						while ((c = nextChunk.getAndIncrement()) < chunks.length - 1) {
+							synchronized (failure) {
+								if (failure[0] != null)
+									break;
+							}
+							s.search(chunks[c], chunks[c + 1]);
+						}
+					} catch (Throwable e) {
+						synchronized (failure) {
+							if (failure[0] == null)
+								failure[0] = e;
+						}
+						stop.set(true);
+					} finally {
+						s.release();
+					}
+				}
+			};
+			workers[i].start();
+		}
+
+		boolean interrupted = false;
+		for (final Thread t : workers) {
+			for (;;) {
+				try {
+					t.join();
+					break;
+				} catch (InterruptedException e) {
+					// Cancel the remaining work, but still wait for every
+					// worker so none is left running against this writer.
+					//
+					synchronized (failure) {
+						if (failure[0] == null)
+							failure[0] = e;
+					}
+					stop.set(true);
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		final Throwable err = failure[0];
+		if (err instanceof IOException)
+			throw (IOException) err;
+		if (err instanceof RuntimeException)
+			throw (RuntimeException) err;
+		if (err instanceof Error)
+			throw (Error) err;
+		if (err != null)
+			throw new InterruptedIOException("Delta search interrupted");
+	}
+
+	/** Searches chunks of the sorted object list, one at a time. */
+	private class DeltaSearcher {
+		private final List<ObjectToPack> list;
+
+		private final WindowCursor curs = new WindowCursor();
+
+		private final DeltaWindowEntry[] window = new DeltaWindowEntry[deltaSearchWindowSize];
+
+		private final AtomicBoolean stop;
+
+		DeltaSearcher(final List<ObjectToPack> list, final AtomicBoolean stop) {
+			this.list = list;
+			this.stop = stop;
+		}
+
+		void search(final int start, final int end) throws IOException {
+			Arrays.fill(window, null);
+			int windowPtr = 0;
+			for (int i = start; i < end; i++) {
+				final ObjectToPack otp = list.get(i);
+				synchronized (initMonitor) {
+					if (initMonitor.isCancelled())
+						throw new IOException(
+								"Packing cancelled during delta search");
+				}
+				if (stop != null && stop.get())
+					throw new InterruptedIOException("Delta search stopped");
+
+				final byte[] data = db.openObject(curs, otp).getCachedBytes();
+				if (!otp.isDeltaRepresentation())
+					selectDelta(otp, data, windowPtr);
+
+				window[windowPtr] = new DeltaWindowEntry(otp, data);
+				if (++windowPtr == window.length)
+					windowPtr = 0;
+				synchronized (initMonitor) {
+					initMonitor.update(1);
+				}
+			}
+			Arrays.fill(window, null);
+		}
+
+		void release() {
+			curs.release();
+		}
+
+		private void selectDelta(final ObjectToPack otp, final byte[] data,
+				final int windowPtr) {
+			byte[] bestDelta = null;
+			ObjectToPack bestBase = null;
+
+			// Try the most recently added (and so most similar) bases first.
+			//
+			for (int i = 1; i <= window.length; i++) {
+				final DeltaWindowEntry w = window[(windowPtr - i + window.length)
+						% window.length];
+				if (w == null)
+					break;
+				if (w.object.getType() != otp.getType())
+					continue;
+
+				final int baseDepth = deltaDepth(w.object, otp);
+				if (baseDepth < 0 || baseDepth >= maxDeltaDepth)
+					continue;
+
+				// Deeper bases must save proportionally more to be worth it.
+				//
+				int limit = (data.length / 2 - 20)
+						* (maxDeltaDepth - baseDepth) / maxDeltaDepth;
+				if (bestDelta != null && bestDelta.length <= limit)
+					limit = bestDelta.length - 1;
+				if (limit <= 0)
+					continue;
+				if (data.length - w.data.length > limit)
+					continue;
+				if (w.data.length < data.length / 32)
+					continue;
+
+				final byte[] delta = w.index().encode(data, limit);
+				if (delta != null) {
+					bestDelta = delta;
+					bestBase = w.object;
+				}
+			}
+
+			if (bestDelta != null) {
+				otp.setDeltaSearchBase(bestBase);
+				otp.setDelta(bestDelta);
+			}
+		}
+	}
+
+	/**
+	 * Compute the length of the delta chain below a candidate base.
+	 * <p>
+	 * Deltas chosen by the current search are followed only while the chain
+	 * stays within the chunk being searched; once the chain reaches a reused
+	 * delta only reused deltas are followed, as objects of other chunks may
+	 * be updated concurrently.
+	 *
+	 * @param base
+	 *            the candidate delta base, from the search window.
+	 * @param otp
+	 *            the object looking for a base.
+	 * @return number of deltas that must be applied to recreate base; -1 if
+	 *         base's chain already depends on otp.
+	 */
+	private int deltaDepth(final ObjectToPack base, final ObjectToPack otp) {
+		ObjectToPack p = base;
+		boolean inChunk = true;
+		int depth = 0;
+		while (depth < maxDeltaDepth) {
+			final ObjectId next;
+			if (inChunk && p.getDeltaSearchBase() != null)
+				next = p.getDeltaSearchBase();
+			else if (p.isDeltaRepresentation()) {
+				next = p.getDeltaBaseId();
+				inChunk = false;
+			} else
+				break;
+
+			depth++;
+			if (next == otp)
+				return -1;
+			if (!(next instanceof ObjectToPack))
+				break;
+			p = (ObjectToPack) next;
+		}
+		return depth;
+	}
+
+	/**
+	 * Compute the length of an object's delta chain once every chunk's search
+	 * results are known.
+	 *
+	 * @param otp
+	 *            object whose chain is measured.
+	 * @return number of deltas that must be applied to recreate otp; a value
+	 *         above {@link #getMaxDeltaDepth()} if the chain is too long or
+	 *         loops back to otp.
+	 */
+	private int mergedDeltaDepth(final ObjectToPack otp) {
+		ObjectToPack p = otp;
+		int depth = 0;
+		while (depth <= maxDeltaDepth) {
+			final ObjectId next;
+			if (p.getDeltaSearchBase() != null)
+				next = p.getDeltaSearchBase();
+			else if (p.isDeltaRepresentation())
+				next = p.getDeltaBaseId();
+			else
+				break;
+
+			depth++;
+			if (next == otp)
+				return maxDeltaDepth + 1;
+			if (!(next instanceof ObjectToPack))
+				break;
+			p = (ObjectToPack) next;
+		}
+		return depth;
+	}
+
 	private void writeHeader() throws IOException {
 		System.arraycopy(Constants.PACK_SIGNATURE, 0, buf, 0, 4);
 		NB.encodeInt32(buf, 4, PACK_VERSION_GENERATED);
-		NB.encodeInt32(buf, 8, getObjectsNumber());
+		long cnt = getObjectsNumber();
+		if (cachedPack != null)
+			cnt += cachedPack.getObjectCount();
+		NB.encodeInt32(buf, 8, (int) cnt);
 		out.write(buf, 0, 12);
 	}
 
@@ -692,7 +1440,7 @@ private void writeObject(final ObjectToPack otp) throws IOException {
 		otp.markWantWrite();
 		if (otp.isDeltaRepresentation()) {
 			ObjectToPack deltaBase = otp.getDeltaBase();
-			assert deltaBase != null || thin;
+			assert deltaBase != null || thin || cachedPack != null;
 			if (deltaBase != null && !deltaBase.isWritten()) {
 				if (deltaBase.wantWrite()) {
 					otp.clearDeltaBase(); // cycle detected
@@ -726,21 +1474,17 @@ private void writeWholeObject(final ObjectToPack otp) throws IOException {
 			final ObjectLoader loader = db.openObject(windowCursor, otp);
 			final byte[] data = loader.getCachedBytes();
 			writeObjectHeader(otp.getType(), data.length);
-			deflater.reset();
-			deflater.setInput(data, 0, data.length);
-			deflater.finish();
-			do {
-				final int n = deflater.deflate(buf, 0, buf.length);
-				if (n > 0)
-					out.write(buf, 0, n);
-			} while (!deflater.finished());
+			deflate(data);
 		}
 	}
 
 	private void writeDeltaObject(final ObjectToPack otp) throws IOException {
 		final PackedObjectLoader loader = otp.getReuseLoader();
+		final byte[] delta = otp.getDelta();
+		final long deltaSize = delta != null ? delta.length : loader
+				.getRawSize();
 		if (deltaBaseAsOffset && otp.getDeltaBase() != null) {
-			writeObjectHeader(Constants.OBJ_OFS_DELTA, loader.getRawSize());
+			writeObjectHeader(Constants.OBJ_OFS_DELTA, deltaSize);
 
 			final ObjectToPack deltaBase = otp.getDeltaBase();
 			long offsetDiff = otp.getOffset() - deltaBase.getOffset();
@@ -752,12 +1496,28 @@ private void writeDeltaObject(final ObjectToPack otp) throws IOException {
 
 			out.write(buf, pos, buf.length - pos);
 		} else {
-			writeObjectHeader(Constants.OBJ_REF_DELTA, loader.getRawSize());
+			writeObjectHeader(Constants.OBJ_REF_DELTA, deltaSize);
 			otp.getDeltaBaseId().copyRawTo(buf, 0);
 			out.write(buf, 0, Constants.OBJECT_ID_LENGTH);
 		}
-		loader.copyRawData(out, buf);
-		otp.disposeLoader();
+		if (delta != null) {
+			deflate(delta);
+			otp.setDelta(null);
+		} else {
+			loader.copyRawData(out, buf);
+			otp.disposeLoader();
+		}
+	}
+
+	private void deflate(final byte[] data) throws IOException {
+		deflater.reset();
+		deflater.setInput(data, 0, data.length);
+		deflater.finish();
+		do {
+			final int n = deflater.deflate(buf, 0, buf.length);
+			if (n > 0)
+				out.write(buf, 0, n);
+		} while (!deflater.finished());
 	}
 
 	private void writeObjectHeader(final int objectType, long dataLength)
@@ -786,6 +1546,7 @@ private ObjectWalk setUpWalker(
 			throws MissingObjectException, IOException,
 			IncorrectObjectTypeException {
 		final ObjectWalk walker = new ObjectWalk(db);
+		walker.setRetainBody(false);
 		walker.sort(RevSort.TOPO);
 		walker.sort(RevSort.COMMIT_TIME_DESC, true);
 		if (thin)
@@ -809,6 +1570,79 @@ private ObjectWalk setUpWalker(
 		return walker;
 	}
 
+	private boolean prepareFromBitmaps(
+			final Collection<? extends ObjectId> interestingObjects,
+			final Collection<? extends ObjectId> uninterestingObjects)
+			throws MissingObjectException, IOException,
+			IncorrectObjectTypeException {
+		PackFile pack = null;
+		PackBitmapIndex bitmaps = null;
+		for (final PackFile p : db.getPacks()) {
+			bitmaps = p.getBitmapIndex();
+			if (bitmaps != null) {
+				pack = p;
+				break;
+			}
+		}
+		if (pack == null)
+			return false;
+
+		initMonitor.beginTask(COUNTING_OBJECTS_PROGRESS,
+				ProgressMonitor.UNKNOWN);
+		final PackBitmapIndex index = bitmaps;
+		final RevWalk rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		final BitmapWalker walker = new BitmapWalker(pack, rw, true) {
+			@Override
+			BitSet findBitmap(final RevCommit c) {
+				return index.getBitmap(c);
+			}
+		};
+
+		for (ObjectId id : uninterestingObjects) {
+			final RevObject o;
+			try {
+				o = rw.parseAny(id);
+			} catch (MissingObjectException x) {
+				if (ignoreMissingUninteresting)
+					continue;
+				throw x;
+			}
+			walker.include(o);
+		}
+		final BitSet have = (BitSet) walker.bits.clone();
+		final int haveOutside = walker.outside.size();
+
+		for (ObjectId id : interestingObjects)
+			walker.include(rw.parseAny(id));
+		final BitSet want = walker.bits;
+		want.andNot(have);
+
+		for (int type = Constants.OBJ_COMMIT; type <= Constants.OBJ_TAG; type++) {
+			final BitSet ofType = (BitSet) index.ofObjectType(type).clone();
+			ofType.or(walker.types[type]);
+			ofType.and(want);
+			for (int pos = ofType.nextSetBit(0); pos >= 0; pos = ofType
+					.nextSetBit(pos + 1)) {
+				addObject(pack.findObjectByPosition(pos), type, 0);
+				initMonitor.update(1);
+			}
+		}
+
+		final List<RevObject> outside = walker.outside;
+		for (final RevObject o : outside.subList(0, haveOutside))
+			edgeObjects.add(o);
+		for (final RevObject o : outside.subList(haveOutside, outside.size())) {
+			addObject(o, o.getType(), 0);
+			initMonitor.update(1);
+		}
+		initMonitor.endTask();
+
+		bitmapPack = pack;
+		haveBits = have;
+		return true;
+	}
+
 	private void findObjectsToPack(final ObjectWalk walker)
 			throws MissingObjectException, IncorrectObjectTypeException,
 			IOException {
@@ -822,7 +1656,7 @@ private void findObjectsToPack(final ObjectWalk walker)
 			initMonitor.update(1);
 		}
 		while ((o = walker.nextObject()) != null) {
-			addObject(o);
+			addObject(o, pathHash(walker.getPathString()));
 			o.dispose();
 			initMonitor.update(1);
 		}
@@ -843,26 +1677,97 @@ private void findObjectsToPack(final ObjectWalk walker)
 	 */
 	public void addObject(final RevObject object)
 			throws IncorrectObjectTypeException {
+		addObject(object, 0);
+	}
+
+	private void addObject(final RevObject object, final int pathHash)
+			throws IncorrectObjectTypeException {
 		if (object.has(RevFlag.UNINTERESTING)) {
 			edgeObjects.add(object);
 			thin = true;
 			return;
 		}
+		addObject(object, object.getType(), pathHash);
+	}
 
-		final ObjectToPack otp = new ObjectToPack(object, object.getType());
+	private void addObject(final AnyObjectId id, final int type,
+			final int pathHash) throws IncorrectObjectTypeException {
+		if (isCached(id))
+			return;
+		final ObjectToPack otp = new ObjectToPack(id, type);
+		otp.setPathHash(pathHash);
 		try {
-			objectsLists[object.getType()].add(otp);
+			objectsLists[type].add(otp);
 		} catch (ArrayIndexOutOfBoundsException x) {
-			throw new IncorrectObjectTypeException(object,
+			throw new IncorrectObjectTypeException(id.toObjectId(),
 					"COMMIT nor TREE nor BLOB nor TAG");
 		} catch (UnsupportedOperationException x) {
 			// index pointing to "dummy" empty list
-			throw new IncorrectObjectTypeException(object,
+			throw new IncorrectObjectTypeException(id.toObjectId(),
 					"COMMIT nor TREE nor BLOB nor TAG");
 		}
 		objectsMap.add(otp);
 	}
 
+	/**
+	 * Hash a path so that files with the same name sort near each other.
+	 * <p>
+	 * The last characters of the path carry the most weight, grouping files
+	 * with the same name (or extension) in different directories.
+	 *
+	 * @param path
+	 *            the path of the object, or null if it has none.
+	 * @return the hash code; 0 if path is null.
+	 */
+	static int pathHash(final String path) {
+		if (path == null)
+			return 0;
+		int hash = 0;
+		for (int i = 0; i < path.length(); i++) {
+			final char c = path.charAt(i);
+			if (Character.isWhitespace(c))
+				continue;
+			hash = (hash >>> 2) + (c << 24);
+		}
+		return hash;
+	}
+
+	/** Objects stored next to each other in a pack, copied as one range. */
+	private static class ReuseRange {
+		final PackFile pack;
+
+		final long start;
+
+		long end;
+
+		final List<ObjectToPack> objects = new ArrayList<ObjectToPack>();
+
+		ReuseRange(final PackFile pack, final long start) {
+			this.pack = pack;
+			this.start = start;
+		}
+	}
+
+	/** An object, with its content, in the delta search window. */
+	private static class DeltaWindowEntry {
+		final ObjectToPack object;
+
+		final byte[] data;
+
+		private DeltaIndex index;
+
+		DeltaWindowEntry(final ObjectToPack object, final byte[] data) {
+			this.object = object;
+			this.data = data;
+		}
+
+		DeltaIndex index() {
+			if (index == null)
+				index = new DeltaIndex(data);
+			return index;
+		}
+	}
+
 	/**
 	 * Class holding information about object that is going to be packed by
 	 * {@link PackWriter}. Information include object representation in a
@@ -874,6 +1779,16 @@ static class ObjectToPack extends PackedObjectInfo {
 
 		private PackedObjectLoader reuseLoader;
 
+		private byte[] delta;
+
+		private ObjectToPack deltaSearchBase;
+
+		private int pathHash;
+
+		private int weight;
+
+		private boolean reuseRange;
+
 		/**
 		 * Bit field, from bit 0 to bit 31:
 		 * <ul>
@@ -935,6 +1850,48 @@ void setDeltaBase(ObjectId deltaBase) {
 
 		void clearDeltaBase() {
 			this.deltaBase = null;
+			this.delta = null;
+		}
+
+		/**
+		 * @return delta computed by the delta search, to be written instead
+		 *         of a reused representation; null if there is none.
+		 */
+		byte[] getDelta() {
+			return delta;
+		}
+
+		void setDelta(final byte[] delta) {
+			this.delta = delta;
+		}
+
+		/**
+		 * @return base chosen by the delta search but not yet applied with
+		 *         {@link #setDeltaBase(ObjectId)}; null if there is none.
+		 */
+		ObjectToPack getDeltaSearchBase() {
+			return deltaSearchBase;
+		}
+
+		void setDeltaSearchBase(final ObjectToPack base) {
+			deltaSearchBase = base;
+		}
+
+		int getPathHash() {
+			return pathHash;
+		}
+
+		void setPathHash(final int hash) {
+			pathHash = hash;
+		}
+
+		/** @return size of the object, recorded for the delta search. */
+		int getWeight() {
+			return weight;
+		}
+
+		void setWeight(final int size) {
+			weight = size;
 		}
 
 		/**
@@ -971,6 +1928,18 @@ void disposeLoader() {
 			this.reuseLoader = null;
 		}
 
+		/**
+		 * @return true if the object is copied as part of a range of the pack
+		 *         holding its reuse loader.
+		 */
+		boolean isReuseRange() {
+			return reuseRange;
+		}
+
+		void markReuseRange() {
+			reuseRange = true;
+		}
+
 		int getType() {
 			return (flags>>1) & 0x7;
 		}
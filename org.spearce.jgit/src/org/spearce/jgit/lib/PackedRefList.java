@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+import org.spearce.jgit.util.IntList;
+import org.spearce.jgit.util.NB;
+import org.spearce.jgit.util.RawParseUtils;
+
+/**
+ * Read-only view of a {@link Constants#PACKED_REFS} file.
+ * <p>
+ * The file content is held in its raw form. Refs are only parsed when they
+ * are asked for, and both exact lookups and prefix scans locate the matching
+ * records by a binary search over the sorted file. Files written without the
+ * <code>sorted</code> trait are verified, and sorted in memory if they turn
+ * out to be out of order, when they are loaded.
+ */
+final class PackedRefList {
+	/** A list with no refs, used when there is no packed-refs file. */
+	static final PackedRefList EMPTY = new PackedRefList(new byte[0], 0,
+			false);
+
+	private static final byte[] TRAITS = Constants
+			.encodeASCII("# pack-refs with:");
+
+	/**
+	 * Load the packed-refs file.
+	 *
+	 * @param path
+	 *            location of the file.
+	 * @return the refs of the file.
+	 * @throws IOException
+	 *             the file does not exist or cannot be read, or its records
+	 *             are malformed.
+	 */
+	static PackedRefList read(final File path) throws IOException {
+		final FileInputStream in = new FileInputStream(path);
+		try {
+			final long sz = in.getChannel().size();
+			if (sz > Integer.MAX_VALUE)
+				throw new IOException("Packed refs too large: " + path);
+			final byte[] buf = new byte[(int) sz];
+			NB.readFully(in, buf, 0, buf.length);
+			return parse(buf);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parse the content of a packed-refs file.
+	 *
+	 * @param content
+	 *            the complete file. The array is retained by the list and
+	 *            must not be modified by the caller.
+	 * @return the refs of the file.
+	 * @throws IOException
+	 *             the file is not sorted and its records are malformed.
+	 */
+	static PackedRefList parse(final byte[] content) throws IOException {
+		boolean sorted = false;
+		boolean peeled = false;
+		int ptr = 0;
+		while (ptr < content.length && content[ptr] == '#') {
+			final int eol = RawParseUtils.nextLF(content, ptr);
+			if (RawParseUtils.match(content, ptr, TRAITS) >= 0) {
+				final int t = ptr + TRAITS.length;
+				sorted |= hasTrait(content, t, eol, "sorted");
+				peeled |= hasTrait(content, t, eol, "peeled");
+			}
+			ptr = eol;
+		}
+
+		if (sorted || isSorted(content, ptr))
+			return new PackedRefList(content, ptr, peeled);
+		return new PackedRefList(sort(content, ptr), 0, peeled);
+	}
+
+	private final byte[] buf;
+
+	private final int start;
+
+	/** The file has the peeled trait; records without "^" are not tags. */
+	private final boolean peeled;
+
+	private PackedRefList(final byte[] content, final int firstRecord,
+			final boolean peeledTrait) {
+		buf = content;
+		start = firstRecord;
+		peeled = peeledTrait;
+	}
+
+	/** @return true if the file does not contain any refs. */
+	boolean isEmpty() {
+		return start == buf.length;
+	}
+
+	/**
+	 * Locate a single ref.
+	 *
+	 * @param name
+	 *            complete name of the ref, e.g. <code>refs/heads/master</code>.
+	 * @return the ref; null if it is not in the file.
+	 */
+	Ref get(final String name) {
+		final byte[] key = Constants.encode(name);
+		final int rec = find(key);
+		if (rec < buf.length && compare(rec, key) == 0)
+			return parse(rec);
+		return null;
+	}
+
+	/**
+	 * Add all refs whose name starts with the prefix to a map.
+	 *
+	 * @param prefix
+	 *            required prefix of the names; "" to add every ref.
+	 * @param dst
+	 *            map to receive the refs, keyed by their name.
+	 */
+	void scan(final String prefix, final Map<String, Ref> dst) {
+		final byte[] key = Constants.encode(prefix);
+		for (int rec = find(key); rec < buf.length; rec = next(rec)) {
+			if (!startsWith(rec, key))
+				break;
+			final Ref r = parse(rec);
+			dst.put(r.getName(), r);
+		}
+	}
+
+	/** @return the first record whose name is not less than the key. */
+	private int find(final byte[] key) {
+		int low = start;
+		int high = buf.length;
+		while (low < high) {
+			final int rec = recordAt((low + high) >>> 1);
+			if (compare(rec, key) < 0)
+				low = next(rec);
+			else
+				high = rec;
+		}
+		return low;
+	}
+
+	private int recordAt(int ptr) {
+		ptr = lineAt(ptr);
+		if (buf[ptr] == '^')
+			ptr = lineAt(ptr - 1);
+		return ptr;
+	}
+
+	private int lineAt(int ptr) {
+		while (start < ptr && buf[ptr - 1] != '\n')
+			ptr--;
+		return ptr;
+	}
+
+	private int next(final int rec) {
+		final int ptr = RawParseUtils.nextLF(buf, rec);
+		if (ptr < buf.length && buf[ptr] == '^')
+			return RawParseUtils.nextLF(buf, ptr);
+		return ptr;
+	}
+
+	private int compare(final int rec, final byte[] key) {
+		return compare(buf, rec, key, 0, key.length);
+	}
+
+	private boolean startsWith(final int rec, final byte[] key) {
+		final int end = nameEnd(buf, rec);
+		int ptr = nameStart(rec);
+		if (end - ptr < key.length)
+			return false;
+		for (int k = 0; k < key.length; k++, ptr++) {
+			if (buf[ptr] != key[k])
+				return false;
+		}
+		return true;
+	}
+
+	private Ref parse(final int rec) {
+		final ObjectId id = ObjectId.fromString(buf, rec);
+		final String name = RawParseUtils.decode(Constants.CHARSET, buf,
+				nameStart(rec), nameEnd(buf, rec));
+		final int ptr = RawParseUtils.nextLF(buf, rec);
+		if (ptr < buf.length && buf[ptr] == '^') {
+			final ObjectId peeled = ObjectId.fromString(buf, ptr + 1);
+			return new Ref(Ref.Storage.PACKED, name, name, id, peeled, true);
+		}
+		if (this.peeled)
+			return new Ref(Ref.Storage.PACKED, name, name, id, null, true);
+		return new Ref(Ref.Storage.PACKED, name, name, id);
+	}
+
+	private static int nameStart(final int rec) {
+		return rec + Constants.OBJECT_ID_LENGTH * 2 + 1;
+	}
+
+	private static int nameEnd(final byte[] buf, final int rec) {
+		final int ptr = RawParseUtils.nextLF(buf, rec);
+		return buf[ptr - 1] == '\n' ? ptr - 1 : ptr;
+	}
+
+	private static int compare(final byte[] buf, final int rec,
+			final byte[] key, int kPtr, final int kEnd) {
+		final int end = nameEnd(buf, rec);
+		int ptr = nameStart(rec);
+		for (; ptr < end && kPtr < kEnd; ptr++, kPtr++) {
+			final int cmp = (buf[ptr] & 0xff) - (key[kPtr] & 0xff);
+			if (cmp != 0)
+				return cmp;
+		}
+		return (end - ptr) - (kEnd - kPtr);
+	}
+
+	private static boolean hasTrait(final byte[] buf, int ptr, final int end,
+			final String trait) {
+		final byte[] t = Constants.encodeASCII(trait);
+		while (ptr < end) {
+			while (ptr < end && buf[ptr] == ' ')
+				ptr++;
+			final int e = RawParseUtils.match(buf, ptr, t);
+			if (e >= 0 && (e == end || buf[e] == ' ' || buf[e] == '\n'))
+				return true;
+			while (ptr < end && buf[ptr] != ' ')
+				ptr++;
+		}
+		return false;
+	}
+
+	private static IntList records(final byte[] buf, int ptr)
+			throws IOException {
+		final IntList recs = new IntList();
+		while (ptr < buf.length) {
+			if (buf[ptr] == '^')
+				throw new IOException("Peeled line before ref.");
+			final int eol = RawParseUtils.nextLF(buf, ptr);
+			if (eol - ptr <= Constants.OBJECT_ID_LENGTH * 2 + 1
+					|| buf[ptr + Constants.OBJECT_ID_LENGTH * 2] != ' ')
+				throw new IOException("Invalid packed ref line: "
+						+ RawParseUtils.decode(Constants.CHARSET, buf, ptr,
+								eol));
+			recs.add(ptr);
+			ptr = eol;
+			if (ptr < buf.length && buf[ptr] == '^')
+				ptr = RawParseUtils.nextLF(buf, ptr);
+		}
+		return recs;
+	}
+
+	private static boolean isSorted(final byte[] buf, final int ptr)
+			throws IOException {
+		final IntList recs = records(buf, ptr);
+		for (int i = 1; i < recs.size(); i++) {
+			final int prior = recs.get(i - 1);
+			final int rec = recs.get(i);
+			if (compare(buf, prior, buf, nameStart(rec), nameEnd(buf, rec)) > 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] sort(final byte[] buf, final int ptr)
+			throws IOException {
+		final IntList recs = records(buf, ptr);
+		final Integer[] order = new Integer[recs.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = Integer.valueOf(recs.get(i));
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(final Integer a, final Integer b) {
+				final int rec = b.intValue();
+				return PackedRefList.compare(buf, a.intValue(), buf,
+						nameStart(rec), nameEnd(buf, rec));
+			}
+		});
+
+		final byte[] r = new byte[buf.length - ptr + order.length];
+		int n = 0;
+		for (final Integer rec : order) {
+			final int s = rec.intValue();
+			int e = RawParseUtils.nextLF(buf, s);
+			if (e < buf.length && buf[e] == '^')
+				e = RawParseUtils.nextLF(buf, e);
+			System.arraycopy(buf, s, r, n, e - s);
+			n += e - s;
+			if (buf[e - 1] != '\n')
+				r[n++] = '\n';
+		}
+		if (n == r.length)
+			return r;
+		final byte[] t = new byte[n];
+		System.arraycopy(r, 0, t, 0, n);
+		return t;
+	}
+}
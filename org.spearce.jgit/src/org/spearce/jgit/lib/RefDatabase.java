@@ -45,19 +45,30 @@
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import org.spearce.jgit.errors.ObjectWritingException;
 import org.spearce.jgit.lib.Ref.Storage;
 import org.spearce.jgit.util.FS;
 import org.spearce.jgit.util.NB;
+import org.spearce.jgit.util.RawParseUtils;
 
 class RefDatabase {
 	private static final String REFS_SLASH = "refs/";
 
+	private static final String JOURNAL_HEADER = "# ref-journal ";
+
+	/** Size at which the next update starts a new ref journal. */
+	static final long MAX_JOURNAL = 1024 * 1024;
+
 	private static final String[] refSearchPaths = { "", REFS_SLASH,
 			R_TAGS, Constants.R_HEADS, Constants.R_REMOTES };
 
@@ -73,12 +84,21 @@ class RefDatabase {
 
 	private final File packedRefsFile;
 
-	private Map<String, Ref> packedRefs;
+	private PackedRefList packedRefs;
 
 	private long packedRefsLastModified;
 
 	private long packedRefsLength;
 
+	private final File journalFile;
+
+	/** Loose refs as of {@link #journalOffset}; null if not tracking. */
+	private Map<String, Ref> journalLoose;
+
+	private String journalToken;
+
+	private long journalOffset;
+
 	int lastRefModification;
 
 	int lastNotifiedRefModification;
@@ -90,16 +110,18 @@ class RefDatabase {
 		gitDir = db.getDirectory();
 		refsDir = FS.resolve(gitDir, "refs");
 		packedRefsFile = FS.resolve(gitDir, "packed-refs");
+		journalFile = FS.resolve(gitDir, "ref-journal");
 		clearCache();
 	}
 
 	synchronized void clearCache() {
 		looseRefs = new HashMap<String, Ref>();
 		looseRefsMTime = new HashMap<String, Long>();
-		packedRefs = new HashMap<String, Ref>();
+		packedRefs = PackedRefList.EMPTY;
 		looseSymRefs = new HashMap<String, String>();
 		packedRefsLastModified = 0;
 		packedRefsLength = 0;
+		journalLoose = null;
 	}
 
 	Repository getRepository() {
@@ -144,9 +166,102 @@ void stored(final String origName, final String name, final ObjectId id, final l
 			looseRefsMTime.put(name, time);
 			setModified();
 		}
+		appendJournal(Collections.singleton(name));
+		db.fireRefsMaybeChanged();
+	}
+
+	/**
+	 * Record the deletion of a ref.
+	 *
+	 * @param name
+	 *            name of the ref that was removed.
+	 */
+	void deleted(final String name) {
+		appendJournal(Collections.singleton(name));
+	}
+
+	/**
+	 * Record refs whose loose files were replaced by packed-refs entries, or
+	 * removed, by a batch update.
+	 *
+	 * @param names
+	 *            names of the refs that changed.
+	 */
+	void batchStored(final Collection<String> names) {
+		synchronized (this) {
+			for (final String name : names) {
+				looseRefs.remove(name);
+				looseRefsMTime.remove(name);
+			}
+			setModified();
+		}
+		appendJournal(names);
 		db.fireRefsMaybeChanged();
 	}
 
+	/**
+	 * Lock the packed-refs file for a batch update.
+	 *
+	 * @return the held lock; null if someone else holds it.
+	 * @throws IOException
+	 *             the lock file could not be created.
+	 */
+	LockFile lockPackedRefs() throws IOException {
+		final LockFile lck = new LockFile(packedRefsFile);
+		return lck.lock() ? lck : null;
+	}
+
+	/**
+	 * Rewrite the packed-refs file with a set of changes applied.
+	 *
+	 * @param lck
+	 *            lock of the packed-refs file, from {@link #lockPackedRefs()}.
+	 *            It is committed by this method.
+	 * @param update
+	 *            refs to add or replace, keyed by their name.
+	 * @param remove
+	 *            names of refs to remove.
+	 * @throws IOException
+	 *             the current file cannot be read, or the new one written.
+	 */
+	synchronized void writePackedRefs(final LockFile lck,
+			final Map<String, Ref> update, final Collection<String> remove)
+			throws IOException {
+		final Map<String, Ref> all = new HashMap<String, Ref>();
+		try {
+			PackedRefList.read(packedRefsFile).scan("", all);
+		} catch (FileNotFoundException noPackedRefs) {
+			// Start from an empty file.
+		}
+		for (final String name : remove)
+			all.remove(name);
+		all.putAll(update);
+
+		// The new refs are peeled. Peel the older ones too, so the file
+		// can keep (or gain) the peeled trait without hiding their tags.
+		//
+		for (final Map.Entry<String, Ref> e : all.entrySet()) {
+			if (!e.getValue().isPeeled())
+				e.setValue(peel(e.getValue()));
+		}
+
+		new RefWriter(all.values()) {
+			@Override
+			protected void writeFile(String name, byte[] content)
+					throws IOException {
+				lck.write(content);
+			}
+		}.writePackedRefs();
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write "
+					+ Constants.PACKED_REFS);
+
+		// Force the rewritten file to be loaded on the next read.
+		packedRefsLastModified = 0;
+		packedRefsLength = 0;
+		packedRefs = PackedRefList.EMPTY;
+	}
+
 	/**
 	 * Writes a symref (e.g. HEAD) to disk
 	 * 
@@ -162,6 +277,7 @@ void link(final String name, final String target) throws IOException {
 		synchronized (this) {
 			setModified();
 		}
+		appendJournal(Collections.singleton(name));
 		db.fireRefsMaybeChanged();
 	}
 
@@ -183,7 +299,51 @@ Ref readRef(final String partialName) throws IOException {
 	 * @return all known refs (heads, tags, remotes).
 	 */
 	Map<String, Ref> getAllRefs() {
-		return readRefs();
+		return getRefs("");
+	}
+
+	/**
+	 * Read only the refs whose names start with a prefix.
+	 * <p>
+	 * A prefix below <code>refs/</code> limits the loose refs read to the
+	 * directory named by the prefix, and the packed refs to the matching range
+	 * of the packed-refs file.
+	 *
+	 * @param prefix
+	 *            required prefix of the ref names, e.g. <code>refs/heads/</code>.
+	 *            "" reads all refs, including HEAD.
+	 * @return the matching refs, keyed by their complete name.
+	 */
+	Map<String, Ref> getRefs(final String prefix) {
+		final HashMap<String, Ref> avail = new HashMap<String, Ref>();
+		readPackedRefs(prefix, avail);
+		if (readJournaledRefs(prefix, avail)) {
+			// Loose refs are known from the journal.
+		} else if (prefix.startsWith(REFS_SLASH)) {
+			final String dir = prefix.substring(0, prefix.lastIndexOf('/') + 1);
+			readLooseRefs(avail, dir, fileForRef(dir));
+		} else if (REFS_SLASH.startsWith(prefix))
+			readAllLooseRefs(avail);
+
+		if (Constants.HEAD.startsWith(prefix)) {
+			try {
+				final Ref r = readRefBasic(Constants.HEAD, 0);
+				if (r != null && r.getObjectId() != null)
+					avail.put(Constants.HEAD, r);
+			} catch (IOException e) {
+				// ignore here
+			}
+		}
+		db.fireRefsMaybeChanged();
+
+		if (prefix.length() > 0) {
+			final Iterator<String> i = avail.keySet().iterator();
+			while (i.hasNext()) {
+				if (!i.next().startsWith(prefix))
+					i.remove();
+			}
+		}
+		return avail;
 	}
 
 	/**
@@ -192,31 +352,210 @@ Map<String, Ref> getAllRefs() {
 	 */
 	Map<String, Ref> getTags() {
 		final Map<String, Ref> tags = new HashMap<String, Ref>();
-		for (final Ref r : readRefs().values()) {
-			if (r.getName().startsWith(R_TAGS))
-				tags.put(r.getName().substring(R_TAGS.length()), r);
-		}
+		for (final Ref r : getRefs(R_TAGS).values())
+			tags.put(r.getName().substring(R_TAGS.length()), r);
 		return tags;
 	}
 
-	private Map<String, Ref> readRefs() {
-		final HashMap<String, Ref> avail = new HashMap<String, Ref>();
-		readPackedRefs(avail);
-		readLooseRefs(avail, REFS_SLASH, refsDir);
+	private synchronized void readPackedRefs(final String prefix,
+			final Map<String, Ref> avail) {
+		refreshPackedRefs();
+		packedRefs.scan(prefix, avail);
+	}
+
+	private synchronized boolean readJournaledRefs(final String prefix,
+			final Map<String, Ref> avail) {
+		if (journalLoose == null)
+			return false;
+		if (!isJournalEnabled() || !replayJournal()) {
+			journalLoose = null;
+			return false;
+		}
+		for (final Ref r : journalLoose.values()) {
+			if (r.getName().startsWith(prefix))
+				avail.put(r.getName(), r);
+		}
+		return true;
+	}
+
+	private synchronized void readAllLooseRefs(final Map<String, Ref> avail) {
+		if (!isJournalEnabled()) {
+			readLooseRefs(avail, REFS_SLASH, refsDir);
+			return;
+		}
+
+		// Position at the end of the journal before scanning, so updates
+		// racing with the scan are replayed by the next read.
+		//
+		final boolean tracking = openJournal();
+		final Map<String, Ref> loose = new HashMap<String, Ref>();
+		readLooseRefs(loose, REFS_SLASH, refsDir);
+		journalLoose = tracking ? loose : null;
+		avail.putAll(loose);
+	}
+
+	private boolean isJournalEnabled() {
+		return db.getConfig().getCore().isRefJournal();
+	}
+
+	private boolean openJournal() {
 		try {
-			final Ref r = readRefBasic(Constants.HEAD, 0);
-			if (r != null && r.getObjectId() != null)
-				avail.put(Constants.HEAD, r);
+			final RandomAccessFile f = new RandomAccessFile(journalFile, "r");
+			try {
+				journalToken = readJournalToken(f);
+				journalOffset = f.length();
+				return journalToken != null;
+			} finally {
+				f.close();
+			}
 		} catch (IOException e) {
-			// ignore here
+			// No journal (or not readable); fall back to scanning.
+			return false;
 		}
-		db.fireRefsMaybeChanged();
-		return avail;
 	}
 
-	private synchronized void readPackedRefs(final Map<String, Ref> avail) {
-		refreshPackedRefs();
-		avail.putAll(packedRefs);
+	private boolean replayJournal() {
+		final byte[] buf;
+		try {
+			final RandomAccessFile f = new RandomAccessFile(journalFile, "r");
+			try {
+				if (!journalToken.equals(readJournalToken(f)))
+					return false; // Replaced by a new journal.
+				final long len = f.length();
+				if (len < journalOffset
+						|| len - journalOffset > Integer.MAX_VALUE)
+					return false;
+				if (len == journalOffset)
+					return true;
+				buf = new byte[(int) (len - journalOffset)];
+				f.seek(journalOffset);
+				f.readFully(buf);
+			} finally {
+				f.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+
+		// A trailing partial line is still being appended; leave it
+		// for the next read.
+		//
+		int ptr = 0;
+		for (;;) {
+			final int eol = RawParseUtils.nextLF(buf, ptr);
+			if (eol == buf.length && (eol == ptr || buf[eol - 1] != '\n'))
+				break;
+			final String name = RawParseUtils.decode(Constants.CHARSET, buf,
+					ptr, eol - 1);
+			if (name.startsWith(REFS_SLASH))
+				rescanLooseRef(name);
+			ptr = eol;
+		}
+		journalOffset += ptr;
+		return true;
+	}
+
+	private void rescanLooseRef(final String name) {
+		// The journal says the file changed, even if its modification
+		// time looks the same as the one we cached.
+		//
+		looseRefs.remove(name);
+		looseRefsMTime.remove(name);
+		journalLoose.remove(name);
+		readOneLooseRef(journalLoose, name, name, fileForRef(name));
+	}
+
+	private static String readJournalToken(final RandomAccessFile f)
+			throws IOException {
+		final byte[] hdr = new byte[128];
+		final int n = f.read(hdr);
+		if (n <= 0)
+			return null;
+		final int eol = RawParseUtils.nextLF(hdr, 0);
+		if (eol > n || hdr[eol - 1] != '\n')
+			return null;
+		final String line = RawParseUtils.decode(Constants.CHARSET, hdr, 0,
+				eol - 1);
+		return line.startsWith(JOURNAL_HEADER) ? line : null;
+	}
+
+	private void appendJournal(final Collection<String> names) {
+		if (!isJournalEnabled() || names.isEmpty())
+			return;
+		final StringBuilder b = new StringBuilder();
+		for (final String name : names) {
+			b.append(name);
+			b.append('\n');
+		}
+		try {
+			if (needNewJournal() && createJournal(b))
+				return;
+			if (!journalFile.exists()) {
+				// Another writer is creating it, and readers can only
+				// start tracking the new journal after our update.
+				//
+				return;
+			}
+			final FileOutputStream out = new FileOutputStream(journalFile, true);
+			try {
+				out.write(Constants.encode(b.toString()));
+			} finally {
+				out.close();
+			}
+		} catch (IOException err) {
+			// Readers trusting the journal would not see this update.
+			// Without a journal they go back to scanning the loose refs.
+			//
+			journalFile.delete();
+		}
+	}
+
+	private boolean needNewJournal() {
+		return !journalFile.exists() || journalFile.length() >= MAX_JOURNAL;
+	}
+
+	/**
+	 * Start a new journal holding only the given names.
+	 * <p>
+	 * The journal is written under its lock and renamed into place, so
+	 * readers never see it without its header. Its new token makes readers
+	 * tracking the old journal scan the loose refs again, which also lets an
+	 * oversized journal be discarded.
+	 *
+	 * @return true if the new journal was created; false if another writer
+	 *         holds the lock, or already created it.
+	 */
+	private boolean createJournal(final StringBuilder names)
+			throws IOException {
+		final LockFile lck = new LockFile(journalFile);
+		if (!lck.lock())
+			return false;
+		try {
+			if (!needNewJournal()) {
+				lck.unlock();
+				return false;
+			}
+			final StringBuilder b = new StringBuilder();
+			b.append(JOURNAL_HEADER);
+			b.append(Long.toHexString(System.currentTimeMillis()));
+			b.append('-');
+			b.append(Long.toHexString(System.nanoTime()));
+			b.append('\n');
+			b.append(names);
+			lck.write(Constants.encode(b.toString()));
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		} catch (RuntimeException err) {
+			lck.unlock();
+			throw err;
+		} catch (Error err) {
+			lck.unlock();
+			throw err;
+		}
+		if (!lck.commit())
+			throw new IOException("Cannot commit " + journalFile);
+		return true;
 	}
 
 	private void readLooseRefs(final Map<String, Ref> avail,
@@ -420,50 +759,21 @@ private synchronized void refreshPackedRefs() {
 		if (currTime == 0) {
 			packedRefsLastModified = 0;
 			packedRefsLength = 0;
-			packedRefs = new HashMap<String, Ref>();
+			packedRefs = PackedRefList.EMPTY;
 			return;
 		}
 
-		final Map<String, Ref> newPackedRefs = new HashMap<String, Ref>();
 		try {
-			final BufferedReader b = openReader(packedRefsFile);
-			try {
-				String p;
-				Ref last = null;
-				while ((p = b.readLine()) != null) {
-					if (p.charAt(0) == '#')
-						continue;
-
-					if (p.charAt(0) == '^') {
-						if (last == null)
-							throw new IOException("Peeled line before ref.");
-
-						final ObjectId id = ObjectId.fromString(p.substring(1));
-						last = new Ref(Ref.Storage.PACKED, last.getName(), last
-								.getName(), last.getObjectId(), id, true);
-						newPackedRefs.put(last.getName(), last);
-						continue;
-					}
-
-					final int sp = p.indexOf(' ');
-					final ObjectId id = ObjectId.fromString(p.substring(0, sp));
-					final String name = new String(p.substring(sp + 1));
-					last = new Ref(Ref.Storage.PACKED, name, name, id);
-					newPackedRefs.put(last.getName(), last);
-				}
-			} finally {
-				b.close();
-			}
+			packedRefs = PackedRefList.read(packedRefsFile);
 			packedRefsLastModified = currTime;
 			packedRefsLength = currLen;
-			packedRefs = newPackedRefs;
 			setModified();
 		} catch (FileNotFoundException noPackedRefs) {
-			// Ignore it and leave the new map empty.
+			// Ignore it and leave the list empty.
 			//
 			packedRefsLastModified = 0;
 			packedRefsLength = 0;
-			packedRefs = newPackedRefs;
+			packedRefs = PackedRefList.EMPTY;
 		} catch (IOException e) {
 			throw new RuntimeException("Cannot read packed refs", e);
 		}
@@ -484,12 +794,20 @@ private void lockAndWriteFile(File file, byte[] content) throws IOException {
 	}
 
 	synchronized void removePackedRef(String name) throws IOException {
-		packedRefs.remove(name);
-		writePackedRefs();
+		final Map<String, Ref> refs = new HashMap<String, Ref>();
+		packedRefs.scan("", refs);
+		refs.remove(name);
+		writePackedRefs(refs);
+
+		// Force the rewritten file to be loaded on the next read.
+		packedRefsLastModified = 0;
+		packedRefsLength = 0;
+		packedRefs = PackedRefList.EMPTY;
 	}
 
-	private void writePackedRefs() throws IOException {
-		new RefWriter(packedRefs.values()) {
+	private void writePackedRefs(final Map<String, Ref> refs)
+			throws IOException {
+		new RefWriter(refs.values()) {
 			@Override
 			protected void writeFile(String name, byte[] content) throws IOException {
 				lockAndWriteFile(new File(db.getDirectory(), name), content);
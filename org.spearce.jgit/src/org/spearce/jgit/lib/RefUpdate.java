@@ -125,7 +125,15 @@ public static enum Result {
 		 * This kind of error doesn't include {@link #LOCK_FAILURE}, which is a
 		 * different case.
 		 */
-		IO_FAILURE
+		IO_FAILURE,
+
+		/**
+		 * The ref was not changed because another ref of the same atomic
+		 * batch could not be updated.
+		 *
+		 * @see BatchRefUpdate#setAtomic(boolean)
+		 */
+		ABORTED
 	}
 
 	/** Repository the ref is stored in. */
@@ -311,6 +319,18 @@ public Result getResult() {
 		return result;
 	}
 
+	void setResult(final Result r) {
+		result = r;
+	}
+
+	Ref getRef() {
+		return ref;
+	}
+
+	File getLooseFile() {
+		return looseFile;
+	}
+
 	private void requireCanDoUpdate() {
 		if (newValue == null)
 			throw new IllegalStateException("A NewObjectId is required.");
@@ -398,11 +418,8 @@ public Result delete() throws IOException {
 	 * @throws IOException
 	 */
 	public Result delete(final RevWalk walk) throws IOException {
-		if (getName().startsWith(Constants.R_HEADS)) {
-			final Ref head = db.readRef(Constants.HEAD);
-			if (head != null && getName().equals(head.getName()))
-				return result = Result.REJECTED_CURRENT_BRANCH;
-		}
+		if (isCurrentBranch())
+			return result = Result.REJECTED_CURRENT_BRANCH;
 
 		try {
 			return result = updateImpl(walk, new DeleteStore());
@@ -412,41 +429,80 @@ public Result delete(final RevWalk walk) throws IOException {
 		}
 	}
 
+	boolean isCurrentBranch() throws IOException {
+		if (getName().startsWith(Constants.R_HEADS)) {
+			final Ref head = db.readRef(Constants.HEAD);
+			if (head != null && getName().equals(head.getName()))
+				return true;
+		}
+		return false;
+	}
+
 	private Result updateImpl(final RevWalk walk, final Store store)
 			throws IOException {
 		final LockFile lock;
-		RevObject newObj;
-		RevObject oldObj;
 
 		lock = new LockFile(looseFile);
 		if (!lock.lock())
 			return Result.LOCK_FAILURE;
 		try {
-			oldValue = db.idOf(getName());
-			if (expValue != null) {
-				final ObjectId o;
-				o = oldValue != null ? oldValue : ObjectId.zeroId();
-				if (!expValue.equals(o))
-					return Result.LOCK_FAILURE;
-			}
-			if (oldValue == null)
-				return store.store(lock, Result.NEW);
+			final Result status = checkLocked(walk);
+			if (isStorable(status))
+				return store.store(lock, status);
+			return status;
+		} finally {
+			lock.unlock();
+		}
+	}
 
-			newObj = safeParse(walk, newValue);
-			oldObj = safeParse(walk, oldValue);
-			if (newObj == oldObj)
-				return store.store(lock, Result.NO_CHANGE);
+	/**
+	 * Decide how the ref would change, once its lock is held.
+	 *
+	 * @param walk
+	 *            walk to perform the merge test with.
+	 * @return NEW, NO_CHANGE, FAST_FORWARD or FORCED if the change may be
+	 *         stored; otherwise the reason it must not be.
+	 * @throws IOException
+	 *             the current value of the ref cannot be read.
+	 */
+	Result checkLocked(final RevWalk walk) throws IOException {
+		RevObject newObj;
+		RevObject oldObj;
 
-			if (newObj instanceof RevCommit && oldObj instanceof RevCommit) {
-				if (walk.isMergedInto((RevCommit) oldObj, (RevCommit) newObj))
-					return store.store(lock, Result.FAST_FORWARD);
-			}
+		oldValue = db.idOf(getName());
+		if (expValue != null) {
+			final ObjectId o;
+			o = oldValue != null ? oldValue : ObjectId.zeroId();
+			if (!expValue.equals(o))
+				return Result.LOCK_FAILURE;
+		}
+		if (oldValue == null)
+			return Result.NEW;
 
-			if (isForceUpdate())
-				return store.store(lock, Result.FORCED);
-			return Result.REJECTED;
-		} finally {
-			lock.unlock();
+		newObj = safeParse(walk, newValue);
+		oldObj = safeParse(walk, oldValue);
+		if (newObj == oldObj)
+			return Result.NO_CHANGE;
+
+		if (newObj instanceof RevCommit && oldObj instanceof RevCommit) {
+			if (walk.isMergedInto((RevCommit) oldObj, (RevCommit) newObj))
+				return Result.FAST_FORWARD;
+		}
+
+		if (isForceUpdate())
+			return Result.FORCED;
+		return Result.REJECTED;
+	}
+
+	static boolean isStorable(final Result status) {
+		switch (status) {
+		case NEW:
+		case NO_CHANGE:
+		case FAST_FORWARD:
+		case FORCED:
+			return true;
+		default:
+			return false;
 		}
 	}
 
@@ -470,6 +526,14 @@ private Result updateStore(final LockFile lock, final Result status)
 			return status;
 		lock.setNeedStatInformation(true);
 		lock.write(newValue);
+		RefLogWriter.append(this, getRefLogMessage(status));
+		if (!lock.commit())
+			return Result.LOCK_FAILURE;
+		db.stored(this.ref.getOrigName(),  ref.getName(), newValue, lock.getCommitLastModified());
+		return status;
+	}
+
+	String getRefLogMessage(final Result status) {
 		String msg = getRefLogMessage();
 		if (msg != null && refLogIncludeResult) {
 			if (status == Result.FORCED)
@@ -479,11 +543,7 @@ else if (status == Result.FAST_FORWARD)
 			else if (status == Result.NEW)
 				msg += ": created";
 		}
-		RefLogWriter.append(this, msg);
-		if (!lock.commit())
-			return Result.LOCK_FAILURE;
-		db.stored(this.ref.getOrigName(),  ref.getName(), newValue, lock.getCommitLastModified());
-		return status;
+		return msg;
 	}
 
 	/**
@@ -525,6 +585,7 @@ Result store(LockFile lock, Result status) throws IOException {
 			lock.unlock();
 			if (storage.isLoose())
 				deleteFileAndEmptyDir(looseFile, levels);
+			db.deleted(ref.getName());
 			return status;
 		}
 
@@ -40,7 +40,11 @@
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * Writes out refs to the {@link Constants#INFO_REFS} and
@@ -106,34 +110,55 @@ public void writeInfoRefs() throws IOException {
 	 * This method rebuilds the contents of the {@link Constants#PACKED_REFS}
 	 * file to match the passed list of references, including only those refs
 	 * that have a storage type of {@link Ref.Storage#PACKED}.
+	 * <p>
+	 * Refs are written in the unsigned byte order of their UTF-8 encoded
+	 * names and the file declares the <code>sorted</code> trait, permitting
+	 * readers to binary search it. The <code>peeled</code> trait is only
+	 * declared if every ref has been peeled.
 	 * 
 	 * @throws IOException
 	 *             writing is not supported, or attempting to write the file
 	 *             failed, possibly due to permissions or remote disk full, etc.
 	 */
 	public void writePackedRefs() throws IOException {
+		// Readers of the peeled trait take a ref without a peeled value
+		// to not be an annotated tag, so it needs every ref to be peeled.
+		//
 		boolean peeled = false;
+		boolean unpeeled = false;
 
+		final List<PackedRecord> packed = new ArrayList<PackedRecord>();
 		for (final Ref r : refs) {
 			if (r.getStorage() != Ref.Storage.PACKED)
 				continue;
 			if (r.getPeeledObjectId() != null)
 				peeled = true;
+			if (!r.isPeeled())
+				unpeeled = true;
+			packed.add(new PackedRecord(r));
 		}
+		peeled &= !unpeeled;
+
+		// RefComparator orders names by UTF-16 code unit, but readers of
+		// the sorted trait search by unsigned UTF-8 byte. The two disagree
+		// once a name has characters beyond the basic multilingual plane.
+		//
+		Collections.sort(packed, new Comparator<PackedRecord>() {
+			public int compare(final PackedRecord a, final PackedRecord b) {
+				return compareBytes(a.name, b.name);
+			}
+		});
 
 		final StringWriter w = new StringWriter();
-		if (peeled) {
-			w.write("# pack-refs with:");
-			if (peeled)
-				w.write(" peeled");
-			w.write('\n');
-		}
+		w.write("# pack-refs with:");
+		if (peeled)
+			w.write(" peeled");
+		w.write(" sorted");
+		w.write('\n');
 
 		final char[] tmp = new char[Constants.OBJECT_ID_LENGTH * 2];
-		for (final Ref r : refs) {
-			if (r.getStorage() != Ref.Storage.PACKED)
-				continue;
-
+		for (final PackedRecord p : packed) {
+			final Ref r = p.ref;
 			r.getObjectId().copyTo(tmp, w);
 			w.write(' ');
 			w.write(r.getName());
@@ -145,7 +170,7 @@ public void writePackedRefs() throws IOException {
 				w.write('\n');
 			}
 		}
-		writeFile(Constants.PACKED_REFS, Constants.encodeASCII(w.toString()));
+		writeFile(Constants.PACKED_REFS, Constants.encode(w.toString()));
 	}
 
 	/**
@@ -160,4 +185,25 @@ public void writePackedRefs() throws IOException {
 	 */
 	protected abstract void writeFile(String file, byte[] content)
 			throws IOException;
+
+	private static int compareBytes(final byte[] a, final byte[] b) {
+		final int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			final int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+			if (cmp != 0)
+				return cmp;
+		}
+		return a.length - b.length;
+	}
+
+	private static class PackedRecord {
+		final Ref ref;
+
+		final byte[] name;
+
+		PackedRecord(final Ref r) {
+			ref = r;
+			name = Constants.encode(r.getName());
+		}
+	}
 }
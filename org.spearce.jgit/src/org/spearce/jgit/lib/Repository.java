@@ -93,12 +93,24 @@ public class Repository {
 
 	private final RefDatabase refs;
 
+	private final WindowCache windowCache;
+
 	private File[] objectDirectoryList;
 
 	private PackFile[] packFileList;
 
 	private GitIndex index;
 
+	private CommitGraph commitGraph;
+
+	private long commitGraphModified;
+
+	private long commitGraphLength;
+
+	private PackFile[] commitGraphPacks;
+
+	private boolean commitGraphValid;
+
 	private List<RepositoryListener> listeners = new Vector<RepositoryListener>(); // thread safe
 	static private List<RepositoryListener> allListeners = new Vector<RepositoryListener>(); // thread safe
 
@@ -112,7 +124,28 @@ public class Repository {
 	 *             accessed.
 	 */
 	public Repository(final File d) throws IOException {
+		this(d, WindowCache.getDefault());
+	}
+
+	/**
+	 * Construct a representation of a Git repository using its own cache.
+	 * <p>
+	 * Pack data read by this repository is held in <code>cache</code>, and
+	 * only competes for memory with other repositories sharing the same cache
+	 * instance.
+	 * 
+	 * @param d
+	 *            GIT_DIR (the location of the repository metadata).
+	 * @param cache
+	 *            the window cache to read pack files through.
+	 * @throws IOException
+	 *             the repository appears to already exist but cannot be
+	 *             accessed.
+	 */
+	public Repository(final File d, final WindowCache cache)
+			throws IOException {
 		gitDir = d.getAbsoluteFile();
+		windowCache = cache;
 		try {
 			objectDirectoryList = readObjectsDirs(
 					FS.resolve(gitDir, "objects"), new ArrayList<File>())
@@ -195,6 +228,14 @@ private synchronized PackFile[] packs(){
 		return packFileList;
 	}
 
+	/**
+	 * @return the pack files of this repository and its alternates, most
+	 *         recently created first.
+	 */
+	public PackFile[] getPacks() {
+		return packs().clone();
+	}
+
 	/**
 	 * @return GIT_DIR
 	 */
@@ -209,6 +250,41 @@ public File getObjectsDirectory() {
 		return objectsDirs()[0];
 	}
 
+	/**
+	 * Get the commit graph of this repository.
+	 * <p>
+	 * The graph is read from <code>objects/info/commit-graph</code>, and read
+	 * again whenever that file changes. It is checked against the packs of
+	 * the repository each time the set of packs changes: a graph written while
+	 * a pack existed that has since been removed may describe commits which
+	 * are gone, so it is not used. New packs do not invalidate the graph, as
+	 * their commits are simply not listed in it.
+	 *
+	 * @return the commit graph; null if the repository does not have one, or
+	 *         the graph is out of date.
+	 * @throws IOException
+	 *             the commit graph file exists but could not be read.
+	 */
+	public synchronized CommitGraph getCommitGraph() throws IOException {
+		final File f = new File(getObjectsDirectory(), "info/commit-graph");
+		final long modified = f.lastModified();
+		final long length = f.length();
+		if (modified != commitGraphModified || length != commitGraphLength) {
+			commitGraph = f.isFile() ? CommitGraph.open(f) : null;
+			commitGraphModified = modified;
+			commitGraphLength = length;
+			commitGraphPacks = null;
+		}
+
+		final PackFile[] packs = packs();
+		if (commitGraphPacks != packs) {
+			commitGraphValid = commitGraph != null
+					&& commitGraph.isCoveredBy(packs);
+			commitGraphPacks = packs;
+		}
+		return commitGraphValid ? commitGraph : null;
+	}
+
 	/**
 	 * @return the configuration of this repository
 	 */
@@ -216,6 +292,13 @@ public RepositoryConfig getConfig() {
 		return config;
 	}
 
+	/**
+	 * @return the window cache used to read this repository's pack files.
+	 */
+	public WindowCache getWindowCache() {
+		return windowCache;
+	}
+
 	/**
 	 * Construct a filename where the loose object having a specified SHA-1
 	 * should be stored. If the object is stored in a shared repository the path
@@ -530,6 +613,19 @@ public RefUpdate updateRef(final String ref) throws IOException {
 		return refs.newUpdate(ref);
 	}
 
+	/**
+	 * Create a batch to update, create or delete several refs at once.
+	 * <p>
+	 * Commands are added to the batch as {@link RefUpdate}s obtained from
+	 * {@link #updateRef(String)}, and are then performed together by
+	 * {@link BatchRefUpdate#execute(org.spearce.jgit.revwalk.RevWalk)}.
+	 *
+	 * @return a new, empty batch.
+	 */
+	public BatchRefUpdate newBatchUpdate() {
+		return new BatchRefUpdate(refs);
+	}
+
 	/**
 	 * Parse a git revision string and return an object id.
 	 *
@@ -807,7 +903,7 @@ public void openPack(final File pack, final File idx) throws IOException {
 			final PackFile[] cur = packFileList;
 			final PackFile[] arr = new PackFile[cur.length + 1];
 			System.arraycopy(cur, 0, arr, 1, cur.length);
-			arr[0] = new PackFile(idx, pack);
+			arr[0] = new PackFile(idx, pack, windowCache);
 			packFileList = arr;
 		}
 	}
@@ -856,7 +952,7 @@ public boolean accept(final File baseDir, final String n) {
 						continue SCAN;
 				}
 
-				packList.add(new PackFile(idxFile, packFile));
+				packList.add(new PackFile(idxFile, packFile, windowCache));
 			}
 		}
 	}
@@ -948,6 +1044,22 @@ public Map<String, Ref> getAllRefs() {
 		return refs.getAllRefs();
 	}
 
+	/**
+	 * Get the refs whose names start with a prefix.
+	 * <p>
+	 * Callers needing only one namespace, such as the branches below
+	 * {@link Constants#R_HEADS}, should prefer this over
+	 * {@link #getAllRefs()}, as the refs outside of the prefix are not read.
+	 *
+	 * @param prefix
+	 *            required prefix of the ref names, e.g. "refs/heads/". An
+	 *            empty string selects all refs, like {@link #getAllRefs()}.
+	 * @return the matching refs; key is the full ref name.
+	 */
+	public Map<String, Ref> getRefs(final String prefix) {
+		return refs.getRefs(prefix);
+	}
+
 	/**
 	 * @return all tags; key is short tag name ("v1.0") and value of the entry
 	 *         contains the ref with the full tag name ("refs/tags/v1.0").
@@ -48,26 +48,29 @@ private static int hash(final long position) {
 		return (((int) position) << 22) >>> 22;
 	}
 
-	private static int maxByteCount;
+	static {
+		DEAD = new SoftReference<Entry>(null);
+	}
 
-	private static final Slot[] cache;
+	private int maxByteCount;
 
-	private static Slot lruHead;
+	private final Slot[] cache;
 
-	private static Slot lruTail;
+	private Slot lruHead;
 
-	private static int openByteCount;
+	private Slot lruTail;
 
-	static {
-		DEAD = new SoftReference<Entry>(null);
-		maxByteCount = new WindowCacheConfig().getDeltaBaseCacheLimit();
+	private int openByteCount;
+
+	UnpackedObjectCache(final WindowCacheConfig cfg) {
+		maxByteCount = cfg.getDeltaBaseCacheLimit();
 
 		cache = new Slot[CACHE_SZ];
 		for (int i = 0; i < CACHE_SZ; i++)
 			cache[i] = new Slot();
 	}
 
-	static synchronized void reconfigure(final WindowCacheConfig cfg) {
+	synchronized void reconfigure(final WindowCacheConfig cfg) {
 		final int dbLimit = cfg.getDeltaBaseCacheLimit();
 		if (maxByteCount != dbLimit) {
 			maxByteCount = dbLimit;
@@ -75,7 +78,7 @@ static synchronized void reconfigure(final WindowCacheConfig cfg) {
 		}
 	}
 
-	static synchronized Entry get(final WindowedFile pack, final long position) {
+	synchronized Entry get(final WindowedFile pack, final long position) {
 		final Slot e = cache[hash(position)];
 		if (e.provider == pack && e.position == position) {
 			final Entry buf = e.data.get();
@@ -87,8 +90,8 @@ static synchronized Entry get(final WindowedFile pack, final long position) {
 		return null;
 	}
 
-	static synchronized void store(final WindowedFile pack,
-			final long position, final byte[] data, final int objectType) {
+	synchronized void store(final WindowedFile pack, final long position,
+			final byte[] data, final int objectType) {
 		if (data.length > maxByteCount)
 			return; // Too large to cache.
 
@@ -105,7 +108,7 @@ static synchronized void store(final WindowedFile pack,
 		moveToHead(e);
 	}
 
-	private static void releaseMemory() {
+	private void releaseMemory() {
 		while (openByteCount > maxByteCount && lruTail != null) {
 			final Slot currOldest = lruTail;
 			final Slot nextOldest = currOldest.lruPrev;
@@ -122,7 +125,7 @@ private static void releaseMemory() {
 		}
 	}
 
-	static synchronized void purge(final WindowedFile file) {
+	synchronized void purge(final WindowedFile file) {
 		for (final Slot e : cache) {
 			if (e.provider == file) {
 				clearEntry(e);
@@ -131,7 +134,7 @@ static synchronized void purge(final WindowedFile file) {
 		}
 	}
 
-	private static void moveToHead(final Slot e) {
+	private void moveToHead(final Slot e) {
 		unlink(e);
 		e.lruPrev = null;
 		e.lruNext = lruHead;
@@ -142,7 +145,7 @@ private static void moveToHead(final Slot e) {
 		lruHead = e;
 	}
 
-	private static void unlink(final Slot e) {
+	private void unlink(final Slot e) {
 		final Slot prev = e.lruPrev;
 		final Slot next = e.lruNext;
 		if (prev != null)
@@ -151,17 +154,13 @@ private static void unlink(final Slot e) {
 			next.lruPrev = prev;
 	}
 
-	private static void clearEntry(final Slot e) {
+	private void clearEntry(final Slot e) {
 		openByteCount -= e.sz;
 		e.provider = null;
 		e.data = DEAD;
 		e.sz = 0;
 	}
 
-	private UnpackedObjectCache() {
-		throw new UnsupportedOperationException();
-	}
-
 	static class Entry {
 		final byte[] data;
 
@@ -40,10 +40,33 @@
 
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The WindowCache manages reusable <code>Windows</code> and inflaters used by
  * the other windowed file access classes.
+ * <p>
+ * Most applications use the single default cache, which is shared by every
+ * {@link Repository} that was not given its own cache. A server hosting many
+ * repositories may create additional caches, each with its own memory and file
+ * limits, and hand the same instance to a group of repositories so they only
+ * compete with each other for space.
+ * <p>
+ * Each cache is split into a fixed number of segments, each with its own hash
+ * table and LRU list, protected by its own monitor. A window is assigned to a
+ * segment by hashing its (file, window id) pair, so threads reading different
+ * windows rarely contend for the same lock. The configured byte and file
+ * limits are tracked through atomic counters; when a limit is exceeded the
+ * least recently used window of each segment is evicted in round-robin order
+ * until the cache is back under its limits.
+ * <p>
+ * Lock ordering: a thread holding a segment lock never acquires the monitor of
+ * a {@link WindowedFile}. A thread holding a file's monitor (while opening it)
+ * may acquire segment locks, as the file's {@link WindowedFile#onOpen()} hook
+ * is permitted to read through the cache.
  */
 public class WindowCache {
 	private static final int bits(int newSize) {
@@ -54,45 +77,87 @@ private static final int bits(int newSize) {
 		return Integer.numberOfTrailingZeros(newSize);
 	}
 
-	private static int maxFileCount;
+	private static int segmentShift() {
+		// Use a few more segments than we have processors, as threads
+		// only hold a segment briefly but may collide on hash values.
+		//
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		int shift = 2;
+		while (shift < 6 && (1 << shift) < 2 * cpus)
+			shift++;
+		return shift;
+	}
 
-	private static int maxByteCount;
+	private static final int SEGMENT_SHIFT = segmentShift();
 
-	private static int windowSize;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
 
-	private static int windowSizeShift;
+	private static final WindowCache defaultCache = new WindowCache(
+			new WindowCacheConfig());
 
-	static boolean mmap;
+	/**
+	 * @return the cache used by repositories and files that were not given a
+	 *         cache of their own.
+	 */
+	public static WindowCache getDefault() {
+		return defaultCache;
+	}
 
-	static final ReferenceQueue<?> clearedWindowQueue;
+	private volatile int maxFileCount;
 
-	private static ByteWindow[] cache;
+	private volatile int maxByteCount;
 
-	private static ByteWindow lruHead;
+	private volatile int windowSizeShift;
 
-	private static ByteWindow lruTail;
+	volatile boolean mmap;
 
-	private static int openFileCount;
+	volatile boolean mmapIndex;
 
-	private static int openByteCount;
+	final ReferenceQueue<?> clearedWindowQueue;
 
-	static {
-		final WindowCacheConfig c = new WindowCacheConfig();
-		maxFileCount = c.getPackedGitOpenFiles();
-		maxByteCount = c.getPackedGitLimit();
-		windowSizeShift = bits(c.getPackedGitWindowSize());
-		windowSize = 1 << windowSizeShift;
-		mmap = c.isPackedGitMMAP();
-		cache = new ByteWindow[cacheTableSize()];
+	final UnpackedObjectCache deltaBaseCache;
+
+	private final Segment[] segments;
+
+	private final AtomicInteger openFileCount;
+
+	private final AtomicLong openByteCount;
+
+	private final AtomicInteger evictIndex;
+
+	/**
+	 * Create a new, empty window cache.
+	 *
+	 * @param cfg
+	 *            the initial configuration of the cache. The configuration is
+	 *            copied; later changes to <code>cfg</code> must be applied
+	 *            through {@link #configure(WindowCacheConfig)}.
+	 */
+	public WindowCache(final WindowCacheConfig cfg) {
+		maxFileCount = cfg.getPackedGitOpenFiles();
+		maxByteCount = cfg.getPackedGitLimit();
+		windowSizeShift = bits(cfg.getPackedGitWindowSize());
+		mmap = cfg.isPackedGitMMAP();
+		mmapIndex = cfg.isPackedIndexMMAP();
 		clearedWindowQueue = new ReferenceQueue<Object>();
+		deltaBaseCache = new UnpackedObjectCache(cfg);
+
+		segments = new Segment[1 << SEGMENT_SHIFT];
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = new Segment(segmentTableSize());
+		openFileCount = new AtomicInteger();
+		openByteCount = new AtomicLong();
+		evictIndex = new AtomicInteger();
 	}
 
-	private static int cacheTableSize() {
-		return 5 * (maxByteCount / windowSize) / 2;
+	private int segmentTableSize() {
+		final int windowSize = 1 << windowSizeShift;
+		final int tableSize = 5 * (maxByteCount / windowSize) / 2;
+		return Math.max(tableSize >> SEGMENT_SHIFT, 8);
 	}
 
 	/**
-	 * Modify the configuration of the window cache.
+	 * Modify the configuration of the default window cache.
 	 * <p>
 	 * The new configuration is applied immediately. If the new limits are
 	 * smaller than what what is currently cached, older entries will be purged
@@ -120,7 +185,7 @@ public static void reconfigure(final int packedGitLimit,
 	}
 
 	/**
-	 * Modify the configuration of the window cache.
+	 * Modify the configuration of the default window cache.
 	 * <p>
 	 * The new configuration is applied immediately. If the new limits are
 	 * smaller than what what is currently cached, older entries will be purged
@@ -130,31 +195,33 @@ public static void reconfigure(final int packedGitLimit,
 	 *            the new window cache configuration.
 	 */
 	public static void reconfigure(final WindowCacheConfig cfg) {
-		reconfigureImpl(cfg);
-		UnpackedObjectCache.reconfigure(cfg);
+		defaultCache.configure(cfg);
 	}
 
-	private static synchronized void reconfigureImpl(final WindowCacheConfig cfg) {
-		boolean prune = false;
-		boolean evictAll = false;
+	/**
+	 * Modify the configuration of this window cache.
+	 * <p>
+	 * The new configuration is applied immediately. If the new limits are
+	 * smaller than what what is currently cached, older entries will be purged
+	 * as soon as possible to allow the cache to meet the new limit.
+	 *
+	 * @param cfg
+	 *            the new window cache configuration.
+	 */
+	public void configure(final WindowCacheConfig cfg) {
+		configureImpl(cfg);
+		deltaBaseCache.reconfigure(cfg);
+	}
 
-		if (maxFileCount < cfg.getPackedGitOpenFiles())
-			maxFileCount = cfg.getPackedGitOpenFiles();
-		else if (maxFileCount > cfg.getPackedGitOpenFiles()) {
-			maxFileCount = cfg.getPackedGitOpenFiles();
-			prune = true;
-		}
+	private synchronized void configureImpl(final WindowCacheConfig cfg) {
+		boolean evictAll = false;
 
-		if (maxByteCount < cfg.getPackedGitLimit()) {
-			maxByteCount = cfg.getPackedGitLimit();
-		} else if (maxByteCount > cfg.getPackedGitLimit()) {
-			maxByteCount = cfg.getPackedGitLimit();
-			prune = true;
-		}
+		maxFileCount = cfg.getPackedGitOpenFiles();
+		maxByteCount = cfg.getPackedGitLimit();
+		mmapIndex = cfg.isPackedIndexMMAP();
 
 		if (bits(cfg.getPackedGitWindowSize()) != windowSizeShift) {
 			windowSizeShift = bits(cfg.getPackedGitWindowSize());
-			windowSize = 1 << windowSizeShift;
 			evictAll = true;
 		}
 
@@ -163,42 +230,19 @@ else if (maxFileCount > cfg.getPackedGitOpenFiles()) {
 			evictAll = true;
 		}
 
-		if (evictAll) {
-			// We have to throw away every window we have. None
-			// of them are suitable for the new configuration.
-			//
-			for (ByteWindow<?> e : cache) {
-				for (; e != null; e = e.chainNext)
-					clear(e);
-			}
-			runClearedWindowQueue();
-			cache = new ByteWindow[cacheTableSize()];
-
-		} else {
-			if (prune) {
-				// We should decrease our memory usage.
+		final int tableSize = segmentTableSize();
+		for (final Segment s : segments) {
+			if (evictAll) {
+				// We have to throw away every window we have. None
+				// of them are suitable for the new configuration.
 				//
-				releaseMemory();
-				runClearedWindowQueue();
-			}
-
-			if (cache.length != cacheTableSize()) {
-				// The cache table should be resized.
-				// Rehash every entry.
-				//
-				final ByteWindow[] priorTable = cache;
-
-				cache = new ByteWindow[cacheTableSize()];
-				for (ByteWindow<?> e : priorTable) {
-					for (ByteWindow<?> n; e != null; e = n) {
-						n = e.chainNext;
-						final int idx = hash(e.provider, e.id);
-						e.chainNext = cache[idx];
-						cache[idx] = e;
-					}
-				}
+				release(s.removeAll(null));
 			}
+			s.resize(tableSize);
 		}
+
+		releaseMemory();
+		runClearedWindowQueue();
 	}
 
 	/**
@@ -219,106 +263,97 @@ else if (maxFileCount > cfg.getPackedGitOpenFiles()) {
 	 */
 	public static final void get(final WindowCursor curs,
 			final WindowedFile wp, final long position) throws IOException {
-		getImpl(curs, wp, position);
+		wp.cache.getImpl(curs, wp, position);
 		curs.window.ensureLoaded(curs.handle);
 	}
 
-	private static synchronized final void getImpl(final WindowCursor curs,
+	private final void getImpl(final WindowCursor curs,
 			final WindowedFile wp, final long position) throws IOException {
-		final int id = (int) (position >> windowSizeShift);
-		final int idx = hash(wp, id);
-		for (ByteWindow<?> e = cache[idx]; e != null; e = e.chainNext) {
-			if (e.provider == wp && e.id == id) {
-				if ((curs.handle = e.get()) != null) {
-					curs.window = e;
-					makeMostRecent(e);
-					return;
-				}
+		final int shift = windowSizeShift;
+		final int id = (int) (position >> shift);
+		final int hash = hash(wp, id);
+		final Segment s = segments[hash & SEGMENT_MASK];
+		if (s.get(curs, wp, id, hash, position))
+			return;
+
+		// Open (or keep open) the file before we take the segment lock.
+		// Opening may need to read through the cache itself, and the
+		// reservation we hold will become the new window's reference.
+		//
+		reserve(wp);
+		boolean reservationUsed = false;
+		try {
+			reservationUsed = s.load(curs, wp, id, hash, position, shift);
+		} finally {
+			if (!reservationUsed)
+				release(wp);
+		}
 
-				clear(e);
-				break;
+		releaseMemory();
+		runClearedWindowQueue();
+	}
+
+	static void markLoaded(final ByteWindow w) {
+		w.provider.cache.release(w.provider);
+	}
+
+	private void reserve(final WindowedFile wp) throws IOException {
+		synchronized (wp) {
+			if (wp.openCount.get() > 0) {
+				wp.openCount.incrementAndGet();
+				return;
 			}
-		}
 
-		if (wp.openCount == 0) {
+			openFileCount.incrementAndGet();
+			wp.openCount.set(1);
+			boolean opened = false;
 			try {
-				openFileCount++;
-				releaseMemory();
-				runClearedWindowQueue();
-				wp.openCount = 1;
 				wp.cacheOpen();
-			} catch (IOException ioe) {
-				openFileCount--;
-				wp.openCount = 0;
-				throw ioe;
-			} catch (RuntimeException ioe) {
-				openFileCount--;
-				wp.openCount = 0;
-				throw ioe;
-			} catch (Error ioe) {
-				openFileCount--;
-				wp.openCount = 0;
-				throw ioe;
+				opened = true;
 			} finally {
-				wp.openCount--;
-			}
-
-			// The cacheOpen may have mapped the window we are trying to
-			// map ourselves. Retrying the search ensures that does not
-			// happen to us.
-			//
-			for (ByteWindow<?> e = cache[idx]; e != null; e = e.chainNext) {
-				if (e.provider == wp && e.id == id) {
-					if ((curs.handle = e.get()) != null) {
-						curs.window = e;
-						makeMostRecent(e);
-						return;
-					}
-
-					clear(e);
-					break;
+				if (!opened) {
+					// Any windows the open hook managed to load before
+					// failing still reference the now closed file.
+					//
+					for (final Segment s : segments)
+						s.removeAll(wp);
+					wp.openCount.set(0);
+					openFileCount.decrementAndGet();
 				}
 			}
 		}
-
-		final int wsz = windowSize(wp, id);
-		wp.openCount++;
-		openByteCount += wsz;
-		releaseMemory();
-		runClearedWindowQueue();
-
-		wp.allocWindow(curs, id, (position >>> windowSizeShift) << windowSizeShift, wsz);
-		final ByteWindow<?> e = curs.window;
-		e.chainNext = cache[idx];
-		cache[idx] = e;
-		insertLRU(e);
 	}
 
-	static synchronized void markLoaded(final ByteWindow w) {
-		if (--w.provider.openCount == 0) {
-			openFileCount--;
-			w.provider.cacheClose();
+	private void release(final WindowedFile wp) {
+		synchronized (wp) {
+			if (wp.openCount.decrementAndGet() == 0) {
+				openFileCount.decrementAndGet();
+				wp.cacheClose();
+			}
 		}
 	}
 
-	private static void makeMostRecent(ByteWindow<?> e) {
-		if (lruHead != e) {
-			unlinkLRU(e);
-			insertLRU(e);
-		}
+	private void release(final List<ByteWindow<?>> removed) {
+		for (final ByteWindow<?> e : removed)
+			release(e.provider);
 	}
 
-	private static void releaseMemory() {
-		ByteWindow<?> e = lruTail;
-		while (isOverLimit() && e != null) {
-			final ByteWindow<?> p = e.lruPrev;
-			clear(e);
-			e = p;
+	private void releaseMemory() {
+		int emptySegments = 0;
+		while (isOverLimit() && emptySegments < segments.length) {
+			final int idx = evictIndex.getAndIncrement() & SEGMENT_MASK;
+			final ByteWindow<?> e = segments[idx].evictOldest();
+			if (e != null) {
+				release(e.provider);
+				emptySegments = 0;
+			} else
+				emptySegments++;
 		}
 	}
 
-	private static boolean isOverLimit() {
-		return openByteCount > maxByteCount || openFileCount > maxFileCount;
+	private boolean isOverLimit() {
+		return openByteCount.get() > maxByteCount
+				|| openFileCount.get() > maxFileCount;
 	}
 
 	/**
@@ -333,100 +368,219 @@ private static boolean isOverLimit() {
 	 *            the window provider whose windows should be removed from the
 	 *            cache.
 	 */
-	public static synchronized final void purge(final WindowedFile wp) {
-		for (ByteWindow e : cache) {
-			for (; e != null; e = e.chainNext) {
-				if (e.provider == wp)
-					clear(e);
-			}
-		}
+	public static final void purge(final WindowedFile wp) {
+		wp.cache.purgeImpl(wp);
+	}
+
+	private void purgeImpl(final WindowedFile wp) {
+		for (final Segment s : segments)
+			release(s.removeAll(wp));
 		runClearedWindowQueue();
 	}
 
-	private static void runClearedWindowQueue() {
+	private void runClearedWindowQueue() {
 		ByteWindow<?> e;
 		while ((e = (ByteWindow) clearedWindowQueue.poll()) != null) {
-			unlinkSize(e);
-			unlinkLRU(e);
-			unlinkCache(e);
-			e.chainNext = null;
-			e.lruNext = null;
-			e.lruPrev = null;
+			final Segment s = segments[hash(e.provider, e.id) & SEGMENT_MASK];
+			if (s.remove(e))
+				release(e.provider);
 		}
 	}
 
-	private static void clear(final ByteWindow<?> e) {
-		unlinkSize(e);
-		e.clear();
-		e.enqueue();
+	int getOpenFileCount() {
+		return openFileCount.get();
 	}
 
-	private static void unlinkSize(final ByteWindow<?> e) {
-		if (e.sizeActive) {
-			if (--e.provider.openCount == 0) {
-				openFileCount--;
-				e.provider.cacheClose();
+	long getOpenByteCount() {
+		return openByteCount.get();
+	}
+
+	private static int hash(final WindowedFile wp, final int id) {
+		// wp.hash was already "stirred up" a bit by * 31 when
+		// it was created. Spread the sum further so both the
+		// low bits (segment) and the high bits (bucket) vary.
+		//
+		int h = wp.hash + id;
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	private int windowSize(final WindowedFile file, final int id,
+			final int shift) {
+		final long len = file.length();
+		final long pos = ((long) id) << shift;
+		final int windowSize = 1 << shift;
+		return len < pos + windowSize ? (int) (len - pos) : windowSize;
+	}
+
+	/**
+	 * One independently locked partition of the cache.
+	 * <p>
+	 * The chain and LRU links of a {@link ByteWindow} are only accessed while
+	 * holding the monitor of the segment the window hashes to.
+	 */
+	private final class Segment {
+		private ByteWindow[] table;
+
+		private ByteWindow<?> lruHead;
+
+		private ByteWindow<?> lruTail;
+
+		Segment(final int tableSize) {
+			table = new ByteWindow[tableSize];
+		}
+
+		synchronized boolean get(final WindowCursor curs,
+				final WindowedFile wp, final int id, final int hash,
+				final long position) {
+			for (ByteWindow<?> e = table[bucket(hash)]; e != null; e = e.chainNext) {
+				// A window created before the window size was changed
+				// may share the id, but not the range, of the one we need.
+				//
+				if (e.id == id && e.contains(wp, position)) {
+					if ((curs.handle = e.get()) != null) {
+						curs.window = e;
+						makeMostRecent(e);
+						return true;
+					}
+
+					// Cleared by the garbage collector. It will be
+					// unlinked when the cleared queue is processed.
+				}
 			}
-			openByteCount -= e.size;
-			e.sizeActive = false;
+			return false;
 		}
-	}
 
-	private static void unlinkCache(final ByteWindow dead) {
-		final int idx = hash(dead.provider, dead.id);
-		ByteWindow<?> e = cache[idx], p = null, n;
-		for (; e != null; p = e, e = n) {
-			n = e.chainNext;
-			if (e == dead) {
-				if (p == null)
-					cache[idx] = n;
-				else
-					p.chainNext = n;
-				break;
+		synchronized boolean load(final WindowCursor curs,
+				final WindowedFile wp, final int id, final int hash,
+				final long position, final int shift) {
+			// Another thread may have loaded the window while we were
+			// opening the file outside of the segment lock.
+			//
+			if (get(curs, wp, id, hash, position))
+				return false;
+
+			final int wsz = windowSize(wp, id, shift);
+			openByteCount.addAndGet(wsz);
+			wp.allocWindow(curs, id, ((long) id) << shift, wsz);
+
+			final ByteWindow<?> e = curs.window;
+			final int idx = bucket(hash);
+			e.chainNext = table[idx];
+			table[idx] = e;
+			insertLRU(e);
+			return true;
+		}
+
+		synchronized ByteWindow<?> evictOldest() {
+			final ByteWindow<?> e = lruTail;
+			if (e == null)
+				return null;
+			e.clear();
+			remove(e);
+			return e;
+		}
+
+		synchronized List<ByteWindow<?>> removeAll(final WindowedFile wp) {
+			final List<ByteWindow<?>> removed = new ArrayList<ByteWindow<?>>();
+			for (ByteWindow<?> e = lruHead, n; e != null; e = n) {
+				n = e.lruNext;
+				if (wp == null || e.provider == wp) {
+					e.clear();
+					remove(e);
+					removed.add(e);
+				}
 			}
+			return removed;
 		}
-	}
 
-	private static void unlinkLRU(final ByteWindow e) {
-		final ByteWindow<?> prev = e.lruPrev;
-		final ByteWindow<?> next = e.lruNext;
+		/**
+		 * Unlink a window from this segment.
+		 *
+		 * @param dead
+		 *            the window to remove.
+		 * @return true if the window was still part of the cache, and the
+		 *         caller must now release its reference to the provider.
+		 */
+		synchronized boolean remove(final ByteWindow<?> dead) {
+			if (!dead.sizeActive)
+				return false;
+			dead.sizeActive = false;
+			openByteCount.addAndGet(-dead.size);
+			unlinkLRU(dead);
+			unlinkCache(dead);
+			dead.chainNext = null;
+			dead.lruNext = null;
+			dead.lruPrev = null;
+			return true;
+		}
 
-		if (prev != null)
-			prev.lruNext = next;
-		else
-			lruHead = next;
+		synchronized void resize(final int tableSize) {
+			if (table.length == tableSize)
+				return;
+
+			final ByteWindow[] priorTable = table;
+			table = new ByteWindow[tableSize];
+			for (ByteWindow<?> e : priorTable) {
+				for (ByteWindow<?> n; e != null; e = n) {
+					n = e.chainNext;
+					final int idx = bucket(hash(e.provider, e.id));
+					e.chainNext = table[idx];
+					table[idx] = e;
+				}
+			}
+		}
 
-		if (next != null)
-			next.lruPrev = prev;
-		else
-			lruTail = prev;
-	}
+		private int bucket(final int hash) {
+			return (hash >>> SEGMENT_SHIFT) % table.length;
+		}
 
-	private static void insertLRU(final ByteWindow<?> e) {
-		final ByteWindow h = lruHead;
-		e.lruPrev = null;
-		e.lruNext = h;
-		if (h != null)
-			h.lruPrev = e;
-		else
-			lruTail = e;
-		lruHead = e;
-	}
+		private void makeMostRecent(final ByteWindow<?> e) {
+			if (lruHead != e) {
+				unlinkLRU(e);
+				insertLRU(e);
+			}
+		}
 
-	private static int hash(final WindowedFile wp, final int id) {
-		// wp.hash was already "stirred up" a bit by * 31 when
-		// it was created. Its reasonable to just add here.
-		//
-		return ((wp.hash + id) >>> 1) % cache.length;
-	}
+		private void unlinkCache(final ByteWindow dead) {
+			final int idx = bucket(hash(dead.provider, dead.id));
+			ByteWindow<?> e = table[idx], p = null, n;
+			for (; e != null; p = e, e = n) {
+				n = e.chainNext;
+				if (e == dead) {
+					if (p == null)
+						table[idx] = n;
+					else
+						p.chainNext = n;
+					break;
+				}
+			}
+		}
 
-	private static int windowSize(final WindowedFile file, final int id) {
-		final long len = file.length();
-		final long pos = id << windowSizeShift;
-		return len < pos + windowSize ? (int) (len - pos) : windowSize;
-	}
+		private void unlinkLRU(final ByteWindow e) {
+			final ByteWindow<?> prev = e.lruPrev;
+			final ByteWindow<?> next = e.lruNext;
+
+			if (prev != null)
+				prev.lruNext = next;
+			else
+				lruHead = next;
 
-	private WindowCache() {
-		throw new UnsupportedOperationException();
+			if (next != null)
+				next.lruPrev = prev;
+			else
+				lruTail = prev;
+		}
+
+		private void insertLRU(final ByteWindow<?> e) {
+			final ByteWindow h = lruHead;
+			e.lruPrev = null;
+			e.lruNext = h;
+			if (h != null)
+				h.lruPrev = e;
+			else
+				lruTail = e;
+			lruHead = e;
+		}
 	}
 }
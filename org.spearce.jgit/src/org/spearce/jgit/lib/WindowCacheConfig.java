@@ -53,6 +53,8 @@ public class WindowCacheConfig {
 
 	private boolean packedGitMMAP;
 
+	private boolean packedIndexMMAP;
+
 	private int deltaBaseCacheLimit;
 
 	/** Create a default configuration. */
@@ -61,6 +63,7 @@ public WindowCacheConfig() {
 		packedGitLimit = 10 * MB;
 		packedGitWindowSize = 8 * KB;
 		packedGitMMAP = false;
+		packedIndexMMAP = false;
 		deltaBaseCacheLimit = 10 * MB;
 	}
 
@@ -133,6 +136,25 @@ public void setPackedGitMMAP(final boolean usemmap) {
 		packedGitMMAP = usemmap;
 	}
 
+	/**
+	 * @return true reads version 2 pack indexes through a Java NIO memory
+	 *         mapping instead of loading their tables into the heap; false
+	 *         loads each index fully into memory. <b>Default false.</b>
+	 */
+	public boolean isPackedIndexMMAP() {
+		return packedIndexMMAP;
+	}
+
+	/**
+	 * @param usemmap
+	 *            true reads version 2 pack indexes through a Java NIO memory
+	 *            mapping instead of loading their tables into the heap; false
+	 *            loads each index fully into memory.
+	 */
+	public void setPackedIndexMMAP(final boolean usemmap) {
+		packedIndexMMAP = usemmap;
+	}
+
 	/**
 	 * @return maximum number of bytes to cache in {@link UnpackedObjectCache}
 	 *         for inflated, recently accessed objects, without delta chains.
@@ -165,6 +187,7 @@ public void fromConfig(final RepositoryConfig rc) {
 		setPackedGitLimit(rc.getInt("core", null, "packedgitlimit", getPackedGitLimit()));
 		setPackedGitWindowSize(rc.getInt("core", null, "packedgitwindowsize", getPackedGitWindowSize()));
 		setPackedGitMMAP(rc.getBoolean("core", null, "packedgitmmap", isPackedGitMMAP()));
+		setPackedIndexMMAP(rc.getBoolean("core", null, "packedindexmmap", isPackedIndexMMAP()));
 		setDeltaBaseCacheLimit(rc.getInt("core", null, "deltabasecachelimit", getDeltaBaseCacheLimit()));
 	}
 }
@@ -44,6 +44,7 @@
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DataFormatException;
 
 /**
@@ -71,14 +72,20 @@
 public class WindowedFile {
 	private final File fPath;
 
+	final WindowCache cache;
+
 	final int hash;
 
 	RandomAccessFile fd;
 
 	private long length;
 
-	/** Total number of windows actively in the associated cache. */
-	int openCount;
+	/**
+	 * Total number of windows actively in the associated cache, plus any
+	 * pending window loads. The file is open while this is non-zero; changes
+	 * to or from zero are made while holding this object's monitor.
+	 */
+	final AtomicInteger openCount = new AtomicInteger();
 
 	/**
 	 * Open a file for reading through window caching.
@@ -87,7 +94,20 @@ public class WindowedFile {
 	 *            the file to open.
 	 */
 	public WindowedFile(final File file) {
+		this(file, WindowCache.getDefault());
+	}
+
+	/**
+	 * Open a file for reading through a specific window cache.
+	 * 
+	 * @param file
+	 *            the file to open.
+	 * @param windowCache
+	 *            the cache that will hold this file's windows.
+	 */
+	public WindowedFile(final File file, final WindowCache windowCache) {
 		fPath = file;
+		cache = windowCache;
 
 		// Multiply by 31 here so we can more directly combine with another
 		// value in WindowCache.hash(), without doing the multiply there.
@@ -309,7 +329,7 @@ void cacheClose() {
 
 	void allocWindow(final WindowCursor curs, final int windowId,
 			final long pos, final int size) {
-		if (WindowCache.mmap) {
+		if (cache.mmap) {
 			MappedByteBuffer map;
 			try {
 				map = fd.getChannel().map(MapMode.READ_ONLY, pos, size);
@@ -348,6 +368,6 @@ void allocWindow(final WindowCursor curs, final int windowId,
 		final byte[] b = new byte[size];
 		curs.window = new ByteArrayWindow(this, pos, windowId, b);
 		curs.handle = b;
-		openCount++; // Until the window loads, we must stay open.
+		openCount.incrementAndGet(); // Until the window loads, we must stay open.
 	}
 }
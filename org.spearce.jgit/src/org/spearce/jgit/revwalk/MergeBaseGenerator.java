@@ -136,6 +136,8 @@ RevCommit next() throws MissingObjectException,
 			for (final RevCommit p : c.parents) {
 				if ((p.flags & IN_PENDING) != 0)
 					continue;
+				if (walker.belowMinGeneration(p))
+					continue;
 				if ((p.flags & PARSED) == 0)
 					p.parse(walker);
 				p.flags |= IN_PENDING;
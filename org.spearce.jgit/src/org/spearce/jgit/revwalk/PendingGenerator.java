@@ -128,12 +128,17 @@ RevCommit next() throws MissingObjectException,
 				final boolean produce;
 				if ((c.flags & UNINTERESTING) != 0)
 					produce = false;
-				else
+				else {
+					if (filter.requiresCommitBody())
+						c.parseBody(walker);
 					produce = filter.include(walker, c);
+				}
 
 				for (final RevCommit p : c.parents) {
 					if ((p.flags & SEEN) != 0)
 						continue;
+					if (walker.belowMinGeneration(p))
+						continue;
 					if ((p.flags & PARSED) == 0)
 						p.parse(walker);
 					p.flags |= SEEN;
@@ -44,6 +44,7 @@
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.CommitGraph;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.MutableObjectId;
 import org.spearce.jgit.lib.ObjectLoader;
@@ -54,6 +55,14 @@
 public class RevCommit extends RevObject {
 	static final RevCommit[] NO_PARENTS = {};
 
+	/**
+	 * Generation number of a commit whose generation is not known.
+	 * <p>
+	 * The value is larger than any real generation number, so a commit with
+	 * an unknown generation is never assumed to be an ancestor of another.
+	 */
+	public static final int GENERATION_INFINITY = Integer.MAX_VALUE;
+
 	private static final String TYPE_COMMIT = Constants.TYPE_COMMIT;
 
 	private RevTree tree;
@@ -64,6 +73,8 @@ public class RevCommit extends RevObject {
 
 	int inDegree;
 
+	int generation; // 0 until known; a root commit has generation 1
+
 	private byte[] buffer;
 
 	/**
@@ -79,13 +90,59 @@ protected RevCommit(final AnyObjectId id) {
 	@Override
 	void parse(final RevWalk walk) throws MissingObjectException,
 			IncorrectObjectTypeException, IOException {
+		if (!walk.isRetainBody()) {
+			final int idx = walk.findGraphCommit(this);
+			if (idx >= 0) {
+				parseCommitGraph(walk, walk.getCommitGraph(), idx);
+				return;
+			}
+		}
+		parseCanonical(walk, load(walk));
+	}
+
+	void parseBody(final RevWalk walk) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		if (buffer == null) {
+			buffer = load(walk);
+			if ((flags & PARSED) == 0)
+				parseCanonical(walk, buffer);
+		}
+	}
+
+	private byte[] load(final RevWalk walk) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
 		final ObjectLoader ldr = walk.db.openObject(walk.curs, this);
 		if (ldr == null)
 			throw new MissingObjectException(this, TYPE_COMMIT);
 		final byte[] data = ldr.getCachedBytes();
 		if (Constants.OBJ_COMMIT != ldr.getType())
 			throw new IncorrectObjectTypeException(this, TYPE_COMMIT);
-		parseCanonical(walk, data);
+		return data;
+	}
+
+	void parseCommitGraph(final RevWalk walk, final CommitGraph graph,
+			final int idx) {
+		final MutableObjectId idBuffer = walk.idBuffer;
+		graph.getTree(idx, idBuffer);
+		tree = walk.lookupTree(idBuffer);
+
+		if (parents == null) {
+			final int nParents = graph.getParentCount(idx);
+			if (nParents == 0)
+				parents = NO_PARENTS;
+			else {
+				final RevCommit[] pList = new RevCommit[nParents];
+				for (int i = 0; i < nParents; i++) {
+					graph.getObjectId(graph.getParent(idx, i), idBuffer);
+					pList[i] = walk.lookupCommit(idBuffer);
+				}
+				parents = pList;
+			}
+		}
+
+		commitTime = graph.getCommitTime(idx);
+		generation = graph.getGeneration(idx);
+		flags |= PARSED;
 	}
 
 	void parseCanonical(final RevWalk walk, final byte[] raw) {
@@ -194,6 +251,22 @@ public final int getCommitTime() {
 		return commitTime;
 	}
 
+	/**
+	 * Generation number of this commit, if already known.
+	 * <p>
+	 * A root commit has generation 1, any other commit has a generation one
+	 * larger than the largest generation of its parents. A commit's
+	 * generation is thus always larger than that of each of its ancestors.
+	 * <p>
+	 * The generation is only known once it was read from the commit graph or
+	 * computed by {@link RevWalk#getGeneration(RevCommit)}.
+	 * 
+	 * @return generation number; {@link #GENERATION_INFINITY} if not known.
+	 */
+	public final int getGeneration() {
+		return generation != 0 ? generation : GENERATION_INFINITY;
+	}
+
 	/**
 	 * Parse this commit buffer for display.
 	 * 
@@ -254,6 +327,10 @@ public final RevCommit[] getParents() {
 	/**
 	 * Obtain the raw unparsed commit body (<b>NOTE - THIS IS NOT A COPY</b>).
 	 * <p>
+	 * If the walker that parsed this commit does not retain bodies (see
+	 * {@link RevWalk#setRetainBody(boolean)}) the body may not be available
+	 * until {@link RevWalk#parseBody(RevObject)} has been called.
+	 * <p>
 	 * This method is exposed only to provide very fast, efficient access to
 	 * this commit's message buffer within a RevFilter. Applications relying on
 	 * this buffer should be very careful to ensure they do not modify its
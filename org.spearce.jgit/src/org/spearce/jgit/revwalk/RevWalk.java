@@ -48,6 +48,7 @@
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.RevWalkException;
 import org.spearce.jgit.lib.AnyObjectId;
+import org.spearce.jgit.lib.CommitGraph;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.MutableObjectId;
 import org.spearce.jgit.lib.ObjectId;
@@ -175,6 +176,14 @@ public class RevWalk implements Iterable<RevCommit> {
 
 	private TreeFilter treeFilter;
 
+	private boolean retainBody = true;
+
+	private CommitGraph commitGraph;
+
+	private boolean commitGraphLoaded;
+
+	int minGeneration;
+
 	/**
 	 * Create a new revision walker for a given repository.
 	 * 
@@ -345,17 +354,30 @@ public boolean isMergedInto(final RevCommit base, final RevCommit tip)
 			IOException {
 		final RevFilter oldRF = filter;
 		final TreeFilter oldTF = treeFilter;
+		final int oldMinGeneration = minGeneration;
 		try {
 			finishDelayedFreeFlags();
 			reset(~freeFlags & APP_FLAGS);
 			filter = RevFilter.MERGE_BASE;
 			treeFilter = TreeFilter.ALL;
+
+			// Nothing below base's generation can lead to base, so
+			// only the part of history above it has to be walked.
+			//
+			final int baseGen = getGeneration(base);
+			if (baseGen != RevCommit.GENERATION_INFINITY) {
+				if (getGeneration(tip) < baseGen)
+					return false;
+				minGeneration = baseGen;
+			}
+
 			markStart(tip);
 			markStart(base);
 			return next() == base;
 		} finally {
 			filter = oldRF;
 			treeFilter = oldTF;
+			minGeneration = oldMinGeneration;
 		}
 	}
 
@@ -698,6 +720,15 @@ else if (!(c instanceof RevTree))
 	public RevObject parseAny(final AnyObjectId id)
 			throws MissingObjectException, IOException {
 		RevObject r = objects.get(id);
+		if (r == null && !retainBody) {
+			final int idx = findGraphCommit(id);
+			if (idx >= 0) {
+				final RevCommit c = createCommit(id);
+				c.parseCommitGraph(this, commitGraph, idx);
+				objects.add(c);
+				return c;
+			}
+		}
 		if (r == null) {
 			final ObjectLoader ldr = db.openObject(curs, id);
 			if (ldr == null)
@@ -736,6 +767,205 @@ public RevObject parseAny(final AnyObjectId id)
 		return r;
 	}
 
+	/**
+	 * @return true if the body of each commit is available after parsing it.
+	 */
+	public boolean isRetainBody() {
+		return retainBody;
+	}
+
+	/**
+	 * Set whether the body of each commit is available after parsing it.
+	 * <p>
+	 * Applications which only need the shape of history (parents, trees and
+	 * commit times) should disable this. The walker may then read those
+	 * headers from the repository's commit graph (see
+	 * {@link Repository#getCommitGraph()}) without loading the commit itself,
+	 * leaving {@link RevCommit#getRawBuffer()} null. Use
+	 * {@link #parseBody(RevObject)} to load the body of a commit if it is
+	 * needed after all. Commits are still loaded for a {@link RevFilter} that
+	 * {@link RevFilter#requiresCommitBody() requires their body}.
+	 * <p>
+	 * Default setting: true.
+	 *
+	 * @param retain
+	 *            true to always load and keep the body of commits.
+	 */
+	public void setRetainBody(final boolean retain) {
+		retainBody = retain;
+	}
+
+	/**
+	 * Ensure the object's headers have been parsed.
+	 * <p>
+	 * For a commit this is its tree, parents and commit time. Unless the
+	 * walker retains bodies the commit's raw body may not be loaded.
+	 *
+	 * @param obj
+	 *            the object the caller needs to be parsed.
+	 * @throws MissingObjectException
+	 *             the supplied does not exist.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public void parseHeaders(final RevObject obj)
+			throws MissingObjectException, IOException {
+		parse(obj);
+	}
+
+	/**
+	 * Ensure the object's content, including its body, has been parsed.
+	 *
+	 * @param obj
+	 *            the object the caller needs to be parsed.
+	 * @throws MissingObjectException
+	 *             the supplied does not exist.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public void parseBody(final RevObject obj) throws MissingObjectException,
+			IOException {
+		if (obj instanceof RevCommit)
+			((RevCommit) obj).parseBody(this);
+		else
+			parse(obj);
+	}
+
+	/**
+	 * Get the generation number of a commit.
+	 * <p>
+	 * The generation is read from the repository's commit graph. Commits
+	 * created after the graph was written have their generation computed
+	 * from their parents, parsing commits until the graph is reached. If the
+	 * repository has no commit graph generations are not computed, as that
+	 * would require parsing the entire history.
+	 * 
+	 * @param c
+	 *            the commit to obtain the generation of.
+	 * @return generation of the commit; {@link RevCommit#GENERATION_INFINITY}
+	 *         if the repository has no commit graph.
+	 * @throws MissingObjectException
+	 *             the commit, or one of its ancestors, is not available from
+	 *             the object database.
+	 * @throws IncorrectObjectTypeException
+	 *             a parent of the commit is not actually a commit.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 * @see RevCommit#getGeneration()
+	 */
+	public int getGeneration(final RevCommit c) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		if (c.generation != 0)
+			return c.generation;
+
+		final CommitGraph graph = getCommitGraph();
+		if (graph == null)
+			return RevCommit.GENERATION_INFINITY;
+
+		final ArrayList<RevCommit> stack = new ArrayList<RevCommit>();
+		stack.add(c);
+		while (!stack.isEmpty()) {
+			final int top = stack.size() - 1;
+			final RevCommit t = stack.get(top);
+			if (t.generation != 0) {
+				stack.remove(top);
+				continue;
+			}
+
+			final int idx = findGraphCommit(t);
+			if (idx >= 0) {
+				t.generation = graph.getGeneration(idx);
+				stack.remove(top);
+				continue;
+			}
+
+			if ((t.flags & PARSED) == 0)
+				t.parse(this);
+			int gen = 1;
+			boolean ready = true;
+			for (final RevCommit p : t.parents) {
+				if (p.generation == 0) {
+					stack.add(p);
+					ready = false;
+				} else
+					gen = Math.max(gen, p.generation + 1);
+			}
+			if (ready) {
+				t.generation = gen;
+				stack.remove(top);
+			}
+		}
+		return c.generation;
+	}
+
+	/**
+	 * @return the smallest generation number a commit must have for its
+	 *         parents to be walked; 0 if the walk is not limited.
+	 */
+	public int getMinGeneration() {
+		return minGeneration;
+	}
+
+	/**
+	 * Limit the walk to commits at or above a generation number.
+	 * <p>
+	 * Commits whose generation (see {@link #getGeneration(RevCommit)}) is
+	 * smaller than the limit can not be ancestors of commits at the limit,
+	 * and are not visited: the walk does not enter them from their children.
+	 * Commits of unknown generation are always visited. Starting commits are
+	 * visited as usual.
+	 * <p>
+	 * The limit is retained across {@link #reset()}.
+	 * 
+	 * @param min
+	 *            the smallest generation to walk; 0 to walk all commits.
+	 */
+	public void setMinGeneration(final int min) {
+		minGeneration = min;
+	}
+
+	/**
+	 * Check if a commit is excluded by {@link #setMinGeneration(int)}.
+	 * 
+	 * @param c
+	 *            the commit about to be entered.
+	 * @return true if the walk must not enter the commit.
+	 * @throws IOException
+	 *             the generation of the commit could not be computed.
+	 */
+	boolean belowMinGeneration(final RevCommit c) throws IOException {
+		return minGeneration != 0 && getGeneration(c) < minGeneration;
+	}
+
+	CommitGraph getCommitGraph() throws IOException {
+		if (!commitGraphLoaded) {
+			commitGraph = db.getCommitGraph();
+			commitGraphLoaded = true;
+		}
+		return commitGraph;
+	}
+
+	/**
+	 * Find a commit in the commit graph, if its record can be trusted.
+	 *
+	 * @param id
+	 *            name of the commit.
+	 * @return index of the commit in {@link #getCommitGraph()}; -1 if there
+	 *         is no graph, the commit is not in it, or it was loose when the
+	 *         graph was written and has since been removed.
+	 * @throws IOException
+	 *             the commit graph could not be read.
+	 */
+	int findGraphCommit(final AnyObjectId id) throws IOException {
+		final CommitGraph graph = getCommitGraph();
+		if (graph == null)
+			return -1;
+		final int idx = graph.findCommit(id);
+		if (idx < 0 || graph.isPacked(idx) || db.hasObject(id))
+			return idx;
+		return -1;
+	}
+
 	/**
 	 * Ensure the object's content has been parsed.
 	 * <p>
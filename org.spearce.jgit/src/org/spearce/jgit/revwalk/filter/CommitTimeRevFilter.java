@@ -76,6 +76,11 @@ public static final RevFilter after(final Date ts) {
 		when = (int) (ts / 1000);
 	}
 
+	@Override
+	public boolean requiresCommitBody() {
+		return false;
+	}
+
 	@Override
 	public RevFilter clone() {
 		return this;
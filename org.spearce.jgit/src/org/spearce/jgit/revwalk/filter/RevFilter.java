@@ -98,6 +98,11 @@ public RevFilter clone() {
 			return this;
 		}
 
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+
 		@Override
 		public String toString() {
 			return "ALL";
@@ -116,6 +121,11 @@ public RevFilter clone() {
 			return this;
 		}
 
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+
 		@Override
 		public String toString() {
 			return "NONE";
@@ -134,6 +144,11 @@ public RevFilter clone() {
 			return this;
 		}
 
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+
 		@Override
 		public String toString() {
 			return "NO_MERGES";
@@ -159,6 +174,11 @@ public RevFilter clone() {
 			return this;
 		}
 
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+
 		@Override
 		public String toString() {
 			return "MERGE_BASE";
@@ -204,6 +224,21 @@ public abstract boolean include(RevWalk walker, RevCommit cmit)
 			throws StopWalkException, MissingObjectException,
 			IncorrectObjectTypeException, IOException;
 
+	/**
+	 * Determine if the filter examines the body of commits.
+	 * <p>
+	 * Walkers which do not retain commit bodies (see
+	 * {@link RevWalk#setRetainBody(boolean)}) load the body of each commit
+	 * before passing it to a filter that requires it.
+	 *
+	 * @return true if {@link #include(RevWalk, RevCommit)} may read the raw
+	 *         body of the commit; false if it only uses parsed headers (such
+	 *         as parents and commit time) or flags.
+	 */
+	public boolean requiresCommitBody() {
+		return true;
+	}
+
 	/**
 	 * Clone this revision filter, including its parameters.
 	 * <p>
@@ -44,13 +44,13 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.URL;
 import java.net.URLConnection;
-import java.security.DigestOutputStream;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -69,6 +69,12 @@
 import java.util.SortedMap;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -79,7 +85,6 @@
 import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.util.Base64;
 import org.spearce.jgit.util.HttpSupport;
-import org.spearce.jgit.util.TemporaryBuffer;
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -114,11 +119,27 @@ public class AmazonS3 {
 
 	private static final String X_AMZ_META = "x-amz-meta-";
 
+	private static final Set<String> SUBRESOURCES;
+
+	/** Default size of the parts of a multipart upload, in bytes. */
+	private static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+	/** Smallest part S3 accepts, other than the last part of an upload. */
+	static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	/** Default number of parts sent at once by a multipart upload. */
+	private static final int DEFAULT_PART_THREADS = 4;
+
 	static {
 		SIGNED_HEADERS = new HashSet<String>();
 		SIGNED_HEADERS.add("content-type");
 		SIGNED_HEADERS.add("content-md5");
 		SIGNED_HEADERS.add("date");
+
+		SUBRESOURCES = new HashSet<String>();
+		SUBRESOURCES.add("partNumber");
+		SUBRESOURCES.add("uploadId");
+		SUBRESOURCES.add("uploads");
 	}
 
 	private static boolean isSignedHeader(final String name) {
@@ -175,6 +196,21 @@ private static MessageDigest newMD5() {
 	/** Encryption algorithm, may be a null instance that provides pass-through. */
 	private final WalkEncryption encryption;
 
+	/** Host name of the service, bucket names are prefixed to it. */
+	private final String domain;
+
+	/** TCP port of the service. */
+	private final int port;
+
+	/** Put the bucket name in the path, instead of the host name. */
+	private final boolean pathStyle;
+
+	/** Size of a part of a multipart upload. */
+	private final int partSize;
+
+	/** Number of parts of one upload sent at once. */
+	private final int partThreads;
+
 	/**
 	 * Create a new S3 client for the supplied user information.
 	 * <p>
@@ -194,6 +230,17 @@ private static MessageDigest newMD5() {
 	 * # Number of times to retry after internal error from S3.
 	 * httpclient.retry-max: 3
 	 *
+	 * # Service to connect to, and whether the bucket name goes in the
+	 * # path rather than the host name (for S3 compatible services).
+	 * s3service.s3-endpoint: s3.amazonaws.com
+	 * s3service.s3-endpoint-http-port: 80
+	 * s3service.disable-dns-buckets: false
+	 *
+	 * # Size in bytes of the parts large objects are uploaded in (at least
+	 * # 5242880), and the number of parts sent at once.
+	 * upload.max-part-size: 8388608
+	 * s3service.max-thread-count: 4
+	 *
 	 * # End-to-end encryption (hides content from S3 owners)
 	 * password: &lt;encryption pass-phrase&gt;
 	 * crypto.algorithm: PBEWithMD5AndDES
@@ -244,6 +291,21 @@ else if ("PUBLIC_READ".equalsIgnoreCase(pacl))
 		maxAttempts = Integer.parseInt(props.getProperty(
 				"httpclient.retry-max", "3"));
 		proxySelector = ProxySelector.getDefault();
+
+		domain = props.getProperty("s3service.s3-endpoint", DOMAIN);
+		port = Integer.parseInt(props.getProperty(
+				"s3service.s3-endpoint-http-port", "80"));
+		pathStyle = Boolean.valueOf(
+				props.getProperty("s3service.disable-dns-buckets", "false"))
+				.booleanValue();
+		partSize = Integer.parseInt(props.getProperty("upload.max-part-size",
+				String.valueOf(DEFAULT_PART_SIZE)));
+		if (partSize < MIN_PART_SIZE)
+			throw new IllegalArgumentException("Invalid upload.max-part-size: "
+					+ partSize + " is less than " + MIN_PART_SIZE);
+		partThreads = Math.max(1, Integer.parseInt(props.getProperty(
+				"s3service.max-thread-count", String
+						.valueOf(DEFAULT_PART_THREADS))));
 	}
 
 	/**
@@ -416,17 +478,17 @@ public void put(final String bucket, final String key, final byte[] data)
 	/**
 	 * Atomically create or replace a single large object.
 	 * <p>
-	 * Initially the returned output stream buffers data into memory, but if the
-	 * total number of written bytes starts to exceed an internal limit the data
-	 * is spooled to a temporary file on the local drive.
-	 * <p>
-	 * Network transmission is attempted only when <code>close()</code> gets
-	 * called at the end of output. Closing the returned stream can therefore
-	 * take significant time, especially if the written content is very large.
+	 * Data is collected in memory until it fills one part of the upload (see
+	 * <code>upload.max-part-size</code>). Objects no larger than one part are
+	 * transmitted with a single request when <code>close()</code> gets called.
+	 * Larger objects are sent as a multipart upload, each part being
+	 * transmitted in the background as soon as it has been written, so only a
+	 * few parts are ever held in memory at once. The object only becomes
+	 * visible once <code>close()</code> completes the upload.
 	 * <p>
 	 * End-to-end data integrity is assured by internally computing the MD5
-	 * checksum of the supplied data and transmitting the checksum along with
-	 * the data itself.
+	 * checksum of each part and transmitting the checksum along with the part
+	 * itself.
 	 *
 	 * @param bucket
 	 *            name of the bucket storing the object.
@@ -434,42 +496,32 @@ public void put(final String bucket, final String key, final byte[] data)
 	 *            key of the object within its bucket.
 	 * @param monitor
 	 *            (optional) progress monitor to post upload completion to
-	 *            during the stream's close method.
+	 *            as parts are transmitted.
 	 * @param monitorTask
-	 *            (optional) task name to display during the close method.
-	 * @return a stream which accepts the new data, and transmits once closed.
+	 *            (optional) task name to display during the upload.
+	 * @return a stream which accepts the new data, and transmits it as it is
+	 *         written. The object is created once the stream is closed.
 	 * @throws IOException
 	 *             if encryption was enabled it could not be configured.
 	 */
 	public OutputStream beginPut(final String bucket, final String key,
 			final ProgressMonitor monitor, final String monitorTask)
 			throws IOException {
-		final MessageDigest md5 = newMD5();
-		final TemporaryBuffer buffer = new TemporaryBuffer() {
-			@Override
-			public void close() throws IOException {
-				super.close();
-				try {
-					putImpl(bucket, key, md5.digest(), this, monitor,
-							monitorTask);
-				} finally {
-					destroy();
-				}
-			}
-		};
-		return encryption.encrypt(new DigestOutputStream(buffer, md5));
+		return encryption.encrypt(new UploadStream(bucket, key, monitor,
+				monitorTask));
 	}
 
 	private void putImpl(final String bucket, final String key,
-			final byte[] csum, final TemporaryBuffer buf,
-			ProgressMonitor monitor, String monitorTask) throws IOException {
+			final byte[] data, final int len, ProgressMonitor monitor,
+			String monitorTask) throws IOException {
 		if (monitor == null)
 			monitor = NullProgressMonitor.INSTANCE;
 		if (monitorTask == null)
 			monitorTask = "Uploading " + key;
 
-		final String md5str = Base64.encodeBytes(csum);
-		final long len = buf.length();
+		final MessageDigest md5 = newMD5();
+		md5.update(data, 0, len);
+		final String md5str = Base64.encodeBytes(md5.digest());
 		final String lenstr = String.valueOf(len);
 		for (int curAttempt = 0; curAttempt < maxAttempts; curAttempt++) {
 			final HttpURLConnection c = open("PUT", bucket, key);
@@ -479,11 +531,16 @@ private void putImpl(final String bucket, final String key,
 			encryption.request(c, X_AMZ_META);
 			authorize(c);
 			c.setDoOutput(true);
-			c.setFixedLengthStreamingMode((int) len);
-			monitor.beginTask(monitorTask, (int) (len / 1024));
+			c.setFixedLengthStreamingMode(len);
+			monitor.beginTask(monitorTask, len / 1024);
 			final OutputStream os = c.getOutputStream();
 			try {
-				buf.writeTo(os, monitor);
+				for (int p = 0; p < len;) {
+					final int n = Math.min(len - p, 8192);
+					os.write(data, p, n);
+					monitor.update((p + n) / 1024 - p / 1024);
+					p += n;
+				}
 			} finally {
 				monitor.endTask();
 				os.close();
@@ -501,6 +558,149 @@ private void putImpl(final String bucket, final String key,
 		throw maxAttempts("Writing", key);
 	}
 
+	private String beginUpload(final String bucket, final String key)
+			throws IOException {
+		final Map<String, String> args = uploadArgs(null);
+		for (int curAttempt = 0; curAttempt < maxAttempts; curAttempt++) {
+			final HttpURLConnection c = open("POST", bucket, key, args);
+			c.setRequestProperty(X_AMZ_ACL, acl);
+			encryption.request(c, X_AMZ_META);
+			authorize(c);
+			c.setDoOutput(true);
+			c.setFixedLengthStreamingMode(0);
+			c.getOutputStream().close();
+
+			switch (HttpSupport.response(c)) {
+			case HttpURLConnection.HTTP_OK: {
+				final String id = new ElementParser("UploadId").parse(c, key);
+				if (id == null || id.length() == 0)
+					throw new IOException("Writing of '" + key
+							+ "' failed: No UploadId in response");
+				return id;
+			}
+			case HttpURLConnection.HTTP_INTERNAL_ERROR:
+				continue;
+			default:
+				throw error("Writing", key, c);
+			}
+		}
+		throw maxAttempts("Writing", key);
+	}
+
+	private String putPart(final String bucket, final String key,
+			final String uploadId, final int partNumber, final byte[] data,
+			final int len) throws IOException {
+		final Map<String, String> args = uploadArgs(uploadId);
+		args.put("partNumber", String.valueOf(partNumber));
+
+		final MessageDigest md5 = newMD5();
+		md5.update(data, 0, len);
+		final String md5str = Base64.encodeBytes(md5.digest());
+		final String lenstr = String.valueOf(len);
+		for (int curAttempt = 0; curAttempt < maxAttempts; curAttempt++) {
+			final HttpURLConnection c = open("PUT", bucket, key, args);
+			c.setRequestProperty("Content-Length", lenstr);
+			c.setRequestProperty("Content-MD5", md5str);
+			authorize(c);
+			c.setDoOutput(true);
+			c.setFixedLengthStreamingMode(len);
+			final OutputStream os = c.getOutputStream();
+			try {
+				os.write(data, 0, len);
+			} finally {
+				os.close();
+			}
+
+			switch (HttpSupport.response(c)) {
+			case HttpURLConnection.HTTP_OK: {
+				final String etag = c.getHeaderField("ETag");
+				if (etag == null)
+					throw new IOException("Writing of '" + key + "' failed:"
+							+ " No ETag for part " + partNumber);
+				return etag;
+			}
+			case HttpURLConnection.HTTP_INTERNAL_ERROR:
+				continue;
+			default:
+				throw error("Writing", key, c);
+			}
+		}
+		throw maxAttempts("Writing", key);
+	}
+
+	private void completeUpload(final String bucket, final String key,
+			final String uploadId, final List<String> etags)
+			throws IOException {
+		final StringBuilder xml = new StringBuilder();
+		xml.append("<CompleteMultipartUpload>");
+		for (int i = 0; i < etags.size(); i++) {
+			xml.append("<Part><PartNumber>");
+			xml.append(i + 1);
+			xml.append("</PartNumber><ETag>");
+			xml.append(etags.get(i));
+			xml.append("</ETag></Part>");
+		}
+		xml.append("</CompleteMultipartUpload>");
+		final byte[] body = xml.toString().getBytes("UTF-8");
+
+		final Map<String, String> args = uploadArgs(uploadId);
+		final String lenstr = String.valueOf(body.length);
+		for (int curAttempt = 0; curAttempt < maxAttempts; curAttempt++) {
+			final HttpURLConnection c = open("POST", bucket, key, args);
+			c.setRequestProperty("Content-Length", lenstr);
+			authorize(c);
+			c.setDoOutput(true);
+			c.setFixedLengthStreamingMode(body.length);
+			final OutputStream os = c.getOutputStream();
+			try {
+				os.write(body);
+			} finally {
+				os.close();
+			}
+
+			switch (HttpSupport.response(c)) {
+			case HttpURLConnection.HTTP_OK: {
+				// The service may still fail after it started its reply,
+				// in which case the body is an Error document.
+				//
+				final String code = new ElementParser("Code").parse(c, key);
+				if (code == null)
+					return;
+				if ("InternalError".equals(code))
+					continue;
+				throw new IOException("Writing of '" + key + "' failed: "
+						+ code);
+			}
+			case HttpURLConnection.HTTP_INTERNAL_ERROR:
+				continue;
+			default:
+				throw error("Writing", key, c);
+			}
+		}
+		throw maxAttempts("Writing", key);
+	}
+
+	private void abortUpload(final String bucket, final String key,
+			final String uploadId) {
+		try {
+			final HttpURLConnection c;
+			c = open("DELETE", bucket, key, uploadArgs(uploadId));
+			authorize(c);
+			HttpSupport.response(c);
+		} catch (IOException err) {
+			// Best effort only, the upload is already failing.
+		}
+	}
+
+	private static Map<String, String> uploadArgs(final String uploadId) {
+		final Map<String, String> args = new TreeMap<String, String>();
+		if (uploadId != null)
+			args.put("uploadId", uploadId);
+		else
+			args.put("uploads", "");
+		return args;
+	}
+
 	private IOException error(final String action, final String key,
 			final HttpURLConnection c) throws IOException {
 		final IOException err = new IOException(action + " of '" + key
@@ -537,9 +737,23 @@ private HttpURLConnection open(final String method, final String bucket,
 			throws IOException {
 		final StringBuilder urlstr = new StringBuilder();
 		urlstr.append("http://");
-		urlstr.append(bucket);
-		urlstr.append('.');
-		urlstr.append(DOMAIN);
+		if (pathStyle) {
+			urlstr.append(domain);
+			if (port != 80) {
+				urlstr.append(':');
+				urlstr.append(port);
+			}
+			urlstr.append('/');
+			urlstr.append(bucket);
+		} else {
+			urlstr.append(bucket);
+			urlstr.append('.');
+			urlstr.append(domain);
+			if (port != 80) {
+				urlstr.append(':');
+				urlstr.append(port);
+			}
+		}
 		urlstr.append('/');
 		if (key.length() > 0)
 			HttpSupport.encode(urlstr, key);
@@ -551,8 +765,10 @@ private HttpURLConnection open(final String method, final String bucket,
 			while (i.hasNext()) {
 				final Map.Entry<String, String> e = i.next();
 				urlstr.append(e.getKey());
-				urlstr.append('=');
-				HttpSupport.encode(urlstr, e.getValue());
+				if (e.getValue().length() > 0) {
+					urlstr.append('=');
+					HttpSupport.encode(urlstr, e.getValue());
+				}
 				if (i.hasNext())
 					urlstr.append('&');
 			}
@@ -598,10 +814,14 @@ private void authorize(final HttpURLConnection c) throws IOException {
 			s.append('\n');
 		}
 
-		final String host = c.getURL().getHost();
-		s.append('/');
-		s.append(host.substring(0, host.length() - DOMAIN.length() - 1));
-		s.append(c.getURL().getPath());
+		final URL url = c.getURL();
+		final String host = url.getHost();
+		if (host.endsWith("." + domain)) {
+			s.append('/');
+			s.append(host.substring(0, host.length() - domain.length() - 1));
+		}
+		s.append(url.getPath());
+		appendSubresources(s, url.getQuery());
 
 		final String sec;
 		try {
@@ -616,6 +836,30 @@ private void authorize(final HttpURLConnection c) throws IOException {
 		c.setRequestProperty("Authorization", "AWS " + publicKey + ":" + sec);
 	}
 
+	private static void appendSubresources(final StringBuilder s,
+			final String query) {
+		if (query == null)
+			return;
+		final SortedMap<String, String> sub = new TreeMap<String, String>();
+		for (final String arg : query.split("&")) {
+			final int eq = arg.indexOf('=');
+			final String name = eq < 0 ? arg : arg.substring(0, eq);
+			if (SUBRESOURCES.contains(name))
+				sub.put(name, eq < 0 ? null : arg.substring(eq + 1));
+		}
+
+		char sep = '?';
+		for (final Map.Entry<String, String> e : sub.entrySet()) {
+			s.append(sep);
+			s.append(e.getKey());
+			if (e.getValue() != null) {
+				s.append('=');
+				s.append(e.getValue());
+			}
+			sep = '&';
+		}
+	}
+
 	/**
 	 * Simple command line interface to {@link AmazonS3}.
 	 *
@@ -785,4 +1029,245 @@ else if ("IsTruncated".equals(name))
 			data = null;
 		}
 	}
+
+	/** Collects written data into parts and sends them as they fill up. */
+	private final class UploadStream extends OutputStream {
+		private final String bucket;
+
+		private final String key;
+
+		private final ProgressMonitor monitor;
+
+		private final String monitorTask;
+
+		/** Parts submitted for transmission, in part number order. */
+		private final List<Future<String>> parts = new ArrayList<Future<String>>();
+
+		/** ETags of the parts already known to have been stored. */
+		private final List<String> etags = new ArrayList<String>();
+
+		private ExecutorService senders;
+
+		private String uploadId;
+
+		private byte[] buf;
+
+		private int cnt;
+
+		private boolean closed;
+
+		UploadStream(final String bn, final String k, final ProgressMonitor pm,
+				final String task) {
+			bucket = bn;
+			key = k;
+			monitor = pm != null ? pm : NullProgressMonitor.INSTANCE;
+			monitorTask = task != null ? task : "Uploading " + key;
+			buf = new byte[Math.min(partSize, 8192)];
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			if (cnt == buf.length)
+				makeRoom();
+			buf[cnt++] = (byte) b;
+		}
+
+		@Override
+		public void write(final byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (cnt == buf.length)
+					makeRoom();
+				final int n = Math.min(len, buf.length - cnt);
+				System.arraycopy(b, off, buf, cnt, n);
+				cnt += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void makeRoom() throws IOException {
+			if (closed)
+				throw new IOException("Upload of '" + key + "' already closed");
+			if (buf.length < partSize) {
+				// Small objects never need a full part, so grow lazily.
+				//
+				final byte[] n = new byte[Math.min(partSize, buf.length * 2)];
+				System.arraycopy(buf, 0, n, 0, cnt);
+				buf = n;
+				return;
+			}
+
+			try {
+				sendPart();
+			} catch (IOException err) {
+				abort();
+				throw err;
+			} catch (RuntimeException err) {
+				abort();
+				throw err;
+			}
+			buf = new byte[partSize];
+		}
+
+		private void sendPart() throws IOException {
+			if (uploadId == null) {
+				uploadId = beginUpload(bucket, key);
+				senders = Executors.newFixedThreadPool(partThreads,
+						new ThreadFactory() {
+							private int id;
+
+							public Thread newThread(final Runnable r) {
+								final Thread t = new Thread(r, "JGit-S3-Upload-"
+										+ (++id));
+								t.setDaemon(true);
+								return t;
+							}
+						});
+				monitor.beginTask(monitorTask, ProgressMonitor.UNKNOWN);
+			}
+
+			// Wait for the oldest parts so no more than partThreads
+			// full buffers are waiting on the network at any time.
+			//
+			awaitParts(parts.size() - partThreads + 1);
+
+			final byte[] data = buf;
+			final int len = cnt;
+			final int partNumber = parts.size() + 1;
+			parts.add(senders.submit(new Callable<String>() {
+				public String call() throws IOException {
+					return putPart(bucket, key, uploadId, partNumber, data, len);
+				}
+			}));
+			cnt = 0;
+		}
+
+		private void awaitParts(final int upTo) throws IOException {
+			while (etags.size() < upTo) {
+				final String etag;
+				try {
+					etag = parts.get(etags.size()).get();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof IOException)
+						throw (IOException) cause;
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					final IOException err = new IOException("Writing of '"
+							+ key + "' failed");
+					err.initCause(cause);
+					throw err;
+				}
+				etags.add(etag);
+				monitor.update(partSize / 1024);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+
+			if (uploadId == null) {
+				try {
+					putImpl(bucket, key, buf, cnt, monitor, monitorTask);
+				} finally {
+					buf = null;
+				}
+				return;
+			}
+
+			try {
+				if (cnt > 0)
+					sendPart();
+				awaitParts(parts.size());
+				completeUpload(bucket, key, uploadId, etags);
+			} catch (IOException err) {
+				abort();
+				throw err;
+			} catch (RuntimeException err) {
+				abort();
+				throw err;
+			} finally {
+				monitor.endTask();
+				senders.shutdown();
+				buf = null;
+			}
+		}
+
+		private void abort() {
+			closed = true;
+			if (uploadId != null) {
+				for (final Future<String> f : parts)
+					f.cancel(true);
+				senders.shutdownNow();
+				abortUpload(bucket, key, uploadId);
+			}
+		}
+	}
+
+	/** Extracts the text of the first occurrence of an element. */
+	private static final class ElementParser extends DefaultHandler {
+		private final String element;
+
+		private StringBuilder data;
+
+		private String value;
+
+		ElementParser(final String name) {
+			element = name;
+		}
+
+		String parse(final HttpURLConnection c, final String key)
+				throws IOException {
+			final XMLReader xr;
+			try {
+				xr = XMLReaderFactory.createXMLReader();
+			} catch (SAXException e) {
+				throw new IOException("No XML parser available.");
+			}
+			xr.setContentHandler(this);
+			final InputStream in = c.getInputStream();
+			try {
+				xr.parse(new InputSource(in));
+			} catch (SAXException parsingError) {
+				final IOException p;
+				p = new IOException("Error writing " + key);
+				p.initCause(parsingError);
+				throw p;
+			} finally {
+				in.close();
+			}
+			return value;
+		}
+
+		@Override
+		public void startElement(final String uri, final String name,
+				final String qName, final Attributes attributes)
+				throws SAXException {
+			if (value == null && element.equals(name))
+				data = new StringBuilder();
+		}
+
+		@Override
+		public void characters(final char[] ch, final int s, final int n)
+				throws SAXException {
+			if (data != null)
+				data.append(ch, s, n);
+		}
+
+		@Override
+		public void endElement(final String uri, final String name,
+				final String qName) throws SAXException {
+			if (data != null && element.equals(name)) {
+				value = data.toString().trim();
+				data = null;
+			}
+		}
+	}
 }
@@ -132,6 +132,7 @@ abstract class BasePackFetchConnection extends BasePackConnection implements
 		thinPack = transport.isFetchThin();
 
 		walk = new RevWalk(local);
+		walk.setRetainBody(false);
 		reachableCommits = new RevCommitList<RevCommit>();
 		REACHABLE = walk.newFlag("REACHABLE");
 		COMMON = walk.newFlag("COMMON");
@@ -432,6 +433,11 @@ public RevFilter clone() {
 				return this;
 			}
 
+			@Override
+			public boolean requiresCommitBody() {
+				return false;
+			}
+
 			@Override
 			public boolean include(final RevWalk walker, final RevCommit c) {
 				final boolean remoteKnowsIsCommon = c.has(COMMON);
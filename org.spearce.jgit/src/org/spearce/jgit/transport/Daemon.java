@@ -37,31 +37,59 @@
 
 package org.spearce.jgit.transport;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.spearce.jgit.lib.PersonIdent;
 import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.WindowCache;
 
 /** Basic daemon for the anonymous <code>git://</code> transport protocol. */
 public class Daemon {
 	/** 9418: IANA assigned port number for Git. */
 	public static final int DEFAULT_PORT = 9418;
 
-	private static final int BACKLOG = 5;
+	/** Default for {@link #setMaxConnections(int)}. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+	/** Default for {@link #setMaxQueue(int)}. */
+	public static final int DEFAULT_MAX_QUEUE = 64;
+
+	/** Default for {@link #setHandshakeTimeout(int)}, in seconds. */
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 30;
+
+	/** Default for {@link #setMaxOpenRepositories(int)}. */
+	public static final int DEFAULT_MAX_OPEN_REPOSITORIES = 16;
+
+	/** Default for {@link #setRepositoryIdleTime(int)}, in seconds. */
+	public static final int DEFAULT_REPOSITORY_IDLE_TIME = 300;
+
+	private static final int BACKLOG = 50;
+
+	private static final long SELECT_TIMEOUT = 1000;
 
 	private InetSocketAddress myAddress;
 
@@ -73,12 +101,27 @@ public class Daemon {
 
 	private Map<String, Repository> exports;
 
-	private Collection<File> exportBase;
+	private Map<File, WindowCache> exportBase;
+
+	private final RepositoryCache repositories;
+
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+	private int maxQueue = DEFAULT_MAX_QUEUE;
+
+	private int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+
+	private int timeout;
 
 	private boolean run;
 
 	private Thread acceptThread;
 
+	private Selector acceptSelector;
+
+	/** Rebuilds cached packs of served repositories, one at a time. */
+	private ThreadPoolExecutor cachedPackBuilder;
+
 	/** Configure a daemon to listen on any available network port. */
 	public Daemon() {
 		this(null);
@@ -94,7 +137,9 @@ public Daemon() {
 	public Daemon(final InetSocketAddress addr) {
 		myAddress = addr;
 		exports = new HashMap<String, Repository>();
-		exportBase = new ArrayList<File>();
+		exportBase = new LinkedHashMap<File, WindowCache>();
+		repositories = new RepositoryCache(DEFAULT_MAX_OPEN_REPOSITORIES,
+				DEFAULT_REPOSITORY_IDLE_TIME * 1000L);
 		processors = new ThreadGroup("Git-Daemon");
 
 		services = new DaemonService[] {
@@ -107,6 +152,7 @@ public Daemon(final InetSocketAddress addr) {
 					protected void execute(final DaemonClient dc,
 							final Repository db) throws IOException {
 						final UploadPack rp = new UploadPack(db);
+						rp.setCachedPackExecutor(getCachedPackBuilder());
 						final InputStream in = dc.getInputStream();
 						rp.upload(in, dc.getOutputStream(), null);
 					}
@@ -208,11 +254,176 @@ public void exportRepository(final String name, final Repository db) {
 	 *            named <code>git-daemon-export-ok</code> will be published.
 	 */
 	public void exportDirectory(final File dir) {
+		exportDirectory(dir, WindowCache.getDefault());
+	}
+
+	/**
+	 * Recursively export all Git repositories within a directory.
+	 * <p>
+	 * Repositories found below <code>dir</code> read their pack files through
+	 * <code>cache</code>, allowing a group of repositories to be given its own
+	 * memory budget, independent of repositories exported from elsewhere.
+	 *
+	 * @param dir
+	 *            the directory to export. This directory must not itself be a
+	 *            git repository, but any directory below it which has a file
+	 *            named <code>git-daemon-export-ok</code> will be published.
+	 * @param cache
+	 *            the window cache repositories below <code>dir</code> use.
+	 */
+	public void exportDirectory(final File dir, final WindowCache cache) {
 		synchronized (exportBase) {
-			exportBase.add(dir);
+			exportBase.put(dir, cache);
 		}
 	}
 
+	/**
+	 * @return maximum number of client sessions served at the same time.
+	 * @see #setMaxConnections(int)
+	 */
+	public synchronized int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Set the maximum number of client sessions served at the same time.
+	 * <p>
+	 * Each session needs a thread for as long as it takes the client to
+	 * fetch or push. Connections beyond this limit wait in the queue (see
+	 * {@link #setMaxQueue(int)}) until a running session completes.
+	 * <p>
+	 * Changes take effect the next time the daemon is started.
+	 *
+	 * @param max
+	 *            number of sessions; must be at least 1.
+	 */
+	public synchronized void setMaxConnections(final int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("Invalid max connections: "
+					+ max);
+		maxConnections = max;
+	}
+
+	/**
+	 * @return maximum number of clients waiting for a session to start.
+	 * @see #setMaxQueue(int)
+	 */
+	public synchronized int getMaxQueue() {
+		return maxQueue;
+	}
+
+	/**
+	 * Set the maximum number of clients waiting for a session to start.
+	 * <p>
+	 * A client that has sent its request while all sessions are busy waits
+	 * for one to complete. If the queue is full as well the connection is
+	 * closed immediately, rather than letting the server fall over.
+	 * <p>
+	 * Changes take effect the next time the daemon is started.
+	 *
+	 * @param max
+	 *            number of clients allowed to wait; 0 to reject clients as
+	 *            soon as all sessions are busy.
+	 */
+	public synchronized void setMaxQueue(final int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("Invalid max queue: " + max);
+		maxQueue = max;
+	}
+
+	/**
+	 * @return seconds a new connection may take to send its request.
+	 * @see #setHandshakeTimeout(int)
+	 */
+	public synchronized int getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	/**
+	 * Set the time a new connection may take to send its request.
+	 * <p>
+	 * Until the request arrives the connection is only watched by the accept
+	 * thread and does not occupy a session. Connections which stay silent for
+	 * longer than this are closed.
+	 *
+	 * @param seconds
+	 *            time allowed for the request; 0 to wait forever.
+	 */
+	public synchronized void setHandshakeTimeout(final int seconds) {
+		if (seconds < 0)
+			throw new IllegalArgumentException("Invalid timeout: " + seconds);
+		handshakeTimeout = seconds;
+	}
+
+	/**
+	 * @return seconds a session may wait for its client before it is aborted.
+	 * @see #setTimeout(int)
+	 */
+	public synchronized int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Set the time a session may wait for data from its client.
+	 *
+	 * @param seconds
+	 *            time a single read from the client may block; 0 to wait
+	 *            forever.
+	 */
+	public synchronized void setTimeout(final int seconds) {
+		if (seconds < 0)
+			throw new IllegalArgumentException("Invalid timeout: " + seconds);
+		timeout = seconds;
+	}
+
+	/**
+	 * @return number of exported repositories kept open while not in use.
+	 * @see #setMaxOpenRepositories(int)
+	 */
+	public int getMaxOpenRepositories() {
+		return repositories.getMaxOpen();
+	}
+
+	/**
+	 * Set the number of repositories kept open while not in use.
+	 * <p>
+	 * Repositories found through {@link #exportDirectory(File)} are kept open
+	 * after a client disconnects, so the next client finds their pack indexes
+	 * already loaded. When more repositories than this are open the least
+	 * recently used ones are closed.
+	 *
+	 * @param max
+	 *            number of repositories; 0 to close each repository as soon
+	 *            as its last client is done.
+	 */
+	public void setMaxOpenRepositories(final int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("Invalid max repositories: "
+					+ max);
+		repositories.setMaxOpen(max);
+	}
+
+	/**
+	 * @return seconds an unused repository is kept open.
+	 * @see #setRepositoryIdleTime(int)
+	 */
+	public int getRepositoryIdleTime() {
+		return (int) (repositories.getIdleTime() / 1000);
+	}
+
+	/**
+	 * Set how long a repository is kept open after its last client is done.
+	 *
+	 * @param seconds
+	 *            time to keep an unused repository open.
+	 */
+	public void setRepositoryIdleTime(final int seconds) {
+		if (seconds < 0)
+			throw new IllegalArgumentException("Invalid idle time: "
+					+ seconds);
+		repositories.setIdleTime(seconds * 1000L);
+	}
+
 	/**
 	 * Start this daemon on a background thread.
 	 *
@@ -225,31 +436,93 @@ public synchronized void start() throws IOException {
 		if (acceptThread != null)
 			throw new IllegalStateException("Daemon already running");
 
-		final ServerSocket listenSock = new ServerSocket(
-				myAddress != null ? myAddress.getPort() : 0, BACKLOG,
-				myAddress != null ? myAddress.getAddress() : null);
-		myAddress = (InetSocketAddress) listenSock.getLocalSocketAddress();
+		final Selector selector = Selector.open();
+		final ServerSocketChannel listenChannel;
+		try {
+			listenChannel = ServerSocketChannel.open();
+			try {
+				final ServerSocket listenSock = listenChannel.socket();
+				listenSock.bind(myAddress != null ? myAddress
+						: new InetSocketAddress(0), BACKLOG);
+				myAddress = (InetSocketAddress) listenSock
+						.getLocalSocketAddress();
+				listenChannel.configureBlocking(false);
+				listenChannel.register(selector, SelectionKey.OP_ACCEPT);
+			} catch (IOException err) {
+				listenChannel.close();
+				throw err;
+			}
+		} catch (IOException err) {
+			selector.close();
+			throw err;
+		}
+
+		final BlockingQueue<Runnable> queue;
+		if (maxQueue == 0)
+			queue = new SynchronousQueue<Runnable>();
+		else
+			queue = new ArrayBlockingQueue<Runnable>(maxQueue);
+		final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+				maxConnections, maxConnections, 60, TimeUnit.SECONDS, queue,
+				new ThreadFactory() {
+					private int clientId;
+
+					public Thread newThread(final Runnable r) {
+						return new Thread(processors, r, "Git-Daemon-Client-"
+								+ (++clientId));
+					}
+				});
+		final long handshakeMillis = handshakeTimeout * 1000L;
+		final ThreadPoolExecutor builder = new ThreadPoolExecutor(1, 1, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueue
+						+ 1), new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						return new Thread(processors, r,
+								"Git-Daemon-CachedPack");
+					}
+				});
 
 		run = true;
+		acceptSelector = selector;
+		cachedPackBuilder = builder;
 		acceptThread = new Thread(processors, "Git-Daemon-Accept") {
 			public void run() {
-				while (isRunning()) {
-					try {
-						startClient(listenSock.accept());
-					} catch (InterruptedIOException e) {
-						// Test again to see if we should keep accepting.
-					} catch (IOException e) {
-						break;
-					}
-				}
-
 				try {
-					listenSock.close();
-				} catch (IOException err) {
-					//
+					while (isRunning()) {
+						try {
+							selector.select(SELECT_TIMEOUT);
+							final List<SocketChannel> requests;
+							requests = new ArrayList<SocketChannel>();
+							for (final SelectionKey k : selector.selectedKeys()) {
+								if (!k.isValid())
+									continue;
+								if (k.isAcceptable())
+									accept(selector, listenChannel,
+											handshakeMillis);
+								else if (k.isReadable()) {
+									k.cancel();
+									requests.add((SocketChannel) k.channel());
+								}
+							}
+							selector.selectedKeys().clear();
+							expireHandshakes(selector);
+							if (!requests.isEmpty())
+								dispatch(selector, requests, workers);
+						} catch (IOException e) {
+							break;
+						}
+					}
 				} finally {
+					workers.shutdown();
+					builder.shutdown();
+					repositories.clear();
+					for (final SelectionKey k : selector.keys())
+						close(k.channel());
+					close(selector);
 					synchronized (Daemon.this) {
 						acceptThread = null;
+						acceptSelector = null;
+						cachedPackBuilder = null;
 					}
 				}
 			}
@@ -257,6 +530,10 @@ public void run() {
 		acceptThread.start();
 	}
 
+	synchronized ThreadPoolExecutor getCachedPackBuilder() {
+		return cachedPackBuilder;
+	}
+
 	/** @return true if this daemon is receiving connections. */
 	public synchronized boolean isRunning() {
 		return run;
@@ -266,7 +543,83 @@ public synchronized boolean isRunning() {
 	public synchronized void stop() {
 		if (acceptThread != null) {
 			run = false;
-			acceptThread.interrupt();
+			acceptSelector.wakeup();
+		}
+	}
+
+	private static void accept(final Selector selector,
+			final ServerSocketChannel listenChannel, final long handshakeMillis)
+			throws IOException {
+		for (;;) {
+			final SocketChannel c = listenChannel.accept();
+			if (c == null)
+				break;
+			try {
+				c.configureBlocking(false);
+				final long deadline;
+				if (handshakeMillis > 0)
+					deadline = System.currentTimeMillis() + handshakeMillis;
+				else
+					deadline = Long.MAX_VALUE;
+				c.register(selector, SelectionKey.OP_READ, Long
+						.valueOf(deadline));
+			} catch (IOException e) {
+				close(c);
+			}
+		}
+	}
+
+	private void dispatch(final Selector selector,
+			final List<SocketChannel> requests,
+			final ThreadPoolExecutor workers) throws IOException {
+		// These clients sent their request. Their keys were canceled,
+		// a selection removes the channels from the selector so they
+		// can be read with blocking streams by the session threads.
+		//
+		selector.selectNow();
+		selector.selectedKeys().clear();
+
+		for (final SocketChannel c : requests) {
+			try {
+				c.configureBlocking(true);
+				workers.execute(new Runnable() {
+					public void run() {
+						startClient(c.socket());
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Too busy to serve or even queue this client.
+				close(c);
+			} catch (IOException e) {
+				close(c);
+			}
+		}
+	}
+
+	private static void expireHandshakes(final Selector selector) {
+		final long now = System.currentTimeMillis();
+		for (final SelectionKey k : selector.keys()) {
+			final Object deadline = k.attachment();
+			if (deadline != null && ((Long) deadline).longValue() < now) {
+				k.cancel();
+				close(k.channel());
+			}
+		}
+	}
+
+	private static void close(final Channel c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			// Ignore close exceptions
+		}
+	}
+
+	private static void close(final Selector s) {
+		try {
+			s.close();
+		} catch (IOException e) {
+			// Ignore close exceptions
 		}
 	}
 
@@ -277,28 +630,18 @@ private void startClient(final Socket s) {
 		if (peer instanceof InetSocketAddress)
 			dc.setRemoteAddress(((InetSocketAddress) peer).getAddress());
 
-		new Thread(processors, "Git-Daemon-Client " + peer.toString()) {
-			public void run() {
-				try {
-					dc.execute(new BufferedInputStream(s.getInputStream()),
-							new BufferedOutputStream(s.getOutputStream()));
-				} catch (IOException e) {
-					// Ignore unexpected IO exceptions from clients
-					e.printStackTrace();
-				} finally {
-					try {
-						s.getInputStream().close();
-					} catch (IOException e) {
-						// Ignore close exceptions
-					}
-					try {
-						s.getOutputStream().close();
-					} catch (IOException e) {
-						// Ignore close exceptions
-					}
-				}
+		try {
+			dc.execute(s);
+		} catch (IOException e) {
+			// Ignore unexpected IO exceptions from clients
+			e.printStackTrace();
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// Ignore close exceptions
 			}
-		}.start();
+		}
 	}
 
 	synchronized DaemonService matchService(final String cmd) {
@@ -343,30 +686,37 @@ Repository openRepository(String name) {
 				return db;
 		}
 
-		final File[] search;
+		final Map<File, WindowCache> search;
 		synchronized (exportBase) {
-			search = exportBase.toArray(new File[exportBase.size()]);
+			search = new LinkedHashMap<File, WindowCache>(exportBase);
 		}
-		for (final File f : search) {
-			db = openRepository(new File(f, name));
+		for (final Map.Entry<File, WindowCache> e : search.entrySet()) {
+			final File f = e.getKey();
+			final WindowCache cache = e.getValue();
+
+			db = openRepository(new File(f, name), cache);
 			if (db != null)
 				return db;
 
-			db = openRepository(new File(f, name + ".git"));
+			db = openRepository(new File(f, name + ".git"), cache);
 			if (db != null)
 				return db;
 
-			db = openRepository(new File(f, name + "/.git"));
+			db = openRepository(new File(f, name + "/.git"), cache);
 			if (db != null)
 				return db;
 		}
 		return null;
 	}
 
-	private Repository openRepository(final File d) {
+	void closeRepository(final Repository db) {
+		repositories.release(db);
+	}
+
+	private Repository openRepository(final File d, final WindowCache cache) {
 		if (d.isDirectory() && canExport(d)) {
 			try {
-				return new Repository(d);
+				return repositories.open(d, cache);
 			} catch (IOException err) {
 				// Ignore
 			}
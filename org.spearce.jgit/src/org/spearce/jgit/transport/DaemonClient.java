@@ -37,10 +37,13 @@
 
 package org.spearce.jgit.transport;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.Socket;
 
 /** Active network client of {@link Daemon}. */
 public class DaemonClient {
@@ -80,14 +83,15 @@ public OutputStream getOutputStream() {
 		return rawOut;
 	}
 
-	void execute(final InputStream in, final OutputStream out)
-			throws IOException {
-		rawIn = in;
-		rawOut = out;
+	void execute(final Socket sock) throws IOException {
+		rawIn = new BufferedInputStream(sock.getInputStream());
+		rawOut = new BufferedOutputStream(sock.getOutputStream());
 
+		sock.setSoTimeout(daemon.getHandshakeTimeout() * 1000);
 		String cmd = new PacketLineIn(rawIn).readStringNoLF();
 		if (cmd == null || cmd.length() == 0)
 			return;
+		sock.setSoTimeout(daemon.getTimeout() * 1000);
 
 		final int nul = cmd.indexOf('\0');
 		if (nul >= 0) {
@@ -105,14 +105,19 @@ public boolean handles(final String commandLine) {
 	void execute(final DaemonClient client, final String commandLine)
 			throws IOException {
 		final String name = commandLine.substring(command.length() + 1);
-		final Repository db = client.getDaemon().openRepository(name);
+		final Daemon daemon = client.getDaemon();
+		final Repository db = daemon.openRepository(name);
 		if (db == null)
 			return;
-		boolean on = isEnabled();
-		if (isOverridable())
-			on = db.getConfig().getBoolean("daemon", config, on);
-		if (on)
-			execute(client, db);
+		try {
+			boolean on = isEnabled();
+			if (isOverridable())
+				on = db.getConfig().getBoolean("daemon", config, on);
+			if (on)
+				execute(client, db);
+		} finally {
+			daemon.closeRepository(db);
+		}
 	}
 
 	abstract void execute(DaemonClient client, Repository db)
@@ -54,6 +54,7 @@
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.NotSupportedException;
 import org.spearce.jgit.errors.TransportException;
+import org.spearce.jgit.lib.BatchRefUpdate;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.LockFile;
 import org.spearce.jgit.lib.ObjectId;
@@ -155,15 +156,17 @@ else if (tagopt == TagOpt.FETCH_TAGS)
 		final RevWalk walk = new RevWalk(transport.local);
 		if (transport.isRemoveDeletedRefs())
 			deleteStaleTrackingRefs(result, walk);
-		for (TrackingRefUpdate u : localUpdates) {
-			try {
-				u.update(walk);
-				result.add(u);
-			} catch (IOException err) {
-				throw new TransportException("Failure updating tracking ref "
-						+ u.getLocalName() + ": " + err.getMessage(), err);
-			}
+		final BatchRefUpdate batch = transport.local.newBatchUpdate();
+		for (TrackingRefUpdate u : localUpdates)
+			batch.addUpdate(u.getRefUpdate());
+		try {
+			batch.execute(walk);
+		} catch (IOException err) {
+			throw new TransportException("Failure updating tracking refs: "
+					+ err.getMessage(), err);
 		}
+		for (TrackingRefUpdate u : localUpdates)
+			result.add(u);
 
 		if (!fetchHeadUpdates.isEmpty()) {
 			try {
@@ -298,7 +301,8 @@ private void expandSingle(final RefSpec spec, final Set<Ref> matched)
 
 	private Collection<Ref> expandAutoFollowTags() throws TransportException {
 		final Collection<Ref> additionalTags = new ArrayList<Ref>();
-		final Map<String, Ref> haveRefs = transport.local.getAllRefs();
+		final Map<String, Ref> haveRefs = transport.local
+				.getRefs(Constants.R_TAGS);
 		for (final Ref r : conn.getRefs()) {
 			if (!isTag(r))
 				continue;
@@ -321,7 +325,8 @@ private Collection<Ref> expandAutoFollowTags() throws TransportException {
 	}
 
 	private void expandFetchTags() throws TransportException {
-		final Map<String, Ref> haveRefs = transport.local.getAllRefs();
+		final Map<String, Ref> haveRefs = transport.local
+				.getRefs(Constants.R_TAGS);
 		for (final Ref r : conn.getRefs()) {
 			if (!isTag(r))
 				continue;
@@ -372,9 +377,19 @@ private TrackingRefUpdate createUpdate(final RefSpec spec,
 	private void deleteStaleTrackingRefs(final FetchResult result,
 			final RevWalk walk) throws TransportException {
 		final Repository db = transport.local;
-		for (final Ref ref : db.getAllRefs().values()) {
-			final String refname = ref.getName();
-			for (final RefSpec spec : toFetch) {
+		for (final RefSpec spec : toFetch) {
+			final String dst = spec.getDestination();
+			if (dst == null)
+				continue;
+
+			// Only the refs below the destination can match it.
+			final String prefix;
+			if (spec.isWildcard())
+				prefix = dst.substring(0, dst.length() - 1);
+			else
+				prefix = dst;
+			for (final Ref ref : db.getRefs(prefix).values()) {
+				final String refname = ref.getName();
 				if (spec.matchDestination(refname)) {
 					final RefSpec s = spec.expandFromDestination(refname);
 					if (result.getAdvertisedRef(s.getSource()) == null) {
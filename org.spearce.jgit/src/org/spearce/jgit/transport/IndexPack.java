@@ -43,12 +43,20 @@
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
@@ -61,6 +69,7 @@
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.InflaterCache;
 import org.spearce.jgit.lib.MutableObjectId;
+import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectChecker;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.ObjectIdMap;
@@ -68,6 +77,7 @@
 import org.spearce.jgit.lib.PackIndexWriter;
 import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.WindowCacheConfig;
 import org.spearce.jgit.lib.WindowCursor;
 import org.spearce.jgit.util.NB;
 
@@ -147,6 +157,10 @@ public static IndexPack create(final Repository db, final InputStream is)
 
 	private int outputVersion;
 
+	private int threads;
+
+	private int deltaBaseCacheLimit;
+
 	private final File dstPack;
 
 	private final File dstIdx;
@@ -165,6 +179,18 @@ public static IndexPack create(final Repository db, final InputStream is)
 
 	private HashMap<Long, ArrayList<UnresolvedDelta>> baseByPos;
 
+	/** Objects recently read from the input, usable as delta bases. */
+	private LinkedHashMap<Long, RecentObject> recentByPos;
+
+	private HashMap<ObjectId, RecentObject> recentById;
+
+	private long recentBytes;
+
+	/** Deltas resolved while reading the input, mapped to their base. */
+	private HashMap<Long, Long> resolvedBase;
+
+	private InputWriter inputWriter;
+
 	private byte[] objectData;
 
 	private MessageDigest packDigest;
@@ -200,6 +226,11 @@ public IndexPack(final Repository db, final InputStream src,
 		objectDigest = Constants.newMessageDigest();
 		tempObjectId = new MutableObjectId();
 		packDigest = Constants.newMessageDigest();
+		threads = db.getConfig().getPack().getThreads();
+
+		final WindowCacheConfig wcc = new WindowCacheConfig();
+		wcc.fromConfig(db.getConfig());
+		deltaBaseCacheLimit = wcc.getDeltaBaseCacheLimit();
 
 		if (dstBase != null) {
 			final File dir = dstBase.getParentFile();
@@ -226,6 +257,51 @@ public void setIndexVersion(final int version) {
 		outputVersion = version;
 	}
 
+	/**
+	 * Get the number of threads used to resolve deltas.
+	 * <p>
+	 * Default setting: the repository's <code>pack.threads</code> setting,
+	 * or the number of available processors if that is unset or 0.
+	 *
+	 * @return number of delta resolution threads; always at least 1.
+	 */
+	public int getThreads() {
+		if (threads <= 0)
+			return Runtime.getRuntime().availableProcessors();
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads used to resolve deltas.
+	 * <p>
+	 * Each whole object and the deltas based on it are resolved as one unit
+	 * of work, which idle threads take from a shared queue.
+	 *
+	 * @param threads
+	 *            number of threads; 0 to use one per available processor.
+	 */
+	public void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Set the memory available to hold delta bases while resolving deltas.
+	 * <p>
+	 * Bases are kept in memory while deltas against them remain to be
+	 * resolved. Beyond this limit the oldest bases are dropped and inflated
+	 * again from the pack when needed, trading time for memory. The limit is
+	 * shared by all threads. The base currently in use is always kept, even
+	 * if it alone exceeds the limit.
+	 * <p>
+	 * Default setting: the repository's <code>core.deltaBaseCacheLimit</code>.
+	 *
+	 * @param limit
+	 *            maximum number of bytes of delta bases to keep in memory.
+	 */
+	public void setDeltaBaseCacheLimit(final int limit) {
+		deltaBaseCacheLimit = limit;
+	}
+
 	/**
 	 * Configure this index pack instance to make a thin pack complete.
 	 * <p>
@@ -299,11 +375,17 @@ public void index(final ProgressMonitor progress) throws IOException {
 		progress.start(2 /* tasks */);
 		try {
 			try {
+				inputWriter = new InputWriter();
+				inputWriter.start();
 				readPackHeader();
 
 				entries = new PackedObjectInfo[(int) objectCount];
 				baseById = new ObjectIdMap<ArrayList<UnresolvedDelta>>();
 				baseByPos = new HashMap<Long, ArrayList<UnresolvedDelta>>();
+				recentByPos = new LinkedHashMap<Long, RecentObject>(16,
+						0.75f, true);
+				recentById = new HashMap<ObjectId, RecentObject>();
+				resolvedBase = new HashMap<Long, Long>();
 
 				progress.beginTask(PROGRESS_DOWNLOAD, (int) objectCount);
 				for (int done = 0; done < objectCount; done++) {
@@ -334,6 +416,7 @@ public void index(final ProgressMonitor progress) throws IOException {
 				packDigest = null;
 				baseById = null;
 				baseByPos = null;
+				resolvedBase = null;
 
 				if (dstIdx != null && (keepEmpty || entryCount > 0))
 					writeIdx();
@@ -345,6 +428,10 @@ public void index(final ProgressMonitor progress) throws IOException {
 					inflater = null;
 				}
 				readCurs = WindowCursor.release(readCurs);
+				if (inputWriter != null) {
+					inputWriter.interrupt();
+					inputWriter = null;
+				}
 
 				progress.endTask();
 				if (packOut != null)
@@ -369,110 +456,142 @@ public void index(final ProgressMonitor progress) throws IOException {
 	private void resolveDeltas(final ProgressMonitor progress)
 			throws IOException {
 		progress.beginTask(PROGRESS_RESOLVE_DELTA, deltaCount);
-		final int last = entryCount;
-		for (int i = 0; i < last; i++) {
-			final int before = entryCount;
-			resolveDeltas(entries[i]);
-			progress.update(entryCount - before);
-			if (progress.isCancelled())
-				throw new IOException("Download cancelled during indexing");
+
+		// Every whole object with deltas against it roots an independent
+		// tree of deltas, which can be resolved without any of the others.
+		//
+		final List<PackedObjectInfo> roots = new ArrayList<PackedObjectInfo>();
+		for (int i = 0; i < entryCount; i++) {
+			final PackedObjectInfo oe = entries[i];
+			if (baseById.containsKey(oe)
+					|| baseByPos.containsKey(new Long(oe.getOffset())))
+				roots.add(oe);
 		}
-		progress.endTask();
-	}
 
-	private void resolveDeltas(final PackedObjectInfo oe) throws IOException {
-		final int oldCRC = oe.getCRC();
-		if (baseById.containsKey(oe)
-				|| baseByPos.containsKey(new Long(oe.getOffset())))
-			resolveDeltas(oe.getOffset(), oldCRC, Constants.OBJ_BAD, null, oe);
+		final int threadCount = Math.min(getThreads(), roots.size());
+		if (threadCount <= 1) {
+			final DeltaResolver r = new DeltaResolver(progress,
+					deltaBaseCacheLimit);
+			try {
+				for (final PackedObjectInfo oe : roots)
+					r.resolve(oe);
+			} finally {
+				r.release();
+			}
+		} else
+			resolveInParallel(progress, roots, threadCount);
+		progress.endTask();
 	}
 
-	private void resolveDeltas(final long pos, final int oldCRC, int type,
-			byte[] data, PackedObjectInfo oe) throws IOException {
-		crc.reset();
-		position(pos);
-		int c = readFromFile();
-		final int typeCode = (c >> 4) & 7;
-		long sz = c & 15;
-		int shift = 4;
-		while ((c & 0x80) != 0) {
-			c = readFromFile();
-			sz += (c & 0x7f) << shift;
-			shift += 7;
+	private void resolveInParallel(final ProgressMonitor progress,
+			final List<PackedObjectInfo> roots, final int threadCount)
+			throws IOException {
+		final AtomicInteger nextRoot = new AtomicInteger();
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] workers = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			workers[i] = new Thread("IndexPack-ResolveDeltas-" + i) {
+				@Override
+				public void run() {
+					final DeltaResolver r = new DeltaResolver(progress,
+							deltaBaseCacheLimit / threadCount);
+					try {
+						int n;
+						while ((n = nextRoot.getAndIncrement()) < roots.size()) {
+							synchronized (failure) {
+								if (failure[0] != null)
+									break;
+							}
+							r.resolve(roots.get(n));
+						}
+					} catch (Throwable e) {
+						synchronized (failure) {
+							if (failure[0] == null)
+								failure[0] = e;
+						}
+					} finally {
+						r.release();
+					}
+				}
+			};
+			workers[i].start();
 		}
 
-		switch (typeCode) {
-		case Constants.OBJ_COMMIT:
-		case Constants.OBJ_TREE:
-		case Constants.OBJ_BLOB:
-		case Constants.OBJ_TAG:
-			type = typeCode;
-			data = inflateFromFile((int) sz);
-			break;
-		case Constants.OBJ_OFS_DELTA: {
-			c = readFromFile() & 0xff;
-			while ((c & 128) != 0)
-				c = readFromFile() & 0xff;
-			data = BinaryDelta.apply(data, inflateFromFile((int) sz));
-			break;
-		}
-		case Constants.OBJ_REF_DELTA: {
-			crc.update(buf, fillFromFile(20), 20);
-			use(20);
-			data = BinaryDelta.apply(data, inflateFromFile((int) sz));
-			break;
-		}
-		default:
-			throw new IOException("Unknown object type " + typeCode + ".");
+		boolean interrupted = false;
+		for (final Thread t : workers) {
+			for (;;) {
+				try {
+					t.join();
+					break;
+				} catch (InterruptedException e) {
+					// Workers stop before their next root; wait for them
+					// so none is left reading the pack being written.
+					//
+					synchronized (failure) {
+						if (failure[0] == null)
+							failure[0] = e;
+					}
+					interrupted = true;
+				}
+			}
 		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		final Throwable err = failure[0];
+		if (err instanceof IOException)
+			throw (IOException) err;
+		if (err instanceof RuntimeException)
+			throw (RuntimeException) err;
+		if (err instanceof Error)
+			throw (Error) err;
+		if (err != null)
+			throw new InterruptedIOException("Delta resolution interrupted");
+	}
 
-		final int crc32 = (int) crc.getValue();
-		if (oldCRC != crc32)
-			throw new IOException("Corruption detected re-reading at " + pos);
-		if (oe == null) {
-			objectDigest.update(Constants.encodedTypeString(type));
-			objectDigest.update((byte) ' ');
-			objectDigest.update(Constants.encodeASCII(data.length));
-			objectDigest.update((byte) 0);
-			objectDigest.update(data);
-			tempObjectId.fromRaw(objectDigest.digest(), 0);
+	private synchronized void addEntry(final PackedObjectInfo oe) {
+		entries[entryCount++] = oe;
+	}
 
-			verifySafeObject(tempObjectId, type, data);
-			oe = new PackedObjectInfo(pos, crc32, tempObjectId);
-			entries[entryCount++] = oe;
-		}
-
-		resolveChildDeltas(pos, type, data, oe);
-	}
-
-	private void resolveChildDeltas(final long pos, int type, byte[] data,
-			PackedObjectInfo oe) throws IOException {
-		final ArrayList<UnresolvedDelta> a = baseById.remove(oe);
-		final ArrayList<UnresolvedDelta> b = baseByPos.remove(new Long(pos));
-		int ai = 0, bi = 0;
-		if (a != null && b != null) {
-			while (ai < a.size() && bi < b.size()) {
-				final UnresolvedDelta ad = a.get(ai);
-				final UnresolvedDelta bd = b.get(bi);
-				if (ad.position < bd.position) {
-					resolveDeltas(ad.position, ad.crc, type, data, null);
-					ai++;
-				} else {
-					resolveDeltas(bd.position, bd.crc, type, data, null);
-					bi++;
-				}
-			}
+	/**
+	 * Take the deltas waiting for a base, in the order they appear in the pack.
+	 *
+	 * @param id
+	 *            name of the base object.
+	 * @param pos
+	 *            position of the base object in the pack.
+	 * @return deltas against the base, by name or position; null if none.
+	 */
+	private UnresolvedDelta[] removeChildren(final AnyObjectId id,
+			final long pos) {
+		final ArrayList<UnresolvedDelta> a, b;
+		synchronized (this) {
+			a = baseById.remove(id);
+			b = baseByPos.remove(new Long(pos));
 		}
-		if (a != null)
-			while (ai < a.size()) {
-				final UnresolvedDelta ad = a.get(ai++);
-				resolveDeltas(ad.position, ad.crc, type, data, null);
-			}
-		if (b != null)
-			while (bi < b.size()) {
-				final UnresolvedDelta bd = b.get(bi++);
-				resolveDeltas(bd.position, bd.crc, type, data, null);
+		if (a == null && b == null)
+			return null;
+
+		final int na = a != null ? a.size() : 0;
+		final int nb = b != null ? b.size() : 0;
+		final UnresolvedDelta[] r = new UnresolvedDelta[na + nb];
+		int ai = 0, bi = 0, ri = 0;
+		while (ai < na && bi < nb) {
+			final UnresolvedDelta ad = a.get(ai);
+			final UnresolvedDelta bd = b.get(bi);
+			if (ad.position < bd.position) {
+				r[ri++] = ad;
+				ai++;
+			} else {
+				r[ri++] = bd;
+				bi++;
 			}
+		}
+		while (ai < na)
+			r[ri++] = a.get(ai++);
+		while (bi < nb)
+			r[ri++] = b.get(bi++);
+		return r;
 	}
 
 	private void fixThinPack(final ProgressMonitor progress) throws IOException {
@@ -481,27 +600,35 @@ private void fixThinPack(final ProgressMonitor progress) throws IOException {
 		packDigest.reset();
 		originalEOF = packOut.length() - 20;
 		final Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+		final DeltaResolver resolver = new DeltaResolver(
+				NullProgressMonitor.INSTANCE, deltaBaseCacheLimit);
 		long end = originalEOF;
-		for (final ObjectId baseId : new ArrayList<ObjectId>(baseById.keySet())) {
-			final ObjectLoader ldr = repo.openObject(readCurs, baseId);
-			if (ldr == null)
-				continue;
-			final byte[] data = ldr.getBytes();
-			final int typeCode = ldr.getType();
-			final PackedObjectInfo oe;
-
-			crc.reset();
-			packOut.seek(end);
-			writeWhole(def, typeCode, data);
-			oe = new PackedObjectInfo(end, (int) crc.getValue(), baseId);
-			entries[entryCount++] = oe;
-			end = packOut.getFilePointer();
-
-			resolveChildDeltas(oe.getOffset(), typeCode, data, oe);
-			if (progress.isCancelled())
-				throw new IOException("Download cancelled during indexing");
+		try {
+			final List<ObjectId> bases = new ArrayList<ObjectId>(baseById
+					.keySet());
+			for (final ObjectId baseId : bases) {
+				final ObjectLoader ldr = repo.openObject(readCurs, baseId);
+				if (ldr == null)
+					continue;
+				final byte[] data = ldr.getBytes();
+				final int typeCode = ldr.getType();
+				final PackedObjectInfo oe;
+
+				crc.reset();
+				packOut.seek(end);
+				writeWhole(def, typeCode, data);
+				oe = new PackedObjectInfo(end, (int) crc.getValue(), baseId);
+				entries[entryCount++] = oe;
+				end = packOut.getFilePointer();
+
+				resolver.resolveChildDeltas(oe.getOffset(), typeCode, data, oe);
+				if (progress.isCancelled())
+					throw new IOException("Download cancelled during indexing");
+			}
+		} finally {
+			def.end();
+			resolver.release();
 		}
-		def.end();
 
 		if (!baseById.isEmpty()) {
 			final ObjectId need = baseById.keySet().iterator().next();
@@ -630,6 +757,8 @@ private void readPackHeader() throws IOException {
 
 	private void readPackFooter() throws IOException {
 		sync();
+		inputWriter.finish();
+		inputWriter = null;
 		final byte[] cmpcsum = packDigest.digest();
 		final int c = fillFromInput(20);
 		packcsum = new byte[20];
@@ -646,6 +775,8 @@ private void readPackFooter() throws IOException {
 	private void endInput() {
 		in = null;
 		objectData = null;
+		recentByPos = null;
+		recentById = null;
 	}
 
 	// Read one entire object or delta from the input.
@@ -680,6 +811,11 @@ private void indexOneObject() throws IOException {
 				ofs += (c & 127);
 			}
 			final Long base = new Long(pos - ofs);
+			final RecentObject recent = recentByPos.get(base);
+			if (recent != null) {
+				resolveNow(pos, recent, sz);
+				break;
+			}
 			ArrayList<UnresolvedDelta> r = baseByPos.get(base);
 			if (r == null) {
 				r = new ArrayList<UnresolvedDelta>(8);
@@ -695,6 +831,11 @@ private void indexOneObject() throws IOException {
 			crc.update(buf, c, 20);
 			final ObjectId base = ObjectId.fromRaw(buf, c);
 			use(20);
+			final RecentObject recent = recentById.get(base);
+			if (recent != null) {
+				resolveNow(pos, recent, sz);
+				break;
+			}
 			ArrayList<UnresolvedDelta> r = baseById.get(base);
 			if (r == null) {
 				r = new ArrayList<UnresolvedDelta>(8);
@@ -713,23 +854,62 @@ private void indexOneObject() throws IOException {
 	private void whole(final int type, final long pos, final long sz)
 			throws IOException {
 		final byte[] data = inflateFromInput(sz);
+		remember(pos, type, data, addObject(pos, type, data));
+	}
+
+	// Apply a delta whose base is still in memory, saving a second pass.
+	private void resolveNow(final long pos, final RecentObject base,
+			final long sz) throws IOException {
+		final byte[] data = BinaryDelta.apply(base.data, inflateFromInput(sz));
+		final PackedObjectInfo oe = addObject(pos, base.type, data);
+		resolvedBase.put(new Long(pos), new Long(base.position));
+		remember(pos, base.type, data, oe);
+	}
+
+	private PackedObjectInfo addObject(final long pos, final int type,
+			final byte[] data) throws IOException {
 		objectDigest.update(Constants.encodedTypeString(type));
 		objectDigest.update((byte) ' ');
-		objectDigest.update(Constants.encodeASCII(sz));
+		objectDigest.update(Constants.encodeASCII(data.length));
 		objectDigest.update((byte) 0);
 		objectDigest.update(data);
 		tempObjectId.fromRaw(objectDigest.digest(), 0);
 
-		verifySafeObject(tempObjectId, type, data);
+		verifySafeObject(tempObjectId, type, data, readCurs);
 		final int crc32 = (int) crc.getValue();
-		entries[entryCount++] = new PackedObjectInfo(pos, crc32, tempObjectId);
+		final PackedObjectInfo oe = new PackedObjectInfo(pos, crc32,
+				tempObjectId);
+		entries[entryCount++] = oe;
+		return oe;
+	}
+
+	private void remember(final long pos, final int type, final byte[] data,
+			final ObjectId id) {
+		if (data.length > deltaBaseCacheLimit)
+			return;
+
+		final RecentObject r = new RecentObject(pos, type, data, id);
+		recentByPos.put(new Long(pos), r);
+		recentById.put(id, r);
+		recentBytes += data.length;
+
+		final Iterator<RecentObject> i = recentByPos.values().iterator();
+		while (recentBytes > deltaBaseCacheLimit && i.hasNext()) {
+			final RecentObject old = i.next();
+			i.remove();
+			if (recentById.get(old.id) == old)
+				recentById.remove(old.id);
+			recentBytes -= old.data.length;
+		}
 	}
 
 	private void verifySafeObject(final AnyObjectId id, final int type,
-			final byte[] data) throws IOException {
+			final byte[] data, final WindowCursor curs) throws IOException {
 		if (objCheck != null) {
 			try {
-				objCheck.check(type, data);
+				synchronized (objCheck) {
+					objCheck.check(type, data);
+				}
 			} catch (CorruptObjectException e) {
 				throw new IOException("Invalid "
 						+ Constants.encodedTypeString(type) + " " + id.name()
@@ -737,7 +917,7 @@ private void verifySafeObject(final AnyObjectId id, final int type,
 			}
 		}
 
-		final ObjectLoader ldr = repo.openObject(readCurs, id);
+		final ObjectLoader ldr = repo.openObject(curs, id);
 		if (ldr != null) {
 			final byte[] existingData = ldr.getCachedBytes();
 			if (ldr.getType() != type || !Arrays.equals(data, existingData)) {
@@ -751,13 +931,6 @@ private long position() {
 		return bBase + bOffset;
 	}
 
-	private void position(final long pos) throws IOException {
-		packOut.seek(pos);
-		bBase = pos;
-		bOffset = 0;
-		bAvail = 0;
-	}
-
 	// Consume exactly one byte from the buffer and return it.
 	private int readFromInput() throws IOException {
 		if (bAvail == 0)
@@ -768,16 +941,6 @@ private int readFromInput() throws IOException {
 		return b;
 	}
 
-	// Consume exactly one byte from the buffer and return it.
-	private int readFromFile() throws IOException {
-		if (bAvail == 0)
-			fillFromFile(1);
-		bAvail--;
-		final int b = buf[bOffset++] & 0xff;
-		crc.update(b);
-		return b;
-	}
-
 	// Consume cnt bytes from the buffer.
 	private void use(final int cnt) {
 		bOffset += cnt;
@@ -824,9 +987,7 @@ private int fillFromFile(final int need) throws IOException {
 
 	// Store consumed bytes in {@link #buf} up to {@link #bOffset}.
 	private void sync() throws IOException {
-		packDigest.update(buf, 0, bOffset);
-		if (packOut != null)
-			packOut.write(buf, 0, bOffset);
+		inputWriter.write(buf, bOffset);
 		if (bAvail > 0)
 			System.arraycopy(buf, bOffset, buf, 0, bAvail);
 		bBase += bOffset;
@@ -904,39 +1065,470 @@ private byte[] inflateFromInput(final long sz) throws IOException {
 		}
 	}
 
-	private byte[] inflateFromFile(final int sz) throws IOException {
-		final Inflater inf = inflater;
-		try {
-			final byte[] dst = new byte[sz];
-			int n = 0;
-			int p = -1;
-			while (!inf.finished()) {
-				if (inf.needsInput()) {
-					if (p >= 0) {
-						crc.update(buf, p, bAvail);
-						use(bAvail);
+	private static CorruptObjectException corrupt(final DataFormatException dfe) {
+		return new CorruptObjectException("Packfile corruption detected: "
+				+ dfe.getMessage());
+	}
+
+	/**
+	 * Resolves trees of deltas by re-reading their data from the pack file.
+	 * <p>
+	 * Each resolver has its own read buffer, inflater and digest, and reads
+	 * the file through positional channel reads, so several resolvers may
+	 * work on different delta trees at the same time.
+	 */
+	private final class DeltaResolver {
+		private final ProgressMonitor progress;
+
+		private final FileChannel fc = packOut.getChannel();
+
+		private final Inflater inflater = InflaterCache.get();
+
+		private final MessageDigest objectDigest = Constants
+				.newMessageDigest();
+
+		private final MutableObjectId tempObjectId = new MutableObjectId();
+
+		private final CRC32 crc = new CRC32();
+
+		private final byte[] buf = new byte[BUFFER_SIZE];
+
+		private final WindowCursor curs = new WindowCursor();
+
+		/** Maximum bytes of base data held by {@link #stack}. */
+		private final long limit;
+
+		private DeltaFrame[] stack = new DeltaFrame[16];
+
+		private int depth;
+
+		private long cachedBytes;
+
+		/** Type of the last whole object read by {@link #load(long, byte[])}. */
+		private int loadedType;
+
+		/** Position within the file of the first byte of {@link #buf}. */
+		private long bBase;
+
+		private int bOffset;
+
+		private int bAvail;
+
+		DeltaResolver(final ProgressMonitor pm, final long memoryLimit) {
+			progress = pm;
+			limit = memoryLimit;
+		}
+
+		void release() {
+			InflaterCache.release(inflater);
+			curs.release();
+		}
+
+		void resolve(final PackedObjectInfo oe) throws IOException {
+			final long pos = oe.getOffset();
+			final byte[] data = loadResolved(pos);
+			checkCRC(pos, oe.getCRC());
+			resolveChildDeltas(pos, loadedType, data, oe);
+		}
+
+		/**
+		 * Read an object whose name is already known.
+		 * <p>
+		 * If the object is a delta resolved while reading the input its
+		 * chain of bases is read first, starting from the whole object.
+		 */
+		private byte[] loadResolved(final long pos) throws IOException {
+			if (resolvedBase.get(new Long(pos)) == null)
+				return load(pos, null);
+
+			final List<Long> chain = new ArrayList<Long>();
+			Long p = new Long(pos);
+			do {
+				chain.add(p);
+				p = resolvedBase.get(p);
+			} while (p != null && resolvedBase.get(p) != null);
+
+			byte[] data = load(p.longValue(), null);
+			for (int i = chain.size() - 1; i >= 0; i--)
+				data = load(chain.get(i).longValue(), data);
+			return data;
+		}
+
+		/**
+		 * Resolve every delta depending on an object, directly or not.
+		 * <p>
+		 * The tree of deltas is walked depth first with an explicit stack
+		 * holding the chain of bases above the delta being resolved. A base's
+		 * data is released once its last delta is resolved. If the data held
+		 * by the stack exceeds the limit, the data of the bases furthest
+		 * from the top is released too, and inflated again from the pack
+		 * should another of their deltas need it.
+		 */
+		void resolveChildDeltas(final long pos, final int type,
+				final byte[] data, final AnyObjectId id) throws IOException {
+			final UnresolvedDelta[] children = removeChildren(id, pos);
+			if (children == null)
+				return;
+
+			depth = 0;
+			cachedBytes = 0;
+			push(pos, data, children);
+			while (depth > 0) {
+				final DeltaFrame f = stack[depth - 1];
+				if (f.next == f.children.length) {
+					pop();
+					continue;
+				}
+
+				final UnresolvedDelta d = f.children[f.next++];
+				final byte[] res = load(d.position, baseData(depth - 1));
+				checkCRC(d.position, d.crc);
+				if (f.next == f.children.length)
+					releaseData(f);
+
+				final PackedObjectInfo oe = register(d.position, d.crc, type,
+						res);
+				final UnresolvedDelta[] next = removeChildren(oe, d.position);
+				if (next != null)
+					push(d.position, res, next);
+			}
+		}
+
+		private PackedObjectInfo register(final long pos, final int crc32,
+				final int type, final byte[] data) throws IOException {
+			objectDigest.update(Constants.encodedTypeString(type));
+			objectDigest.update((byte) ' ');
+			objectDigest.update(Constants.encodeASCII(data.length));
+			objectDigest.update((byte) 0);
+			objectDigest.update(data);
+			tempObjectId.fromRaw(objectDigest.digest(), 0);
+
+			verifySafeObject(tempObjectId, type, data, curs);
+			final PackedObjectInfo oe = new PackedObjectInfo(pos, crc32,
+					tempObjectId);
+			addEntry(oe);
+			synchronized (progress) {
+				progress.update(1);
+				if (progress.isCancelled())
+					throw new IOException("Download cancelled during indexing");
+			}
+			return oe;
+		}
+
+		private void push(final long pos, final byte[] data,
+				final UnresolvedDelta[] children) {
+			if (depth == stack.length) {
+				final DeltaFrame[] n = new DeltaFrame[stack.length * 2];
+				System.arraycopy(stack, 0, n, 0, depth);
+				stack = n;
+			}
+			DeltaFrame f = stack[depth];
+			if (f == null)
+				stack[depth] = f = new DeltaFrame();
+			f.position = pos;
+			f.data = data;
+			f.children = children;
+			f.next = 0;
+			depth++;
+
+			cachedBytes += data.length;
+			for (int i = 0; cachedBytes > limit && i < depth - 1; i++)
+				releaseData(stack[i]);
+		}
+
+		private void pop() {
+			final DeltaFrame f = stack[--depth];
+			releaseData(f);
+			f.children = null;
+		}
+
+		private void releaseData(final DeltaFrame f) {
+			if (f.data != null) {
+				cachedBytes -= f.data.length;
+				f.data = null;
+			}
+		}
+
+		private byte[] baseData(final int idx) throws IOException {
+			final DeltaFrame f = stack[idx];
+			if (f.data != null)
+				return f.data;
+
+			// Find the closest base still in memory, then reapply
+			// the deltas from it back down to the one we need.
+			//
+			int i = idx - 1;
+			while (0 <= i && stack[i].data == null)
+				i--;
+			byte[] data;
+			if (0 <= i)
+				data = stack[i].data;
+			else {
+				data = loadResolved(stack[0].position);
+				i = 0;
+			}
+			for (i++; i <= idx; i++)
+				data = load(stack[i].position, data);
+
+			f.data = data;
+			cachedBytes += data.length;
+			return data;
+		}
+
+		private void checkCRC(final long pos, final int oldCRC)
+				throws IOException {
+			if (oldCRC != (int) crc.getValue())
+				throw new IOException("Corruption detected re-reading at "
+						+ pos);
+		}
+
+		/**
+		 * Read an object from the pack file.
+		 *
+		 * @param pos
+		 *            position of the object's header.
+		 * @param base
+		 *            data of the delta base, if the object is a delta.
+		 * @return the object's data, with any delta applied to base.
+		 * @throws IOException
+		 *             the object could not be read.
+		 */
+		private byte[] load(final long pos, final byte[] base)
+				throws IOException {
+			crc.reset();
+			position(pos);
+			int c = readFromFile();
+			final int typeCode = (c >> 4) & 7;
+			long sz = c & 15;
+			int shift = 4;
+			while ((c & 0x80) != 0) {
+				c = readFromFile();
+				sz += (c & 0x7f) << shift;
+				shift += 7;
+			}
+
+			switch (typeCode) {
+			case Constants.OBJ_COMMIT:
+			case Constants.OBJ_TREE:
+			case Constants.OBJ_BLOB:
+			case Constants.OBJ_TAG:
+				loadedType = typeCode;
+				return inflateFromFile((int) sz);
+			case Constants.OBJ_OFS_DELTA: {
+				c = readFromFile() & 0xff;
+				while ((c & 128) != 0)
+					c = readFromFile() & 0xff;
+				return BinaryDelta.apply(base, inflateFromFile((int) sz));
+			}
+			case Constants.OBJ_REF_DELTA: {
+				crc.update(buf, fillFromFile(20), 20);
+				use(20);
+				return BinaryDelta.apply(base, inflateFromFile((int) sz));
+			}
+			default:
+				throw new IOException("Unknown object type " + typeCode + ".");
+			}
+		}
+
+		private void position(final long pos) {
+			bBase = pos;
+			bOffset = 0;
+			bAvail = 0;
+		}
+
+		// Consume exactly one byte from the buffer and return it.
+		private int readFromFile() throws IOException {
+			if (bAvail == 0)
+				fillFromFile(1);
+			bAvail--;
+			final int b = buf[bOffset++] & 0xff;
+			crc.update(b);
+			return b;
+		}
+
+		// Consume cnt bytes from the buffer.
+		private void use(final int cnt) {
+			bOffset += cnt;
+			bAvail -= cnt;
+		}
+
+		// Ensure at least need bytes are available in in {@link #buf}.
+		private int fillFromFile(final int need) throws IOException {
+			if (bAvail < need) {
+				int next = bOffset + bAvail;
+				int free = buf.length - next;
+				if (free + bAvail < need) {
+					if (bAvail > 0)
+						System.arraycopy(buf, bOffset, buf, 0, bAvail);
+					bBase += bOffset;
+					bOffset = 0;
+					next = bAvail;
+					free = buf.length - next;
+				}
+				final ByteBuffer bb = ByteBuffer.wrap(buf, next, free);
+				next = fc.read(bb, bBase + next);
+				if (next <= 0)
+					throw new EOFException("Packfile is truncated.");
+				bAvail += next;
+			}
+			return bOffset;
+		}
+
+		private byte[] inflateFromFile(final int sz) throws IOException {
+			final Inflater inf = inflater;
+			try {
+				final byte[] dst = new byte[sz];
+				int n = 0;
+				int p = -1;
+				while (!inf.finished()) {
+					if (inf.needsInput()) {
+						if (p >= 0) {
+							crc.update(buf, p, bAvail);
+							use(bAvail);
+						}
+						p = fillFromFile(1);
+						inf.setInput(buf, p, bAvail);
 					}
-					p = fillFromFile(1);
-					inf.setInput(buf, p, bAvail);
+					n += inf.inflate(dst, n, sz - n);
+				}
+				n = bAvail - inf.getRemaining();
+				if (n > 0) {
+					crc.update(buf, p, n);
+					use(n);
 				}
-				n += inf.inflate(dst, n, sz - n);
+				return dst;
+			} catch (DataFormatException dfe) {
+				throw corrupt(dfe);
+			} finally {
+				inf.reset();
 			}
-			n = bAvail - inf.getRemaining();
-			if (n > 0) {
-				crc.update(buf, p, n);
-				use(n);
+		}
+	}
+
+	/** A base on the stack of a {@link DeltaResolver}. */
+	private static class DeltaFrame {
+		long position;
+
+		/** Inflated data of the base; null if released to save memory. */
+		byte[] data;
+
+		/** Deltas against this base, in pack order. */
+		UnresolvedDelta[] children;
+
+		/** Index of the next entry of {@link #children} to resolve. */
+		int next;
+	}
+
+	/** An object read from the input, kept in case deltas follow it. */
+	private static class RecentObject {
+		final long position;
+
+		final int type;
+
+		final byte[] data;
+
+		final ObjectId id;
+
+		RecentObject(final long pos, final int t, final byte[] d,
+				final ObjectId i) {
+			position = pos;
+			type = t;
+			data = d;
+			id = i;
+		}
+	}
+
+	/**
+	 * Digests and stores the consumed input on its own thread.
+	 * <p>
+	 * Computing the pack checksum and writing the file overlaps with reading
+	 * and inflating the next objects. Consumed data is copied into one of a
+	 * few spare buffers, so the reader only waits if the writer falls behind
+	 * by more than those buffers.
+	 */
+	private final class InputWriter extends Thread {
+		private static final int BUFFERS = 4;
+
+		private final BlockingQueue<byte[]> free;
+
+		private final BlockingQueue<Chunk> full;
+
+		private volatile IOException failure;
+
+		InputWriter() {
+			super("IndexPack-Writer");
+			setDaemon(true);
+			free = new ArrayBlockingQueue<byte[]>(BUFFERS);
+			full = new ArrayBlockingQueue<Chunk>(BUFFERS + 1);
+			for (int i = 0; i < BUFFERS; i++)
+				free.add(new byte[BUFFER_SIZE]);
+		}
+
+		void write(final byte[] b, final int len) throws IOException {
+			checkFailure();
+			if (len == 0)
+				return;
+			try {
+				final byte[] c = free.take();
+				System.arraycopy(b, 0, c, 0, len);
+				full.put(new Chunk(c, len));
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		void finish() throws IOException {
+			try {
+				full.put(new Chunk(null, -1));
+				join();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			checkFailure();
+		}
+
+		private void checkFailure() throws IOException {
+			final IOException err = failure;
+			if (err != null) {
+				final IOException e = new IOException(err.getMessage());
+				e.initCause(err);
+				throw e;
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (;;) {
+					final Chunk c = full.take();
+					if (c.length < 0)
+						break;
+					if (failure == null) {
+						try {
+							packDigest.update(c.data, 0, c.length);
+							if (packOut != null)
+								packOut.write(c.data, 0, c.length);
+						} catch (IOException err) {
+							failure = err;
+						}
+					}
+					free.put(c.data);
+				}
+			} catch (InterruptedException e) {
+				// Input was abandoned, nothing more will be read.
 			}
-			return dst;
-		} catch (DataFormatException dfe) {
-			throw corrupt(dfe);
-		} finally {
-			inf.reset();
 		}
 	}
 
-	private static CorruptObjectException corrupt(final DataFormatException dfe) {
-		return new CorruptObjectException("Packfile corruption detected: "
-				+ dfe.getMessage());
+	private static class Chunk {
+		final byte[] data;
+
+		final int length;
+
+		Chunk(final byte[] d, final int n) {
+			data = d;
+			length = n;
+		}
 	}
 
 	private static class UnresolvedDelta {
@@ -950,6 +1542,32 @@ private static class UnresolvedDelta {
 		}
 	}
 
+	/**
+	 * Check if an object was stored in the pack by this instance.
+	 * <p>
+	 * Only valid once {@link #index(ProgressMonitor)} has written the index,
+	 * as the lookup relies on the entries being sorted for it.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return true if the object is in the pack.
+	 */
+	boolean hasObject(final AnyObjectId id) {
+		int low = 0;
+		int high = entryCount;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = id.compareTo(entries[mid]);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return true;
+			else
+				low = mid + 1;
+		}
+		return false;
+	}
+
 	/**
 	 * Rename the pack to it's final name and location and open it.
 	 * <p>
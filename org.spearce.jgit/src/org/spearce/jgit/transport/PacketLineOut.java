@@ -43,14 +43,43 @@
 
 import org.spearce.jgit.lib.Constants;
 
+/**
+ * Writes packet lines, coalescing them into as few writes as possible.
+ * <p>
+ * Packets are collected in a reusable buffer which is written out only when
+ * it cannot hold the next packet, or when {@link #flush()} or {@link #end()}
+ * are called at protocol boundaries. Callers writing to the underlying stream
+ * directly must call {@link #flush()} first.
+ */
 class PacketLineOut {
+	/** Initial size of {@link #buffer}, enough for a small side band frame. */
+	private static final int INITIAL_BUFFER = SideBandOutputStream.SMALL_BUF;
+
+	/** Largest size of {@link #buffer}, one large side band frame. */
+	private static final int MAX_BUFFER = SideBandOutputStream.MAX_BUF;
+
 	private final OutputStream out;
 
 	private final byte[] lenbuffer;
 
+	private byte[] buffer;
+
+	/** Number of bytes held in {@link #buffer}. */
+	private int count;
+
+	/** Number of complete packets held in {@link #buffer}. */
+	private int packets;
+
+	private PacketMetrics metrics = PacketMetrics.NULL;
+
 	PacketLineOut(final OutputStream i) {
 		out = i;
 		lenbuffer = new byte[5];
+		buffer = new byte[INITIAL_BUFFER];
+	}
+
+	void setMetrics(final PacketMetrics m) {
+		metrics = m != null ? m : PacketMetrics.NULL;
 	}
 
 	void writeString(final String s) throws IOException {
@@ -59,26 +88,95 @@ void writeString(final String s) throws IOException {
 
 	void writePacket(final byte[] packet) throws IOException {
 		formatLength(packet.length + 4);
-		out.write(lenbuffer, 0, 4);
-		out.write(packet);
+		append(4, packet, 0, packet.length);
 	}
 
 	void writeChannelPacket(final int channel, final byte[] buf, int off,
 			int len) throws IOException {
 		formatLength(len + 5);
 		lenbuffer[4] = (byte) channel;
-		out.write(lenbuffer, 0, 5);
-		out.write(buf, off, len);
+		append(5, buf, off, len);
+	}
+
+	/**
+	 * Write a side band frame built in place by the caller.
+	 * <p>
+	 * The first {@link SideBandOutputStream#HDR_SIZE} bytes of the frame are
+	 * overwritten with the packet header. Frames too large to be buffered
+	 * along with the pending packets are written out as they are, without
+	 * being copied.
+	 *
+	 * @param channel
+	 *            side band channel of the frame.
+	 * @param frame
+	 *            buffer holding the header space followed by the payload.
+	 * @param len
+	 *            total length of the frame, including the header.
+	 * @throws IOException
+	 *             the frame could not be written.
+	 */
+	void writeChannelFrame(final int channel, final byte[] frame,
+			final int len) throws IOException {
+		formatLength(len);
+		System.arraycopy(lenbuffer, 0, frame, 0, 4);
+		frame[4] = (byte) channel;
+
+		if (count + len <= buffer.length) {
+			System.arraycopy(frame, 0, buffer, count, len);
+			count += len;
+			packets++;
+			return;
+		}
+
+		writeBuffer();
+		out.write(frame, 0, len);
+		metrics.onWrite(1, len);
 	}
 
 	void end() throws IOException {
 		formatLength(0);
-		out.write(lenbuffer, 0, 4);
+		append(4, lenbuffer, 0, 0);
 		flush();
 	}
 
 	void flush() throws IOException {
+		writeBuffer();
 		out.flush();
+		metrics.onFlush();
+	}
+
+	// Buffer a packet made of the first hdrLen bytes of lenbuffer and b.
+	private void append(final int hdrLen, final byte[] b, final int off,
+			final int len) throws IOException {
+		final int need = hdrLen + len;
+		if (buffer.length - count < need) {
+			writeBuffer();
+			if (buffer.length < need && buffer.length < MAX_BUFFER)
+				buffer = new byte[Math.min(Math.max(need,
+						2 * buffer.length), MAX_BUFFER)];
+		}
+
+		if (need <= buffer.length - count) {
+			System.arraycopy(lenbuffer, 0, buffer, count, hdrLen);
+			System.arraycopy(b, off, buffer, count + hdrLen, len);
+			count += need;
+			packets++;
+		} else {
+			// Larger than any frame, send it in pieces.
+			out.write(lenbuffer, 0, hdrLen);
+			metrics.onWrite(0, hdrLen);
+			out.write(b, off, len);
+			metrics.onWrite(1, len);
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			metrics.onWrite(packets, count);
+			count = 0;
+			packets = 0;
+		}
 	}
 
 	private static final byte[] hexchar = { '0', '1', '2', '3', '4', '5', '6',
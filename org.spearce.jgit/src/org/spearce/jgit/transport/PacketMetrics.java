@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+/**
+ * Observer of the packet lines written to a network peer.
+ * <p>
+ * Packets are built in memory and handed to the underlying stream only when
+ * the buffer fills up or the protocol requires the peer to see them, so the
+ * number of writes is usually far lower than the number of packets. Counting
+ * both, together with the flushes, shows how well writes are coalesced.
+ * <p>
+ * The observer is invoked on the thread writing the packets, and should run
+ * quickly.
+ */
+public interface PacketMetrics {
+	/** A simple no-op observer. */
+	public static final PacketMetrics NULL = new PacketMetrics() {
+		public void onWrite(final int packets, final int bytes) {
+			// Do nothing.
+		}
+
+		public void onFlush() {
+			// Do nothing.
+		}
+	};
+
+	/**
+	 * Invoked after one write to the underlying stream.
+	 *
+	 * @param packets
+	 *            number of packets (including side band frames) completed by
+	 *            this write. May be 0 if a packet was written in pieces.
+	 * @param bytes
+	 *            number of bytes written, including packet headers.
+	 */
+	public void onWrite(int packets, int bytes);
+
+	/** Invoked after the underlying stream was flushed. */
+	public void onFlush();
+}
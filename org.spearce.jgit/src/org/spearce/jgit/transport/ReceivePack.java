@@ -48,13 +48,16 @@
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.PackProtocolException;
+import org.spearce.jgit.lib.BatchRefUpdate;
 import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.FileMode;
 import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.PersonIdent;
@@ -64,9 +67,15 @@
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.lib.RepositoryConfig;
 import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevBlob;
 import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevFlag;
 import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevTree;
 import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.treewalk.TreeWalk;
+import org.spearce.jgit.treewalk.filter.TreeFilter;
 import org.spearce.jgit.transport.ReceiveCommand.Result;
 
 /**
@@ -86,6 +95,9 @@ public class ReceivePack {
 	/** Should an incoming transfer validate objects? */
 	private boolean checkReceivedObjects;
 
+	/** Should the connectivity check stop at objects we already had? */
+	private boolean checkNewObjectsOnly;
+
 	/** Should an incoming transfer permit create requests? */
 	private boolean allowCreates;
 
@@ -95,6 +107,9 @@ public class ReceivePack {
 	/** Should an incoming transfer permit non-fast-forward requests? */
 	private boolean allowNonFastForwards;
 
+	/** Should all commands fail if one of them cannot be applied? */
+	private boolean atomic;
+
 	/** Identity to record action as within the reflog. */
 	private PersonIdent refLogIdent;
 
@@ -141,6 +156,7 @@ public ReceivePack(final Repository into) {
 
 		final RepositoryConfig cfg = db.getConfig();
 		checkReceivedObjects = cfg.getBoolean("receive", "fsckobjects", false);
+		checkNewObjectsOnly = true;
 		allowCreates = true;
 		allowDeletes = !cfg.getBoolean("receive", "denydeletes", false);
 		allowNonFastForwards = !cfg.getBoolean("receive",
@@ -182,6 +198,32 @@ public void setCheckReceivedObjects(final boolean check) {
 		checkReceivedObjects = check;
 	}
 
+	/**
+	 * @return true if checking received objects first walks only the objects
+	 *         of the received pack, stopping at the advertised refs; false if
+	 *         it always walks everything not reachable from those refs.
+	 */
+	public boolean isCheckNewObjectsOnly() {
+		return checkNewObjectsOnly;
+	}
+
+	/**
+	 * Select how connectivity is verified when received objects are checked.
+	 * <p>
+	 * Walking only the received pack parses each new object once and stops
+	 * at the objects of the advertised refs, comparing each new tree with the
+	 * trees of its parents. If the walk reaches a commit or tag that is
+	 * neither in the pack nor advertised, the full walk is used instead, as
+	 * only the advertised refs are known to be connected.
+	 *
+	 * @param newOnly
+	 *            true to walk the objects of the received pack first; false
+	 *            to walk everything not reachable from the advertised refs.
+	 */
+	public void setCheckNewObjectsOnly(final boolean newOnly) {
+		checkNewObjectsOnly = newOnly;
+	}
+
 	/** @return true if the client can request refs to be created. */
 	public boolean isAllowCreates() {
 		return allowCreates;
@@ -225,6 +267,29 @@ public void setAllowNonFastForwards(final boolean canRewind) {
 		allowNonFastForwards = canRewind;
 	}
 
+	/**
+	 * @return true if no ref is updated unless every command of the push can
+	 *         be applied; false if each command succeeds or fails on its own.
+	 */
+	public boolean isAtomic() {
+		return atomic;
+	}
+
+	/**
+	 * Select whether the commands of a push are applied all or nothing.
+	 * <p>
+	 * By default each ref is updated on its own, so a push may be partially
+	 * applied, as with native git. An atomic push is stored through a single
+	 * {@link BatchRefUpdate#setAtomic(boolean) atomic batch}; if any command
+	 * is rejected, the remaining ones are rejected too.
+	 *
+	 * @param a
+	 *            true to apply the commands all or nothing.
+	 */
+	public void setAtomic(final boolean a) {
+		atomic = a;
+	}
+
 	/** @return identity of the user making the changes in the reflog. */
 	public PersonIdent getRefLogIdent() {
 		return refLogIdent;
@@ -399,9 +464,11 @@ private void service() throws IOException {
 
 			if (needPack()) {
 				try {
-					receivePack();
-					if (isCheckReceivedObjects())
-						checkConnectivity();
+					final IndexPack ip = receivePack();
+					if (isCheckReceivedObjects()) {
+						if (!isCheckNewObjectsOnly() || !checkNewObjects(ip))
+							checkConnectivity();
+					}
 					unpackError = null;
 				} catch (IOException err) {
 					unpackError = err;
@@ -529,12 +596,152 @@ private boolean needPack() {
 		return false;
 	}
 
-	private void receivePack() throws IOException {
+	private IndexPack receivePack() throws IOException {
 		final IndexPack ip = IndexPack.create(db, rawIn);
 		ip.setFixThin(true);
 		ip.setObjectChecking(isCheckReceivedObjects());
 		ip.index(NullProgressMonitor.INSTANCE);
 		ip.renameAndOpenPack();
+		return ip;
+	}
+
+	/**
+	 * Verify connectivity by walking only the objects the push introduced.
+	 * <p>
+	 * Commits and tags are followed while they are stored in the received
+	 * pack, and the walk stops at the objects of the advertised refs. A tree
+	 * is compared with the trees of its commit's parents, so only entries that
+	 * differ are read; a blob only has to exist. Any other object already in
+	 * the repository may have been left behind by an earlier push that was
+	 * rejected, so its history cannot be trusted.
+	 *
+	 * @param ip
+	 *            the received pack.
+	 * @return true if every new object is connected; false if the walk
+	 *         reached an object it cannot vouch for, and the full walk of
+	 *         {@link #checkConnectivity()} must be used instead.
+	 * @throws IOException
+	 *             an object is missing or could not be read.
+	 */
+	private boolean checkNewObjects(final IndexPack ip) throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		final RevFlag seen = rw.newFlag("SEEN");
+		final RevFlag advertised = rw.newFlag("ADVERTISED");
+		for (final Ref ref : refs.values()) {
+			RevObject o;
+			try {
+				o = rw.parseAny(ref.getObjectId());
+			} catch (MissingObjectException notFound) {
+				continue;
+			}
+			o.add(advertised);
+			while (o instanceof RevTag) {
+				o = ((RevTag) o).getObject();
+				rw.parseHeaders(o);
+				o.add(advertised);
+			}
+		}
+
+		final LinkedList<RevObject> todo = new LinkedList<RevObject>();
+		for (final ReceiveCommand cmd : commands) {
+			if (cmd.getResult() != Result.NOT_ATTEMPTED)
+				continue;
+			if (cmd.getType() == ReceiveCommand.Type.DELETE)
+				continue;
+			push(todo, seen, rw.parseAny(cmd.getNewId()));
+		}
+
+		final TreeWalk tw = new TreeWalk(db);
+		tw.setFilter(TreeFilter.ANY_DIFF);
+		try {
+			while (!todo.isEmpty()) {
+				final RevObject o = todo.removeLast();
+				if (o.has(advertised))
+					continue;
+
+				switch (o.getType()) {
+				case Constants.OBJ_COMMIT: {
+					if (!ip.hasObject(o))
+						return false;
+					final RevCommit c = (RevCommit) o;
+					rw.parseHeaders(c);
+					final RevCommit[] parents = c.getParents();
+					for (final RevCommit p : parents) {
+						rw.parseHeaders(p);
+						push(todo, seen, p);
+					}
+					checkTree(tw, rw, seen, c.getTree(), parents);
+					break;
+				}
+				case Constants.OBJ_TAG: {
+					if (!ip.hasObject(o))
+						return false;
+					final RevTag t = (RevTag) o;
+					rw.parseHeaders(t);
+					push(todo, seen, t.getObject());
+					break;
+				}
+				case Constants.OBJ_TREE:
+					checkTree(tw, rw, seen, (RevTree) o, new RevCommit[0]);
+					break;
+				default:
+					if (!db.hasObject(o))
+						throw new MissingObjectException(o, Constants
+								.typeString(o.getType()));
+					break;
+				}
+			}
+			return true;
+		} finally {
+			rw.dispose();
+		}
+	}
+
+	/**
+	 * Check the entries of a tree that its parents' trees do not have.
+	 * <p>
+	 * An entry equal to the entry at the same path of a parent is reachable
+	 * from that parent, which is itself checked. Differing subtrees are
+	 * entered, so reading them proves they exist; differing blobs must exist.
+	 */
+	private void checkTree(final TreeWalk tw, final RevWalk rw,
+			final RevFlag seen, final RevTree tree, final RevCommit[] parents)
+			throws IOException {
+		tw.reset();
+		tw.addTree(tree);
+		for (final RevCommit p : parents)
+			tw.addTree(p.getTree());
+		final int n = tw.getTreeCount();
+
+		NEXT_ENTRY: while (tw.next()) {
+			final int mode = tw.getRawMode(0);
+			if (mode == 0 || FileMode.GITLINK.equals(mode))
+				continue;
+			for (int i = 1; i < n; i++) {
+				if (tw.getRawMode(i) != 0 && tw.idEqual(0, i))
+					continue NEXT_ENTRY;
+			}
+
+			if (FileMode.TREE.equals(mode)) {
+				tw.enterSubtree();
+				continue;
+			}
+			final RevBlob b = rw.lookupBlob(tw.getObjectId(0));
+			if (!b.has(seen)) {
+				b.add(seen);
+				if (!db.hasObject(b))
+					throw new MissingObjectException(b, Constants.TYPE_BLOB);
+			}
+		}
+	}
+
+	private static void push(final LinkedList<RevObject> todo,
+			final RevFlag seen, final RevObject o) {
+		if (!o.has(seen)) {
+			o.add(seen);
+			todo.add(o);
+		}
 	}
 
 	private void checkConnectivity() throws IOException {
@@ -663,41 +870,69 @@ private void validateCommands() {
 
 	private void executeCommands() {
 		preReceive.onPreReceive(this, filterCommands(Result.NOT_ATTEMPTED));
-		for (final ReceiveCommand cmd : filterCommands(Result.NOT_ATTEMPTED))
-			execute(cmd);
-	}
 
-	private void execute(final ReceiveCommand cmd) {
-		try {
-			final RefUpdate ru = db.updateRef(cmd.getRefName());
-			ru.setRefLogIdent(getRefLogIdent());
-			switch (cmd.getType()) {
-			case DELETE:
-				if (!ObjectId.zeroId().equals(cmd.getOldId())) {
-					// We can only do a CAS style delete if the client
-					// didn't bork its delete request by sending the
-					// wrong zero id rather than the advertised one.
-					//
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		final List<ReceiveCommand> cmds = new ArrayList<ReceiveCommand>();
+		final List<RefUpdate> updates = new ArrayList<RefUpdate>();
+		for (final ReceiveCommand cmd : filterCommands(Result.NOT_ATTEMPTED)) {
+			try {
+				final RefUpdate ru = db.updateRef(cmd.getRefName());
+				ru.setRefLogIdent(getRefLogIdent());
+				switch (cmd.getType()) {
+				case DELETE:
+					if (!ObjectId.zeroId().equals(cmd.getOldId())) {
+						// We can only do a CAS style delete if the client
+						// didn't bork its delete request by sending the
+						// wrong zero id rather than the advertised one.
+						//
+						ru.setExpectedOldObjectId(cmd.getOldId());
+					}
+					ru.setForceUpdate(true);
+					batch.addDelete(ru);
+					break;
+
+				case CREATE:
+				case UPDATE:
+				case UPDATE_NONFASTFORWARD:
+					ru.setForceUpdate(isAllowNonFastForwards());
 					ru.setExpectedOldObjectId(cmd.getOldId());
+					ru.setNewObjectId(cmd.getNewId());
+					ru.setRefLogMessage("push", true);
+					batch.addUpdate(ru);
+					break;
 				}
-				ru.setForceUpdate(true);
-				status(cmd, ru.delete(walk));
-				break;
-
-			case CREATE:
-			case UPDATE:
-			case UPDATE_NONFASTFORWARD:
-				ru.setForceUpdate(isAllowNonFastForwards());
-				ru.setExpectedOldObjectId(cmd.getOldId());
-				ru.setNewObjectId(cmd.getNewId());
-				ru.setRefLogMessage("push", true);
-				status(cmd, ru.update(walk));
-				break;
+				cmds.add(cmd);
+				updates.add(ru);
+			} catch (IOException err) {
+				cmd.setResult(Result.REJECTED_OTHER_REASON, "lock error: "
+						+ err.getMessage());
 			}
+		}
+
+		if (isAtomic() && cmds.size() < commands.size()) {
+			for (final ReceiveCommand cmd : cmds)
+				cmd.setResult(Result.REJECTED_OTHER_REASON,
+						"transaction aborted");
+			return;
+		}
+		batch.setAtomic(isAtomic());
+
+		try {
+			batch.execute(walk);
 		} catch (IOException err) {
-			cmd.setResult(Result.REJECTED_OTHER_REASON, "lock error: "
-					+ err.getMessage());
+			// Refs the batch committed before failing keep their result.
+			//
+			for (int i = 0; i < cmds.size(); i++) {
+				if (updates.get(i).getResult() == RefUpdate.Result.IO_FAILURE)
+					cmds.get(i).setResult(Result.REJECTED_OTHER_REASON,
+							"lock error: " + err.getMessage());
+				else
+					status(cmds.get(i), updates.get(i).getResult());
+			}
+			return;
 		}
+		for (int i = 0; i < cmds.size(); i++)
+			status(cmds.get(i), updates.get(i).getResult());
 	}
 
 	private void status(final ReceiveCommand cmd, final RefUpdate.Result result) {
@@ -726,6 +961,10 @@ private void status(final ReceiveCommand cmd, final RefUpdate.Result result) {
 			cmd.setResult(Result.REJECTED_CURRENT_BRANCH);
 			break;
 
+		case ABORTED:
+			cmd.setResult(Result.REJECTED_OTHER_REASON, "transaction aborted");
+			break;
+
 		default:
 			cmd.setResult(Result.REJECTED_OTHER_REASON, result.name());
 			break;
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.spearce.jgit.lib.PackFile;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.WindowCache;
+
+/**
+ * Keeps repositories served by a {@link Daemon} open between sessions.
+ * <p>
+ * Opening a repository reads its configuration, scans its packs and later
+ * loads their indexes. Reusing the instance lets the next client of a busy
+ * repository start with all of that already in memory.
+ * <p>
+ * Repositories are reference counted. Each {@link #open(File, WindowCache)}
+ * must be paired with a {@link #release(Repository)}. A repository nobody
+ * uses is closed once it has been idle for too long, or when more than the
+ * configured number of repositories are open.
+ * <p>
+ * On each open the pack directory is scanned again, so packs added by a push
+ * or fetch are seen by the next client. A repository whose configuration
+ * changed or which lost a pack (e.g. to a repack) is opened again from
+ * scratch once no session is using it.
+ */
+class RepositoryCache {
+	private final Map<File, Entry> entries;
+
+	private int maxOpen;
+
+	private long idleMillis;
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param maxOpen
+	 *            number of repositories kept open when not in use.
+	 * @param idleMillis
+	 *            time an unused repository is kept open, in milliseconds.
+	 */
+	RepositoryCache(final int maxOpen, final long idleMillis) {
+		this.entries = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+		this.maxOpen = maxOpen;
+		this.idleMillis = idleMillis;
+	}
+
+	synchronized int getMaxOpen() {
+		return maxOpen;
+	}
+
+	synchronized void setMaxOpen(final int max) {
+		maxOpen = max;
+		prune(System.currentTimeMillis());
+	}
+
+	synchronized long getIdleTime() {
+		return idleMillis;
+	}
+
+	synchronized void setIdleTime(final long millis) {
+		idleMillis = millis;
+		prune(System.currentTimeMillis());
+	}
+
+	/**
+	 * Obtain a repository, opening it if it isn't already open.
+	 *
+	 * @param gitDir
+	 *            location of the repository. Different names for the same
+	 *            directory share one instance.
+	 * @param cache
+	 *            window cache the repository reads through, if it has to be
+	 *            opened.
+	 * @return the repository. The caller must release it when done.
+	 * @throws IOException
+	 *             the repository could not be opened.
+	 */
+	synchronized Repository open(final File gitDir, final WindowCache cache)
+			throws IOException {
+		final File key = gitDir.getCanonicalFile();
+		final long now = System.currentTimeMillis();
+		Entry e = entries.get(key);
+		if (e != null) {
+			e.refresh();
+			if (e.stale && e.useCount == 0) {
+				entries.remove(key);
+				e.db.close();
+				e = null;
+			}
+		}
+		if (e == null) {
+			e = new Entry(new Repository(key, cache));
+			entries.put(key, e);
+		}
+		e.useCount++;
+		e.lastUsed = now;
+		prune(now);
+		return e.db;
+	}
+
+	/**
+	 * Return a repository obtained from {@link #open(File, WindowCache)}.
+	 *
+	 * @param db
+	 *            the repository. Instances not opened by this cache are
+	 *            ignored.
+	 */
+	synchronized void release(final Repository db) {
+		final Entry e = entries.get(db.getDirectory());
+		if (e == null || e.db != db)
+			return;
+		final long now = System.currentTimeMillis();
+		e.useCount--;
+		e.lastUsed = now;
+		prune(now);
+	}
+
+	/** Close all repositories which are not in use. */
+	synchronized void clear() {
+		for (final Iterator<Entry> i = entries.values().iterator(); i
+				.hasNext();) {
+			final Entry e = i.next();
+			if (e.useCount == 0) {
+				i.remove();
+				e.db.close();
+			}
+		}
+	}
+
+	private void prune(final long now) {
+		int open = entries.size();
+		for (final Iterator<Entry> i = entries.values().iterator(); i
+				.hasNext();) {
+			final Entry e = i.next();
+			if (e.useCount > 0)
+				continue;
+			if (open > maxOpen || now - e.lastUsed >= idleMillis) {
+				i.remove();
+				e.db.close();
+				open--;
+			}
+		}
+	}
+
+	private static class Entry {
+		final Repository db;
+
+		final File configFile;
+
+		final long configModified;
+
+		int useCount;
+
+		long lastUsed;
+
+		boolean stale;
+
+		Entry(final Repository db) {
+			this.db = db;
+			this.configFile = new File(db.getDirectory(), "config");
+			this.configModified = configFile.lastModified();
+		}
+
+		void refresh() {
+			if (configFile.lastModified() != configModified)
+				stale = true;
+			for (final PackFile p : db.getPacks()) {
+				if (!p.getPackFile().isFile())
+					stale = true;
+			}
+			db.scanForPacks();
+		}
+	}
+}
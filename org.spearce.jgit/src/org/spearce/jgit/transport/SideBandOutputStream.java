@@ -43,9 +43,11 @@
 /**
  * Multiplexes data and progress messages
  * <p>
- * To correctly use this class you must wrap it in a BufferedOutputStream with a
- * buffer size no larger than either {@link #SMALL_BUF} or {@link #MAX_BUF},
- * minus {@link #HDR_SIZE}.
+ * Written data is collected into frames of the size given at construction,
+ * which are handed to the {@link PacketLineOut} once full. A partial frame is
+ * only sent when the stream is flushed. Flushing a progress or error channel
+ * also flushes the packet line output, so the peer sees the message; flushing
+ * the data channel leaves that to the end of the protocol exchange.
  */
 class SideBandOutputStream extends OutputStream {
 	static final int CH_DATA = SideBandInputStream.CH_DATA;
@@ -64,30 +66,62 @@ class SideBandOutputStream extends OutputStream {
 
 	private final PacketLineOut pckOut;
 
-	private byte[] singleByteBuffer;
+	/** Frame being built; the first {@link #HDR_SIZE} bytes hold the header. */
+	private final byte[] buffer;
 
-	SideBandOutputStream(final int chan, final PacketLineOut out) {
+	/** Number of bytes of {@link #buffer} in use, including the header. */
+	private int cnt;
+
+	/**
+	 * Create a new stream to write frames of one channel.
+	 *
+	 * @param chan
+	 *            channel number, one of the <code>CH_</code> constants.
+	 * @param sz
+	 *            maximum size of a frame, including the header. Must not
+	 *            exceed what the peer agreed to, {@link #SMALL_BUF} or
+	 *            {@link #MAX_BUF}.
+	 * @param out
+	 *            output the frames are written to.
+	 */
+	SideBandOutputStream(final int chan, final int sz, final PacketLineOut out) {
 		channel = chan;
 		pckOut = out;
+		buffer = new byte[sz];
+		cnt = HDR_SIZE;
 	}
 
 	@Override
 	public void flush() throws IOException {
+		writeBuffer();
 		if (channel != CH_DATA)
 			pckOut.flush();
 	}
 
 	@Override
-	public void write(final byte[] b, final int off, final int len)
-			throws IOException {
-		pckOut.writeChannelPacket(channel, b, off, len);
+	public void write(final byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (cnt == buffer.length)
+				writeBuffer();
+			final int n = Math.min(len, buffer.length - cnt);
+			System.arraycopy(b, off, buffer, cnt, n);
+			cnt += n;
+			off += n;
+			len -= n;
+		}
 	}
 
 	@Override
 	public void write(final int b) throws IOException {
-		if (singleByteBuffer == null)
-			singleByteBuffer = new byte[1];
-		singleByteBuffer[0] = (byte) b;
-		write(singleByteBuffer);
+		if (cnt == buffer.length)
+			writeBuffer();
+		buffer[cnt++] = (byte) b;
+	}
+
+	private void writeBuffer() throws IOException {
+		if (cnt > HDR_SIZE) {
+			pckOut.writeChannelFrame(channel, buffer, cnt);
+			cnt = HDR_SIZE;
+		}
 	}
 }
@@ -37,7 +37,6 @@
 
 package org.spearce.jgit.transport;
 
-import java.io.BufferedOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 
@@ -61,11 +60,9 @@ class SideBandProgressMonitor implements ProgressMonitor {
 	private int totalWork;
 
 	SideBandProgressMonitor(final PacketLineOut pckOut) {
-		final int bufsz = SideBandOutputStream.SMALL_BUF
-				- SideBandOutputStream.HDR_SIZE;
-		out = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(
-				new SideBandOutputStream(SideBandOutputStream.CH_PROGRESS,
-						pckOut), bufsz), Constants.CHARSET));
+		out = new PrintWriter(new OutputStreamWriter(new SideBandOutputStream(
+				SideBandOutputStream.CH_PROGRESS,
+				SideBandOutputStream.SMALL_BUF, pckOut), Constants.CHARSET));
 	}
 
 	public void start(final int totalTasks) {
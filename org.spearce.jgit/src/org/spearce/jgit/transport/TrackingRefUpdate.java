@@ -124,6 +124,10 @@ public Result getResult() {
 		return update.getResult();
 	}
 
+	RefUpdate getRefUpdate() {
+		return update;
+	}
+
 	void update(final RevWalk walk) throws IOException {
 		update.update(walk);
 	}
@@ -318,6 +318,11 @@ private static String findTrackingRefName(final String remoteName,
 	 */
 	public static final boolean DEFAULT_PUSH_THIN = false;
 
+	/**
+	 * Default setting for {@link #fetchConcurrency} option.
+	 */
+	public static final int DEFAULT_FETCH_CONCURRENCY = 4;
+
 	/**
 	 * Specification for fetch or push operations, to fetch or push all tags.
 	 * Acts as --tags.
@@ -373,6 +378,9 @@ private static String findTrackingRefName(final String remoteName,
 	/** Should an incoming (fetch) transfer validate objects? */
 	private boolean checkFetchedObjects;
 
+	/** Requests a dumb transport may have in flight during fetch. */
+	private int fetchConcurrency = DEFAULT_FETCH_CONCURRENCY;
+
 	/** Should refs no longer on the source be pruned from the destination? */
 	private boolean removeDeletedRefs;
 
@@ -488,6 +496,34 @@ public void setCheckFetchedObjects(final boolean check) {
 		checkFetchedObjects = check;
 	}
 
+	/**
+	 * Default setting is: {@value #DEFAULT_FETCH_CONCURRENCY}
+	 *
+	 * @return number of requests a dumb transport (HTTP, Amazon S3) may have
+	 *         in flight at once during fetch.
+	 */
+	public int getFetchConcurrency() {
+		return fetchConcurrency;
+	}
+
+	/**
+	 * Set the number of requests a dumb transport may have in flight.
+	 * <p>
+	 * Transports walking the remote object database download loose objects
+	 * ahead of the objects they are currently parsing, and download pack
+	 * indexes and packs in parallel, using up to this many requests. Objects
+	 * are still parsed and linked in the same order. Transports whose
+	 * connection cannot serve several requests at once (SFTP) always use a
+	 * single request.
+	 *
+	 * @param n
+	 *            maximum number of requests in flight; 1 to send one request
+	 *            at a time.
+	 */
+	public void setFetchConcurrency(final int n) {
+		fetchConcurrency = Math.max(1, n);
+	}
+
 	/**
 	 * Default setting is: {@value RemoteConfig#DEFAULT_RECEIVE_PACK}
 	 *
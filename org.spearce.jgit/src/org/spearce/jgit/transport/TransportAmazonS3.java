@@ -211,6 +211,11 @@ WalkRemoteObjectDatabase openAlternate(final String location)
 			return new DatabaseS3(bucketName, resolveKey(location));
 		}
 
+		@Override
+		boolean isConcurrentOpenSupported() {
+			return true;
+		}
+
 		@Override
 		Collection<String> getPackNames() throws IOException {
 			final HashSet<String> have = new HashSet<String>();
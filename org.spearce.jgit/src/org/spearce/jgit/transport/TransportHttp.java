@@ -153,6 +153,11 @@ WalkRemoteObjectDatabase openAlternate(final String location)
 			return new HttpObjectDB(new URL(objectsUrl, location));
 		}
 
+		@Override
+		boolean isConcurrentOpenSupported() {
+			return true;
+		}
+
 		@Override
 		Collection<String> getPackNames() throws IOException {
 			final Collection<String> packs = new ArrayList<String>();
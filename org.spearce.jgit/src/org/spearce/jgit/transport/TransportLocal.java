@@ -40,14 +40,29 @@
 
 package org.spearce.jgit.transport;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.spearce.jgit.errors.NotSupportedException;
 import org.spearce.jgit.errors.TransportException;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ProgressMonitor;
+import org.spearce.jgit.lib.Ref;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.util.FS;
 
@@ -59,6 +74,12 @@
  * forks a C Git process to provide the remote side access, much as the
  * {@link TransportGitSsh} implementation causes the remote side to run a C Git
  * process.
+ * <p>
+ * When the built-in upload-pack is used to fetch into a repository that does
+ * not have any refs yet (such as during a clone) the pack protocol is skipped
+ * entirely: the remote's pack files are copied as-is and only loose objects
+ * missing locally are copied next to them. The regular pack transfer is used
+ * whenever that is not possible.
  */
 class TransportLocal extends Transport implements PackTransport {
 	private static final String PWD = ".";
@@ -87,11 +108,26 @@ static boolean canHandle(final URIish uri) {
 	@Override
 	public FetchConnection openFetch() throws TransportException {
 		final String up = getOptionUploadPack();
-		if ("git-upload-pack".equals(up) || "git upload-pack".equals(up))
+		if ("git-upload-pack".equals(up) || "git upload-pack".equals(up)) {
+			if (canCopyObjects())
+				return new CopyLocalFetchConnection();
 			return new InternalLocalFetchConnection();
+		}
 		return new ForkLocalFetchConnection();
 	}
 
+	private boolean canCopyObjects() {
+		// Copying whole packs only pays off if the local repository has
+		// nothing we could negotiate with. Objects the remote borrows from
+		// its alternates are not in its own directory to be copied.
+		//
+		for (final Ref r : local.getAllRefs().values()) {
+			if (r.getObjectId() != null)
+				return false;
+		}
+		return !new File(remoteGitDir, "objects/info/alternates").exists();
+	}
+
 	@Override
 	public PushConnection openPush() throws NotSupportedException,
 			TransportException {
@@ -220,6 +256,224 @@ public void close() {
 		}
 	}
 
+	class CopyLocalFetchConnection extends BaseConnection implements
+			FetchConnection {
+		private Repository src;
+
+		private FetchConnection fallback;
+
+		CopyLocalFetchConnection() throws TransportException {
+			try {
+				src = new Repository(remoteGitDir);
+			} catch (IOException err) {
+				throw new TransportException(uri, "not a git directory");
+			}
+
+			final Map<String, Ref> avail = new TreeMap<String, Ref>();
+			for (final Ref r : src.getAllRefs().values()) {
+				final ObjectId id = r.getObjectId();
+				if (id == null || !src.hasObject(id))
+					continue;
+				final Ref p = src.peel(r);
+				final String name = r.getOrigName();
+				avail.put(name, new Ref(Ref.Storage.NETWORK, name, id, p
+						.getPeeledObjectId(), true));
+			}
+			available(avail);
+		}
+
+		public void fetch(final ProgressMonitor monitor,
+				final Collection<Ref> want, final Set<ObjectId> have)
+				throws TransportException {
+			markStartedOperation();
+			try {
+				copyPacks(monitor);
+				copyLooseObjects(monitor);
+			} catch (IOException err) {
+				// Whatever was copied is complete and harmless. The pack
+				// protocol below transfers anything still missing.
+			}
+
+			for (final Ref r : want) {
+				if (!local.hasObject(r.getObjectId())) {
+					fallback = new InternalLocalFetchConnection();
+					fallback.fetch(monitor, want, have);
+					return;
+				}
+			}
+		}
+
+		private void copyPacks(final ProgressMonitor monitor)
+				throws IOException {
+			final File srcDir = new File(src.getObjectsDirectory(), "pack");
+			final File dstDir = new File(local.getObjectsDirectory(), "pack");
+			final List<String> names = new ArrayList<String>();
+			long bytes = 0;
+			final String[] list = srcDir.list();
+			if (list != null) {
+				for (final String n : list) {
+					if (n.length() != 49 || !n.startsWith("pack-")
+							|| !n.endsWith(".idx"))
+						continue;
+					final String base = n.substring(0, 45);
+					final File pack = new File(srcDir, base + ".pack");
+					if (!pack.isFile() || new File(dstDir, n).exists())
+						continue;
+					names.add(base);
+					bytes += pack.length();
+				}
+			}
+			if (names.isEmpty())
+				return;
+
+			dstDir.mkdirs();
+			monitor.beginTask("Copying packs", (int) (bytes / 1024));
+			try {
+				for (final String base : names) {
+					final File pack = new File(dstDir, base + ".pack");
+					final File idx = new File(dstDir, base + ".idx");
+
+					// The pack must be in place before its index, as
+					// the index makes it visible to other processes.
+					// Half a pair is useless, so a failure removes both.
+					//
+					boolean ok = false;
+					try {
+						copy(new File(srcDir, base + ".pack"), pack, dstDir,
+								monitor);
+						copy(new File(srcDir, base + ".idx"), idx, dstDir,
+								null);
+						local.openPack(pack, idx);
+						ok = true;
+					} finally {
+						if (!ok) {
+							idx.delete();
+							pack.delete();
+						}
+					}
+				}
+			} finally {
+				monitor.endTask();
+			}
+		}
+
+		private void copyLooseObjects(final ProgressMonitor monitor)
+				throws IOException {
+			final File srcDir = src.getObjectsDirectory();
+			final File dstDir = local.getObjectsDirectory();
+			final String[] fanout = srcDir.list();
+			if (fanout == null)
+				return;
+
+			monitor.beginTask("Copying loose objects", ProgressMonitor.UNKNOWN);
+			try {
+				for (final String d : fanout) {
+					if (d.length() != 2)
+						continue;
+					final String[] list = new File(srcDir, d).list();
+					if (list == null)
+						continue;
+					for (final String f : list) {
+						if (f.length() != Constants.OBJECT_ID_LENGTH * 2 - 2)
+							continue;
+						final ObjectId id;
+						try {
+							id = ObjectId.fromString(d + f);
+						} catch (IllegalArgumentException notObject) {
+							continue;
+						}
+						if (local.hasObject(id))
+							continue;
+
+						final File dst = local.toFile(id);
+						dst.getParentFile().mkdir();
+						copy(new File(new File(srcDir, d), f), dst, dstDir,
+								null);
+						dst.setReadOnly();
+						monitor.update(1);
+					}
+				}
+			} finally {
+				monitor.endTask();
+			}
+		}
+
+		private void copy(final File from, final File to, final File tmpDir,
+				final ProgressMonitor monitor) throws IOException {
+			final File tmp = File.createTempFile("incoming_", null, tmpDir);
+			try {
+				final FileChannel in = new FileInputStream(from).getChannel();
+				try {
+					final FileChannel out = new FileOutputStream(tmp)
+							.getChannel();
+					try {
+						final long len = in.size();
+						ByteBuffer buf = null;
+						long pos = 0;
+						while (pos < len) {
+							final int cnt = (int) Math.min(len - pos,
+									1024 * 1024);
+							long n = in.transferTo(pos, cnt, out);
+							if (n <= 0) {
+								// transferTo may refuse to make progress;
+								// copy this block through a buffer instead.
+								//
+								if (buf == null)
+									buf = ByteBuffer.allocate(64 * 1024);
+								buf.clear();
+								buf.limit(Math.min(cnt, buf.capacity()));
+								n = in.read(buf, pos);
+								if (n < 0)
+									throw new EOFException("Unexpected end of "
+											+ from);
+								buf.flip();
+								while (buf.hasRemaining())
+									out.write(buf);
+							}
+							if (monitor != null)
+								monitor.update((int) ((pos + n) / 1024 - pos
+										/ 1024));
+							pos += n;
+						}
+						out.force(true);
+					} finally {
+						out.close();
+					}
+				} finally {
+					in.close();
+				}
+
+				if (!tmp.renameTo(to)) {
+					to.delete();
+					if (!tmp.renameTo(to))
+						throw new IOException("Cannot create " + to);
+				}
+			} finally {
+				tmp.delete();
+			}
+		}
+
+		public boolean didFetchIncludeTags() {
+			return fallback != null && fallback.didFetchIncludeTags();
+		}
+
+		public boolean didFetchTestConnectivity() {
+			return fallback != null && fallback.didFetchTestConnectivity();
+		}
+
+		@Override
+		public void close() {
+			if (fallback != null) {
+				fallback.close();
+				fallback = null;
+			}
+			if (src != null) {
+				src.close();
+				src = null;
+			}
+		}
+	}
+
 	class ForkLocalFetchConnection extends BasePackFetchConnection {
 		private Process uploadPack;
 
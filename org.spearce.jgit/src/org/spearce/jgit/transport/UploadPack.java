@@ -37,8 +37,8 @@
 
 package org.spearce.jgit.transport;
 
-import java.io.BufferedOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -48,8 +48,12 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.spearce.jgit.errors.PackProtocolException;
+import org.spearce.jgit.lib.CachedPack;
+import org.spearce.jgit.lib.CachedPackWriter;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectId;
@@ -126,8 +130,19 @@ public class UploadPack {
 
 	private final RevFlagSet SAVE;
 
+	/** Smallest generation of a commit the client told us it has. */
+	private int peerHasGeneration = RevCommit.GENERATION_INFINITY;
+
 	private boolean multiAck;
 
+	/** Runs rebuilds of the cached pack; null if it is never rebuilt. */
+	private Executor cachedPackExecutor;
+
+	/** Repositories whose cached pack rebuild is queued or running. */
+	private static final Set<File> rebuilding = new HashSet<File>();
+
+	private PacketMetrics packetMetrics = PacketMetrics.NULL;
+
 	/**
 	 * Create a new pack upload for an open repository.
 	 *
@@ -137,6 +152,7 @@ public class UploadPack {
 	public UploadPack(final Repository copyFrom) {
 		db = copyFrom;
 		walk = new RevWalk(db);
+		walk.setRetainBody(false);
 
 		ADVERTISED = walk.newFlag("ADVERTISED");
 		WANT = walk.newFlag("WANT");
@@ -160,6 +176,35 @@ public final RevWalk getRevWalk() {
 		return walk;
 	}
 
+	/**
+	 * Set the executor rebuilding the cached pack of the repository.
+	 * <p>
+	 * The refs covered by the cached pack are named by the multi-valued
+	 * <code>uploadpack.cachedpack</code> configuration variable. A client
+	 * asking for everything those refs point at, with no common base, is sent
+	 * the cached pack as it is, followed by the objects it does not hold.
+	 * When the refs have moved away from the tips the cached pack was built
+	 * from, a rebuild is handed to the executor. Without an executor an
+	 * existing cached pack is still used, but never rebuilt.
+	 *
+	 * @param executor
+	 *            executor to run rebuilds on; null to never rebuild.
+	 */
+	public void setCachedPackExecutor(final Executor executor) {
+		cachedPackExecutor = executor;
+	}
+
+	/**
+	 * Set the observer of the packets written to the client.
+	 *
+	 * @param metrics
+	 *            observer to notify of each write and flush; null to stop
+	 *            observing.
+	 */
+	public void setPacketMetrics(final PacketMetrics metrics) {
+		packetMetrics = metrics != null ? metrics : PacketMetrics.NULL;
+	}
+
 	/**
 	 * Execute the upload task on the socket.
 	 *
@@ -184,6 +229,7 @@ public void upload(final InputStream input, final OutputStream output,
 
 		pckIn = new PacketLineIn(rawIn);
 		pckOut = new PacketLineOut(rawOut);
+		pckOut.setMetrics(packetMetrics);
 		service();
 	}
 
@@ -393,8 +439,17 @@ private boolean matchHave(final ObjectId id) {
 
 		if (!o.has(PEER_HAS)) {
 			o.add(PEER_HAS);
-			if (o instanceof RevCommit)
-				((RevCommit) o).carry(PEER_HAS);
+			if (o instanceof RevCommit) {
+				final RevCommit c = (RevCommit) o;
+				c.carry(PEER_HAS);
+				try {
+					peerHasGeneration = Math.min(peerHasGeneration, walk
+							.getGeneration(c));
+				} catch (IOException err) {
+					// Without its generation the commit just doesn't
+					// help to limit the search in wantSatisfied.
+				}
+			}
 			if (!o.has(COMMON)) {
 				o.add(COMMON);
 				commonBase.add(o);
@@ -423,20 +478,32 @@ private boolean okToGiveUp() throws PackProtocolException {
 	private boolean wantSatisfied(final RevCommit want) throws IOException {
 		walk.resetRetain(SAVE);
 		walk.markStart(want);
-		for (;;) {
-			final RevCommit c = walk.next();
-			if (c == null)
-				break;
-			if (c.has(PEER_HAS)) {
-				if (!c.has(COMMON)) {
-					c.add(COMMON);
-					commonBase.add(c);
+
+		// Commits below the generation of the oldest commit the client
+		// has can't reach any of its commits. Stop there rather than
+		// walking the rest of history by commit date; at worst we wait
+		// for the client to name a common ancestor itself.
+		//
+		if (peerHasGeneration != RevCommit.GENERATION_INFINITY)
+			walk.setMinGeneration(peerHasGeneration);
+		try {
+			for (;;) {
+				final RevCommit c = walk.next();
+				if (c == null)
+					break;
+				if (c.has(PEER_HAS)) {
+					if (!c.has(COMMON)) {
+						c.add(COMMON);
+						commonBase.add(c);
+					}
+					return true;
 				}
-				return true;
+				c.dispose();
 			}
-			c.dispose();
+			return false;
+		} finally {
+			walk.setMinGeneration(0);
 		}
-		return false;
 	}
 
 	private void sendPack() throws IOException {
@@ -452,20 +519,28 @@ private void sendPack() throws IOException {
 			int bufsz = SideBandOutputStream.SMALL_BUF;
 			if (options.contains(OPTION_SIDE_BAND_64K))
 				bufsz = SideBandOutputStream.MAX_BUF;
-			bufsz -= SideBandOutputStream.HDR_SIZE;
 
-			packOut = new BufferedOutputStream(new SideBandOutputStream(
-					SideBandOutputStream.CH_DATA, pckOut), bufsz);
+			packOut = new SideBandOutputStream(SideBandOutputStream.CH_DATA,
+					bufsz, pckOut);
 
 			if (progress)
 				pm = new SideBandProgressMonitor(pckOut);
+		} else {
+			// The pack goes straight to rawOut, after our last reply.
+			pckOut.flush();
 		}
 
 		final PackWriter pw;
 		pw = new PackWriter(db, pm, NullProgressMonitor.INSTANCE);
 		pw.setDeltaBaseAsOffset(options.contains(OPTION_OFS_DELTA));
+		pw.setReusePackRanges(true);
 		pw.setThin(thin);
-		pw.preparePack(wantAll, commonBase);
+		final CachedPack cached = selectCachedPack();
+		if (cached != null) {
+			pw.setCachedPack(cached);
+			pw.preparePack(wantAll, cached.getTips());
+		} else
+			pw.preparePack(wantAll, commonBase);
 		if (options.contains(OPTION_INCLUDE_TAG)) {
 			for (final Ref r : refs.values()) {
 				final RevObject o;
@@ -490,4 +565,134 @@ private void sendPack() throws IOException {
 			rawOut.flush();
 		}
 	}
+
+	private CachedPack selectCachedPack() {
+		final String[] names = db.getConfig().getStringList("uploadpack",
+				null, "cachedpack");
+		if (names.length == 0)
+			return null;
+
+		CachedPack cached;
+		try {
+			cached = CachedPack.open(db);
+		} catch (IOException e) {
+			cached = null;
+		}
+
+		if (cachedPackExecutor != null) {
+			final Set<ObjectId> tips = new HashSet<ObjectId>();
+			for (final String name : names) {
+				final Ref r;
+				try {
+					r = db.getRef(name);
+				} catch (IOException e) {
+					continue;
+				}
+				if (r != null && r.getObjectId() != null)
+					tips.add(r.getObjectId());
+			}
+			if (!tips.isEmpty()
+					&& (cached == null || !cached.getTips().equals(tips)))
+				rebuildCachedPack(tips);
+		}
+
+		if (cached == null || !commonBase.isEmpty()
+				|| !options.contains(OPTION_OFS_DELTA))
+			return null;
+		return isWanted(cached) ? cached : null;
+	}
+
+	/**
+	 * Check the client wants everything the cached pack holds.
+	 * <p>
+	 * Each tip of the pack must be wanted, or be an ancestor of a wanted
+	 * commit. Otherwise the client would be sent objects it did not ask for.
+	 */
+	private boolean isWanted(final CachedPack cached) {
+		final RevWalk rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		try {
+			final Set<ObjectId> wantIds = new HashSet<ObjectId>();
+			final List<RevCommit> wants = new ArrayList<RevCommit>();
+			for (final RevObject o : wantAll) {
+				wantIds.add(o.copy());
+				final RevObject c = peel(rw, o);
+				if (c instanceof RevCommit)
+					wants.add((RevCommit) c);
+			}
+
+			TIPS: for (final ObjectId id : cached.getTips()) {
+				if (wantIds.contains(id))
+					continue;
+				final RevObject o = peel(rw, id);
+				if (o instanceof RevCommit) {
+					for (final RevCommit w : wants) {
+						if (rw.isMergedInto((RevCommit) o, w))
+							continue TIPS;
+					}
+				}
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static RevObject peel(final RevWalk rw, final ObjectId id)
+			throws IOException {
+		RevObject o = rw.parseAny(id);
+		while (o instanceof RevTag)
+			o = rw.parseAny(((RevTag) o).getObject());
+		return o;
+	}
+
+	private void rebuildCachedPack(final Set<ObjectId> tips) {
+		final File gitDir = db.getDirectory();
+		if (new CachedPackWriter(db).isWriting())
+			return;
+		synchronized (rebuilding) {
+			// A rebuild may be queued but not yet started; every request
+			// seeing the old tips would otherwise queue another one.
+			//
+			if (!rebuilding.add(gitDir))
+				return;
+		}
+		try {
+			cachedPackExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						rebuild(gitDir, tips);
+					} finally {
+						synchronized (rebuilding) {
+							rebuilding.remove(gitDir);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The executor is shutting down or busy; try another time.
+			synchronized (rebuilding) {
+				rebuilding.remove(gitDir);
+			}
+		}
+	}
+
+	private void rebuild(final File gitDir, final Set<ObjectId> tips) {
+		// This connection's repository may be closed by its owner (e.g. a
+		// RepositoryCache) once the session ends, so the rebuild opens
+		// its own, reading through the same WindowCache.
+		//
+		try {
+			final Repository r = new Repository(gitDir, db.getWindowCache());
+			try {
+				new CachedPackWriter(r).write(tips,
+						NullProgressMonitor.INSTANCE);
+			} finally {
+				r.close();
+			}
+		} catch (IOException e) {
+			// Leave the old pack; a later request tries again.
+		}
+	}
 }
@@ -42,6 +42,7 @@
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -51,6 +52,12 @@
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.spearce.jgit.errors.CompoundException;
 import org.spearce.jgit.errors.CorruptObjectException;
@@ -61,6 +68,7 @@
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileMode;
 import org.spearce.jgit.lib.MutableObjectId;
+import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectChecker;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.PackIndex;
@@ -95,6 +103,12 @@
  * Instead it delegates the transfer to a {@link WalkRemoteObjectDatabase},
  * which knows how to read individual files from the remote repository and
  * supply the data as a standard Java InputStream.
+ * <p>
+ * If the remote database can serve several requests at once, up to
+ * {@link Transport#getFetchConcurrency()} requests are kept in flight: loose
+ * objects near the head of the work queue are downloaded ahead of time, and
+ * pack indexes and packs are downloaded in parallel. Objects are still
+ * verified, parsed and marked complete one at a time, in queue order.
  * 
  * @see WalkRemoteObjectDatabase
  */
@@ -130,6 +144,9 @@ class WalkFetchConnection extends BaseFetchConnection {
 	/** Commits that have already entered {@link #localCommitQueue}. */
 	private final RevFlag LOCALLY_SEEN;
 
+	/** Objects already considered by {@link #prefetchLooseObjects()}. */
+	private final RevFlag PREFETCH_SEEN;
+
 	/** Commits already reachable from all local refs. */
 	private final DateRevQueue localCommitQueue;
 
@@ -167,6 +184,18 @@ class WalkFetchConnection extends BaseFetchConnection {
 	 */
 	private final HashMap<ObjectId, List<Throwable>> fetchErrors;
 
+	/** Number of requests we may have in flight at once. */
+	private final int concurrency;
+
+	/** Runs downloads in the background; null until first needed. */
+	private ExecutorService downloader;
+
+	/** Loose objects downloaded ahead of {@link #workQueue}, by object. */
+	private final HashMap<ObjectId, Future<byte[]>> prefetched;
+
+	/** True while loose objects are worth downloading ahead of time. */
+	private boolean prefetchLoose;
+
 	WalkFetchConnection(final WalkTransport t, final WalkRemoteObjectDatabase w) {
 		Transport wt = (Transport)t;
 		local = wt.local;
@@ -185,12 +214,15 @@ class WalkFetchConnection extends BaseFetchConnection {
 		noAlternatesYet.add(w);
 
 		fetchErrors = new HashMap<ObjectId, List<Throwable>>();
+		concurrency = wt.getFetchConcurrency();
+		prefetched = new HashMap<ObjectId, Future<byte[]>>();
 
 		revWalk = new RevWalk(local);
 		treeWalk = new TreeWalk(local);
 		COMPLETE = revWalk.newFlag("COMPLETE");
 		IN_WORK_QUEUE = revWalk.newFlag("IN_WORK_QUEUE");
 		LOCALLY_SEEN = revWalk.newFlag("LOCALLY_SEEN");
+		PREFETCH_SEEN = revWalk.newFlag("PREFETCH_SEEN");
 
 		localCommitQueue = new DateRevQueue();
 		workQueue = new LinkedList<ObjectId>();
@@ -208,6 +240,7 @@ protected void doFetch(final ProgressMonitor monitor,
 		queueWants(want);
 
 		while (!monitor.isCancelled() && !workQueue.isEmpty()) {
+			prefetchLooseObjects();
 			final ObjectId id = workQueue.removeFirst();
 			if (!(id instanceof RevObject) || !((RevObject) id).has(COMPLETE))
 				downloadObject(monitor, id);
@@ -217,6 +250,8 @@ protected void doFetch(final ProgressMonitor monitor,
 
 	@Override
 	public void close() {
+		if (downloader != null)
+			downloader.shutdownNow();
 		for (final RemotePack p : unfetchedPacks)
 			p.tmpIdx.delete();
 		for (final WalkRemoteObjectDatabase r : remotes)
@@ -289,6 +324,15 @@ private void process(final ObjectId id) throws TransportException {
 		// now resolved, as the object was parsed successfully.
 		//
 		fetchErrors.remove(id.copy());
+
+		// It may have come in through a pack while its loose copy was
+		// still being downloaded ahead of time; that copy is not needed.
+		//
+		if (!prefetched.isEmpty()) {
+			final Future<byte[]> f = prefetched.remove(id.copy());
+			if (f != null)
+				f.cancel(false);
+		}
 	}
 
 	private void processBlob(final RevObject obj) throws TransportException {
@@ -356,6 +400,8 @@ private void downloadObject(final ProgressMonitor pm, final AnyObjectId id)
 			throws TransportException {
 		if (local.hasObject(id))
 			return;
+		if (downloadPrefetchedObject(id))
+			return;
 
 		for (;;) {
 			// Try a pack file we know about, but don't have yet. Odds are
@@ -368,10 +414,7 @@ private void downloadObject(final ProgressMonitor pm, final AnyObjectId id)
 			// Search for a loose object over all alternates, starting
 			// from the one we last successfully located an object through.
 			//
-			final String idStr = id.name();
-			final String subdir = idStr.substring(0, 2);
-			final String file = idStr.substring(2);
-			final String looseName = subdir + "/" + file;
+			final String looseName = looseName(id);
 
 			for (int i = lastRemoteIdx; i < remotes.size(); i++) {
 				if (downloadLooseObject(id, looseName, remotes.get(i))) {
@@ -409,6 +452,8 @@ private void downloadObject(final ProgressMonitor pm, final AnyObjectId id)
 					if (packsConsidered.add(packName))
 						unfetchedPacks.add(new RemotePack(wrr, packName));
 				}
+				for (final RemotePack p : unfetchedPacks)
+					p.startOpenIndex();
 				if (downloadPackedObject(pm, id))
 					return;
 			}
@@ -478,8 +523,10 @@ private boolean downloadPackedObject(final ProgressMonitor monitor,
 
 			// It should be in the associated pack. Download that
 			// and attach it to the local repository so we can use
-			// all of the contained objects.
+			// all of the contained objects. Other packs holding
+			// objects we still need are downloaded alongside it.
 			//
+			final List<RemotePack> others = startPackDownloads(pack);
 			try {
 				pack.downloadPack(monitor);
 			} catch (IOException err) {
@@ -513,10 +560,16 @@ private boolean downloadPackedObject(final ProgressMonitor monitor,
 
 			// Complete any other objects that we can.
 			//
+			final List<PackIndex> received = new ArrayList<PackIndex>();
+			received.add(pack.index);
+			for (final RemotePack o : others) {
+				if (o.finishDownload())
+					received.add(o.index);
+			}
 			final Iterator<ObjectId> pending = swapFetchQueue();
 			while (pending.hasNext()) {
 				final ObjectId p = pending.next();
-				if (pack.index.hasObject(p)) {
+				if (hasObject(received, p)) {
 					pending.remove();
 					process(p);
 				} else {
@@ -529,6 +582,177 @@ private boolean downloadPackedObject(final ProgressMonitor monitor,
 		return false;
 	}
 
+	/**
+	 * Start downloading packs that hold objects waiting in the work queue.
+	 *
+	 * @param selected
+	 *            the pack the caller downloads itself.
+	 * @return packs now downloading in the background.
+	 */
+	private List<RemotePack> startPackDownloads(final RemotePack selected) {
+		final List<RemotePack> started = new ArrayList<RemotePack>();
+		if (concurrency <= 1)
+			return started;
+		for (final RemotePack p : unfetchedPacks) {
+			if (started.size() == concurrency - 1)
+				break;
+			if (p == selected || p.packDownload != null || !p.isIndexReady()
+					|| !p.connection.isConcurrentOpenSupported())
+				continue;
+			for (final ObjectId id : workQueue) {
+				if (p.index.hasObject(id)) {
+					p.startDownload(id);
+					started.add(p);
+					break;
+				}
+			}
+		}
+		return started;
+	}
+
+	private static boolean hasObject(final List<PackIndex> packs,
+			final AnyObjectId id) {
+		for (final PackIndex idx : packs) {
+			if (idx.hasObject(id))
+				return true;
+		}
+		return false;
+	}
+
+	/** Download loose objects near the head of the work queue. */
+	private void prefetchLooseObjects() {
+		if (!prefetchLoose || concurrency <= 1)
+			return;
+		final List<WalkRemoteObjectDatabase> sources;
+		sources = new ArrayList<WalkRemoteObjectDatabase>();
+		for (int i = 0; i < remotes.size(); i++) {
+			final int n = (lastRemoteIdx + i) % remotes.size();
+			if (remotes.get(n).isConcurrentOpenSupported())
+				sources.add(remotes.get(n));
+		}
+		if (sources.isEmpty())
+			return;
+
+		final int window = 2 * concurrency;
+		final Iterator<ObjectId> i = workQueue.iterator();
+		for (int n = 0; prefetched.size() < window && n < 4 * window
+				&& i.hasNext(); n++) {
+			final ObjectId id = i.next();
+			if (!(id instanceof RevObject))
+				continue;
+			final RevObject obj = (RevObject) id;
+			if (obj.has(COMPLETE) || obj.has(PREFETCH_SEEN))
+				continue;
+			obj.add(PREFETCH_SEEN);
+			if (local.hasObject(obj) || isInUnfetchedPack(obj))
+				continue;
+
+			final String looseName = looseName(obj);
+			prefetched.put(obj.copy(), downloader().submit(
+					new Callable<byte[]>() {
+						public byte[] call() throws IOException {
+							for (final WalkRemoteObjectDatabase r : sources) {
+								try {
+									return r.open(looseName).toArray();
+								} catch (FileNotFoundException e) {
+									// Try the next alternate.
+								}
+							}
+							return null;
+						}
+					}));
+		}
+	}
+
+	private boolean isInUnfetchedPack(final AnyObjectId id) {
+		for (final RemotePack p : unfetchedPacks) {
+			if (p.isIndexReady() && p.index.hasObject(id))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean downloadPrefetchedObject(final AnyObjectId id)
+			throws TransportException {
+		if (prefetched.isEmpty())
+			return false;
+		final Future<byte[]> f = prefetched.remove(id.copy());
+		if (f == null)
+			return false;
+
+		final byte[] compressed;
+		try {
+			compressed = f.get();
+		} catch (InterruptedException e) {
+			throw new TransportException("Interrupted while fetching "
+					+ id.name());
+		} catch (ExecutionException e) {
+			// Let the normal search try it again, and report it.
+			//
+			recordError(id, e.getCause());
+			return false;
+		}
+		if (compressed == null) {
+			// No remote has it loose, so it is most likely packed.
+			// Objects near it probably are too; stop guessing.
+			//
+			prefetchLoose = false;
+			return false;
+		}
+
+		try {
+			verifyLooseObject(id, compressed);
+			saveLooseObject(id, compressed);
+			return true;
+		} catch (FileNotFoundException e) {
+			recordError(id, e);
+			return false;
+		} catch (IOException e) {
+			throw new TransportException("Cannot download " + id.name(), e);
+		}
+	}
+
+	private ExecutorService downloader() {
+		if (downloader == null) {
+			downloader = Executors.newFixedThreadPool(concurrency,
+					new ThreadFactory() {
+						private int id;
+
+						public Thread newThread(final Runnable r) {
+							final Thread t = new Thread(r, "JGit-WalkFetch-"
+									+ (++id));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return downloader;
+	}
+
+	private static void waitFor(final Future<?> f) throws IOException {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			final IOException err = new IOException(cause.getMessage());
+			err.initCause(cause);
+			throw err;
+		}
+	}
+
+	private static String looseName(final AnyObjectId id) {
+		final String idStr = id.name();
+		return idStr.substring(0, 2) + "/" + idStr.substring(2);
+	}
+
 	private Iterator<ObjectId> swapFetchQueue() {
 		final Iterator<ObjectId> r = workQueue.iterator();
 		workQueue = new LinkedList<ObjectId>();
@@ -542,6 +766,7 @@ private boolean downloadLooseObject(final AnyObjectId id,
 			final byte[] compressed = remote.open(looseName).toArray();
 			verifyLooseObject(id, compressed);
 			saveLooseObject(id, compressed);
+			prefetchLoose = true;
 			return true;
 		} catch (FileNotFoundException e) {
 			// Not available in a loose format from this alternate?
@@ -784,6 +1009,15 @@ private class RemotePack {
 
 		PackIndex index;
 
+		/** Download of the index in the background, if one was started. */
+		private Future<?> indexDownload;
+
+		/** Download of the pack in the background, if one was started. */
+		private Future<?> packDownload;
+
+		/** Queued object the background download was started for. */
+		private ObjectId packDownloadFor;
+
 		RemotePack(final WalkRemoteObjectDatabase c, final String pn) {
 			final File objdir = local.getObjectsDirectory();
 			connection = c;
@@ -798,7 +1032,42 @@ private class RemotePack {
 			tmpIdx = new File(objdir, "walk-" + tn + ".walkidx");
 		}
 
+		void startOpenIndex() {
+			if (concurrency <= 1 || index != null || indexDownload != null
+					|| !connection.isConcurrentOpenSupported())
+				return;
+			indexDownload = downloader().submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					readIndex(NullProgressMonitor.INSTANCE);
+					return null;
+				}
+			});
+		}
+
+		/** @return true if the index is open, without waiting for it. */
+		boolean isIndexReady() {
+			if (indexDownload != null) {
+				if (!indexDownload.isDone())
+					return false;
+				try {
+					openIndex(NullProgressMonitor.INSTANCE);
+				} catch (IOException err) {
+					return false;
+				}
+			}
+			return index != null;
+		}
+
 		void openIndex(final ProgressMonitor pm) throws IOException {
+			if (indexDownload != null) {
+				final Future<?> f = indexDownload;
+				indexDownload = null;
+				waitFor(f);
+			}
+			readIndex(pm);
+		}
+
+		private void readIndex(final ProgressMonitor pm) throws IOException {
 			if (index != null)
 				return;
 			if (tmpIdx.isFile()) {
@@ -848,14 +1117,56 @@ void openIndex(final ProgressMonitor pm) throws IOException {
 			}
 		}
 
+		void startDownload(final AnyObjectId wanted) {
+			packDownloadFor = wanted.copy();
+			packDownload = downloader().submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					fetchPack(NullProgressMonitor.INSTANCE);
+					return null;
+				}
+			});
+		}
+
+		/**
+		 * Wait for a download started by {@link #startDownload(AnyObjectId)}.
+		 * <p>
+		 * A failure is recorded against the object the download was started
+		 * for, so it is reported if that object cannot be obtained at all.
+		 *
+		 * @return true if the pack is now in the local repository; false if
+		 *         it failed, and is left to be tried again.
+		 */
+		boolean finishDownload() {
+			try {
+				downloadPack(NullProgressMonitor.INSTANCE);
+			} catch (IOException err) {
+				recordError(packDownloadFor, err);
+				return false;
+			}
+			tmpIdx.delete();
+			unfetchedPacks.remove(this);
+			return true;
+		}
+
 		void downloadPack(final ProgressMonitor monitor) throws IOException {
+			if (packDownload != null) {
+				final Future<?> f = packDownload;
+				packDownload = null;
+				waitFor(f);
+				return;
+			}
+			fetchPack(monitor);
+		}
+
+		private void fetchPack(final ProgressMonitor monitor)
+				throws IOException {
 			final WalkRemoteObjectDatabase.FileStream s;
 			final IndexPack ip;
 
 			s = connection.open("pack/" + packName);
 			ip = IndexPack.create(local, s.in);
 			ip.setFixThin(false);
-			ip.setObjectChecker(objCheck);
+			ip.setObjectChecker(objCheck != null ? new ObjectChecker() : null);
 			ip.index(monitor);
 			ip.renameAndOpenPack();
 		}
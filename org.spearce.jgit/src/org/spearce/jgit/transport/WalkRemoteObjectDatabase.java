@@ -172,6 +172,19 @@ abstract WalkRemoteObjectDatabase openAlternate(String location)
 	 */
 	abstract void close();
 
+	/**
+	 * Determine if {@link #open(String)} may be called by several threads.
+	 * <p>
+	 * The default implementation returns false. Databases reached over a
+	 * stateless protocol, where each open is a new request, should override
+	 * and return true.
+	 *
+	 * @return true if files may be opened concurrently.
+	 */
+	boolean isConcurrentOpenSupported() {
+		return false;
+	}
+
 	/**
 	 * Delete a file from the object database.
 	 * <p>
@@ -47,9 +47,12 @@
 import java.util.Arrays;
 import java.util.Comparator;
 
+import org.spearce.jgit.dircache.DirCacheEntry;
 import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileMode;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.util.FS;
 
 /**
  * Walks a working directory tree as part of a {@link TreeWalk}.
@@ -283,6 +286,70 @@ public long getEntryLastModified() {
 		return current().getLastModified();
 	}
 
+	/**
+	 * Compare the current entry to its cached index entry.
+	 * <p>
+	 * Only the stat data Java can observe is compared: the file type, the
+	 * executable bit (if the filesystem supports it), the length and the last
+	 * modified time. If all of them match the index entry the file is assumed
+	 * to be unmodified and its content is never read. If the length matches
+	 * but the modification time does not, or if the caller forces a content
+	 * check (such as for a racily clean entry), the file is hashed and the
+	 * result compared to the entry's ObjectId.
+	 *
+	 * @param entry
+	 *            the index entry for the current path.
+	 * @param forceContentCheck
+	 *            true to hash the file even if its stat data matches the
+	 *            entry.
+	 * @return true if the working file differs from the index entry.
+	 */
+	public boolean isModified(final DirCacheEntry entry,
+			final boolean forceContentCheck) {
+		if (entry.isAssumeValid())
+			return false;
+
+		final int entryType = entry.getRawMode() & 0170000;
+		if ((mode & 0170000) != entryType) {
+			// Java cannot see symbolic links, so they appear to us as
+			// whatever they point to. Trust the index for these.
+			//
+			return entryType != 0120000;
+		}
+		if (entryType != 0100000 /* normal files */)
+			return false;
+		if (FS.INSTANCE.supportsExecute()
+				&& ((mode & 0111) != 0) != ((entry.getRawMode() & 0111) != 0))
+			return true;
+
+		// An entry without a modification time has never had its stat
+		// data recorded (e.g. it was read from a tree), and C Git smudges
+		// racily clean entries by setting their length to 0. Neither stat
+		// can be trusted, so only a hash of the file can decide.
+		//
+		final Entry e = current();
+		final long cacheLastModified = entry.getLastModified();
+		final boolean statValid = cacheLastModified != 0
+				&& entry.getLength() != 0;
+		if (statValid && e.getLength() != entry.getLength())
+			return true;
+
+		// Git on Windows only stores seconds, so round our timestamp
+		// if the cached one looks like it has no millisecond part.
+		//
+		long fileLastModified = e.getLastModified();
+		if (cacheLastModified % 1000 == 0)
+			fileLastModified -= fileLastModified % 1000;
+		if (statValid && fileLastModified == cacheLastModified
+				&& !forceContentCheck)
+			return false;
+
+		final byte[] id = idBuffer();
+		if (id == zeroid)
+			return true;
+		return !entry.getObjectId().equals(ObjectId.fromRaw(id, idOffset()));
+	}
+
 	private static final Comparator<Entry> ENTRY_CMP = new Comparator<Entry>() {
 		public int compare(final Entry o1, final Entry o2) {
 			final byte[] a = o1.encodedName;
@@ -127,7 +127,7 @@ public static int formatBase10(final byte[] b, int o, int value) {
 		}
 		final boolean isneg = value < 0;
 		while (value != 0) {
-			b[--o] = base10byte[value % 10];
+			b[--o] = base10byte[Math.abs(value % 10)];
 			value /= 10;
 		}
 		if (isneg)